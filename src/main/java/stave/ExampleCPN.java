@@ -9,24 +9,34 @@
 package stave;
 
 import java.util.Collection;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.Map;
 import java.util.Stack;
 import javax.xml.parsers.ParserConfigurationException;
 import org.w3c.dom.Element;
 import org.w3c.dom.NodeList;
 import stave.cpntools.CPNToolsNetFactory;
 import stave.cpntools.LayoutFactory;
+import stave.cpntools.SubnetCache;
 
 public class ExampleCPN extends CPNToolsNetFactory {
 
     // Default separation between elements - Distance is relative from their centers
-    private final int mspacingx = 126;
-    private final int mspacingy = 126;
+    protected final int mspacingx = 126;
+    protected final int mspacingy = 126;
     // Stores the hierarchy of instance elements, so new substitution transitions are added accordingly.
     Stack<Element> minstance;
     private TopPage mtoppage;
-    private HashSet<Element> mthreadsubtrans;
+    private LinkedHashSet<Element> mthreadsubtrans;
+    // Subnets already generated, possibly in previous runs. Null if not used.
+    private SubnetCache msubnetcache;
+    // Must generate uniqids, to create unique names for pages
+    // This is a requirement for CPN Tools state-space exploration
+    // Counted per net, so building the same net again gives the same names
+    private long mpagenumber = 0;
 
     /**
      * Create the basic DOM structure and add the mandatory SyncTask constructs,
@@ -39,7 +49,7 @@ public class ExampleCPN extends CPNToolsNetFactory {
         minstance = new Stack<Element>();
         setNextInstance(minstances);
 
-        mthreadsubtrans = new HashSet<Element>();
+        mthreadsubtrans = new LinkedHashSet<Element>();
 
         // Creates the top page
         mtoppage = new TopPage();
@@ -94,6 +104,15 @@ public class ExampleCPN extends CPNToolsNetFactory {
         return mtoppage;
     }
 
+    /**
+     * Reuse the contents of pages generated before, instead of building them again.
+     *
+     * @param pcache Cache shared between nets, or null to always build the pages.
+     */
+    public void setSubnetCache(SubnetCache pcache) {
+        msubnetcache = pcache;
+    }
+
     /**
      * Add the declaration for a color set of a bounded integer.
      */
@@ -178,13 +197,6 @@ public class ExampleCPN extends CPNToolsNetFactory {
 
     // Base class for all SyncTask nodes
     public static class Node {
-        // Must generate uniqids, to create unique names for pages
-        // This is a requirement for CPN Tools state-space exploration
-        private static long muniqueid = 0;
-
-        protected static String getUniqueId() {
-            return Long.toString(muniqueid++);
-        }
     }
 
     /**
@@ -204,10 +216,44 @@ public class ExampleCPN extends CPNToolsNetFactory {
          * @param ppagename Page name
          */
         protected Page(String ppagename) {
-            mpage = createPage(ppagename + getUniqueId());
+            mpage = createPage(ppagename + mpagenumber++);
             appendElementToCpnet(mpage);
         }
 
+        /**
+         * Fill the (empty) page with a copy of a page built before with the same signature.
+         *
+         * @param psignature Construct and types that determine the contents of the page.
+         * @return The copies of the elements given to store(), by role. Null if the page must be built.
+         */
+        protected Map<String, Element> reuse(String psignature) {
+            if (msubnetcache == null) {
+                return null;
+            }
+            Map<String, Element> lroles = msubnetcache.get(psignature, ExampleCPN.this, mpage);
+            if (lroles != null) {
+                mpinport = lroles.get("inport");
+                mpoutport = lroles.get("outport");
+            }
+            return lroles;
+        }
+
+        /**
+         * Keep the contents of the page just built, for reuse().
+         *
+         * @param psignature Construct and types that determine the contents of the page.
+         * @param proles     Elements that the page object refers to, besides the ports.
+         */
+        protected void store(String psignature, Map<String, Element> proles) {
+            if (msubnetcache == null) {
+                return;
+            }
+            HashMap<String, Element> lroles = new HashMap<String, Element>(proles);
+            lroles.put("inport", mpinport);
+            lroles.put("outport", mpoutport);
+            msubnetcache.put(psignature, mpage, lroles);
+        }
+
         public Element element() {
             return mpage;
         }
@@ -486,6 +532,12 @@ public class ExampleCPN extends CPNToolsNetFactory {
 
             super("Skip_" + pname);
 
+            Map<String, Element> lcached = reuse("Skip");
+            if (lcached != null) {
+                mtskip = lcached.get("Skip");
+                return;
+            }
+
             Element larc;
 
             // (inport)i
@@ -507,6 +559,10 @@ public class ExampleCPN extends CPNToolsNetFactory {
             // [Skip] -> (outport)o
             larc = addArcTtoP(mtskip, mpoutport, "1`()");
             LayoutFactory.Arc.setLayoutAndPosition(larc);
+
+            HashMap<String, Element> lroles = new HashMap<String, Element>();
+            lroles.put("Skip", mtskip);
+            store("Skip", lroles);
         }
     }
 }
@@ -0,0 +1,414 @@
+/*
+* Generates large nets from a seed, for capacity planning, benchmarks and soak
+* tests. The nets are built with the pages of ExampleCPN: the top page has one
+* thread (substitution transition) per fan-out, and each thread is a random
+* tree of Composition pages, down to the hierarchy depth, with Skip pages and
+* Access pages (a transition reading a fusion place) as leaves. The data of the
+* fusion places is drawn from a mix of bool, bounded int and enumeration colour
+* sets. The same seed and settings always produce the same net.
+*
+*     java stave.SyntheticCPN out.cpn pages=100000 depth=12 fanout=16 fusions=64 colours=6 seed=1
+*
+* generates at most the given number of pages below the top page: each
+* Composition has two subpages, so a thread has an odd number of pages, and at
+* most 2^depth - 1 of them. The count is reached when there are enough levels,
+* less one page for each thread given an even share. The generator then
+* prints the time spent building, in layout passes and serializing, the bytes
+* written and the peak heap. With spill=1 the pages are moved to a PageStore
+* as they are concluded, and with stream=1 they are written to the output.
+*/
+
+package stave;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import javax.xml.parsers.ParserConfigurationException;
+import org.w3c.dom.Element;
+import stave.cpntools.BuildMetrics;
+import stave.cpntools.LayoutFactory;
+import stave.cpntools.PageStore;
+
+public class SyntheticCPN extends ExampleCPN {
+
+    // Pages generated below the top page, at most; see the header
+    private int mpages = 1000;
+    // Levels of Composition pages below a thread, at most
+    private int mdepth = 12;
+    // Threads in the top page
+    private int mfanout = 4;
+    private int mfusionsets = 8;
+    // Data colour sets, besides UNIT
+    private int mcoloursets = 3;
+    // Spill each page to a PageStore once connected
+    private boolean mspill = false;
+    // Write each page to this file once connected, null to build the whole net
+    private String mstreamfile = null;
+    private final Random mrandom;
+    private final BuildMetrics mmetrics = new BuildMetrics();
+    // Colour set, initial marking and variable of each fusion set
+    private final List<String> mfusiontypes = new ArrayList<String>();
+    private final List<String> mfusioninits = new ArrayList<String>();
+    private final List<String> mfusionvars = new ArrayList<String>();
+
+    public SyntheticCPN(long pseed) throws ParserConfigurationException {
+        super();
+        mrandom = new Random(pseed);
+        setMetrics(mmetrics);
+    }
+
+    public void setPages(int ppages) {
+        mpages = ppages;
+    }
+
+    public void setDepth(int pdepth) {
+        mdepth = pdepth;
+    }
+
+    public void setFanout(int pfanout) {
+        mfanout = pfanout;
+    }
+
+    public void setFusionSets(int pfusionsets) {
+        mfusionsets = pfusionsets;
+    }
+
+    public void setColourSets(int pcoloursets) {
+        mcoloursets = pcoloursets;
+    }
+
+    /**
+     * Move each page to a temporary PageStore once it is connected to its superpage,
+     * so nets larger than the heap can be generated.
+     */
+    public void setSpilling(boolean pspill) {
+        mspill = pspill;
+    }
+
+    /**
+     * Write the net to a file while it is generated, each page once it is connected to
+     * its superpage. generate() then completes the file, instead of writeDOMtoCpnFile().
+     *
+     * @param pfilename Location of the file, null to keep the whole net in memory.
+     */
+    public void setStreaming(String pfilename) {
+        mstreamfile = pfilename;
+    }
+
+    public BuildMetrics getBuildMetrics() {
+        return mmetrics;
+    }
+
+    /**
+     * Build the net. The time spent is recorded as the timer "build", which
+     * includes the layout passes, also recorded as the timer "layout", and the
+     * pages written when streaming.
+     */
+    public void generate() throws IOException {
+        LayoutFactory.setMetrics(mmetrics);
+        if (mspill && getPageStore() == null) {
+            setPageStore(new PageStore());
+        }
+        long lstart = mmetrics.startTimer();
+
+        addUnitColset("UNIT");
+        declareFusionSets(declareColourSets());
+        if (mstreamfile != null) {
+            startStreaming(mstreamfile);
+        }
+
+        int lthreadpages = mpages / mfanout;
+        for (int i = 0; i < mfanout; i++) {
+            int lpages = lthreadpages + ((i < mpages % mfanout) ? 1 : 0);
+            // A subtree has an odd number of pages, which fit in its levels
+            lpages = (int) Math.min(lpages - 1 + (lpages & 1), capacity(1));
+            Element lthread = topPage().addSubpage("thread" + i);
+            Page lpage = buildSubtree(lthread, 1, Math.max(lpages, 1));
+            topPage().connect(lthread, lpage);
+            conclude(lpage);
+        }
+        topPage().concludeTopPage();
+        if (mstreamfile != null) {
+            flushPage(topPage().element());
+        }
+
+        mmetrics.stopTimer("build", lstart);
+        if (mstreamfile != null) {
+            finishStreaming();
+        }
+    }
+
+    /**
+     * Text of the figures of the last generation and output.
+     */
+    public String report() {
+        Map<String, Long> lvalues = mmetrics.snapshot();
+        StringBuilder lreport = new StringBuilder();
+        lreport.append("build: ").append(millis(lvalues, "build.nanos")).append(" ms\n");
+        lreport.append("layout: ").append(millis(lvalues, "layout.nanos")).append(" ms\n");
+        lreport.append("serialization: ").append(millis(lvalues, "serialization.nanos")).append(" ms\n");
+        lreport.append("bytes written: ").append(value(lvalues, "bytes.written")).append('\n');
+        lreport.append("pages: ").append(value(lvalues, "elements.page"))
+                .append(", places: ").append(value(lvalues, "elements.place"))
+                .append(", transitions: ").append(value(lvalues, "elements.trans"))
+                .append(", arcs: ").append(value(lvalues, "elements.arc")).append('\n');
+        if (getPageStore() != null) {
+            lreport.append("pages spilled: ").append(getPageStore().size())
+                    .append(", ").append(getPageStore().getBytes()).append(" bytes\n");
+        }
+        lreport.append("DOM nodes at output: ").append(value(lvalues, "dom.nodes.final")).append('\n');
+        lreport.append("peak heap: ").append(peakHeap() >> 20).append(" MB\n");
+        return lreport.toString();
+    }
+
+    public static void main(String[] argv) throws ParserConfigurationException {
+        if (argv.length == 0) {
+            System.err.println("Usage: SyntheticCPN out.cpn [pages=N] [depth=N] [fanout=N] [fusions=N] [colours=N]"
+                    + " [spill=0|1] [stream=0|1] [seed=N]");
+            System.err.println("  pages is an upper bound, see the documentation of the class.");
+            System.exit(1);
+        }
+        long lseed = 0;
+        int lpages = 1000, ldepth = 12, lfanout = 4, lfusions = 8, lcolours = 3;
+        boolean lspill = false;
+        boolean lstream = false;
+        for (int i = 1; i < argv.length; i++) {
+            String[] lsetting = argv[i].split("=", 2);
+            if (lsetting.length != 2) {
+                throw new IllegalArgumentException("Expected setting=value, found " + argv[i]);
+            }
+            long lvalue = Long.parseLong(lsetting[1]);
+            if ("pages".equals(lsetting[0])) {
+                lpages = (int) lvalue;
+            } else if ("depth".equals(lsetting[0])) {
+                ldepth = (int) lvalue;
+            } else if ("fanout".equals(lsetting[0])) {
+                lfanout = (int) lvalue;
+            } else if ("fusions".equals(lsetting[0])) {
+                lfusions = (int) lvalue;
+            } else if ("colours".equals(lsetting[0])) {
+                lcolours = (int) lvalue;
+            } else if ("stream".equals(lsetting[0])) {
+                lstream = lvalue != 0;
+            } else if ("spill".equals(lsetting[0])) {
+                lspill = lvalue != 0;
+            } else if ("seed".equals(lsetting[0])) {
+                lseed = lvalue;
+            } else {
+                throw new IllegalArgumentException("Unknown setting " + lsetting[0]);
+            }
+        }
+
+        resetPeakHeap();
+        SyntheticCPN lnet = new SyntheticCPN(lseed);
+        lnet.setPages(lpages);
+        lnet.setDepth(ldepth);
+        lnet.setFanout(lfanout);
+        lnet.setFusionSets(lfusions);
+        lnet.setColourSets(lcolours);
+        lnet.setSpilling(lspill);
+        lnet.setStreaming(lstream ? argv[0] : null);
+        try {
+            lnet.generate();
+            if (!lstream) {
+                lnet.writeDOMtoCpnFile(argv[0]);
+            }
+            if (lnet.getPageStore() != null) {
+                lnet.getPageStore().close();
+            }
+        } catch (Exception e) {
+            System.err.println("SyntheticCPN: " + e.getMessage());
+            System.exit(1);
+        }
+        System.out.print(lnet.report());
+    }
+
+    /**
+     * Instantiate a page below a substitution transition: a Composition whose two
+     * subtrees share the remaining pages, or a leaf.
+     *
+     * @param ptrans Substitution transition that the page will be connected to.
+     * @param pdepth Level of the page.
+     * @param ppages Pages of the subtree, odd and at most capacity(pdepth).
+     * @return Page to connect to the substitution transition.
+     */
+    private Page buildSubtree(Element ptrans, int pdepth, int ppages) throws IOException {
+        addAndSetNextInstance(createInstanceForSTransition(ptrans));
+        Page lpage;
+        if (ppages < 3 || pdepth >= mdepth) {
+            lpage = buildLeaf();
+        } else {
+            Composition lcomposition = new Composition("c");
+            // Between a quarter and three quarters of the pages left go to s1, so the
+            // subtrees reach the depth with most of the pages placed. Both shares are
+            // odd and fit in the levels left.
+            int lrest = ppages - 1;
+            long lcapacity = capacity(pdepth + 1);
+            int lmin = (int) Math.max(lrest - lcapacity, 1);
+            int lmax = (int) Math.min(lcapacity, lrest - 1);
+            int lfirst = Math.min(Math.max(lrest / 4 + mrandom.nextInt(lrest / 2 + 1), lmin), lmax);
+            if ((lfirst & 1) == 0) {
+                lfirst = (lfirst < lmax) ? lfirst + 1 : lfirst - 1;
+            }
+            Page lfirstpage = buildSubtree(lcomposition.transS1(), pdepth + 1, lfirst);
+            lcomposition.connectS1(lfirstpage);
+            conclude(lfirstpage);
+            Page lsecondpage = buildSubtree(lcomposition.transS2(), pdepth + 1, lrest - lfirst);
+            lcomposition.connectS2(lsecondpage);
+            conclude(lsecondpage);
+            lpage = lcomposition;
+        }
+        restorePrevInstance();
+        return lpage;
+    }
+
+    // Pages of a full subtree whose page is at the given level
+    private long capacity(int pdepth) {
+        int llevels = mdepth - pdepth + 1;
+        return (llevels >= 62) ? Long.MAX_VALUE : (1L << Math.max(llevels, 1)) - 1;
+    }
+
+    // A page is concluded once connected to its superpage
+    private void conclude(Page ppage) throws IOException {
+        if (mstreamfile != null) {
+            flushPage(ppage.element());
+        } else if (mspill) {
+            spillPage(ppage.element());
+        }
+    }
+
+    private Page buildLeaf() {
+        if (mfusionsets > 0 && mrandom.nextBoolean()) {
+            return new Access(mrandom.nextInt(mfusionsets));
+        }
+        return new Skip("s");
+    }
+
+    /**
+     * Declare the data colour sets, cycling through bool, bounded int and enumeration.
+     *
+     * @return Name and a value of each colour set.
+     */
+    private List<String[]> declareColourSets() {
+        List<String[]> lsets = new ArrayList<String[]>();
+        for (int i = 0; i < mcoloursets; i++) {
+            String lname = "D" + i;
+            switch (i % 3) {
+                case 0:
+                    appendElementToGlobbox(createBoolColset(lname));
+                    lsets.add(new String[]{lname, "true"});
+                    break;
+                case 1:
+                    appendElementToGlobbox(createIntColset(lname, "0", Integer.toString(i)));
+                    lsets.add(new String[]{lname, "0"});
+                    break;
+                default:
+                    List<String> litems = new ArrayList<String>();
+                    for (int j = 0; j <= i; j++) {
+                        litems.add("e" + i + "_" + j);
+                    }
+                    appendElementToGlobbox(createEnumColset(lname, litems));
+                    lsets.add(new String[]{lname, litems.get(0)});
+            }
+        }
+        if (lsets.isEmpty()) {
+            lsets.add(new String[]{"UNIT", "()"});
+        }
+        return lsets;
+    }
+
+    /**
+     * Declare the fusion sets, each with a colour set drawn from the mix and a
+     * variable that the Access pages read it with.
+     */
+    private void declareFusionSets(List<String[]> pcoloursets) {
+        for (int i = 0; i < mfusionsets; i++) {
+            String[] lset = pcoloursets.get(mrandom.nextInt(pcoloursets.size()));
+            String lvar = "v" + i;
+            appendElementToCpnet(createFusion("F" + i));
+            appendElementToGlobbox(createVarDecl(lvar, lset[0]));
+            mfusiontypes.add(lset[0]);
+            mfusioninits.add("1`" + lset[1]);
+            mfusionvars.add(lvar);
+        }
+    }
+
+    private static String millis(Map<String, Long> pvalues, String pname) {
+        return Long.toString(value(pvalues, pname) / 1000000);
+    }
+
+    private static long value(Map<String, Long> pvalues, String pname) {
+        Long lvalue = pvalues.get(pname);
+        return (lvalue == null) ? 0 : lvalue;
+    }
+
+    private static void resetPeakHeap() {
+        for (MemoryPoolMXBean lpool : ManagementFactory.getMemoryPoolMXBeans()) {
+            if (lpool.getType() == MemoryType.HEAP) {
+                lpool.resetPeakUsage();
+            }
+        }
+    }
+
+    /**
+     * Bytes of heap used at most, summed over the heap pools, since the last resetPeakHeap().
+     */
+    private static long peakHeap() {
+        long lpeak = 0;
+        for (MemoryPoolMXBean lpool : ManagementFactory.getMemoryPoolMXBeans()) {
+            if (lpool.getType() == MemoryType.HEAP) {
+                lpeak += lpool.getPeakUsage().getUsed();
+            }
+        }
+        return lpeak;
+    }
+
+    /**
+     * Page whose transition reads the place of a fusion set, (inport)i -> [Access] -> (outport)o
+     */
+    public class Access extends Page {
+
+        protected Element mtaccess;
+
+        public Access(int pfusionset) {
+            super("Access_F" + pfusionset);
+
+            Element larc;
+
+            // (inport)i
+            mpinport = addInPortPlace("inport", "UNIT", "");
+            LayoutFactory.PortPlace.setLayoutAndPosition(mpinport, 0, 0);
+
+            // [Access]
+            mtaccess = addTransition("Access");
+            LayoutFactory.Transition.setLayoutAndPosition(mtaccess, mspacingx, 0);
+
+            // (inport)i -> [Access]
+            larc = addArcPtoT(mpinport, mtaccess, "1`()");
+            LayoutFactory.Arc.setLayoutAndPosition(larc);
+
+            // (outport)o
+            mpoutport = addOutPortPlace("outport", "UNIT", "");
+            LayoutFactory.PortPlace.setLayoutAndPosition(mpoutport, 2 * mspacingx, 0);
+
+            // [Access] -> (outport)o
+            larc = addArcTtoP(mtaccess, mpoutport, "1`()");
+            LayoutFactory.Arc.setLayoutAndPosition(larc);
+
+            // (F)v <-> [Access]
+            Element lfusionplace = addFusionPlace("F" + pfusionset, mfusionvars.get(pfusionset),
+                    mfusiontypes.get(pfusionset), mfusioninits.get(pfusionset));
+            LayoutFactory.FusionPlace.setLayoutAndPosition(lfusionplace, mspacingx, mspacingy);
+            List<Element> lvars = new ArrayList<Element>();
+            lvars.add(lfusionplace);
+            for (Element lreflexive : addReflexiveArcs(mtaccess, lvars)) {
+                LayoutFactory.Arc.setLayoutAndPosition(lreflexive);
+            }
+        }
+    }
+}
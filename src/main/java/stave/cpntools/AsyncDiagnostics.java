@@ -0,0 +1,88 @@
+/*
+* Diagnostics adapter that hands the messages to a background thread through a
+* bounded ring buffer, so the thread generating the net never formats or
+* prints them, and never waits on the output. Messages arriving while the
+* buffer is full are dropped and counted.
+*
+* The arguments are formatted later, on the background thread, so they should
+* not be changed after they are reported.
+*/
+
+package stave.cpntools;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+public class AsyncDiagnostics implements Diagnostics {
+
+    private static final class Entry {
+        final Level mlevel;
+        final String mtemplate;
+        final Object[] margs;
+
+        Entry(Level plevel, String ptemplate, Object[] pargs) {
+            mlevel = plevel;
+            mtemplate = ptemplate;
+            margs = pargs;
+        }
+    }
+
+    // Put in the buffer by close()
+    private static final Entry END = new Entry(null, null, null);
+
+    private final Diagnostics mdelegate;
+    private final ArrayBlockingQueue<Entry> mbuffer;
+    private final AtomicLong mdropped = new AtomicLong();
+    private final Thread mconsumer;
+
+    /**
+     * @param pdelegate Sink receiving the messages on the background thread, e.g. a StandardErrorDiagnostics.
+     * @param pcapacity Number of messages the buffer holds.
+     */
+    public AsyncDiagnostics(Diagnostics pdelegate, int pcapacity) {
+        mdelegate = pdelegate;
+        mbuffer = new ArrayBlockingQueue<Entry>(pcapacity);
+        mconsumer = new Thread(new Runnable() {
+            public void run() {
+                drain();
+            }
+        }, "AsyncDiagnostics");
+        mconsumer.setDaemon(true);
+        mconsumer.start();
+    }
+
+    public boolean isEnabled(Level plevel) {
+        return mdelegate.isEnabled(plevel);
+    }
+
+    public void report(Level plevel, String ptemplate, Object[] pargs) {
+        if (!mbuffer.offer(new Entry(plevel, ptemplate, pargs))) {
+            mdropped.incrementAndGet();
+        }
+    }
+
+    /**
+     * Messages dropped because the buffer was full.
+     */
+    public long getDroppedCount() {
+        return mdropped.get();
+    }
+
+    /**
+     * Deliver the messages in the buffer, and stop the background thread.
+     */
+    public void close() throws InterruptedException {
+        mbuffer.put(END);
+        mconsumer.join();
+    }
+
+    private void drain() {
+        try {
+            for (Entry lentry = mbuffer.take(); lentry != END; lentry = mbuffer.take()) {
+                mdelegate.report(lentry.mlevel, lentry.mtemplate, lentry.margs);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
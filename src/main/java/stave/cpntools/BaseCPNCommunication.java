@@ -17,51 +17,200 @@ import org.w3c.dom.Document;
  */
 public class BaseCPNCommunication {
 
-    protected static boolean mwarnings = true;
-    protected static boolean mdebug = true;
+    // Switches of the deprecated setWarning() and setDebug()
+    protected static boolean mwarnings = false;
+    protected static boolean mdebug = false;
+
+    private static final Object[] NO_ARGS = new Object[0];
+
+    // Sink of the objects without their own, and of the static helpers
+    private static volatile Diagnostics mdefaultdiagnostics = Diagnostics.NONE;
+    // Sink of this object, null to use mdefaultdiagnostics
+    private Diagnostics mdiagnostics = null;
 
     BaseCPNCommunication() {
     }
 
+    /**
+     * Print the warnings of the objects without their own sink to System.err.
+     *
+     * @deprecated Give the factory a sink with setDiagnostics(), e.g. a StandardErrorDiagnostics.
+     */
+    @Deprecated
     public static void setWarning(boolean lwarn) {
         mwarnings = lwarn;
+        updateDefaultDiagnostics();
     }
 
     public static boolean onWarning() {
         return mwarnings;
     }
 
+    /**
+     * Print the debug messages of the objects without their own sink to System.err.
+     *
+     * @deprecated Give the factory a sink with setDiagnostics(), e.g. a StandardErrorDiagnostics.
+     */
+    @Deprecated
     public static void setDebug(boolean ldebug) {
         mdebug = ldebug;
+        updateDefaultDiagnostics();
     }
 
     public static boolean onDebug() {
         return mdebug;
     }
 
+    private static void updateDefaultDiagnostics() {
+        mdefaultdiagnostics = (mdebug || mwarnings) ? new StandardErrorDiagnostics(mdebug, mwarnings) : Diagnostics.NONE;
+    }
+
+    /**
+     * @deprecated Use warningf(), which reports to the sink of the object.
+     */
+    @Deprecated
     protected static void warning(String larg) {
-        if (mwarnings) {
-            System.err.println("Warning - " + larg);
-        }
+        report(mdefaultdiagnostics, Diagnostics.Level.WARNING, larg, NO_ARGS);
     }
 
+    /**
+     * @deprecated Use warningf(), which reports to the sink of the object.
+     */
+    @Deprecated
     protected static void warning(String larg, Exception e) {
         warning(larg + "Message: " + e.getMessage());
     }
 
+    /**
+     * @deprecated Use warningf(), which reports to the sink of the object.
+     */
+    @Deprecated
     protected static void warning(Exception e) {
         warning(e.getMessage());
     }
 
+    /**
+     * @deprecated Use debugf(), which reports to the sink of the object.
+     */
+    @Deprecated
     protected static void debug(String larg) {
-        if (mdebug) {
-            System.err.println("Debug: - " + larg);
-        }
+        report(mdefaultdiagnostics, Diagnostics.Level.DEBUG, larg, NO_ARGS);
     }
 
+    /**
+     * @deprecated Use debugf(), which reports to the sink of the object.
+     */
+    @Deprecated
     protected static void debug(String larg, Exception e) {
         debug(larg + "Message(Exception): " + e.getMessage());
     }
+
+    /**
+     * Send the messages of this object to the given sink, e.g. a StandardErrorDiagnostics
+     * to print them. The objects created by a factory use the sink of the factory.
+     *
+     * @param pdiagnostics Sink, or null to discard the messages (unless setDebug() or setWarning() were used).
+     */
+    public void setDiagnostics(Diagnostics pdiagnostics) {
+        mdiagnostics = pdiagnostics;
+    }
+
+    public Diagnostics getDiagnostics() {
+        return (mdiagnostics == null) ? mdefaultdiagnostics : mdiagnostics;
+    }
+
+    protected boolean isDebugEnabled() {
+        return getDiagnostics().isEnabled(Diagnostics.Level.DEBUG);
+    }
+
+    /**
+     * Debug message of this object, formatted only if debugging is enabled.
+     * The overloads with up to three arguments allocate nothing when it is not.
+     *
+     * @param ptemplate Text, where each "{}" stands for the next argument.
+     */
+    protected void debugf(String ptemplate) {
+        Diagnostics ldiagnostics = getDiagnostics();
+        if (ldiagnostics.isEnabled(Diagnostics.Level.DEBUG)) {
+            ldiagnostics.report(Diagnostics.Level.DEBUG, ptemplate, NO_ARGS);
+        }
+    }
+
+    protected void debugf(String ptemplate, Object parg) {
+        Diagnostics ldiagnostics = getDiagnostics();
+        if (ldiagnostics.isEnabled(Diagnostics.Level.DEBUG)) {
+            ldiagnostics.report(Diagnostics.Level.DEBUG, ptemplate, new Object[] {parg});
+        }
+    }
+
+    protected void debugf(String ptemplate, Object parg1, Object parg2) {
+        Diagnostics ldiagnostics = getDiagnostics();
+        if (ldiagnostics.isEnabled(Diagnostics.Level.DEBUG)) {
+            ldiagnostics.report(Diagnostics.Level.DEBUG, ptemplate, new Object[] {parg1, parg2});
+        }
+    }
+
+    protected void debugf(String ptemplate, Object parg1, Object parg2, Object parg3) {
+        Diagnostics ldiagnostics = getDiagnostics();
+        if (ldiagnostics.isEnabled(Diagnostics.Level.DEBUG)) {
+            ldiagnostics.report(Diagnostics.Level.DEBUG, ptemplate, new Object[] {parg1, parg2, parg3});
+        }
+    }
+
+    protected void debugf(String ptemplate, Object... pargs) {
+        report(getDiagnostics(), Diagnostics.Level.DEBUG, ptemplate, pargs);
+    }
+
+    /**
+     * Warning of this object, formatted only if warnings are enabled.
+     * The overloads with up to three arguments allocate nothing when they are not.
+     *
+     * @param ptemplate Text, where each "{}" stands for the next argument. A final exception
+     *                  argument is the cause.
+     */
+    protected void warningf(String ptemplate) {
+        Diagnostics ldiagnostics = getDiagnostics();
+        if (ldiagnostics.isEnabled(Diagnostics.Level.WARNING)) {
+            ldiagnostics.report(Diagnostics.Level.WARNING, ptemplate, NO_ARGS);
+        }
+    }
+
+    protected void warningf(String ptemplate, Object parg) {
+        Diagnostics ldiagnostics = getDiagnostics();
+        if (ldiagnostics.isEnabled(Diagnostics.Level.WARNING)) {
+            ldiagnostics.report(Diagnostics.Level.WARNING, ptemplate, new Object[] {parg});
+        }
+    }
+
+    protected void warningf(String ptemplate, Object parg1, Object parg2) {
+        Diagnostics ldiagnostics = getDiagnostics();
+        if (ldiagnostics.isEnabled(Diagnostics.Level.WARNING)) {
+            ldiagnostics.report(Diagnostics.Level.WARNING, ptemplate, new Object[] {parg1, parg2});
+        }
+    }
+
+    protected void warningf(String ptemplate, Object parg1, Object parg2, Object parg3) {
+        Diagnostics ldiagnostics = getDiagnostics();
+        if (ldiagnostics.isEnabled(Diagnostics.Level.WARNING)) {
+            ldiagnostics.report(Diagnostics.Level.WARNING, ptemplate, new Object[] {parg1, parg2, parg3});
+        }
+    }
+
+    protected void warningf(String ptemplate, Object... pargs) {
+        report(getDiagnostics(), Diagnostics.Level.WARNING, ptemplate, pargs);
+    }
+
+    private static void report(Diagnostics pdiagnostics, Diagnostics.Level plevel, String ptemplate, Object[] pargs) {
+        if (pdiagnostics.isEnabled(plevel)) {
+            pdiagnostics.report(plevel, ptemplate, pargs);
+        }
+    }
+
+    // Give an object created by this one the same sink
+    protected <T extends BaseCPNCommunication> T inheritDiagnostics(T pobject) {
+        pobject.setDiagnostics(mdiagnostics);
+        return pobject;
+    }
  
    /* The following exception is to be used only while generating CPN tools file */
 
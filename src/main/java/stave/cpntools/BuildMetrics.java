@@ -0,0 +1,126 @@
+/*
+* Registry of counters and timers of the generation of nets: elements created
+* per kind, ids allocated, time spent in layout and serialization, bytes
+* written and the size of the DOM when it is output. Values are kept in
+* LongAdders, which are striped across threads, so builders running
+* concurrently can share a registry without contention.
+*
+* Timers are recorded as two counters, "<name>.count" and "<name>.nanos".
+* Maxima (e.g. "dom.nodes.final") keep the largest value recorded.
+*
+*     BuildMetrics lmetrics = new BuildMetrics();
+*     lfactory.setMetrics(lmetrics);
+*     LayoutFactory.setMetrics(lmetrics);
+*     ...
+*     Map<String, Long> lsnapshot = lmetrics.snapshot();
+*/
+
+package stave.cpntools;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongBinaryOperator;
+
+public class BuildMetrics {
+
+    private static final LongBinaryOperator MAX = new LongBinaryOperator() {
+        public long applyAsLong(long pleft, long pright) {
+            return Math.max(pleft, pright);
+        }
+    };
+
+    private final ConcurrentHashMap<String, LongAdder> mcounters = new ConcurrentHashMap<String, LongAdder>();
+    private final ConcurrentHashMap<String, LongAccumulator> mmaxima = new ConcurrentHashMap<String, LongAccumulator>();
+    // Counters "<name>.count" and "<name>.nanos" of each timer, so stopping one builds no names
+    private final ConcurrentHashMap<String, LongAdder[]> mtimers = new ConcurrentHashMap<String, LongAdder[]>();
+
+    /**
+     * Add one to a counter.
+     */
+    public void increment(String pname) {
+        counter(pname).increment();
+    }
+
+    public void add(String pname, long pamount) {
+        counter(pname).add(pamount);
+    }
+
+    /**
+     * Keep the largest value recorded under a name.
+     */
+    public void recordMax(String pname, long pvalue) {
+        LongAccumulator lmaximum = mmaxima.get(pname);
+        if (lmaximum == null) {
+            mmaxima.putIfAbsent(pname, new LongAccumulator(MAX, Long.MIN_VALUE));
+            lmaximum = mmaxima.get(pname);
+        }
+        lmaximum.accumulate(pvalue);
+    }
+
+    /**
+     * Start of a timed section, to be given to stopTimer().
+     */
+    public long startTimer() {
+        return System.nanoTime();
+    }
+
+    public void stopTimer(String pname, long pstart) {
+        long lelapsed = System.nanoTime() - pstart;
+        LongAdder[] ltimer = mtimers.get(pname);
+        if (ltimer == null) {
+            mtimers.putIfAbsent(pname, new LongAdder[] {counter(pname + ".count"), counter(pname + ".nanos")});
+            ltimer = mtimers.get(pname);
+        }
+        ltimer[0].increment();
+        ltimer[1].add(lelapsed);
+    }
+
+    /**
+     * Current values of all counters and maxima, sorted by name. Values recorded
+     * concurrently with the snapshot may or may not be included.
+     */
+    public Map<String, Long> snapshot() {
+        TreeMap<String, Long> lvalues = new TreeMap<String, Long>();
+        for (Map.Entry<String, LongAdder> lentry : mcounters.entrySet()) {
+            lvalues.put(lentry.getKey(), lentry.getValue().sum());
+        }
+        for (Map.Entry<String, LongAccumulator> lentry : mmaxima.entrySet()) {
+            lvalues.put(lentry.getKey(), lentry.getValue().get());
+        }
+        return Collections.unmodifiableMap(lvalues);
+    }
+
+    /**
+     * Clear all values, e.g. between two builds.
+     */
+    public void reset() {
+        for (LongAdder lcounter : mcounters.values()) {
+            lcounter.reset();
+        }
+        for (LongAccumulator lmaximum : mmaxima.values()) {
+            lmaximum.reset();
+        }
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder lbuilder = new StringBuilder();
+        for (Map.Entry<String, Long> lentry : snapshot().entrySet()) {
+            lbuilder.append(lentry.getKey()).append(" = ").append(lentry.getValue()).append('\n');
+        }
+        return lbuilder.toString();
+    }
+
+    private LongAdder counter(String pname) {
+        LongAdder lcounter = mcounters.get(pname);
+        if (lcounter == null) {
+            mcounters.putIfAbsent(pname, new LongAdder());
+            lcounter = mcounters.get(pname);
+        }
+        return lcounter;
+    }
+}
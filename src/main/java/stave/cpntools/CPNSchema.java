@@ -0,0 +1,120 @@
+/*
+* Validation of CPN Tools documents without network access. The library
+* bundles a schema of the CPN Tools format (cpn.xsd, next to this class),
+* which is compiled once and shared by all validations, so checking many
+* generated documents costs neither downloads nor parsing the grammar again.
+* The schema also checks that ids are unique and that id references point to
+* existing elements.
+*
+* Documents are validated in memory, without writing them. To read .cpn files
+* without fetching the DTD named in their DOCTYPE, parse them with
+* getEntityResolver().
+*/
+
+package stave.cpntools;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.List;
+import javax.xml.XMLConstants;
+import javax.xml.transform.dom.DOMSource;
+import javax.xml.validation.Schema;
+import javax.xml.validation.SchemaFactory;
+import javax.xml.validation.Validator;
+import org.w3c.dom.Document;
+import org.xml.sax.EntityResolver;
+import org.xml.sax.ErrorHandler;
+import org.xml.sax.InputSource;
+import org.xml.sax.SAXException;
+import org.xml.sax.SAXParseException;
+
+public class CPNSchema extends BaseCPNCommunication {
+
+    // Problems reported in the exception thrown by check()
+    private static final int REPORTED_PROBLEMS = 10;
+
+    // Compiled once, Schema objects are immutable and thread-safe
+    private static Schema mschema = null;
+
+    /**
+     * The bundled schema, compiled on first use.
+     */
+    public static synchronized Schema getSchema() {
+        if (mschema == null) {
+            URL lresource = CPNSchema.class.getResource("cpn.xsd");
+            if (lresource == null) {
+                throw new IllegalStateException("cpn.xsd is missing from the classpath.");
+            }
+            try {
+                mschema = SchemaFactory.newInstance(XMLConstants.W3C_XML_SCHEMA_NS_URI).newSchema(lresource);
+            } catch (SAXException e) {
+                throw new IllegalStateException("Cannot compile cpn.xsd.", e);
+            }
+        }
+        return mschema;
+    }
+
+    /**
+     * Resolver that keeps a parser from downloading the CPN Tools DTD. The document
+     * is read without its DTD, and can be checked with validate() afterwards.
+     */
+    public static EntityResolver getEntityResolver() {
+        return new EntityResolver() {
+            public InputSource resolveEntity(String ppublicid, String psystemid) {
+                if ((psystemid != null && psystemid.endsWith("/cpn.dtd")) || "-//CPN//DTD CPNXML 1.0//EN".equals(ppublicid)) {
+                    return new InputSource(new StringReader(""));
+                }
+                return null;
+            }
+        };
+    }
+
+    /**
+     * Check a document against the bundled schema.
+     *
+     * @param pdocument CPN Tools document.
+     * @return Description of each problem found, empty if the document is valid.
+     */
+    public List<String> validate(Document pdocument) {
+        final List<String> lproblems = new ArrayList<String>();
+        // Validators are cheap, but not thread-safe
+        Validator lvalidator = getSchema().newValidator();
+        lvalidator.setErrorHandler(new ErrorHandler() {
+            public void warning(SAXParseException pexception) {
+            }
+
+            public void error(SAXParseException pexception) {
+                lproblems.add(pexception.getMessage());
+            }
+
+            public void fatalError(SAXParseException pexception) {
+                lproblems.add(pexception.getMessage());
+            }
+        });
+        try {
+            lvalidator.validate(new DOMSource(pdocument));
+        } catch (SAXException e) {
+            lproblems.add(e.getMessage());
+        } catch (IOException e) {
+            lproblems.add(e.getMessage());
+        }
+        return lproblems;
+    }
+
+    /**
+     * Check a document, and throw an exception describing the first problems found.
+     */
+    public void check(Document pdocument) {
+        List<String> lproblems = validate(pdocument);
+        if (lproblems.isEmpty()) {
+            return;
+        }
+        StringBuilder lmessage = new StringBuilder("CPNSchema: " + lproblems.size() + " problems.");
+        for (int i = 0; i < Math.min(lproblems.size(), REPORTED_PROBLEMS); i++) {
+            lmessage.append("\n  ").append(lproblems.get(i));
+        }
+        throw new BadCPNDefinitionException(lmessage.toString());
+    }
+}
@@ -9,20 +9,30 @@
 
 package stave.cpntools;
 
+import java.io.File;
 import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.Enumeration;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Hashtable;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
 import javax.xml.parsers.DocumentBuilder;
 import javax.xml.parsers.DocumentBuilderFactory;
 import javax.xml.parsers.ParserConfigurationException;
 import javax.xml.transform.TransformerConfigurationException;
 import javax.xml.transform.TransformerException;
+import org.w3c.dom.Attr;
 import org.w3c.dom.DOMImplementation;
 import org.w3c.dom.Document;
+import org.w3c.dom.DocumentFragment;
 import org.w3c.dom.DocumentType;
 import org.w3c.dom.Element;
 import org.w3c.dom.Node;
@@ -34,6 +44,49 @@ public class CPNToolsNetFactory extends BaseCPNCommunication {
     protected final Element mglobbox;
     protected final Element minstances;
     private long muniqid = 10;
+    // Slots of the default string pool
+    private static final int STRING_POOL_SLOTS = 4096;
+    // Counters of the elements created, see setMetrics()
+    private static final String ELEMENTS_PAGE = "elements.page";
+    private static final String ELEMENTS_INSTANCE = "elements.instance";
+    private static final String ELEMENTS_FUSION = "elements.fusion";
+    private static final String ELEMENTS_COLOR = "elements.color";
+    private static final String ELEMENTS_VAR = "elements.var";
+    private static final String ELEMENTS_TRANS = "elements.trans";
+    private static final String ELEMENTS_PLACE = "elements.place";
+    private static final String ELEMENTS_ARC = "elements.arc";
+    private static final String IDS_ALLOCATED = "ids.allocated";
+    // Nodes of the DOM when the net is output, counted by walking it
+    private static final String DOM_NODES_FINAL = "dom.nodes.final";
+    // Apply the structural reductions before writing the net
+    private boolean mreduce = false;
+    // Identical subpages are written once, null if disabled
+    private SharedPages msharedpages = null;
+    // Replace the counter ids by ids derived from the content before writing the net
+    private boolean mstableids = false;
+    // Check the references of the net before writing or analysing it
+    private boolean mvalidate = false;
+    // Check the inscriptions of the net against the declarations before writing or analysing it
+    private boolean mtypecheck = false;
+    // Check the document against the bundled schema before writing or analysing it
+    private boolean mschemavalidate = false;
+    // Writer of the last incremental output, which keeps the sections in memory
+    private IncrementalWriter mincrementalwriter = null;
+    private File mincrementalsidecar = null;
+    // Fusion sets by name, the first one created with each name
+    private HashMap<String, Element> mfusions = new HashMap<String, Element>();
+    // Shared copies of the names, types, expressions and coordinates, null if disabled
+    private StringPool mstringpool = null;
+    // Text of the concluded pages moved out of the heap, null if disabled
+    private PageStore mpagestore = null;
+    // Write-through output, null unless streaming
+    private StreamingWriter mstreamingwriter = null;
+    // Counters and timers of the generation, null if disabled
+    private BuildMetrics mmetrics = null;
+    // Page -> port places of the page
+    private final HashMap<Element, PagePorts> mportindex = new HashMap<Element, PagePorts>();
+    // Port places created by the factory and not attached yet
+    private final LinkedHashSet<Element> mnewports = new LinkedHashSet<Element>();
     // Main object that stores the DOM
     private Document mdocument;
 
@@ -50,6 +103,7 @@ public class CPNToolsNetFactory extends BaseCPNCommunication {
 
         mdocument = lbuilder.newDocument();
         mdocument.setXmlVersion("1.0");
+        setStringPool(new StringPool(STRING_POOL_SLOTS));
         //Create doc type
         DOMImplementation limplementation = mdocument.getImplementation();
         DocumentType ldoctype = limplementation.createDocumentType("workspaceElements",
@@ -101,13 +155,13 @@ public class CPNToolsNetFactory extends BaseCPNCommunication {
      * @return Text in CPN tools format representing the marking.
      */
     public static String createMarkingText(Hashtable<String, Integer> pmarking) {
-        String ltext = new String();
-
         // Return empty string if mapping is empty
         if (pmarking.isEmpty()) {
-            return ltext;
+            return "";
         }
 
+        StringBuilder ltext = new StringBuilder(16 * pmarking.size());
+
         Enumeration<String> e = pmarking.keys();
 
         String lelement = e.nextElement();
@@ -116,7 +170,7 @@ public class CPNToolsNetFactory extends BaseCPNCommunication {
         // First element must *not* contain the separator ++
         // Elements with non-positive amount are ignored
         if (lamount > 0) {
-            ltext += lamount + "`" + lelement;
+            ltext.append(lamount).append('`').append(lelement);
         }
 
         while (e.hasMoreElements()) {
@@ -125,11 +179,11 @@ public class CPNToolsNetFactory extends BaseCPNCommunication {
 
             // Append "++" separator for all valid elements
             if (lamount > 0) {
-                ltext += "++" + lamount + "`" + lelement;
+                ltext.append("++").append(lamount).append('`').append(lelement);
             }
         }
 
-        return ltext;
+        return ltext.toString();
     }
 
     /**
@@ -137,7 +191,10 @@ public class CPNToolsNetFactory extends BaseCPNCommunication {
      *
      * @return unique identifier.
      */
-    private String getUniqueId() {
+    String getUniqueId() {
+        if (mmetrics != null) {
+            mmetrics.increment(IDS_ALLOCATED);
+        }
         muniqid++;
         return new String("ID" + muniqid);
     }
@@ -151,6 +208,350 @@ public class CPNToolsNetFactory extends BaseCPNCommunication {
         return mdocument;
     }
 
+    /**
+     * Executable view of the net built so far, used to explore its state space.
+     * The enabled checks are run, but the net is not changed: page sharing, reductions
+     * and stable ids are only applied when the net is written.
+     *
+     * @return Net with the page hierarchy resolved.
+     */
+    public StateSpaceNet createStateSpaceNet() {
+        if (hasSpilledPages()) {
+            throw new BadCPNDefinitionException("createStateSpaceNet: the net has pages spilled to a PageStore.");
+        }
+        if (mstreamingwriter != null) {
+            throw new BadCPNDefinitionException("createStateSpaceNet: the net is streamed.");
+        }
+        checkNet();
+        return inheritDiagnostics(new StateSpaceNet(mdocument));
+    }
+
+    /**
+     * Incidence matrix of the flattened net built so far, for invariant analysis.
+     */
+    public IncidenceMatrix createIncidenceMatrix() {
+        return new IncidenceMatrix(createStateSpaceNet());
+    }
+
+    /**
+     * Flattener of the hierarchy built so far. Call flatten() to obtain a single-page copy of the net.
+     */
+    public HierarchyFlattener createFlattener() {
+        return inheritDiagnostics(new HierarchyFlattener(mdocument));
+    }
+
+    /**
+     * Reducer of the net built so far. Call reduce() to simplify the net in place.
+     */
+    public NetReducer createReducer() {
+        return inheritDiagnostics(new NetReducer(this));
+    }
+
+    /**
+     * Validator of the net built so far. Call validate() to list its structural problems.
+     */
+    public NetValidator createValidator() {
+        return inheritDiagnostics(new NetValidator(mdocument));
+    }
+
+    /**
+     * Type checker of the net built so far. Call validate() to list the ill-typed inscriptions.
+     */
+    public TypeChecker createTypeChecker() {
+        return inheritDiagnostics(new TypeChecker(mdocument));
+    }
+
+    /**
+     * Memory estimate of the net built so far. Call analyze() to walk it.
+     */
+    public MemoryFootprint createFootprint() {
+        return inheritDiagnostics(new MemoryFootprint(mdocument));
+    }
+
+    /**
+     * Builder declaring a net through handles. Call build() to create it in this factory.
+     */
+    public NetBuilder createBuilder() {
+        return inheritDiagnostics(new NetBuilder(this));
+    }
+
+    /**
+     * Reduce the net with all structural reductions before it is written to a file.
+     * The reductions change the net in place, and may remove elements
+     * previously returned by this factory.
+     */
+    public void setReduction(boolean preduce) {
+        mreduce = preduce;
+    }
+
+    /**
+     * Share identical subpages: a subpage is compared with the previous ones when it is
+     * connected to a substitution transition, and all of them before the net is written.
+     * The duplicate pages are removed from the document, so the port places
+     * given by connectSubstitutionPage() and the elements of the page must not be used
+     * after the connection. Pages must be concluded before they are connected, or they
+     * are only shared before writing, and must not be changed once shared or written.
+     */
+    public void setPageSharing(boolean pshare) {
+        msharedpages = pshare ? inheritDiagnostics(new SharedPages(this)) : null;
+    }
+
+    /**
+     * Derive the ids from the position and name of each element, instead of the order
+     * of creation, before the net is written. Generating the same net
+     * again then gives the same file. The ids of the elements previously returned by
+     * this factory change.
+     */
+    public void setStableIds(boolean pstable) {
+        mstableids = pstable;
+    }
+
+    /**
+     * Check the references of the net before it is written or analysed, and throw a
+     * BadCPNDefinitionException describing the problems found. See NetValidator.
+     */
+    public void setValidation(boolean pvalidate) {
+        mvalidate = pvalidate;
+    }
+
+    /**
+     * Check the initial markings, arc expressions and guards against the declared colour
+     * sets and variables before the net is written or analysed, and throw a
+     * BadCPNDefinitionException describing the type errors found. See TypeChecker.
+     */
+    public void setTypeChecking(boolean ptypecheck) {
+        mtypecheck = ptypecheck;
+    }
+
+    /**
+     * Check the document against the schema bundled with the library before it is
+     * written or analysed, without network access. See CPNSchema.
+     */
+    public void setSchemaValidation(boolean pvalidate) {
+        mschemavalidate = pvalidate;
+    }
+
+    /**
+     * Share one String between the equal names, types, initial markings, expressions
+     * and coordinates given to the create methods and to LayoutFactory, instead of
+     * keeping each copy. Enabled by default. See StringPool.
+     *
+     * @param ppool Pool of this factory, null to keep the values as given.
+     */
+    public void setStringPool(StringPool ppool) {
+        mstringpool = ppool;
+        mdocument.setUserData(StringPool.USER_DATA_KEY, ppool, null);
+    }
+
+    public StringPool getStringPool() {
+        return mstringpool;
+    }
+
+    private String pooled(String pvalue) {
+        return (mstringpool == null) ? pvalue : mstringpool.intern(pvalue);
+    }
+
+    /**
+     * Record the elements created, ids allocated, serialization time, bytes written
+     * and DOM size of this factory in a registry. See BuildMetrics. The DOM size is
+     * sampled when the net is output, by walking the DOM, so it is its final size,
+     * not its peak: the pages spilled or flushed before are not counted.
+     *
+     * @param pmetrics Registry receiving the values, null to stop recording.
+     */
+    public void setMetrics(BuildMetrics pmetrics) {
+        mmetrics = pmetrics;
+    }
+
+    public BuildMetrics getMetrics() {
+        return mmetrics;
+    }
+
+    private void countElement(String pcounter) {
+        if (mmetrics != null) {
+            mmetrics.increment(pcounter);
+        }
+    }
+
+    private static long countNodes(Node pnode) {
+        long lcount = 1;
+        for (Node lchild = pnode.getFirstChild(); lchild != null; lchild = lchild.getNextSibling()) {
+            lcount += countNodes(lchild);
+        }
+        return lcount;
+    }
+
+    /**
+     * Keep the text of the pages given to spillPage() in a file instead of the heap,
+     * for nets whose DOM does not fit in memory. See PageStore.
+     *
+     * @param pstore Store of this factory, null to keep all pages in memory.
+     */
+    public void setPageStore(PageStore pstore) {
+        mpagestore = pstore;
+    }
+
+    public PageStore getPageStore() {
+        return mpagestore;
+    }
+
+    /**
+     * Move a concluded page to the page store, and release it from memory. The page is
+     * written in its place when the net is output with writeDOMtoCpnFile(String).
+     *
+     * The page must be complete, with its substitution transitions and its ports
+     * connected: afterwards its elements can no longer be changed, found by id or
+     * connected to. Page sharing, reductions, stable ids, checks, incremental output
+     * and state spaces need all pages in memory, and cannot be used with spilled pages.
+     *
+     * @param ppage Page of the net.
+     */
+    public void spillPage(Element ppage) throws IOException {
+        if (mpagestore == null) {
+            throw new BadCPNDefinitionException("spillPage: no PageStore set.");
+        }
+        if (mstreamingwriter != null) {
+            throw new BadCPNDefinitionException("spillPage: the net is streamed, see flushPage().");
+        }
+        if (!"page".equals(ppage.getNodeName()) || ppage.getParentNode() != mcpnet) {
+            throw new BadCPNDefinitionException("spillPage: " + ppage.getAttribute("id") + " is not a page of the net.");
+        }
+        checkNoWholeNetPasses();
+        releasePage(ppage);
+        mpagestore.spill(ppage);
+    }
+
+    /**
+     * Write the net as it is built: the prologue and the globbox now, each page when
+     * given to flushPage(), and the instances and other sections by finishStreaming().
+     * The declarations must be complete, and writeDOMtoCpnFile() can no longer be used.
+     * Same restrictions as spillPage().
+     *
+     * @param pfilename Location of the file.
+     */
+    public void startStreaming(String pfilename) throws IOException {
+        if (mstreamingwriter != null) {
+            throw new BadCPNDefinitionException("startStreaming: the net is already streamed.");
+        }
+        if (hasSpilledPages()) {
+            throw new BadCPNDefinitionException("startStreaming: the net has pages spilled to a PageStore.");
+        }
+        checkNoWholeNetPasses();
+        mstreamingwriter = inheritDiagnostics(new StreamingWriter(mdocument, mcpnet, pfilename));
+    }
+
+    /**
+     * Write a concluded page to the output started by startStreaming(), and drop it from
+     * the net. The page must be complete, as for spillPage().
+     *
+     * @param ppage Page of the net.
+     */
+    public void flushPage(Element ppage) throws IOException {
+        if (mstreamingwriter == null || mstreamingwriter.isFinished()) {
+            throw new BadCPNDefinitionException("flushPage: the net is not being streamed.");
+        }
+        if (!"page".equals(ppage.getNodeName()) || ppage.getParentNode() != mcpnet) {
+            throw new BadCPNDefinitionException("flushPage: " + ppage.getAttribute("id") + " is not a page of the net.");
+        }
+        long lstart = (mmetrics != null) ? mmetrics.startTimer() : 0;
+        releasePage(ppage);
+        mstreamingwriter.writePage(ppage);
+        mcpnet.removeChild(ppage);
+        if (mmetrics != null) {
+            mmetrics.stopTimer("serialization", lstart);
+        }
+    }
+
+    /**
+     * Write the sections still in memory, including the pages not flushed, and close the output.
+     */
+    public void finishStreaming() throws IOException {
+        if (mstreamingwriter == null || mstreamingwriter.isFinished()) {
+            throw new BadCPNDefinitionException("finishStreaming: the net is not being streamed.");
+        }
+        long lstart = (mmetrics != null) ? mmetrics.startTimer() : 0;
+        mstreamingwriter.finish();
+        if (mmetrics != null) {
+            mmetrics.stopTimer("serialization", lstart);
+            mmetrics.add("bytes.written", mstreamingwriter.getFile().length());
+            mmetrics.recordMax(DOM_NODES_FINAL, countNodes(mdocument));
+        }
+    }
+
+    public StreamingWriter getStreamingWriter() {
+        return mstreamingwriter;
+    }
+
+    // Drop the references of the port index and of the document's id table to a page
+    private void releasePage(Element ppage) {
+        forgetPorts(ppage);
+        unregisterIds(ppage);
+    }
+
+    private boolean hasSpilledPages() {
+        return mpagestore != null && mpagestore.size() > 0;
+    }
+
+    private void checkNoWholeNetPasses() {
+        if (msharedpages != null || mreduce || mstableids || mvalidate || mtypecheck || mschemavalidate) {
+            throw new BadCPNDefinitionException("Page sharing, reductions, stable ids and checks cannot be used with spilled pages.");
+        }
+    }
+
+    private static void unregisterIds(Element pelement) {
+        Attr lid = pelement.getAttributeNode("id");
+        if (lid != null && lid.isId()) {
+            pelement.setIdAttribute("id", false);
+        }
+        for (Node lnode = pelement.getFirstChild(); lnode != null; lnode = lnode.getNextSibling()) {
+            if (lnode.getNodeType() == Node.ELEMENT_NODE) {
+                unregisterIds((Element) lnode);
+            }
+        }
+    }
+
+    // Passes changing the net, then the checks; only run when the net is written
+    private void prepareForOutput() {
+        if (mstreamingwriter != null) {
+            throw new BadCPNDefinitionException("The net is streamed, see finishStreaming().");
+        }
+        if (hasSpilledPages()) {
+            checkNoWholeNetPasses();
+        }
+        if (msharedpages != null) {
+            msharedpages.shareAll();
+        }
+        if (mreduce) {
+            createReducer().reduce();
+        }
+        if (mstableids) {
+            inheritDiagnostics(new StableIds(mdocument)).apply();
+            for (PagePorts lports : mportindex.values()) {
+                lports.mids.clear();
+            }
+        }
+        if (msharedpages != null && (mreduce || mstableids)) {
+            msharedpages.changedAll();
+        }
+        checkNet();
+        if (mmetrics != null) {
+            mmetrics.recordMax(DOM_NODES_FINAL, countNodes(mdocument));
+        }
+    }
+
+    // Read-only checks, also run before analysis
+    private void checkNet() {
+        if (mvalidate) {
+            createValidator().check();
+        }
+        if (mtypecheck) {
+            createTypeChecker().check();
+        }
+        if (mschemavalidate) {
+            inheritDiagnostics(new CPNSchema()).check(mdocument);
+        }
+    }
+
     /**
      * Output the internal DOM to a file.
      *
@@ -159,7 +560,46 @@ public class CPNToolsNetFactory extends BaseCPNCommunication {
     public void writeDOMtoCpnFile(String pfilename) throws FileNotFoundException,
             TransformerConfigurationException,
             TransformerException {
-        outputDOMtoFile(mdocument, pfilename);
+        prepareForOutput();
+        long lstart = (mmetrics != null) ? mmetrics.startTimer() : 0;
+        if (hasSpilledPages()) {
+            try {
+                mpagestore.write(mdocument, pfilename);
+            } catch (IOException e) {
+                // Reported like the failures of outputDOMtoFile()
+                throw new TransformerException(e);
+            }
+        } else {
+            outputDOMtoFile(mdocument, pfilename);
+        }
+        if (mmetrics != null) {
+            mmetrics.stopTimer("serialization", lstart);
+            mmetrics.add("bytes.written", new File(pfilename).length());
+        }
+    }
+
+    /**
+     * Output the internal DOM to a file, only serializing the pages and declarations that
+     * changed since the previous output with the same sidecar file.
+     *
+     * @param pfilename Location of the file.
+     * @param psidecar  File keeping the serialized sections between runs.
+     */
+    public void writeDOMtoCpnFile(String pfilename, File psidecar) throws IOException {
+        if (hasSpilledPages()) {
+            throw new BadCPNDefinitionException("writeDOMtoCpnFile: incremental output cannot be used with spilled pages.");
+        }
+        prepareForOutput();
+        if (mincrementalwriter == null || !psidecar.equals(mincrementalsidecar)) {
+            mincrementalwriter = inheritDiagnostics(new IncrementalWriter(psidecar));
+            mincrementalsidecar = psidecar;
+        }
+        long lstart = (mmetrics != null) ? mmetrics.startTimer() : 0;
+        mincrementalwriter.write(mdocument, pfilename);
+        if (mmetrics != null) {
+            mmetrics.stopTimer("serialization", lstart);
+            mmetrics.add("bytes.written", new File(pfilename).length());
+        }
     }
 
     /**
@@ -186,6 +626,9 @@ public class CPNToolsNetFactory extends BaseCPNCommunication {
      * @param pelement Element to append at globbox section.
      */
     public void appendElementToGlobbox(Element pelement) {
+        if (mstreamingwriter != null) {
+            throw new BadCPNDefinitionException("appendElementToGlobbox: the globbox was already streamed.");
+        }
         mglobbox.appendChild(pelement);
     }
 
@@ -257,6 +700,7 @@ public class CPNToolsNetFactory extends BaseCPNCommunication {
      * @return DOM element representing a page.
      */
     public Element createPage(String pname, String pid) {
+        countElement(ELEMENTS_PAGE);
         Element lpage = mdocument.createElement("page");
         lpage.setAttribute("id", pid);
         lpage.setIdAttribute("id", true);
@@ -309,6 +753,7 @@ public class CPNToolsNetFactory extends BaseCPNCommunication {
      * @return DOM element instance, which must be added to the corresponding \<instances\>
      */
     public Element createInstanceForPage(String ppageid) {
+        countElement(ELEMENTS_INSTANCE);
         Element linstance = mdocument.createElement("instance");
         linstance.setAttribute("id", getUniqueId());
         linstance.setIdAttribute("id", true);
@@ -338,6 +783,7 @@ public class CPNToolsNetFactory extends BaseCPNCommunication {
      * @return DOM element instance, which must be added to the corresponding @{code <instance>}
      */
     public Element createInstanceForSTransition(String ppageid) {
+        countElement(ELEMENTS_INSTANCE);
         Element linstance = mdocument.createElement("instance");
         linstance.setAttribute("id", getUniqueId());
         linstance.setIdAttribute("id", true);
@@ -365,10 +811,14 @@ public class CPNToolsNetFactory extends BaseCPNCommunication {
      * @return DOM element that prepresents the fusion set
      */
     public Element createFusion(String pfusionname) {
+        countElement(ELEMENTS_FUSION);
         Element lfusion = mdocument.createElement("fusion");
         lfusion.setAttribute("id", getUniqueId());
         lfusion.setIdAttribute("id", true);
         lfusion.setAttribute("name", pfusionname);
+        if (!mfusions.containsKey(pfusionname)) {
+            mfusions.put(pfusionname, lfusion);
+        }
 
         return lfusion;
     }
@@ -393,6 +843,7 @@ public class CPNToolsNetFactory extends BaseCPNCommunication {
      */
     private Element createBasicColset(String pname) {
         //1<color>
+        countElement(ELEMENTS_COLOR);
         Element lcolset = mdocument.createElement("color");
         lcolset.setAttribute("id", getUniqueId());
         lcolset.setIdAttribute("id", true);
@@ -629,6 +1080,7 @@ public class CPNToolsNetFactory extends BaseCPNCommunication {
         }
 
         //1<var>
+        countElement(ELEMENTS_VAR);
         Element lvar = mdocument.createElement("var");
         lvar.setAttribute("id", getUniqueId());
         lvar.setIdAttribute("id", true);
@@ -640,7 +1092,7 @@ public class CPNToolsNetFactory extends BaseCPNCommunication {
         //1.A.1<id></id>
         Element lid1 = mdocument.createElement("id");
         ltype.appendChild(lid1);
-        lid1.setTextContent(ptype);
+        lid1.setTextContent(pooled(ptype));
 
         String lltext = new String();
         for (Iterator<String> i = plist.iterator(); i.hasNext(); ) {
@@ -670,13 +1122,14 @@ public class CPNToolsNetFactory extends BaseCPNCommunication {
      * @return DOM element representing the transition.
      */
     public Element createBasicTransition(String pname) {
+        countElement(ELEMENTS_TRANS);
         Element ltrans = mdocument.createElement("trans");
         ltrans.setAttribute("id", getUniqueId());
         ltrans.setIdAttribute("id", true);
         ltrans.setAttribute("explicit", "false");
 
         Element ltext = mdocument.createElement("text");
-        ltext.setTextContent(pname);
+        ltext.setTextContent(pooled(pname));
         ltrans.insertBefore(ltext, ltrans.getFirstChild());
 
         return ltrans;
@@ -701,7 +1154,7 @@ public class CPNToolsNetFactory extends BaseCPNCommunication {
         lcond.appendChild(ltext);
         ltext.setAttribute("tool", "CPN Tools");
         ltext.setAttribute("version", "4.0.1");
-        ltext.setTextContent(pcondition);
+        ltext.setTextContent(pooled(pcondition));
 
         return ltrans;
     }
@@ -722,7 +1175,7 @@ public class CPNToolsNetFactory extends BaseCPNCommunication {
         Element lsubpageinfo = mdocument.createElement("subpageinfo");
         lsubpageinfo.setAttribute("id", getUniqueId());
         lsubpageinfo.setIdAttribute("id", true);
-        lsubpageinfo.setAttribute("name", pname);
+        lsubpageinfo.setAttribute("name", pooled(pname));
         lsubs.insertBefore(lsubpageinfo, lsubs.getFirstChild());
 
         return ltrans;
@@ -741,14 +1194,10 @@ public class CPNToolsNetFactory extends BaseCPNCommunication {
      */
     public void connectSubstitutionPage(Element pstransition, String pinsocket, String poutsocket, String psubpageid, String pinport, String poutport) {
 
-        NodeList lsubslist = pstransition.getElementsByTagName("subst");
-
-        if (lsubslist.getLength() > 0) {
-            Element lsubs = (Element) lsubslist.item(0);
-
-            lsubs.setAttribute("portsock", "(" + pinport + "," + pinsocket + ")(" + poutport + "," + poutsocket + ")");
-            lsubs.setAttribute("subpage", psubpageid);
-        }
+        LinkedHashMap<String, String> lportsockets = new LinkedHashMap<String, String>();
+        lportsockets.put(pinport, pinsocket);
+        lportsockets.put(poutport, poutsocket);
+        setPortsock(pstransition, psubpageid, lportsockets);
     }
 
     /**
@@ -775,35 +1224,78 @@ public class CPNToolsNetFactory extends BaseCPNCommunication {
             throw new BadCPNDefinitionException("connectSubstitutionPage: Bad null parameter");
         }
 
+        // Connect to an identical page instead, if any
+        if (msharedpages != null && psubpage.getParentNode() != null) {
+            lsubpageid = msharedpages.share(psubpage).getAttribute("id");
+            linport = msharedpages.resolve(linport);
+            loutport = msharedpages.resolve(loutport);
+        }
+
         connectSubstitutionPage(pstransition, linsocket, loutsocket, lsubpageid, linport, loutport);
     }
 
     /**
-     * Finds the in-port of a subpage, or null if not found.
+     * Set any number of port/socket pairs, and instantiate subpage.
+     * The ports must belong to the subpage, and the sockets must be places on the page of the transition.
      *
-     * @param ppage A page element, which may be a subpage.
-     * @return Id of the first in-port found in this page. Return null if not found.
+     * @param pstransition  Element of the substitution transition.
+     * @param psubpage      Element of the subpage represented by the substitution transition.
+     * @param pportsockets  Id of each port place of the subpage -> id of its socket place. The pairs are
+     *                      written in the iteration order of the map.
      */
-    public String getInPortPlaceId(Element ppage) {
-        NodeList lplacelist = ppage.getElementsByTagName("place");
-
-        for (int i = 0; i < lplacelist.getLength(); i++) {
-            Element lplace = (Element) lplacelist.item(i);
-
-            NodeList lportlist = lplace.getElementsByTagName("port");
-
-            // Check if the first (should be the only) element is of type IN
-            if ((lportlist.getLength() > 0)) {
-
-                Element lport = (Element) lportlist.item(0);
-                if ((lport.getAttribute("type")).equals("In")) {
+    public void connectSubstitutionPage(Element pstransition, Element psubpage, Map<String, String> pportsockets) {
+        HashSet<String> lports = new HashSet<String>(getInPortPlaceIds(psubpage));
+        lports.addAll(getOutPortPlaceIds(psubpage));
+        lports.addAll(getInOutPortPlaceIds(psubpage));
+        Node lpage = pstransition.getParentNode();
+        for (Map.Entry<String, String> lpair : pportsockets.entrySet()) {
+            if (!lports.contains(lpair.getKey())) {
+                throw new BadCPNDefinitionException("connectSubstitutionPage: " + lpair.getKey()
+                        + " is not a port of the subpage.");
+            }
+            Element lsocket = findElementId(lpair.getValue());
+            if (lsocket == null || !"place".equals(lsocket.getNodeName())
+                    || (lpage != null && lsocket.getParentNode() != lpage)) {
+                throw new BadCPNDefinitionException("connectSubstitutionPage: " + lpair.getValue()
+                        + " is not a place on the page of the transition.");
+            }
+        }
 
-                    return lplace.getAttribute("id");
-                }
+        String lsubpageid = psubpage.getAttribute("id");
+        Map<String, String> lportsockets = pportsockets;
+        // Connect to an identical page instead, if any
+        if (msharedpages != null && psubpage.getParentNode() != null) {
+            lsubpageid = msharedpages.share(psubpage).getAttribute("id");
+            lportsockets = new LinkedHashMap<String, String>();
+            for (Map.Entry<String, String> lpair : pportsockets.entrySet()) {
+                lportsockets.put(msharedpages.resolve(lpair.getKey()), lpair.getValue());
             }
         }
+        setPortsock(pstransition, lsubpageid, lportsockets);
+    }
 
-        return null;
+    // Write the portsock and subpage attributes of a substitution transition, without checks
+    void setPortsock(Element pstransition, String psubpageid, Map<String, String> pportsockets) {
+        Element lsubs = StateSpaceNet.firstChild(pstransition, "subst");
+        if (lsubs == null) {
+            return;
+        }
+        StringBuilder lportsock = new StringBuilder(pportsockets.size() * 24);
+        for (Map.Entry<String, String> lpair : pportsockets.entrySet()) {
+            lportsock.append('(').append(lpair.getKey()).append(',').append(lpair.getValue()).append(')');
+        }
+        lsubs.setAttribute("portsock", lportsock.toString());
+        lsubs.setAttribute("subpage", psubpageid);
+    }
+
+    /**
+     * Finds the in-port of a subpage, or null if not found.
+     *
+     * @param ppage A page element, which may be a subpage.
+     * @return Id of the first in-port found in this page. Return null if not found.
+     */
+    public String getInPortPlaceId(Element ppage) {
+        return firstPortId(ppage, "In");
     }
 
     /**
@@ -813,27 +1305,123 @@ public class CPNToolsNetFactory extends BaseCPNCommunication {
      * @return Id of the first out-port found in this page. Return null if not found.
      */
     public String getOutPortPlaceId(Element ppage) {
-        NodeList lplacelist = ppage.getElementsByTagName("place");
+        return firstPortId(ppage, "Out");
+    }
 
-        for (int i = 0; i < lplacelist.getLength(); i++) {
-            Element lplace = (Element) lplacelist.item(i);
+    /**
+     * Ids of all in-ports of a subpage.
+     */
+    public List<String> getInPortPlaceIds(Element ppage) {
+        return portIds(ppage, "In");
+    }
 
-            NodeList lportlist = lplace.getElementsByTagName("port");
+    /**
+     * Ids of all out-ports of a subpage.
+     */
+    public List<String> getOutPortPlaceIds(Element ppage) {
+        return portIds(ppage, "Out");
+    }
 
-            // Check if the first (should be the only) element is of type IN
-            if ((lportlist.getLength() > 0)) {
+    /**
+     * Ids of all in/out-ports of a subpage.
+     */
+    public List<String> getInOutPortPlaceIds(Element ppage) {
+        return portIds(ppage, "I/O");
+    }
 
-                Element lport = (Element) lportlist.item(0);
-                if ((lport.getAttribute("type")).equals("Out")) {
-                    return lplace.getAttribute("id");
+   /* Begin: port index */
+
+    /*
+     * The port places of a page are collected by scanning it on its first port
+     * query. Port places created later by createInPortPlace, createOutPortPlace
+     * and createInOutPortPlace are kept aside until they are attached, and then
+     * added to the index of their page, wherever they were inserted. Port places
+     * must be removed from a page with the page itself; see forgetPorts().
+     */
+
+    // Port places of a page by port type, in the order they were indexed, and their ids
+    private static final class PagePorts {
+        final HashMap<String, LinkedHashSet<Element>> mports = new HashMap<String, LinkedHashSet<Element>>();
+        final HashMap<String, List<String>> mids = new HashMap<String, List<String>>();
+    }
+
+    private PagePorts pagePorts(Element ppage) {
+        Iterator<Element> literator = mnewports.iterator();
+        while (literator.hasNext()) {
+            Element lplace = literator.next();
+            Node lparent = lplace.getParentNode();
+            if (lparent == null) {
+                continue;
+            }
+            literator.remove();
+            // Pages not indexed yet will find the place when they are scanned
+            PagePorts lports = mportindex.get(lparent);
+            if (lports != null) {
+                addPort(lports, lplace);
+            }
+        }
+
+        PagePorts lports = mportindex.get(ppage);
+        if (lports == null) {
+            lports = new PagePorts();
+            for (Node lnode = ppage.getFirstChild(); lnode != null; lnode = lnode.getNextSibling()) {
+                if ("place".equals(lnode.getNodeName())) {
+                    addPort(lports, (Element) lnode);
                 }
             }
+            mportindex.put(ppage, lports);
         }
+        return lports;
+    }
 
+    private String firstPortId(Element ppage, String ptype) {
+        List<String> lids = portIds(ppage, ptype);
+        return lids.isEmpty() ? null : lids.get(0);
+    }
 
-        return null;
+    private List<String> portIds(Element ppage, String ptype) {
+        PagePorts lports = pagePorts(ppage);
+        List<String> lids = lports.mids.get(ptype);
+        if (lids == null) {
+            LinkedHashSet<Element> lplaces = lports.mports.get(ptype);
+            if (lplaces == null) {
+                return Collections.<String>emptyList();
+            }
+            ArrayList<String> lnew = new ArrayList<String>(lplaces.size());
+            for (Element lplace : lplaces) {
+                lnew.add(lplace.getAttribute("id"));
+            }
+            lids = Collections.unmodifiableList(lnew);
+            lports.mids.put(ptype, lids);
+        }
+        return lids;
     }
 
+    /**
+     * Drop the port index of a page removed from the net.
+     */
+    void forgetPorts(Element ppage) {
+        mportindex.remove(ppage);
+    }
+
+    private static void addPort(PagePorts pports, Element pplace) {
+        Element lport = StateSpaceNet.firstChild(pplace, "port");
+        if (lport == null) {
+            return;
+        }
+        String ltype = lport.getAttribute("type");
+        LinkedHashSet<Element> lplaces = pports.mports.get(ltype);
+        if (lplaces == null) {
+            lplaces = new LinkedHashSet<Element>();
+            pports.mports.put(ltype, lplaces);
+        }
+        if (lplaces.add(pplace)) {
+            pports.mids.remove(ltype);
+        }
+    }
+
+   /* End: port index */
+
     /**
      * Creates a place with minimum information: name, type, initial marking and Id. No graphical information is present.
      *
@@ -845,6 +1433,7 @@ public class CPNToolsNetFactory extends BaseCPNCommunication {
     public Element createBasicPlace(String pname, String ptype, String pinit) {
 
         // Create place object: 0<place id="?">
+        countElement(ELEMENTS_PLACE);
         Element lplace = mdocument.createElement("place");
         lplace.setAttribute("id", getUniqueId());
         lplace.setIdAttribute("id", true);
@@ -854,7 +1443,7 @@ public class CPNToolsNetFactory extends BaseCPNCommunication {
 
         // Set name shown inside the box: <text>?</text>
         Element ltext = mdocument.createElement("text");
-        ltext.setTextContent(pname);
+        ltext.setTextContent(pooled(pname));
         lplace.appendChild(ltext);
 
         // Create the type: 1<type id="?">
@@ -866,7 +1455,7 @@ public class CPNToolsNetFactory extends BaseCPNCommunication {
         Element ltypetext = mdocument.createElement("text");
         ltypetext.setAttribute("tool", "CPN Tools");
         ltypetext.setAttribute("version", "4.0.1");
-        ltypetext.setTextContent(ptype);
+        ltypetext.setTextContent(pooled(ptype));
         ltype.appendChild(ltypetext);
         lplace.appendChild(ltype);
 
@@ -876,7 +1465,7 @@ public class CPNToolsNetFactory extends BaseCPNCommunication {
         Element lmarktext = mdocument.createElement("text");
         lmarktext.setAttribute("tool", "CPN Tools");
         lmarktext.setAttribute("version", "4.0.1");
-        lmarktext.setTextContent(pinit);
+        lmarktext.setTextContent(pooled(pinit));
         linitmark.appendChild(lmarktext);
         lplace.appendChild(linitmark);
 
@@ -901,9 +1490,22 @@ public class CPNToolsNetFactory extends BaseCPNCommunication {
         Element lfusioninfo = mdocument.createElement("fusioninfo");
         lfusioninfo.setAttribute("id", getUniqueId());
         lfusioninfo.setIdAttribute("id", true);
-        lfusioninfo.setAttribute("name", pfusionname);
+        lfusioninfo.setAttribute("name", pooled(pfusionname));
         lplace.appendChild(lfusioninfo);
 
+        addToFusion(pfusionname, lplaceid);
+        return lplace;
+    }
+
+    // Add a place to the fusion set with the given name, if there is one
+    private void addToFusion(String pfusionname, String pplaceid) {
+        // Fusion sets are appended to the cpnet section, look for others only if not found there
+        Element lindexed = mfusions.get(pfusionname);
+        if (lindexed != null && lindexed.getParentNode() == mcpnet) {
+            lindexed.appendChild(createFusion_elm(pplaceid));
+            return;
+        }
+
         NodeList lfusionlist = mcpnet.getElementsByTagName("fusion");
         for (int i = 0; i < lfusionlist.getLength(); i++) {
             Element lfusion = (Element) lfusionlist.item(i);
@@ -911,12 +1513,24 @@ public class CPNToolsNetFactory extends BaseCPNCommunication {
 
             // Found the element representing the fusion set. Add the place's ID.
             if (pfusionname.equals(lfusion.getAttribute("name"))) {
-                lfusion.appendChild(createFusion_elm(lplaceid));
+                lfusion.appendChild(createFusion_elm(pplaceid));
                 break;
             }
         }
+    }
 
-        return lplace;
+    /**
+     * Register a place copied into the net, e.g. by SubnetCache, as if the factory had
+     * created it: a fusion place joins its fusion set, and a port place the port index.
+     */
+    void adoptPlace(Element pplace) {
+        Element lfusioninfo = StateSpaceNet.firstChild(pplace, "fusioninfo");
+        if (lfusioninfo != null) {
+            addToFusion(lfusioninfo.getAttribute("name"), pplace.getAttribute("id"));
+        }
+        if (StateSpaceNet.firstChild(pplace, "port") != null) {
+            mnewports.add(pplace);
+        }
     }
 
     /**
@@ -950,6 +1564,7 @@ public class CPNToolsNetFactory extends BaseCPNCommunication {
         lport.setAttribute("id", getUniqueId());
         lport.setIdAttribute("id", true);
         lport.setAttribute("type", "In");
+        mnewports.add(lplace);
 
         return lplace;
     }
@@ -972,6 +1587,30 @@ public class CPNToolsNetFactory extends BaseCPNCommunication {
         lport.setAttribute("type", "Out");
 
         lplace.appendChild(lport);
+        mnewports.add(lplace);
+
+        return lplace;
+    }
+
+    /**
+     * Creates an in/out-port place with no graphical information
+     *
+     * @param pname text describig the place.
+     * @param ptype color set of the present place.
+     * @param pinit text containing initial marking.
+     * @return an in/out-port place.
+     */
+    public Element createInOutPortPlace(String pname, String ptype, String pinit) {
+        Element lplace = createBasicPlace(pname, ptype, pinit);
+
+        // Create the <port> element.
+        Element lport = mdocument.createElement("port");
+        lport.setAttribute("id", getUniqueId());
+        lport.setIdAttribute("id", true);
+        lport.setAttribute("type", "I/O");
+
+        lplace.appendChild(lport);
+        mnewports.add(lplace);
 
         return lplace;
     }
@@ -986,6 +1625,7 @@ public class CPNToolsNetFactory extends BaseCPNCommunication {
      */
     private Element createBasicArc(String pplaceid, String ptransid, String pexpression) {
 
+        countElement(ELEMENTS_ARC);
         Element larc = mdocument.createElement("arc");
         larc.setAttribute("id", getUniqueId());
         larc.setIdAttribute("id", true);
@@ -1011,7 +1651,7 @@ public class CPNToolsNetFactory extends BaseCPNCommunication {
         lannot.appendChild(ltext);
         ltext.setAttribute("tool", "CPN Tools");
         ltext.setAttribute("version", "4.0.1");
-        ltext.setTextContent(pexpression);
+        ltext.setTextContent(pooled(pexpression));
 
         return larc;
     }
@@ -1105,4 +1745,115 @@ public class CPNToolsNetFactory extends BaseCPNCommunication {
     public Element createInhibitorArc(Element pplace, Element ptrans) {
         return createInhibitorArc(pplace.getAttribute("id"), ptrans.getAttribute("id"));
     }
+
+   /* Begin: batch construction */
+
+    /**
+     * Fragment collecting elements created in batch, to be added to a page at once.
+     *
+     * @return Empty fragment of this document.
+     */
+    public DocumentFragment createFragment() {
+        return mdocument.createDocumentFragment();
+    }
+
+    /**
+     * Create places from parallel arrays, and add them to a fragment.
+     *
+     * @param pfragment Fragment receiving the places.
+     * @param pnames    Names of the places.
+     * @param ptypes    Colour sets of the places.
+     * @param pinits    Initial markings, or null if all places are initially empty.
+     * @return The places, in the order of the arrays.
+     */
+    public Element[] createPlaces(DocumentFragment pfragment, String[] pnames, String[] ptypes, String[] pinits) {
+        checkLengths("createPlaces", pnames.length, ptypes.length);
+        if (pinits != null) {
+            checkLengths("createPlaces", pnames.length, pinits.length);
+        }
+        Element[] lplaces = new Element[pnames.length];
+        for (int i = 0; i < pnames.length; i++) {
+            lplaces[i] = createBasicPlace(pnames[i], ptypes[i], (pinits == null) ? "" : pinits[i]);
+            pfragment.appendChild(lplaces[i]);
+        }
+        return lplaces;
+    }
+
+    /**
+     * Create transitions, and add them to a fragment.
+     *
+     * @param pfragment Fragment receiving the transitions.
+     * @param pnames    Names of the transitions.
+     * @param pguards   Guards, or null for transitions without guards. Empty guards are allowed.
+     * @return The transitions, in the order of the arrays.
+     */
+    public Element[] createTransitions(DocumentFragment pfragment, String[] pnames, String[] pguards) {
+        if (pguards != null) {
+            checkLengths("createTransitions", pnames.length, pguards.length);
+        }
+        Element[] ltransitions = new Element[pnames.length];
+        for (int i = 0; i < pnames.length; i++) {
+            boolean lguarded = (pguards != null) && (pguards[i] != null) && (pguards[i].length() > 0);
+            ltransitions[i] = lguarded ? createConditionTransition(pnames[i], pguards[i]) : createBasicTransition(pnames[i]);
+            pfragment.appendChild(ltransitions[i]);
+        }
+        return ltransitions;
+    }
+
+    /**
+     * Create arcs from parallel arrays, and add them to a fragment.
+     *
+     * @param pfragment     Fragment receiving the arcs.
+     * @param pplaces       Places referred to by pplaceindex.
+     * @param ptransitions  Transitions referred to by ptransindex.
+     * @param pplaceindex   Place of each arc, as an index in pplaces.
+     * @param ptransindex   Transition of each arc, as an index in ptransitions.
+     * @param pinput        True for arcs from the place to the transition, false for the opposite direction.
+     * @param pexpressions  Arc expressions.
+     * @return The arcs, in the order of the arrays.
+     */
+    public Element[] createArcs(DocumentFragment pfragment, Element[] pplaces, Element[] ptransitions,
+                                int[] pplaceindex, int[] ptransindex, boolean[] pinput, String[] pexpressions) {
+        checkLengths("createArcs", pplaceindex.length, ptransindex.length);
+        checkLengths("createArcs", pplaceindex.length, pinput.length);
+        checkLengths("createArcs", pplaceindex.length, pexpressions.length);
+
+        // The ids are read once per node, not once per arc
+        String[] lplaceids = new String[pplaces.length];
+        for (int i = 0; i < pplaces.length; i++) {
+            lplaceids[i] = pplaces[i].getAttribute("id");
+        }
+        String[] ltransids = new String[ptransitions.length];
+        for (int i = 0; i < ptransitions.length; i++) {
+            ltransids[i] = ptransitions[i].getAttribute("id");
+        }
+
+        Element[] larcs = new Element[pplaceindex.length];
+        for (int i = 0; i < larcs.length; i++) {
+            String lplace = lplaceids[pplaceindex[i]];
+            String ltrans = ltransids[ptransindex[i]];
+            larcs[i] = pinput[i] ? createArcPtoT(lplace, ltrans, pexpressions[i]) : createArcTtoP(ltrans, lplace, pexpressions[i]);
+            pfragment.appendChild(larcs[i]);
+        }
+        return larcs;
+    }
+
+    /**
+     * Add all elements of a fragment to a page, with a single insertion. The fragment is left empty.
+     *
+     * @param ppage     Page element.
+     * @param pfragment Fragment with places, transitions and arcs.
+     */
+    public void appendAllToPage(Element ppage, DocumentFragment pfragment) {
+        ppage.appendChild(pfragment);
+    }
+
+    private void checkLengths(String pmethod, int pexpected, int plength) {
+        if (pexpected != plength) {
+            throw new BadCPNDefinitionException(pmethod + ": arrays of different lengths (" + pexpected + " and "
+                    + plength + ").");
+        }
+    }
+
+   /* End: batch construction */
 }
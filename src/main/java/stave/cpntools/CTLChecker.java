@@ -0,0 +1,256 @@
+/*
+* CTL model checking over a stored state space.
+* The satisfaction set of each subformula is computed bottom-up, with the
+* usual fixpoint characterizations: E[f U g] is a backward search from the
+* g-states through f-states, and EG f removes, until stable, the f-states
+* without successors in the set. Every operator is linear in the size of the
+* graph. Dead markings are considered to loop on themselves, so that every
+* path is infinite.
+*/
+
+package stave.cpntools;
+
+import java.util.ArrayDeque;
+import java.util.BitSet;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+
+public class CTLChecker extends BaseCPNCommunication {
+
+    private final StateSpace mspace;
+    private final StateSpaceNet mnet;
+    // Satisfaction sets of the formulas checked so far
+    private final HashMap<TemporalFormula, BitSet> mcache = new HashMap<TemporalFormula, BitSet>();
+
+    /**
+     * @param pspace A complete state space, as computed by StateSpaceExplorer.explore().
+     *               Formulas are checked on the orbit representatives when the
+     *               exploration used a Symmetry, which is only sound if the
+     *               propositions are symmetric.
+     */
+    public CTLChecker(StateSpace pspace) {
+        mspace = pspace;
+        mnet = pspace.getNet();
+        if (!pspace.isComplete()) {
+            warningf("CTL: the state space is incomplete, results are only valid for the explored markings.");
+        }
+    }
+
+    /**
+     * Whether the initial marking satisfies the formula.
+     */
+    public boolean check(TemporalFormula pformula) throws BadCPNDefinitionException {
+        return satisfy(pformula).get(0);
+    }
+
+    /**
+     * Whether the initial marking satisfies the formula.
+     */
+    public boolean check(String pformula) throws BadCPNDefinitionException, TemporalFormula.FormulaException {
+        return check(TemporalFormula.parse(pformula));
+    }
+
+    /**
+     * States of the state space satisfying the formula.
+     * The returned set must not be modified.
+     */
+    public BitSet satisfy(TemporalFormula pformula) throws BadCPNDefinitionException {
+        BitSet lresult = mcache.get(pformula);
+        if (lresult == null) {
+            lresult = compute(pformula);
+            mcache.put(pformula, lresult);
+        }
+        return lresult;
+    }
+
+    private BitSet compute(TemporalFormula pformula) throws BadCPNDefinitionException {
+        int lstates = mspace.getStateCount();
+        TemporalFormula lleft = pformula.getLeft();
+        TemporalFormula lright = pformula.getRight();
+        BitSet lresult;
+
+        switch (pformula.getOperator()) {
+            case TRUE:
+                lresult = new BitSet(lstates);
+                lresult.set(0, lstates);
+                return lresult;
+            case FALSE:
+                return new BitSet(lstates);
+            case ATOM:
+                return atom((TemporalFormula.Atom) pformula);
+            case NOT:
+                return complement(satisfy(lleft));
+            case AND:
+                lresult = (BitSet) satisfy(lleft).clone();
+                lresult.and(satisfy(lright));
+                return lresult;
+            case OR:
+                lresult = (BitSet) satisfy(lleft).clone();
+                lresult.or(satisfy(lright));
+                return lresult;
+            case IMPLIES:
+                lresult = complement(satisfy(lleft));
+                lresult.or(satisfy(lright));
+                return lresult;
+            case EX:
+                return existsNext(satisfy(lleft));
+            case AX:
+                return complement(existsNext(complement(satisfy(lleft))));
+            case EF:
+                return existsUntil(satisfy(TemporalFormula.constant(true)), satisfy(lleft));
+            case AF:
+                return complement(existsGlobally(complement(satisfy(lleft))));
+            case EG:
+                return existsGlobally(satisfy(lleft));
+            case AG:
+                return complement(existsUntil(satisfy(TemporalFormula.constant(true)), complement(satisfy(lleft))));
+            case EU:
+                return existsUntil(satisfy(lleft), satisfy(lright));
+            case AU:
+                // A[f U g] = !(E[!g U (!f && !g)] || EG !g)
+                BitSet lnotg = complement(satisfy(lright));
+                BitSet lneither = complement(satisfy(lleft));
+                lneither.and(lnotg);
+                lresult = existsUntil(lnotg, lneither);
+                lresult.or(existsGlobally(lnotg));
+                return complement(lresult);
+            default:
+                throw new BadCPNDefinitionException("CTL: " + pformula + " is not a CTL formula.");
+        }
+    }
+
+    private BitSet atom(TemporalFormula.Atom patom) throws BadCPNDefinitionException {
+        List<Integer> lplaces = null;
+        List<Integer> ltransitions = null;
+        switch (patom.getKind()) {
+            case FIRED:
+                throw new BadCPNDefinitionException("CTL: " + patom + " is not a state property, use enabled().");
+            case ENABLED:
+                ltransitions = mnet.findTransitions(patom.getName());
+                if (ltransitions.isEmpty()) {
+                    throw new BadCPNDefinitionException("CTL: no transition named " + patom.getName() + ".");
+                }
+                break;
+            case DEAD:
+                break;
+            default:
+                lplaces = mnet.findPlaces(patom.getName());
+                if (lplaces.isEmpty()) {
+                    throw new BadCPNDefinitionException("CTL: no place named " + patom.getName() + ".");
+                }
+        }
+
+        int lstates = mspace.getStateCount();
+        BitSet lresult = new BitSet(lstates);
+        boolean[] lenabled = new boolean[mnet.getTransitionCount()];
+        for (int s = 0; s < lstates; s++) {
+            // Enabled transitions are the labels of the outgoing edges
+            int lsuccessors = mspace.getSuccessorCount(s);
+            for (int e = 0; e < lsuccessors; e++) {
+                lenabled[mspace.getEdgeTransition(s, e)] = true;
+            }
+            if (patom.holds(lplaces, ltransitions, mspace.getMarking(s), lenabled, -1)) {
+                lresult.set(s);
+            }
+            for (int e = 0; e < lsuccessors; e++) {
+                lenabled[mspace.getEdgeTransition(s, e)] = false;
+            }
+        }
+        return lresult;
+    }
+
+    private BitSet complement(BitSet pset) {
+        BitSet lresult = (BitSet) pset.clone();
+        lresult.flip(0, mspace.getStateCount());
+        return lresult;
+    }
+
+    /**
+     * States with a successor in the set. Dead states are their own successor.
+     */
+    private BitSet existsNext(BitSet pset) {
+        int lstates = mspace.getStateCount();
+        BitSet lresult = new BitSet(lstates);
+        for (int s = 0; s < lstates; s++) {
+            int lsuccessors = mspace.getSuccessorCount(s);
+            if (lsuccessors == 0) {
+                if (pset.get(s)) {
+                    lresult.set(s);
+                }
+                continue;
+            }
+            for (int e = 0; e < lsuccessors; e++) {
+                if (pset.get(mspace.getSuccessor(s, e))) {
+                    lresult.set(s);
+                    break;
+                }
+            }
+        }
+        return lresult;
+    }
+
+    /**
+     * Least fixpoint: states reaching a pgoal state through pvia states.
+     */
+    private BitSet existsUntil(BitSet pvia, BitSet pgoal) {
+        BitSet lresult = (BitSet) pgoal.clone();
+        Deque<Integer> lqueue = new ArrayDeque<Integer>();
+        for (int s = pgoal.nextSetBit(0); s >= 0; s = pgoal.nextSetBit(s + 1)) {
+            lqueue.add(s);
+        }
+        while (!lqueue.isEmpty()) {
+            int lstate = lqueue.poll();
+            for (int e = 0; e < mspace.getPredecessorCount(lstate); e++) {
+                int lpred = mspace.getPredecessor(lstate, e);
+                if (!lresult.get(lpred) && pvia.get(lpred)) {
+                    lresult.set(lpred);
+                    lqueue.add(lpred);
+                }
+            }
+        }
+        return lresult;
+    }
+
+    /**
+     * Greatest fixpoint: states with an infinite path inside the set.
+     * Each state counts its successors in the set, and states whose count
+     * drops to zero are removed.
+     */
+    private BitSet existsGlobally(BitSet pset) {
+        int lstates = mspace.getStateCount();
+        BitSet lresult = (BitSet) pset.clone();
+        int[] lcount = new int[lstates];
+        Deque<Integer> lqueue = new ArrayDeque<Integer>();
+
+        for (int s = lresult.nextSetBit(0); s >= 0; s = lresult.nextSetBit(s + 1)) {
+            int lsuccessors = mspace.getSuccessorCount(s);
+            if (lsuccessors == 0) {
+                // Self-loop of a dead state
+                lcount[s] = 1;
+                continue;
+            }
+            for (int e = 0; e < lsuccessors; e++) {
+                if (lresult.get(mspace.getSuccessor(s, e))) {
+                    lcount[s]++;
+                }
+            }
+            if (lcount[s] == 0) {
+                lqueue.add(s);
+            }
+        }
+
+        while (!lqueue.isEmpty()) {
+            int lstate = lqueue.poll();
+            lresult.clear(lstate);
+            // Predecessors are listed once per edge, as are the successors counted above
+            for (int e = 0; e < mspace.getPredecessorCount(lstate); e++) {
+                int lpred = mspace.getPredecessor(lstate, e);
+                if (lresult.get(lpred) && --lcount[lpred] == 0) {
+                    lqueue.add(lpred);
+                }
+            }
+        }
+        return lresult;
+    }
+}
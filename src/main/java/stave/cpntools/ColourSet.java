@@ -0,0 +1,238 @@
+/*
+* Description of a color set declared in the globbox, as created by the
+* create*Colset methods of CPNToolsNetFactory.
+*/
+
+package stave.cpntools;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Hashtable;
+import java.util.List;
+import org.w3c.dom.Element;
+import org.w3c.dom.Node;
+
+public class ColourSet {
+
+    /**
+     * The kinds of color sets generated by this library.
+     */
+    public enum Kind {
+        UNIT, BOOL, INT, ENUM, PRODUCT, OTHER
+    }
+
+    private final String mname;
+    private final Kind mkind;
+    // Members of the set, or null if the set cannot be enumerated.
+    private final List<Object> mmembers;
+    // Names of the component sets, for product color sets.
+    private final List<String> mcomponents;
+
+    ColourSet(String pname, Kind pkind, List<Object> pmembers, List<String> pcomponents) {
+        mname = pname;
+        mkind = pkind;
+        mmembers = (pmembers == null) ? null : Collections.unmodifiableList(pmembers);
+        mcomponents = Collections.unmodifiableList(pcomponents);
+    }
+
+    public String getName() {
+        return mname;
+    }
+
+    public Kind getKind() {
+        return mkind;
+    }
+
+    /**
+     * The values of the color set, in declaration order.
+     *
+     * @return list of values, or null if the set cannot be enumerated (e.g., unbounded integers).
+     */
+    public List<Object> getMembers() {
+        return mmembers;
+    }
+
+    /**
+     * The component sets of a product color set.
+     *
+     * @return ordered list of set names. Empty for other kinds.
+     */
+    public List<String> getComponents() {
+        return mcomponents;
+    }
+
+    /**
+     * Reads all color set declarations in a globbox element.
+     * Product sets are enumerated when all of its components are.
+     *
+     * @param pglobbox The globbox element of a CPN Tools document.
+     * @return Map from the color set name to its description.
+     */
+    public static Hashtable<String, ColourSet> readDeclarations(Element pglobbox) {
+        Hashtable<String, ColourSet> lsets = new Hashtable<String, ColourSet>();
+        readDeclarations(pglobbox, lsets);
+        return lsets;
+    }
+
+    // Declarations may be grouped in (nested) <block> elements
+    private static void readDeclarations(Element pparent, Hashtable<String, ColourSet> psets) {
+        for (Node lnode = pparent.getFirstChild(); lnode != null; lnode = lnode.getNextSibling()) {
+            if ((lnode instanceof Element) && "color".equals(lnode.getNodeName())) {
+                ColourSet lset = readDeclaration((Element) lnode, psets);
+                psets.put(lset.getName(), lset);
+            } else if ((lnode instanceof Element) && "block".equals(lnode.getNodeName())) {
+                readDeclarations((Element) lnode, psets);
+            }
+        }
+    }
+
+    /**
+     * Reads all variable declarations in a globbox element, as created by createVarDeclList.
+     *
+     * @param pglobbox The globbox element of a CPN Tools document.
+     * @return Map from the variable name to the name of its color set.
+     */
+    public static Hashtable<String, String> readVariables(Element pglobbox) {
+        Hashtable<String, String> lvars = new Hashtable<String, String>();
+        readVariables(pglobbox, lvars);
+        return lvars;
+    }
+
+    // <var><type><id>T</id></type><id>x</id><id>y</id>...</var>
+    private static void readVariables(Element pparent, Hashtable<String, String> pvars) {
+        for (Node lnode = pparent.getFirstChild(); lnode != null; lnode = lnode.getNextSibling()) {
+            if ((lnode instanceof Element) && "block".equals(lnode.getNodeName())) {
+                readVariables((Element) lnode, pvars);
+            } else if ((lnode instanceof Element) && "var".equals(lnode.getNodeName())) {
+                String ltype = null;
+                List<String> lnames = new ArrayList<String>();
+
+                for (Node lchild = lnode.getFirstChild(); lchild != null; lchild = lchild.getNextSibling()) {
+                    if (!(lchild instanceof Element)) {
+                        continue;
+                    }
+                    if ("type".equals(lchild.getNodeName())) {
+                        ltype = lchild.getTextContent().trim();
+                    } else if ("id".equals(lchild.getNodeName())) {
+                        lnames.add(lchild.getTextContent().trim());
+                    }
+                }
+
+                if (ltype != null) {
+                    for (String lname : lnames) {
+                        pvars.put(lname, ltype);
+                    }
+                }
+            }
+        }
+    }
+
+    private static ColourSet readDeclaration(Element pcolor, Hashtable<String, ColourSet> pknown) {
+        String lname = null;
+        Kind lkind = Kind.OTHER;
+        List<Object> lmembers = null;
+        List<String> lcomponents = new ArrayList<String>();
+
+        for (Node lnode = pcolor.getFirstChild(); lnode != null; lnode = lnode.getNextSibling()) {
+            if (!(lnode instanceof Element)) {
+                continue;
+            }
+            String ltag = lnode.getNodeName();
+
+            if ("id".equals(ltag)) {
+                lname = lnode.getTextContent().trim();
+            } else if ("unit".equals(ltag)) {
+                lkind = Kind.UNIT;
+                lmembers = new ArrayList<Object>();
+                lmembers.add(NetExpression.UNIT);
+            } else if ("bool".equals(ltag)) {
+                lkind = Kind.BOOL;
+                lmembers = new ArrayList<Object>();
+                lmembers.add(Boolean.FALSE);
+                lmembers.add(Boolean.TRUE);
+            } else if ("int".equals(ltag)) {
+                lkind = Kind.INT;
+                lmembers = readIntRange((Element) lnode);
+            } else if ("enum".equals(ltag)) {
+                lkind = Kind.ENUM;
+                lmembers = new ArrayList<Object>();
+                for (Node litem = lnode.getFirstChild(); litem != null; litem = litem.getNextSibling()) {
+                    if ((litem instanceof Element) && "id".equals(litem.getNodeName())) {
+                        lmembers.add(new NetExpression.Symbol(litem.getTextContent().trim()));
+                    }
+                }
+            } else if ("product".equals(ltag)) {
+                lkind = Kind.PRODUCT;
+                for (Node litem = lnode.getFirstChild(); litem != null; litem = litem.getNextSibling()) {
+                    if ((litem instanceof Element) && "id".equals(litem.getNodeName())) {
+                        lcomponents.add(litem.getTextContent().trim());
+                    }
+                }
+                lmembers = enumerateProduct(lcomponents, pknown);
+            }
+        }
+
+        return new ColourSet(lname, lkind, lmembers, lcomponents);
+    }
+
+    // Bounded integers have the form <int><with><ml>l</ml><ml>u</ml></with></int>
+    private static List<Object> readIntRange(Element pint) {
+        List<String> lbounds = new ArrayList<String>();
+        for (Node lwith = pint.getFirstChild(); lwith != null; lwith = lwith.getNextSibling()) {
+            if ((lwith instanceof Element) && "with".equals(lwith.getNodeName())) {
+                for (Node lml = lwith.getFirstChild(); lml != null; lml = lml.getNextSibling()) {
+                    if ((lml instanceof Element) && "ml".equals(lml.getNodeName())) {
+                        lbounds.add(lml.getTextContent().trim());
+                    }
+                }
+            }
+        }
+
+        if (lbounds.size() != 2) {
+            return null;
+        }
+
+        try {
+            int llower = Integer.parseInt(lbounds.get(0));
+            int lupper = Integer.parseInt(lbounds.get(1));
+            List<Object> lmembers = new ArrayList<Object>();
+            for (int i = llower; i <= lupper; i++) {
+                lmembers.add(Integer.valueOf(i));
+            }
+            return lmembers;
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    private static List<Object> enumerateProduct(List<String> pcomponents, Hashtable<String, ColourSet> pknown) {
+        List<Object> lpartial = new ArrayList<Object>();
+        lpartial.add(new ArrayList<Object>());
+
+        for (String lcomponent : pcomponents) {
+            ColourSet lset = pknown.get(lcomponent);
+            if (lset == null || lset.getMembers() == null) {
+                return null;
+            }
+
+            List<Object> lnext = new ArrayList<Object>();
+            for (Object lprefix : lpartial) {
+                for (Object lmember : lset.getMembers()) {
+                    @SuppressWarnings("unchecked")
+                    List<Object> ltuple = new ArrayList<Object>((List<Object>) lprefix);
+                    ltuple.add(lmember);
+                    lnext.add(ltuple);
+                }
+            }
+            lpartial = lnext;
+        }
+
+        List<Object> lmembers = new ArrayList<Object>();
+        for (Object ltuple : lpartial) {
+            @SuppressWarnings("unchecked")
+            List<Object> llist = (List<Object>) ltuple;
+            lmembers.add(Collections.unmodifiableList(llist));
+        }
+        return lmembers;
+    }
+}
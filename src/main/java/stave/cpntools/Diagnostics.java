@@ -0,0 +1,60 @@
+/*
+* Sink of the debug and warning messages of the library. Messages are given as
+* a template with "{}" placeholders and its arguments, and are only formatted
+* by the sink, if at all, so disabled messages cost no string building.
+*
+* Each factory (and each object it creates) may have its own sink, see
+* BaseCPNCommunication.setDiagnostics(). The messages of objects without one
+* are discarded, as by NONE.
+*/
+
+package stave.cpntools;
+
+public interface Diagnostics {
+
+    enum Level {
+        DEBUG, WARNING
+    }
+
+    /**
+     * Sink discarding all messages.
+     */
+    Diagnostics NONE = new Diagnostics() {
+        public boolean isEnabled(Level plevel) {
+            return false;
+        }
+
+        public void report(Level plevel, String ptemplate, Object[] pargs) {
+        }
+    };
+
+    boolean isEnabled(Level plevel);
+
+    /**
+     * Receive a message. Only called when the level is enabled.
+     *
+     * @param plevel    Level of the message.
+     * @param ptemplate Text of the message, where each "{}" stands for the next argument.
+     * @param pargs     Arguments of the template. A Throwable after the last placeholder is the cause.
+     */
+    void report(Level plevel, String ptemplate, Object[] pargs);
+
+    /**
+     * Text of a message, with the cause appended as in the messages of BaseCPNCommunication.
+     */
+    static String format(String ptemplate, Object[] pargs) {
+        StringBuilder lmessage = new StringBuilder(ptemplate.length() + 16 * pargs.length);
+        int lnext = 0;
+        int lstart = 0;
+        for (int lplaceholder = ptemplate.indexOf("{}"); lplaceholder >= 0 && lnext < pargs.length;
+             lplaceholder = ptemplate.indexOf("{}", lstart)) {
+            lmessage.append(ptemplate, lstart, lplaceholder).append(pargs[lnext++]);
+            lstart = lplaceholder + 2;
+        }
+        lmessage.append(ptemplate, lstart, ptemplate.length());
+        if (lnext < pargs.length && pargs[pargs.length - 1] instanceof Throwable) {
+            lmessage.append("Message: ").append(((Throwable) pargs[pargs.length - 1]).getMessage());
+        }
+        return lmessage.toString();
+    }
+}
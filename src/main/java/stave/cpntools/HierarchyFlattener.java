@@ -0,0 +1,201 @@
+/*
+* Expands the page hierarchy of a CPN Tools document into a net with a single page.
+* Every instance of every subpage is inlined: its places, transitions and arcs
+* are copied with fresh ids, port places are merged with the sockets they are
+* assigned to, and the places of each fusion set become a single place.
+* Substitution transitions, with their arcs, are dropped.
+* The flattening visits each element of each page instance once, and keeps a
+* mapping from the new ids back to the original ids and instances.
+*/
+
+package stave.cpntools;
+
+import java.util.HashMap;
+import java.util.List;
+import javax.xml.parsers.ParserConfigurationException;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.Node;
+
+public class HierarchyFlattener extends BaseCPNCommunication {
+
+    private final Document msource;
+    private boolean mqualifiednames = false;
+
+    // Results of the last flattening
+    private CPNToolsNetFactory mflat;
+    private Element mflatpage;
+    // Flat id -> original id, and flat id -> instance of the original element
+    private final HashMap<String, String> moriginalids = new HashMap<String, String>();
+    private final HashMap<String, String> moriginalinstances = new HashMap<String, String>();
+    // Instance + original id -> flat id
+    private final HashMap<String, String> mflatids = new HashMap<String, String>();
+
+    public HierarchyFlattener(Document psource) {
+        msource = psource;
+    }
+
+    /**
+     * Prefix the names of places and transitions with their instance,
+     * e.g. "Top/subprocess1/startPlace", so that the names remain unique.
+     */
+    public void setQualifiedNames(boolean pqualified) {
+        mqualifiednames = pqualified;
+    }
+
+    /**
+     * Build the flat net.
+     *
+     * @return A new factory containing the declarations and a single page.
+     */
+    public CPNToolsNetFactory flatten() throws ParserConfigurationException, BadCPNDefinitionException {
+        moriginalids.clear();
+        moriginalinstances.clear();
+        mflatids.clear();
+
+        Element lcpnet = StateSpaceNet.firstChild(msource.getDocumentElement(), "cpnet");
+        if (lcpnet == null) {
+            throw new BadCPNDefinitionException("Flattener: document has no cpnet element.");
+        }
+        mflat = new CPNToolsNetFactory();
+
+        // Declarations, with fresh ids
+        Element lglobbox = StateSpaceNet.firstChild(lcpnet, "globbox");
+        if (lglobbox != null) {
+            for (Node lnode = lglobbox.getFirstChild(); lnode != null; lnode = lnode.getNextSibling()) {
+                if ((lnode instanceof Element) && !"fusion".equals(lnode.getNodeName())) {
+                    mflat.appendElementToGlobbox(copy((Element) lnode, ""));
+                }
+            }
+        }
+
+        HierarchyWalker<String, String> lwalker = new HierarchyWalker<String, String>(lcpnet) {
+            @Override
+            protected String createPlace(Element pplace, String ppath) {
+                Element lcopy = copy(pplace, ppath);
+                removeChildren(lcopy, "port");
+                removeChildren(lcopy, "fusioninfo");
+                qualify(lcopy, ppath);
+                mflatpage.appendChild(lcopy);
+                return lcopy.getAttribute("id");
+            }
+
+            @Override
+            protected void placeInstance(Element pplace, String ppath, String pflatid) {
+                mflatids.put(key(ppath, pplace.getAttribute("id")), pflatid);
+            }
+
+            @Override
+            protected String createTransition(Element ptrans, String ppath) {
+                Element lcopy = copy(ptrans, ppath);
+                qualify(lcopy, ppath);
+                mflatpage.appendChild(lcopy);
+                return lcopy.getAttribute("id");
+            }
+
+            @Override
+            protected void createArc(Element parc, String pplace, String ptrans, String ppath) {
+                Element lcopy = copy(parc, ppath);
+                StateSpaceNet.firstChild(lcopy, "placeend").setAttribute("idref", pplace);
+                StateSpaceNet.firstChild(lcopy, "transend").setAttribute("idref", ptrans);
+                mflatpage.appendChild(lcopy);
+            }
+        };
+
+        List<Element> ltops = lwalker.getTopPages();
+        mflatpage = mflat.createPage((ltops.size() == 1) ? StateSpaceNet.pageName(ltops.get(0)) : "Flat");
+        mflat.appendElementToCpnet(mflatpage);
+        mflat.appendElementToInstances(mflat.createInstanceForPage(mflatpage));
+
+        lwalker.walk();
+        return mflat;
+    }
+
+    /**
+     * Deep copy of an element into the flat document, where every id is replaced by a fresh one.
+     */
+    private Element copy(Element poriginal, String ppath) {
+        Element lcopy = (Element) mflat.getDOM().importNode(poriginal, true);
+        renumber(poriginal, lcopy, ppath);
+        return lcopy;
+    }
+
+    private void renumber(Element poriginal, Element pcopy, String ppath) {
+        if (pcopy.hasAttribute("id")) {
+            String lid = mflat.getUniqueId();
+            pcopy.setAttribute("id", lid);
+            pcopy.setIdAttribute("id", true);
+            moriginalids.put(lid, poriginal.getAttribute("id"));
+            moriginalinstances.put(lid, ppath);
+            mflatids.put(key(ppath, poriginal.getAttribute("id")), lid);
+        }
+        // Both trees have the same shape
+        Node loriginal = poriginal.getFirstChild();
+        Node lcopy = pcopy.getFirstChild();
+        while (loriginal != null) {
+            if (loriginal instanceof Element) {
+                renumber((Element) loriginal, (Element) lcopy, ppath);
+            }
+            loriginal = loriginal.getNextSibling();
+            lcopy = lcopy.getNextSibling();
+        }
+    }
+
+    private static void removeChildren(Element pelement, String ptag) {
+        for (Element lchild : StateSpaceNet.children(pelement, ptag)) {
+            pelement.removeChild(lchild);
+        }
+    }
+
+    private void qualify(Element pelement, String ppath) {
+        if (!mqualifiednames) {
+            return;
+        }
+        Element ltext = StateSpaceNet.firstChild(pelement, "text");
+        if (ltext != null) {
+            ltext.setTextContent(ppath + "/" + ltext.getTextContent());
+        }
+    }
+
+    private static String key(String ppath, String pid) {
+        return ppath + "#" + pid;
+    }
+
+    /**
+     * Page of the flat net, after flatten().
+     */
+    public Element getFlatPage() {
+        return mflatpage;
+    }
+
+    /**
+     * Id of the original element copied to a flat element.
+     *
+     * @param pflatid Id of an element of the flat net.
+     * @return The original id, or null if the element is not a copy (e.g. the flat page).
+     */
+    public String getOriginalId(String pflatid) {
+        return moriginalids.get(pflatid);
+    }
+
+    /**
+     * Instance of the original element copied to a flat element, e.g. "Top/subprocess1".
+     * Declarations of the globbox belong to the instance "".
+     */
+    public String getOriginalInstance(String pflatid) {
+        return moriginalinstances.get(pflatid);
+    }
+
+    /**
+     * Flat element representing an original element in a given instance.
+     * Port places are represented by their sockets, and fusion places by the
+     * first place of their set.
+     *
+     * @param pinstance   Instance path, e.g. "Top/subprocess1".
+     * @param poriginalid Id of the element in the original document.
+     * @return Id in the flat net, or null if the element was dropped or does not exist.
+     */
+    public String getFlatId(String pinstance, String poriginalid) {
+        return mflatids.get(key(pinstance, poriginalid));
+    }
+}
@@ -0,0 +1,178 @@
+/*
+* Walk over the page instances of a CPN Tools document, shared by the readers
+* that expand the hierarchy (StateSpaceNet, HierarchyFlattener).
+*
+* Top pages are the pages that are not the subpage of any substitution
+* transition. Each instance of a page is visited once: its places, except the
+* port places assigned to a socket and the fusion places whose set was already
+* seen, then its transitions, except the substitution transitions, then its
+* arcs, and finally the instances of its subpages. The subclass decides what
+* a place or a transition becomes, and the walk resolves the port places and
+* fusion places to the places of the sockets and of the first member of the
+* set.
+*/
+
+package stave.cpntools;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import org.w3c.dom.Element;
+
+abstract class HierarchyWalker<P, T> extends BaseCPNCommunication {
+
+    // All pages, by id, in document order
+    private final LinkedHashMap<String, Element> mpages = new LinkedHashMap<String, Element>();
+    private final List<Element> mtops = new ArrayList<Element>();
+    // Fusion set name -> place
+    private final HashMap<String, P> mfusionplaces = new HashMap<String, P>();
+
+    HierarchyWalker(Element pcpnet) {
+        HashSet<String> lsubpages = new HashSet<String>();
+        for (Element lpage : StateSpaceNet.children(pcpnet, "page")) {
+            mpages.put(lpage.getAttribute("id"), lpage);
+            for (Element ltrans : StateSpaceNet.children(lpage, "trans")) {
+                Element lsubst = StateSpaceNet.firstChild(ltrans, "subst");
+                if (lsubst != null) {
+                    lsubpages.add(lsubst.getAttribute("subpage"));
+                }
+            }
+        }
+        for (Element lpage : mpages.values()) {
+            if (!lsubpages.contains(lpage.getAttribute("id"))) {
+                mtops.add(lpage);
+            }
+        }
+    }
+
+    /**
+     * Pages that are not subpages, in document order.
+     */
+    List<Element> getTopPages() {
+        return mtops;
+    }
+
+    /**
+     * Visit every instance of every top page, named by the page.
+     */
+    void walk() {
+        for (Element ltop : mtops) {
+            instantiate(ltop, StateSpaceNet.pageName(ltop), null, new HashSet<String>());
+        }
+    }
+
+    /**
+     * A place of a page instance that is neither a port with a socket nor a member of a fusion set seen before.
+     */
+    protected abstract P createPlace(Element pplace, String ppath);
+
+    /**
+     * A transition of a page instance, other than a substitution transition.
+     */
+    protected abstract T createTransition(Element ptrans, String ppath);
+
+    /**
+     * An arc of a page instance, between the places and transitions it connects in that instance.
+     */
+    protected abstract void createArc(Element parc, P pplace, T ptrans, String ppath);
+
+    /**
+     * Called for every place of a page instance, with what it became, e.g. the place of its socket.
+     */
+    protected void placeInstance(Element pplace, String ppath, P pvalue) {
+    }
+
+    /**
+     * Visits one page instance, and recursively the instances of its subpages.
+     *
+     * @param ppage    Page element
+     * @param ppath    Name of this instance
+     * @param psockets Map from the port places of this page to the places of their sockets. Null for top pages.
+     * @param pstack   Pages being visited, to detect cyclic hierarchies
+     */
+    private void instantiate(Element ppage, String ppath, Map<String, P> psockets, Set<String> pstack) {
+        String lpageid = ppage.getAttribute("id");
+        if (!pstack.add(lpageid)) {
+            throw new BadCPNDefinitionException("Page " + lpageid + " is a subpage of itself.");
+        }
+
+        // Places
+        HashMap<String, P> lplaces = new HashMap<String, P>();
+        for (Element lplace : StateSpaceNet.children(ppage, "place")) {
+            String lid = lplace.getAttribute("id");
+            Element lfusioninfo = StateSpaceNet.firstChild(lplace, "fusioninfo");
+            P lvalue;
+
+            if (psockets != null && StateSpaceNet.firstChild(lplace, "port") != null && psockets.containsKey(lid)) {
+                lvalue = psockets.get(lid);
+            } else if (lfusioninfo != null && mfusionplaces.containsKey(lfusioninfo.getAttribute("name"))) {
+                lvalue = mfusionplaces.get(lfusioninfo.getAttribute("name"));
+            } else {
+                lvalue = createPlace(lplace, ppath);
+                if (lfusioninfo != null) {
+                    mfusionplaces.put(lfusioninfo.getAttribute("name"), lvalue);
+                }
+            }
+            lplaces.put(lid, lvalue);
+            placeInstance(lplace, ppath, lvalue);
+        }
+
+        // Transitions
+        HashMap<String, T> ltransitions = new HashMap<String, T>();
+        List<Element> lsubsts = new ArrayList<Element>();
+        for (Element ltrans : StateSpaceNet.children(ppage, "trans")) {
+            if (StateSpaceNet.firstChild(ltrans, "subst") != null) {
+                lsubsts.add(ltrans);
+                continue;
+            }
+            ltransitions.put(ltrans.getAttribute("id"), createTransition(ltrans, ppath));
+        }
+
+        // Arcs. The ones connected to substitution transitions are only graphical.
+        for (Element larc : StateSpaceNet.children(ppage, "arc")) {
+            Element lplaceend = StateSpaceNet.firstChild(larc, "placeend");
+            Element ltransend = StateSpaceNet.firstChild(larc, "transend");
+            if (lplaceend == null || ltransend == null) {
+                throw new BadCPNDefinitionException("Arc " + larc.getAttribute("id") + " is missing an end.");
+            }
+
+            P lplace = lplaces.get(lplaceend.getAttribute("idref"));
+            T ltrans = ltransitions.get(ltransend.getAttribute("idref"));
+            if (lplace == null) {
+                throw new BadCPNDefinitionException("Arc " + larc.getAttribute("id") + " refers to unknown place "
+                        + lplaceend.getAttribute("idref") + ".");
+            }
+            if (ltrans != null) {
+                createArc(larc, lplace, ltrans, ppath);
+            }
+        }
+
+        // Subpages
+        for (Element lsubst : lsubsts) {
+            Element lsubs = StateSpaceNet.firstChild(lsubst, "subst");
+            Element lsubpage = mpages.get(lsubs.getAttribute("subpage"));
+            if (lsubpage == null) {
+                throw new BadCPNDefinitionException("Substitution transition " + lsubst.getAttribute("id")
+                        + " refers to unknown page " + lsubs.getAttribute("subpage") + ".");
+            }
+
+            HashMap<String, P> lsockets = new HashMap<String, P>();
+            for (String[] lpair : StateSpaceNet.parsePortsock(lsubs.getAttribute("portsock"))) {
+                P lsocket = lplaces.get(lpair[1]);
+                if (lsocket == null) {
+                    throw new BadCPNDefinitionException("Substitution transition " + lsubst.getAttribute("id")
+                            + " refers to unknown socket " + lpair[1] + ".");
+                }
+                lsockets.put(lpair[0], lsocket);
+            }
+
+            instantiate(lsubpage, ppath + "/" + StateSpaceNet.childText(lsubst, "text"), lsockets, pstack);
+        }
+
+        pstack.remove(lpageid);
+    }
+}
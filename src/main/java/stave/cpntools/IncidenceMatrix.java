@@ -0,0 +1,241 @@
+/*
+* Sparse incidence matrix of the flattened net, in compressed rows.
+* Entry (p, t) is the amount of tokens transition t adds to place p minus the
+* amount it removes, counting tokens regardless of their colours. Inhibitor
+* arcs do not move tokens and are ignored; arcs in both directions cancel out.
+* The amount of tokens of an arc must not depend on the binding, e.g. x or
+* 2`x++1`() but not n`x.
+*/
+
+package stave.cpntools;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+
+public class IncidenceMatrix extends BaseCPNCommunication {
+
+    private final StateSpaceNet mnet;
+    private final int mplaces;
+    private final int mtransitions;
+
+    // Rows: places
+    private final int[] mrowoffsets;
+    private final int[] mcolumns;
+    private final long[] mvalues;
+
+    // Columns: transitions, computed on demand
+    private int[] mcoloffsets;
+    private int[] mrows;
+    private long[] mcolvalues;
+
+    public IncidenceMatrix(StateSpaceNet pnet) throws BadCPNDefinitionException {
+        mnet = pnet;
+        mplaces = pnet.getPlaceCount();
+        mtransitions = pnet.getTransitionCount();
+
+        // Accumulate the entries of each row, transitions being visited in order
+        List<HashMap<Integer, Long>> lrows = new ArrayList<HashMap<Integer, Long>>(mplaces);
+        for (int p = 0; p < mplaces; p++) {
+            lrows.add(new HashMap<Integer, Long>());
+        }
+        for (int t = 0; t < mtransitions; t++) {
+            for (int a = 0; a < pnet.getInputArcCount(t); a++) {
+                add(lrows.get(pnet.getInputPlace(t, a)), t, -tokens(pnet.getInputExpression(t, a), t));
+            }
+            for (int a = 0; a < pnet.getOutputArcCount(t); a++) {
+                add(lrows.get(pnet.getOutputPlace(t, a)), t, tokens(pnet.getOutputExpression(t, a), t));
+            }
+        }
+
+        int lnonzero = 0;
+        mrowoffsets = new int[mplaces + 1];
+        for (int p = 0; p < mplaces; p++) {
+            for (long lvalue : lrows.get(p).values()) {
+                if (lvalue != 0) {
+                    lnonzero++;
+                }
+            }
+            mrowoffsets[p + 1] = lnonzero;
+        }
+        mcolumns = new int[lnonzero];
+        mvalues = new long[lnonzero];
+        for (int p = 0; p < mplaces; p++) {
+            int k = mrowoffsets[p];
+            List<Integer> lcolumns = new ArrayList<Integer>(lrows.get(p).keySet());
+            Collections.sort(lcolumns);
+            for (int t : lcolumns) {
+                long lvalue = lrows.get(p).get(t);
+                if (lvalue != 0) {
+                    mcolumns[k] = t;
+                    mvalues[k++] = lvalue;
+                }
+            }
+        }
+    }
+
+    private static void add(HashMap<Integer, Long> prow, int pcolumn, long pvalue) {
+        Long lold = prow.get(pcolumn);
+        prow.put(pcolumn, (lold == null) ? pvalue : lold + pvalue);
+    }
+
+    // Amount of tokens of an arc expression
+    private long tokens(NetExpression pexpression, int ptrans) throws BadCPNDefinitionException {
+        if (pexpression instanceof NetExpression.Empty) {
+            return 0;
+        }
+        if (pexpression instanceof NetExpression.Sum) {
+            long ltotal = 0;
+            for (NetExpression lterm : ((NetExpression.Sum) pexpression).getTerms()) {
+                ltotal += tokens(lterm, ptrans);
+            }
+            return ltotal;
+        }
+        if (pexpression instanceof NetExpression.Coefficient) {
+            NetExpression.Coefficient lcoefficient = (NetExpression.Coefficient) pexpression;
+            try {
+                // Unbound identifiers evaluate to symbols, which are rejected as amounts
+                long lamount = NetExpression.toInt(lcoefficient.getAmount().evaluate(null), lcoefficient);
+                return lamount * tokens(lcoefficient.getTerm(), ptrans);
+            } catch (NetExpression.ExpressionException e) {
+                throw new BadCPNDefinitionException("Incidence: the arc " + pexpression + " of transition "
+                        + mnet.getTransitionName(ptrans) + " has a variable amount of tokens.");
+            }
+        }
+        return 1;
+    }
+
+    public StateSpaceNet getNet() {
+        return mnet;
+    }
+
+    public int getPlaceCount() {
+        return mplaces;
+    }
+
+    public int getTransitionCount() {
+        return mtransitions;
+    }
+
+    /**
+     * Number of non-zero entries.
+     */
+    public int getNonZeroCount() {
+        return mvalues.length;
+    }
+
+    public long get(int pplace, int ptrans) {
+        int lentry = Arrays.binarySearch(mcolumns, mrowoffsets[pplace], mrowoffsets[pplace + 1], ptrans);
+        return (lentry >= 0) ? mvalues[lentry] : 0;
+    }
+
+    /**
+     * Effect of all transitions on a place.
+     */
+    public SparseIntVector getRow(int pplace) {
+        return new SparseIntVector(Arrays.copyOfRange(mcolumns, mrowoffsets[pplace], mrowoffsets[pplace + 1]),
+                Arrays.copyOfRange(mvalues, mrowoffsets[pplace], mrowoffsets[pplace + 1]));
+    }
+
+    /**
+     * Effect of a transition on all places.
+     */
+    public SparseIntVector getColumn(int ptrans) {
+        computeColumns();
+        return new SparseIntVector(Arrays.copyOfRange(mrows, mcoloffsets[ptrans], mcoloffsets[ptrans + 1]),
+                Arrays.copyOfRange(mcolvalues, mcoloffsets[ptrans], mcoloffsets[ptrans + 1]));
+    }
+
+    private synchronized void computeColumns() {
+        if (mcoloffsets != null) {
+            return;
+        }
+        int[] loffsets = new int[mtransitions + 1];
+        for (int lcolumn : mcolumns) {
+            loffsets[lcolumn + 1]++;
+        }
+        for (int t = 0; t < mtransitions; t++) {
+            loffsets[t + 1] += loffsets[t];
+        }
+        int[] lfill = Arrays.copyOf(loffsets, mtransitions);
+        int[] lrows = new int[mcolumns.length];
+        long[] lvalues = new long[mcolumns.length];
+        // Rows are visited in order, so each column is sorted
+        for (int p = 0; p < mplaces; p++) {
+            for (int k = mrowoffsets[p]; k < mrowoffsets[p + 1]; k++) {
+                int lslot = lfill[mcolumns[k]]++;
+                lrows[lslot] = p;
+                lvalues[lslot] = mvalues[k];
+            }
+        }
+        mrows = lrows;
+        mcolvalues = lvalues;
+        mcoloffsets = loffsets;
+    }
+
+    /**
+     * Whether the weighted sum of tokens in the places is the same in all
+     * reachable markings, i.e. y.C = 0.
+     *
+     * @param pweights Weight of each place.
+     */
+    public boolean isPlaceInvariant(SparseIntVector pweights) {
+        long[] lsum = new long[mtransitions];
+        for (int i = 0; i < pweights.size(); i++) {
+            int p = pweights.index(i);
+            for (int k = mrowoffsets[p]; k < mrowoffsets[p + 1]; k++) {
+                lsum[mcolumns[k]] = Math.addExact(lsum[mcolumns[k]], Math.multiplyExact(pweights.value(i), mvalues[k]));
+            }
+        }
+        for (long lvalue : lsum) {
+            if (lvalue != 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Whether firing the transitions the given amount of times leaves the marking unchanged, i.e. C.x = 0.
+     *
+     * @param pcounts Amount of firings of each transition.
+     */
+    public boolean isTransitionInvariant(SparseIntVector pcounts) {
+        for (int p = 0; p < mplaces; p++) {
+            long lsum = 0;
+            for (int k = mrowoffsets[p]; k < mrowoffsets[p + 1]; k++) {
+                lsum = Math.addExact(lsum, Math.multiplyExact(pcounts.get(mcolumns[k]), mvalues[k]));
+            }
+            if (lsum != 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Whether the total amount of tokens in the places never changes.
+     *
+     * @param pplaces Place indices, e.g. from StateSpaceNet.findPlaces.
+     */
+    public boolean isConserved(List<Integer> pplaces) {
+        long[] lweights = new long[mplaces];
+        for (int p : pplaces) {
+            lweights[p] = 1;
+        }
+        return isPlaceInvariant(SparseIntVector.of(lweights));
+    }
+
+    /**
+     * Weighted sum of the tokens of a marking.
+     */
+    public static long weightedSum(SparseIntVector pweights, Marking pmarking) {
+        long lsum = 0;
+        for (int i = 0; i < pweights.size(); i++) {
+            lsum += pweights.value(i) * pmarking.size(pweights.index(i));
+        }
+        return lsum;
+    }
+}
@@ -0,0 +1,358 @@
+/*
+* Writes a CPN Tools document reusing the text of the sections that did not
+* change since the previous run. The sections are the pages and the entries of
+* the globbox. Each section is identified by a hash of its content, and its
+* text is kept in a sidecar file next to the output. On the next run only the
+* sections with a new hash are serialized, and the others are copied from the
+* sidecar, so the time to regenerate a net after a small edit is mostly the
+* time to hash it.
+*
+* The output has the same format as outputDOMtoFile(): UTF-8, indented by two
+* spaces, with the document type of the net.
+*/
+
+package stave.cpntools;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.BufferedWriter;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashMap;
+import java.util.Map;
+import org.w3c.dom.Document;
+import org.w3c.dom.DocumentType;
+import org.w3c.dom.Element;
+import org.w3c.dom.NamedNodeMap;
+import org.w3c.dom.Node;
+
+public class IncrementalWriter extends BaseCPNCommunication {
+
+    private static final int SIDECAR_VERSION = 1;
+
+    private final File msidecar;
+    private final MessageDigest mdigest;
+    // Hash of a section -> its text, from the previous run
+    private Map<String, String> mprevious;
+    // Sections of the current run
+    private HashMap<String, String> mcurrent;
+    private int mreused;
+    private int mwritten;
+
+    /**
+     * @param psidecar File keeping the sections between runs, e.g. "net.cpn.sections".
+     */
+    public IncrementalWriter(File psidecar) {
+        msidecar = psidecar;
+        try {
+            mdigest = MessageDigest.getInstance("SHA-1");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Sections copied from the previous run, in the last write().
+     */
+    public int getReusedSections() {
+        return mreused;
+    }
+
+    /**
+     * Sections serialized again, in the last write().
+     */
+    public int getWrittenSections() {
+        return mwritten;
+    }
+
+    /**
+     * Write the document, and update the sidecar file.
+     *
+     * @param pdocument Document to write.
+     * @param pfilename Output file.
+     */
+    public void write(Document pdocument, String pfilename) throws IOException {
+        if (mprevious == null) {
+            mprevious = readSidecar();
+        }
+        mcurrent = new HashMap<String, String>();
+        mreused = 0;
+        mwritten = 0;
+
+        Writer lout = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(pfilename), StandardCharsets.UTF_8));
+        try {
+            writeProlog(pdocument, lout);
+            StringBuilder lbuilder = new StringBuilder();
+            writeSections(pdocument.getDocumentElement(), 0, lbuilder, lout);
+            lout.write(lbuilder.toString());
+        } finally {
+            lout.close();
+        }
+
+        mprevious = mcurrent;
+        writeSidecar(mcurrent);
+        debugf("IncrementalWriter: {} sections reused, {} written.", mreused, mwritten);
+    }
+
+    // The containers of the sections are always written, and the sections are looked up
+    private void writeSections(Element pelement, int pdepth, StringBuilder pbuilder, Writer pout) throws IOException {
+        String ltag = pelement.getNodeName();
+        boolean lcontainer = "workspaceElements".equals(ltag) || "cpnet".equals(ltag) || "globbox".equals(ltag);
+        if (!lcontainer || !hasElementChildren(pelement)) {
+            serialize(pelement, pdepth, pbuilder);
+            return;
+        }
+
+        indent(pdepth, pbuilder);
+        startTag(pelement, pbuilder);
+        pbuilder.append(">\n");
+        for (Node lnode = pelement.getFirstChild(); lnode != null; lnode = lnode.getNextSibling()) {
+            if (!(lnode instanceof Element)) {
+                continue;
+            }
+            Element lchild = (Element) lnode;
+            if ("globbox".equals(ltag) || "page".equals(lchild.getNodeName())) {
+                pout.write(pbuilder.toString());
+                pbuilder.setLength(0);
+                pout.write(section(lchild, pdepth + 1));
+            } else {
+                writeSections(lchild, pdepth + 1, pbuilder, pout);
+            }
+        }
+        indent(pdepth, pbuilder);
+        pbuilder.append("</").append(ltag).append(">\n");
+    }
+
+    private String section(Element pelement, int pdepth) {
+        String lkey = hash(pelement) + ":" + pdepth;
+        String ltext = mprevious.get(lkey);
+        if (ltext == null) {
+            ltext = mcurrent.get(lkey);
+        }
+        if (ltext == null) {
+            StringBuilder lbuilder = new StringBuilder();
+            serialize(pelement, pdepth, lbuilder);
+            ltext = lbuilder.toString();
+            mwritten++;
+        } else {
+            mreused++;
+        }
+        mcurrent.put(lkey, ltext);
+        return ltext;
+    }
+
+    /* Begin: serialization */
+
+    /**
+     * XML declaration and document type, as written by outputDOMtoFile().
+     */
+    static void writeProlog(Document pdocument, Writer pout) throws IOException {
+        pout.write("<?xml version=\"1.0\" encoding=\"UTF-8\" standalone=\"no\"?>\n");
+        DocumentType ldoctype = pdocument.getDoctype();
+        if (ldoctype != null) {
+            pout.write("<!DOCTYPE " + ldoctype.getName() + " PUBLIC \"" + ldoctype.getPublicId() + "\" \""
+                    + ldoctype.getSystemId() + "\">\n");
+        }
+    }
+
+    static void serialize(Element pelement, int pdepth, StringBuilder pout) {
+        indent(pdepth, pout);
+        startTag(pelement, pout);
+        if (pelement.getFirstChild() == null) {
+            pout.append("/>\n");
+            return;
+        }
+        pout.append('>');
+        if (!hasElementChildren(pelement)) {
+            escape(pelement.getTextContent(), false, pout);
+        } else {
+            pout.append('\n');
+            for (Node lnode = pelement.getFirstChild(); lnode != null; lnode = lnode.getNextSibling()) {
+                if (lnode instanceof Element) {
+                    serialize((Element) lnode, pdepth + 1, pout);
+                } else if (lnode.getNodeType() == Node.TEXT_NODE && lnode.getNodeValue().trim().length() > 0) {
+                    indent(pdepth + 1, pout);
+                    escape(lnode.getNodeValue(), false, pout);
+                    pout.append('\n');
+                }
+            }
+            indent(pdepth, pout);
+        }
+        pout.append("</").append(pelement.getNodeName()).append(">\n");
+    }
+
+    static void startTag(Element pelement, StringBuilder pout) {
+        pout.append('<').append(pelement.getNodeName());
+        NamedNodeMap lattributes = pelement.getAttributes();
+        for (int i = 0; i < lattributes.getLength(); i++) {
+            Node lattribute = lattributes.item(i);
+            pout.append(' ').append(lattribute.getNodeName()).append("=\"");
+            escape(lattribute.getNodeValue(), true, pout);
+            pout.append('"');
+        }
+    }
+
+    static boolean hasElementChildren(Element pelement) {
+        for (Node lnode = pelement.getFirstChild(); lnode != null; lnode = lnode.getNextSibling()) {
+            if (lnode instanceof Element) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    static void indent(int pdepth, StringBuilder pout) {
+        for (int i = 0; i < pdepth; i++) {
+            pout.append("  ");
+        }
+    }
+
+    private static void escape(String ptext, boolean pattribute, StringBuilder pout) {
+        for (int i = 0; i < ptext.length(); i++) {
+            char lchar = ptext.charAt(i);
+            switch (lchar) {
+                case '&':
+                    pout.append("&amp;");
+                    break;
+                case '<':
+                    pout.append("&lt;");
+                    break;
+                case '>':
+                    pout.append("&gt;");
+                    break;
+                case '"':
+                    pout.append(pattribute ? "&quot;" : "\"");
+                    break;
+                case '\n':
+                    pout.append(pattribute ? "&#10;" : "\n");
+                    break;
+                case '\r':
+                    pout.append("&#13;");
+                    break;
+                case '\t':
+                    pout.append(pattribute ? "&#9;" : "\t");
+                    break;
+                default:
+                    pout.append(lchar);
+            }
+        }
+    }
+
+    /* End: serialization */
+
+    /* Begin: hashing and sidecar */
+
+    // Hash of the content of a section, computed without serializing it
+    private String hash(Element pelement) {
+        mdigest.reset();
+        digest(pelement);
+        StringBuilder lhex = new StringBuilder();
+        for (byte lbyte : mdigest.digest()) {
+            lhex.append(Character.forDigit((lbyte >> 4) & 0xf, 16)).append(Character.forDigit(lbyte & 0xf, 16));
+        }
+        return lhex.toString();
+    }
+
+    private void digest(Node pnode) {
+        if (pnode instanceof Element) {
+            update('<', pnode.getNodeName());
+            NamedNodeMap lattributes = pnode.getAttributes();
+            for (int i = 0; i < lattributes.getLength(); i++) {
+                update(' ', lattributes.item(i).getNodeName());
+                update('=', lattributes.item(i).getNodeValue());
+            }
+            for (Node lnode = pnode.getFirstChild(); lnode != null; lnode = lnode.getNextSibling()) {
+                digest(lnode);
+            }
+            mdigest.update((byte) '>');
+        } else if (pnode.getNodeType() == Node.TEXT_NODE || pnode.getNodeType() == Node.CDATA_SECTION_NODE) {
+            update('"', pnode.getNodeValue());
+        }
+    }
+
+    // A tag byte and a length make the encoding of the content unambiguous
+    private void update(char ptag, String ptext) {
+        byte[] lbytes = ptext.getBytes(StandardCharsets.UTF_8);
+        mdigest.update((byte) ptag);
+        mdigest.update((byte) (lbytes.length >>> 24));
+        mdigest.update((byte) (lbytes.length >>> 16));
+        mdigest.update((byte) (lbytes.length >>> 8));
+        mdigest.update((byte) lbytes.length);
+        mdigest.update(lbytes);
+    }
+
+    private Map<String, String> readSidecar() {
+        HashMap<String, String> lsections = new HashMap<String, String>();
+        if (!msidecar.isFile()) {
+            return lsections;
+        }
+        DataInputStream lin = null;
+        try {
+            lin = new DataInputStream(new BufferedInputStream(new FileInputStream(msidecar)));
+            if (lin.readInt() != SIDECAR_VERSION) {
+                return lsections;
+            }
+            int lcount = lin.readInt();
+            for (int i = 0; i < lcount; i++) {
+                String lkey = lin.readUTF();
+                byte[] ltext = new byte[lin.readInt()];
+                lin.readFully(ltext);
+                lsections.put(lkey, new String(ltext, StandardCharsets.UTF_8));
+            }
+        } catch (EOFException e) {
+            warningf("IncrementalWriter: truncated sidecar {}, writing all sections.", msidecar);
+            lsections.clear();
+        } catch (IOException e) {
+            warningf("IncrementalWriter: cannot read sidecar {}. ", msidecar, e);
+            lsections.clear();
+        } finally {
+            close(lin);
+        }
+        return lsections;
+    }
+
+    private void writeSidecar(Map<String, String> psections) throws IOException {
+        // Write to a temporary file, so an interrupted run does not leave a corrupt sidecar
+        File ltemporary = new File(msidecar.getPath() + ".tmp");
+        DataOutputStream lout = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(ltemporary)));
+        try {
+            lout.writeInt(SIDECAR_VERSION);
+            lout.writeInt(psections.size());
+            for (Map.Entry<String, String> lentry : psections.entrySet()) {
+                byte[] ltext = lentry.getValue().getBytes(StandardCharsets.UTF_8);
+                lout.writeUTF(lentry.getKey());
+                lout.writeInt(ltext.length);
+                lout.write(ltext);
+            }
+        } finally {
+            lout.close();
+        }
+        if (!ltemporary.renameTo(msidecar)) {
+            if (!msidecar.delete() || !ltemporary.renameTo(msidecar)) {
+                throw new IOException("Cannot replace sidecar " + msidecar);
+            }
+        }
+    }
+
+    private void close(DataInputStream pin) {
+        if (pin != null) {
+            try {
+                pin.close();
+            } catch (IOException e) {
+                warningf("{}", e.getMessage());
+            }
+        }
+    }
+
+    /* End: hashing and sidecar */
+}
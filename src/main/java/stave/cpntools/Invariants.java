@@ -0,0 +1,313 @@
+/*
+* Place and transition invariants of an IncidenceMatrix, computed with the
+* Farkas (Fourier-Motzkin) algorithm on sparse integer vectors.
+*
+* The algorithm starts from the rows of the matrix, each paired with a unit
+* vector recording which original rows it combines. Columns are eliminated one
+* by one: rows with a zero entry are kept, and every pair of rows with entries
+* of opposite signs is replaced by the positive combination that cancels the
+* column. Combinations whose support includes the support of another one are
+* dropped, so the result is the set of minimal-support semi-positive
+* invariants, which generates all of them.
+*
+* A place invariant y gives a weighted sum of tokens y.M that is the same in all
+* reachable markings M, without exploring them. A transition invariant gives
+* amounts of firings that reproduce the marking.
+*/
+
+package stave.cpntools;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+public class Invariants extends BaseCPNCommunication {
+
+    private final IncidenceMatrix mmatrix;
+    private int mmaxrows = 100000;
+    private List<SparseIntVector> mplaceinvariants;
+    private List<SparseIntVector> mtransitioninvariants;
+
+    public Invariants(IncidenceMatrix pmatrix) {
+        mmatrix = pmatrix;
+    }
+
+    /**
+     * The number of combinations can grow exponentially. Give up with an exception
+     * if more intermediate rows than this are needed.
+     */
+    public void setMaxRows(int pmax) {
+        mmaxrows = pmax;
+    }
+
+    /**
+     * Minimal semi-positive place invariants, as weights indexed by place.
+     */
+    public List<SparseIntVector> getPlaceInvariants() throws BadCPNDefinitionException {
+        if (mplaceinvariants == null) {
+            List<SparseIntVector> lrows = new ArrayList<SparseIntVector>();
+            for (int p = 0; p < mmatrix.getPlaceCount(); p++) {
+                lrows.add(mmatrix.getRow(p));
+            }
+            mplaceinvariants = farkas(lrows, mmatrix.getTransitionCount());
+        }
+        return mplaceinvariants;
+    }
+
+    /**
+     * Minimal semi-positive transition invariants, as firing counts indexed by transition.
+     */
+    public List<SparseIntVector> getTransitionInvariants() throws BadCPNDefinitionException {
+        if (mtransitioninvariants == null) {
+            List<SparseIntVector> lrows = new ArrayList<SparseIntVector>();
+            for (int t = 0; t < mmatrix.getTransitionCount(); t++) {
+                lrows.add(mmatrix.getColumn(t));
+            }
+            mtransitioninvariants = farkas(lrows, mmatrix.getPlaceCount());
+        }
+        return mtransitioninvariants;
+    }
+
+    /**
+     * Whether every place has a positive weight in some place invariant. Such a
+     * net is structurally bounded: the amount of tokens of each place is bounded
+     * for any initial marking.
+     */
+    public boolean isCoveredByPlaceInvariants() throws BadCPNDefinitionException {
+        boolean[] lcovered = new boolean[mmatrix.getPlaceCount()];
+        for (SparseIntVector linvariant : getPlaceInvariants()) {
+            for (int i = 0; i < linvariant.size(); i++) {
+                lcovered[linvariant.index(i)] = true;
+            }
+        }
+        for (boolean lplace : lcovered) {
+            if (!lplace) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Place invariants whose support includes the given place.
+     */
+    public List<SparseIntVector> getPlaceInvariantsOf(int pplace) throws BadCPNDefinitionException {
+        List<SparseIntVector> lresult = new ArrayList<SparseIntVector>();
+        for (SparseIntVector linvariant : getPlaceInvariants()) {
+            if (linvariant.get(pplace) != 0) {
+                lresult.add(linvariant);
+            }
+        }
+        return lresult;
+    }
+
+    // Row of the elimination: remaining entries, and the combination of original rows
+    private static class Row {
+        final SparseIntVector mentries;
+        final SparseIntVector mcombination;
+
+        Row(SparseIntVector pentries, SparseIntVector pcombination) {
+            mentries = pentries;
+            mcombination = pcombination;
+        }
+    }
+
+    /**
+     * Current rows of the elimination, indexed by column and by the first index
+     * of their support, so that each step only visits the rows it changes.
+     */
+    private static class RowSet {
+        final Set<Row> mrows = new LinkedHashSet<Row>();
+        final List<Set<Row>> mbycolumn;
+        final HashMap<Integer, List<Row>> mbysupport = new HashMap<Integer, List<Row>>();
+        final long[] mpositive;
+        final long[] mnegative;
+
+        RowSet(int pcolumns) {
+            mbycolumn = new ArrayList<Set<Row>>(pcolumns);
+            for (int c = 0; c < pcolumns; c++) {
+                mbycolumn.add(new LinkedHashSet<Row>());
+            }
+            mpositive = new long[pcolumns];
+            mnegative = new long[pcolumns];
+        }
+
+        void add(Row prow) {
+            mrows.add(prow);
+            for (int i = 0; i < prow.mentries.size(); i++) {
+                int lcolumn = prow.mentries.index(i);
+                mbycolumn.get(lcolumn).add(prow);
+                if (prow.mentries.value(i) > 0) {
+                    mpositive[lcolumn]++;
+                } else {
+                    mnegative[lcolumn]++;
+                }
+            }
+            List<Row> lbucket = mbysupport.get(prow.mcombination.index(0));
+            if (lbucket == null) {
+                lbucket = new ArrayList<Row>();
+                mbysupport.put(prow.mcombination.index(0), lbucket);
+            }
+            lbucket.add(prow);
+        }
+
+        void remove(Row prow) {
+            mrows.remove(prow);
+            for (int i = 0; i < prow.mentries.size(); i++) {
+                int lcolumn = prow.mentries.index(i);
+                mbycolumn.get(lcolumn).remove(prow);
+                if (prow.mentries.value(i) > 0) {
+                    mpositive[lcolumn]--;
+                } else {
+                    mnegative[lcolumn]--;
+                }
+            }
+            mbysupport.get(prow.mcombination.index(0)).remove(prow);
+        }
+
+        // Column with the fewest combinations, to limit the growth of the rows
+        int nextColumn(boolean[] peliminated) {
+            int lbest = -1;
+            long lbestcost = Long.MAX_VALUE;
+            for (int c = 0; c < peliminated.length; c++) {
+                if (peliminated[c]) {
+                    continue;
+                }
+                // Rows are removed as well as added
+                long lcost = mpositive[c] * mnegative[c] - mpositive[c] - mnegative[c];
+                if (lcost < lbestcost) {
+                    lbestcost = lcost;
+                    lbest = c;
+                }
+            }
+            return lbest;
+        }
+
+        /**
+         * Whether a current row has a support included in the given one.
+         * Such a row has its first index in the support.
+         */
+        boolean includesSupportOfRow(SparseIntVector psupport) {
+            for (int i = 0; i < psupport.size(); i++) {
+                List<Row> lbucket = mbysupport.get(psupport.index(i));
+                if (lbucket == null) {
+                    continue;
+                }
+                for (Row lrow : lbucket) {
+                    if (lrow.mcombination.size() <= psupport.size() && lrow.mcombination.supportIncludedIn(psupport)) {
+                        return true;
+                    }
+                }
+            }
+            return false;
+        }
+    }
+
+    /**
+     * @param prows    Rows of the matrix.
+     * @param pcolumns Number of columns.
+     * @return Minimal semi-positive vectors y such that y.A = 0.
+     */
+    private List<SparseIntVector> farkas(List<SparseIntVector> prows, int pcolumns) throws BadCPNDefinitionException {
+        RowSet lrows = new RowSet(pcolumns);
+        for (int i = 0; i < prows.size(); i++) {
+            lrows.add(new Row(prows.get(i), SparseIntVector.unit(i, 1)));
+        }
+
+        boolean[] leliminated = new boolean[pcolumns];
+        for (int lstep = 0; lstep < pcolumns; lstep++) {
+            int lcolumn = lrows.nextColumn(leliminated);
+            leliminated[lcolumn] = true;
+
+            List<Row> lpositive = new ArrayList<Row>();
+            List<Row> lnegative = new ArrayList<Row>();
+            for (Row lrow : new ArrayList<Row>(lrows.mbycolumn.get(lcolumn))) {
+                if (lrow.mentries.get(lcolumn) > 0) {
+                    lpositive.add(lrow);
+                } else {
+                    lnegative.add(lrow);
+                }
+                lrows.remove(lrow);
+            }
+
+            // The remaining rows are minimal, and cannot include the support of a
+            // new row, which is the union of the supports of two previous rows.
+            List<Row> lminimal = new ArrayList<Row>();
+            for (Row lplus : lpositive) {
+                long la = lplus.mentries.get(lcolumn);
+                for (Row lminus : lnegative) {
+                    long lb = -lminus.mentries.get(lcolumn);
+                    SparseIntVector lcombination = lplus.mcombination.combine(lb, lminus.mcombination, la);
+                    if (lrows.includesSupportOfRow(lcombination)) {
+                        continue;
+                    }
+                    Row lrow = normalize(new Row(lplus.mentries.combine(lb, lminus.mentries, la), lcombination));
+                    lminimal.add(lrow);
+                }
+            }
+            for (Row lrow : minimal(lminimal)) {
+                lrows.add(lrow);
+            }
+            if (lrows.mrows.size() > mmaxrows) {
+                throw new BadCPNDefinitionException("Invariants: more than " + mmaxrows + " intermediate combinations.");
+            }
+        }
+
+        List<SparseIntVector> lresult = new ArrayList<SparseIntVector>(lrows.mrows.size());
+        for (Row lrow : lrows.mrows) {
+            lresult.add(lrow.mcombination);
+        }
+        return lresult;
+    }
+
+    private static Row normalize(Row prow) {
+        long lgcd = SparseIntVector.gcd(prow.mentries.gcd(), prow.mcombination.gcd());
+        if (lgcd <= 1) {
+            return prow;
+        }
+        return new Row(prow.mentries.divide(lgcd), prow.mcombination.divide(lgcd));
+    }
+
+    /**
+     * New rows whose support does not include the support of another new row.
+     * Of two rows with the same support, the first one is kept.
+     */
+    private static List<Row> minimal(List<Row> pcandidates) {
+        HashMap<Integer, List<Integer>> lbuckets = new HashMap<Integer, List<Integer>>();
+        for (int r = 0; r < pcandidates.size(); r++) {
+            int lfirst = pcandidates.get(r).mcombination.index(0);
+            List<Integer> lbucket = lbuckets.get(lfirst);
+            if (lbucket == null) {
+                lbucket = new ArrayList<Integer>();
+                lbuckets.put(lfirst, lbucket);
+            }
+            lbucket.add(r);
+        }
+
+        List<Row> lresult = new ArrayList<Row>();
+        for (int c = 0; c < pcandidates.size(); c++) {
+            SparseIntVector lsupport = pcandidates.get(c).mcombination;
+            boolean lminimal = true;
+            for (int i = 0; i < lsupport.size() && lminimal; i++) {
+                List<Integer> lbucket = lbuckets.get(lsupport.index(i));
+                if (lbucket == null) {
+                    continue;
+                }
+                for (int r : lbucket) {
+                    SparseIntVector lother = pcandidates.get(r).mcombination;
+                    if (r != c && lother.size() <= lsupport.size() && lother.supportIncludedIn(lsupport)
+                            && (lother.size() < lsupport.size() || r < c)) {
+                        lminimal = false;
+                        break;
+                    }
+                }
+            }
+            if (lminimal) {
+                lresult.add(pcandidates.get(c));
+            }
+        }
+        return lresult;
+    }
+}
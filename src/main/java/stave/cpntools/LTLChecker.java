@@ -0,0 +1,553 @@
+/*
+* On-the-fly LTL model checking of a StateSpaceNet.
+* The negation of the formula is translated to a generalized Büchi automaton
+* with the tableau construction of Gerth, Peled, Vardi and Wolper, and the
+* product of the automaton with the reachability graph is searched for an
+* accepting cycle with a nested depth-first search (Schwoon and Esparza), as
+* the product is generated. Markings are only computed until a counterexample
+* is found.
+*
+* Propositions hold in the states of a path, i.e. a marking together with the
+* transition fired to reach it, so fired(t) is true right after firing t.
+* Dead markings are repeated forever by a stuttering step that fires nothing.
+*/
+
+package stave.cpntools;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+public class LTLChecker extends BaseCPNCommunication {
+
+    /**
+     * Outcome of a check. When the formula does not hold, the counterexample is a
+     * lasso: a finite path from the initial marking, whose last state loops back
+     * to the state at getLoopStart().
+     */
+    public static class Result {
+        boolean mholds = true;
+        boolean mcomplete = true;
+        long mstates;
+        final List<Marking> mtrace = new ArrayList<Marking>();
+        final List<Integer> mtransitions = new ArrayList<Integer>();
+        int mloopstart = -1;
+
+        public boolean holds() {
+            return mholds;
+        }
+
+        /**
+         * Whether the search finished before reaching the state limit. Otherwise,
+         * holds() only means that no counterexample was found.
+         */
+        public boolean isComplete() {
+            return mcomplete;
+        }
+
+        /**
+         * Number of states of the product generated by the search.
+         */
+        public long getProductStates() {
+            return mstates;
+        }
+
+        /**
+         * Markings of the counterexample, empty if the formula holds.
+         */
+        public List<Marking> getTrace() {
+            return Collections.unmodifiableList(mtrace);
+        }
+
+        /**
+         * For each marking of the trace, the transition fired to reach it, or -1
+         * for the initial marking and stuttering steps. The last entry is the
+         * transition closing the loop.
+         */
+        public List<Integer> getTraceTransitions() {
+            return Collections.unmodifiableList(mtransitions);
+        }
+
+        public int getLoopStart() {
+            return mloopstart;
+        }
+    }
+
+    /**
+     * Generalized Büchi automaton, labelled on states.
+     */
+    private static class Automaton {
+        // Literals (constants, atoms and negated atoms) that must hold in each state
+        final List<List<TemporalFormula>> mliterals = new ArrayList<List<TemporalFormula>>();
+        final List<List<Integer>> msuccessors = new ArrayList<List<Integer>>();
+        final List<Integer> minitial = new ArrayList<Integer>();
+        // maccepting[q][i]: q belongs to the i-th acceptance set
+        boolean[][] maccepting;
+        int msets;
+
+        // Tableau node being expanded
+        private static class Node {
+            final Set<Integer> mincoming;
+            final LinkedHashSet<TemporalFormula> mnew;
+            final Set<TemporalFormula> mold;
+            final Set<TemporalFormula> mnext;
+
+            Node(Set<Integer> pincoming, Set<TemporalFormula> pnew, Set<TemporalFormula> pold, Set<TemporalFormula> pnext) {
+                mincoming = new LinkedHashSet<Integer>(pincoming);
+                mnew = new LinkedHashSet<TemporalFormula>(pnew);
+                mold = new LinkedHashSet<TemporalFormula>(pold);
+                mnext = new LinkedHashSet<TemporalFormula>(pnext);
+            }
+
+            Node copy() {
+                return new Node(mincoming, mnew, mold, mnext);
+            }
+
+            void require(TemporalFormula pformula) {
+                if (!mold.contains(pformula)) {
+                    mnew.add(pformula);
+                }
+            }
+        }
+
+        private static final int INIT = -1;
+
+        Automaton(TemporalFormula pformula) {
+            List<Node> lnodes = new ArrayList<Node>();
+            Deque<Node> lpending = new ArrayDeque<Node>();
+            lpending.push(new Node(Collections.singleton(INIT), Collections.singleton(pformula),
+                    Collections.<TemporalFormula>emptySet(), Collections.<TemporalFormula>emptySet()));
+
+            while (!lpending.isEmpty()) {
+                Node lnode = lpending.pop();
+
+                if (lnode.mnew.isEmpty()) {
+                    Node lsame = null;
+                    for (Node lother : lnodes) {
+                        if (lother.mold.equals(lnode.mold) && lother.mnext.equals(lnode.mnext)) {
+                            lsame = lother;
+                            break;
+                        }
+                    }
+                    if (lsame != null) {
+                        lsame.mincoming.addAll(lnode.mincoming);
+                    } else {
+                        lnodes.add(lnode);
+                        lpending.push(new Node(Collections.singleton(lnodes.size() - 1), lnode.mnext,
+                                Collections.<TemporalFormula>emptySet(), Collections.<TemporalFormula>emptySet()));
+                    }
+                    continue;
+                }
+
+                TemporalFormula lformula = lnode.mnew.iterator().next();
+                lnode.mnew.remove(lformula);
+                lnode.mold.add(lformula);
+                TemporalFormula lleft = lformula.getLeft();
+                TemporalFormula lright = lformula.getRight();
+
+                switch (lformula.getOperator()) {
+                    case TRUE:
+                        lpending.push(lnode);
+                        break;
+                    case FALSE:
+                        // Contradiction, drop the node
+                        break;
+                    case ATOM:
+                        if (!lnode.mold.contains(TemporalFormula.not(lformula))) {
+                            lpending.push(lnode);
+                        }
+                        break;
+                    case NOT:
+                        if (!lnode.mold.contains(lleft)) {
+                            lpending.push(lnode);
+                        }
+                        break;
+                    case AND:
+                        lnode.require(lleft);
+                        lnode.require(lright);
+                        lpending.push(lnode);
+                        break;
+                    case NEXT:
+                        lnode.mnext.add(lleft);
+                        lpending.push(lnode);
+                        break;
+                    case OR:
+                    case UNTIL:
+                    case RELEASE: {
+                        Node lsecond = lnode.copy();
+                        if (lformula.getOperator() == TemporalFormula.Operator.OR) {
+                            lnode.require(lleft);
+                            lsecond.require(lright);
+                        } else if (lformula.getOperator() == TemporalFormula.Operator.UNTIL) {
+                            // f U g = g || (f && X(f U g))
+                            lnode.require(lleft);
+                            lnode.mnext.add(lformula);
+                            lsecond.require(lright);
+                        } else {
+                            // f R g = (f && g) || (g && X(f R g))
+                            lnode.require(lright);
+                            lnode.mnext.add(lformula);
+                            lsecond.require(lleft);
+                            lsecond.require(lright);
+                        }
+                        lpending.push(lsecond);
+                        lpending.push(lnode);
+                        break;
+                    }
+                    default:
+                        throw new TemporalFormula.FormulaException("Unexpected operator in " + lformula + ".");
+                }
+            }
+
+            // Acceptance: for every f U g, the states where it is not pending or g holds
+            List<TemporalFormula> luntils = new ArrayList<TemporalFormula>();
+            collectUntils(pformula, luntils);
+            msets = Math.max(1, luntils.size());
+            maccepting = new boolean[lnodes.size()][msets];
+
+            for (int q = 0; q < lnodes.size(); q++) {
+                Node lnode = lnodes.get(q);
+                List<TemporalFormula> lliterals = new ArrayList<TemporalFormula>();
+                for (TemporalFormula lformula : lnode.mold) {
+                    TemporalFormula.Operator lop = lformula.getOperator();
+                    if (lop == TemporalFormula.Operator.ATOM || lop == TemporalFormula.Operator.NOT) {
+                        lliterals.add(lformula);
+                    }
+                }
+                mliterals.add(lliterals);
+                msuccessors.add(new ArrayList<Integer>());
+
+                for (int i = 0; i < luntils.size(); i++) {
+                    TemporalFormula luntil = luntils.get(i);
+                    maccepting[q][i] = !lnode.mold.contains(luntil) || lnode.mold.contains(luntil.getRight());
+                }
+                if (luntils.isEmpty()) {
+                    maccepting[q][0] = true;
+                }
+            }
+            for (int q = 0; q < lnodes.size(); q++) {
+                for (int lfrom : lnodes.get(q).mincoming) {
+                    if (lfrom == INIT) {
+                        minitial.add(q);
+                    } else {
+                        msuccessors.get(lfrom).add(q);
+                    }
+                }
+            }
+        }
+
+        private static void collectUntils(TemporalFormula pformula, List<TemporalFormula> pout) {
+            if (pformula.getOperator() == TemporalFormula.Operator.UNTIL && !pout.contains(pformula)) {
+                pout.add(pformula);
+            }
+            if (pformula.getLeft() != null) {
+                collectUntils(pformula.getLeft(), pout);
+            }
+            if (pformula.getRight() != null) {
+                collectUntils(pformula.getRight(), pout);
+            }
+        }
+
+        int size() {
+            return mliterals.size();
+        }
+    }
+
+    // State of the product of the net and the degeneralized automaton
+    private static class ProductState {
+        final Marking mmarking;
+        final int mlast;
+        final int mnode;
+        final int mcounter;
+        final int mhash;
+        // Search colours
+        boolean mcyan;
+        boolean mblue;
+        boolean mred;
+
+        ProductState(Marking pmarking, int plast, int pnode, int pcounter) {
+            mmarking = pmarking;
+            mlast = plast;
+            mnode = pnode;
+            mcounter = pcounter;
+            mhash = ((pmarking.hashCode() * 31 + plast) * 31 + pnode) * 31 + pcounter;
+        }
+
+        public boolean equals(Object pother) {
+            if (!(pother instanceof ProductState)) {
+                return false;
+            }
+            ProductState lother = (ProductState) pother;
+            return mhash == lother.mhash && mlast == lother.mlast && mnode == lother.mnode
+                    && mcounter == lother.mcounter && mmarking.equals(lother.mmarking);
+        }
+
+        public int hashCode() {
+            return mhash;
+        }
+    }
+
+    // Frame of the iterative depth-first searches
+    private static class Frame {
+        final ProductState mstate;
+        final List<ProductState> msuccessors;
+        int mnext = 0;
+
+        Frame(ProductState pstate, List<ProductState> psuccessors) {
+            mstate = pstate;
+            msuccessors = psuccessors;
+        }
+    }
+
+    private final StateSpaceNet mnet;
+    private long mmaxstates = Long.MAX_VALUE;
+
+    // Per check
+    private Automaton mautomaton;
+    private HashMap<ProductState, ProductState> mstates;
+    private final HashMap<String, List<Integer>> mplaces = new HashMap<String, List<Integer>>();
+    private final HashMap<String, List<Integer>> mtransitions = new HashMap<String, List<Integer>>();
+    private boolean mneedsenabled;
+    private HashMap<Marking, boolean[]> menabled;
+
+    public LTLChecker(StateSpaceNet pnet) {
+        mnet = pnet;
+    }
+
+    /**
+     * Stop searching after generating this amount of product states.
+     */
+    public void setMaxStates(long pmax) {
+        mmaxstates = pmax;
+    }
+
+    public Result check(String pformula) throws BadCPNDefinitionException, TemporalFormula.FormulaException {
+        return check(TemporalFormula.parse(pformula));
+    }
+
+    /**
+     * Check that all paths from the initial marking satisfy the formula.
+     */
+    public Result check(TemporalFormula pformula) throws BadCPNDefinitionException {
+        if (!pformula.isLTL()) {
+            throw new BadCPNDefinitionException("LTL: " + pformula + " is not an LTL formula.");
+        }
+        resolve(pformula);
+        mautomaton = new Automaton(pformula.toNegationNormalForm(true));
+        mstates = new HashMap<ProductState, ProductState>();
+        menabled = new HashMap<Marking, boolean[]>();
+        debugf("LTL: automaton of !{} has {} states.", pformula, mautomaton.size());
+
+        Result lresult = new Result();
+        Marking linitial = mnet.getInitialMarking();
+        for (int q : mautomaton.minitial) {
+            if (!lresult.mholds || !lresult.mcomplete) {
+                break;
+            }
+            if (literalsHold(q, linitial, -1)) {
+                ProductState lstate = intern(new ProductState(linitial, -1, q, 0));
+                if (!lstate.mblue && !lstate.mcyan) {
+                    blueSearch(lstate, lresult);
+                }
+            }
+        }
+
+        lresult.mstates = mstates.size();
+        mstates = null;
+        menabled = null;
+        return lresult;
+    }
+
+    // Find the places and transitions named by the propositions
+    private void resolve(TemporalFormula pformula) throws BadCPNDefinitionException {
+        mneedsenabled = false;
+        for (TemporalFormula.Atom latom : pformula.atoms()) {
+            switch (latom.getKind()) {
+                case ENABLED:
+                case FIRED:
+                    mneedsenabled |= latom.getKind() == TemporalFormula.Atom.Kind.ENABLED;
+                    if (!mtransitions.containsKey(latom.getName())) {
+                        List<Integer> lfound = mnet.findTransitions(latom.getName());
+                        if (lfound.isEmpty()) {
+                            throw new BadCPNDefinitionException("LTL: no transition named " + latom.getName() + ".");
+                        }
+                        mtransitions.put(latom.getName(), lfound);
+                    }
+                    break;
+                case DEAD:
+                    mneedsenabled = true;
+                    break;
+                default:
+                    if (!mplaces.containsKey(latom.getName())) {
+                        List<Integer> lfound = mnet.findPlaces(latom.getName());
+                        if (lfound.isEmpty()) {
+                            throw new BadCPNDefinitionException("LTL: no place named " + latom.getName() + ".");
+                        }
+                        mplaces.put(latom.getName(), lfound);
+                    }
+            }
+        }
+    }
+
+    private boolean literalsHold(int pnode, Marking pmarking, int plast) {
+        for (TemporalFormula lliteral : mautomaton.mliterals.get(pnode)) {
+            boolean lpositive = lliteral.getOperator() == TemporalFormula.Operator.ATOM;
+            TemporalFormula.Atom latom = (TemporalFormula.Atom) (lpositive ? lliteral : lliteral.getLeft());
+            boolean[] lenabled = mneedsenabled ? enabled(pmarking) : null;
+            if (latom.holds(mplaces.get(latom.getName()), mtransitions.get(latom.getName()), pmarking, lenabled,
+                    plast) != lpositive) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private boolean[] enabled(Marking pmarking) {
+        boolean[] lenabled = menabled.get(pmarking);
+        if (lenabled == null) {
+            final boolean[] lfound = new boolean[mnet.getTransitionCount()];
+            mnet.successors(pmarking, new StateSpaceNet.SuccessorCollector() {
+                public void successor(int ptransition, Map<String, Object> pbinding, Marking ptarget) {
+                    lfound[ptransition] = true;
+                }
+            });
+            lenabled = lfound;
+            menabled.put(pmarking, lenabled);
+        }
+        return lenabled;
+    }
+
+    private ProductState intern(ProductState pstate) {
+        ProductState lknown = mstates.get(pstate);
+        if (lknown != null) {
+            return lknown;
+        }
+        mstates.put(pstate, pstate);
+        return pstate;
+    }
+
+    private boolean accepting(ProductState pstate) {
+        return pstate.mcounter == 0 && mautomaton.maccepting[pstate.mnode][0];
+    }
+
+    private List<ProductState> successors(ProductState pstate) {
+        final List<Marking> lmarkings = new ArrayList<Marking>();
+        final List<Integer> lfired = new ArrayList<Integer>();
+        mnet.successors(pstate.mmarking, new StateSpaceNet.SuccessorCollector() {
+            public void successor(int ptransition, Map<String, Object> pbinding, Marking ptarget) {
+                lmarkings.add(ptarget);
+                lfired.add(ptransition);
+            }
+        });
+        if (lmarkings.isEmpty()) {
+            // Stuttering step of a dead marking
+            lmarkings.add(pstate.mmarking);
+            lfired.add(-1);
+        }
+
+        int lcounter = pstate.mcounter;
+        if (mautomaton.maccepting[pstate.mnode][lcounter]) {
+            lcounter = (lcounter + 1) % mautomaton.msets;
+        }
+
+        List<ProductState> lresult = new ArrayList<ProductState>();
+        for (int i = 0; i < lmarkings.size(); i++) {
+            for (int q : mautomaton.msuccessors.get(pstate.mnode)) {
+                if (literalsHold(q, lmarkings.get(i), lfired.get(i))) {
+                    lresult.add(intern(new ProductState(lmarkings.get(i), lfired.get(i), q, lcounter)));
+                }
+            }
+        }
+        return lresult;
+    }
+
+    /**
+     * Outer search. States are cyan while on the stack and blue when finished.
+     * A nested red search is started from each accepting state when it is finished,
+     * and reports a cycle when it reaches a cyan state.
+     */
+    private void blueSearch(ProductState proot, Result presult) {
+        List<Frame> lstack = new ArrayList<Frame>();
+        proot.mcyan = true;
+        lstack.add(new Frame(proot, successors(proot)));
+
+        while (!lstack.isEmpty()) {
+            if (mstates.size() > mmaxstates) {
+                presult.mcomplete = false;
+                return;
+            }
+
+            Frame ltop = lstack.get(lstack.size() - 1);
+            if (ltop.mnext < ltop.msuccessors.size()) {
+                ProductState lchild = ltop.msuccessors.get(ltop.mnext++);
+                if (lchild.mcyan && (accepting(ltop.mstate) || accepting(lchild))) {
+                    counterexample(lstack, lchild, Collections.<Frame>emptyList(), presult);
+                    return;
+                }
+                if (!lchild.mcyan && !lchild.mblue) {
+                    lchild.mcyan = true;
+                    lstack.add(new Frame(lchild, successors(lchild)));
+                }
+                continue;
+            }
+
+            if (accepting(ltop.mstate) && redSearch(ltop.mstate, lstack, presult)) {
+                return;
+            }
+            ltop.mstate.mblue = true;
+            ltop.mstate.mcyan = false;
+            lstack.remove(lstack.size() - 1);
+        }
+    }
+
+    private boolean redSearch(ProductState pseed, List<Frame> pbluestack, Result presult) {
+        List<Frame> lstack = new ArrayList<Frame>();
+        pseed.mred = true;
+        lstack.add(new Frame(pseed, successors(pseed)));
+
+        while (!lstack.isEmpty()) {
+            Frame ltop = lstack.get(lstack.size() - 1);
+            if (ltop.mnext < ltop.msuccessors.size()) {
+                ProductState lchild = ltop.msuccessors.get(ltop.mnext++);
+                if (lchild.mcyan) {
+                    counterexample(pbluestack, lchild, lstack, presult);
+                    return true;
+                }
+                if (!lchild.mred) {
+                    lchild.mred = true;
+                    lstack.add(new Frame(lchild, successors(lchild)));
+                }
+                continue;
+            }
+            lstack.remove(lstack.size() - 1);
+        }
+        return false;
+    }
+
+    /**
+     * Build the lasso: the blue stack, then the red stack after its seed (the top of
+     * the blue stack), closed by an edge to pcycle, which is on the blue stack.
+     */
+    private void counterexample(List<Frame> pbluestack, ProductState pcycle, List<Frame> predstack, Result presult) {
+        presult.mholds = false;
+        for (Frame lframe : pbluestack) {
+            if (lframe.mstate == pcycle) {
+                presult.mloopstart = presult.mtrace.size();
+            }
+            presult.mtrace.add(lframe.mstate.mmarking);
+            presult.mtransitions.add(lframe.mstate.mlast);
+        }
+        for (int i = 1; i < predstack.size(); i++) {
+            ProductState lstate = predstack.get(i).mstate;
+            presult.mtrace.add(lstate.mmarking);
+            presult.mtransitions.add(lstate.mlast);
+        }
+        presult.mtransitions.add(pcycle.mlast);
+    }
+}
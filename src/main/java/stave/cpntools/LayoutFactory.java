@@ -11,11 +11,39 @@ package stave.cpntools;
 
 import java.util.Collection;
 import java.util.Iterator;
+import org.w3c.dom.Document;
 import org.w3c.dom.Element;
+import org.w3c.dom.Node;
 import org.w3c.dom.NodeList;
 
 public class LayoutFactory {
 
+    // Registry timing the layout passes, null if disabled
+    private static volatile BuildMetrics mmetrics = null;
+
+    /**
+     * Record the time spent in the layout methods (setLayoutAndPosition(),
+     * distributeHorizontally() and positionAllArcs()) as the timer "layout". The layout is shared by all
+     * factories, so is the registry.
+     *
+     * @param pmetrics Registry receiving the values, null to stop recording.
+     */
+    public static void setMetrics(BuildMetrics pmetrics) {
+        mmetrics = pmetrics;
+    }
+
+    private static long startLayout() {
+        BuildMetrics lmetrics = mmetrics;
+        return (lmetrics != null) ? lmetrics.startTimer() : 0;
+    }
+
+    private static void stopLayout(long pstart) {
+        BuildMetrics lmetrics = mmetrics;
+        if (lmetrics != null) {
+            lmetrics.stopTimer("layout", pstart);
+        }
+    }
+
     /**
      * This class generates 1-dimension coordiantes spreading elements evenly.
      */
@@ -86,12 +114,39 @@ public class LayoutFactory {
         }
 
         static void setPosattr(Element pelement, String px, String py) {
-            Element lposattr = pelement.getOwnerDocument().createElement("posattr");
-            lposattr.setAttribute("x", px);
-            lposattr.setAttribute("y", py);
+            Document ldocument = pelement.getOwnerDocument();
+            StringPool lpool = StringPool.of(ldocument);
+            Element lposattr = ldocument.createElement("posattr");
+            lposattr.setAttribute("x", (lpool == null) ? px : lpool.intern(px));
+            lposattr.setAttribute("y", (lpool == null) ? py : lpool.intern(py));
             pelement.insertBefore(lposattr, pelement.getFirstChild());
         }
 
+        /**
+         * First element with a tag below an element, in document order, as the first item
+         * of getElementsByTagName(), without allocating a NodeList.
+         */
+        static Element firstDescendant(Element pelement, String ptagname) {
+            Node lnode = pelement.getFirstChild();
+            while (lnode != null) {
+                if (lnode.getNodeType() == Node.ELEMENT_NODE && ptagname.equals(lnode.getNodeName())) {
+                    return (Element) lnode;
+                }
+                if (lnode.getFirstChild() != null) {
+                    lnode = lnode.getFirstChild();
+                    continue;
+                }
+                while (lnode.getNextSibling() == null) {
+                    lnode = lnode.getParentNode();
+                    if (lnode == pelement) {
+                        return null;
+                    }
+                }
+                lnode = lnode.getNextSibling();
+            }
+            return null;
+        }
+
         /**
          *  This method is overwritten if an element's coordiantion must be propagated to subelements.
          */
@@ -177,8 +232,10 @@ public class LayoutFactory {
         }
 
         public static void setLayoutAndPosition(Element pelement, int px, int py) {
+            long lstart = startLayout();
             setDefaultLayout(pelement);
             setPosition(pelement, px, py);
+            stopLayout(lstart);
         }
 
         /**
@@ -196,9 +253,11 @@ public class LayoutFactory {
 
             Spacer lspacer = new Spacer(pspace, lfirst);
 
+            long lstart = startLayout();
             for (Iterator<Element> i = plist.iterator(); i.hasNext(); ) {
                 setPosition(i.next(), lspacer.getNext(), py);
             }
+            stopLayout(lstart);
         }
     }
 
@@ -233,10 +292,12 @@ public class LayoutFactory {
          * @param ppage Distance between two elements
          */
         public static void setDefaultLayout(Iterable<Element> plist) {
+            long lstart = startLayout();
             for (Iterator<Element> i = plist.iterator(); i.hasNext(); ) {
                 Element pelement = i.next();
                 setDefaultLayout(pelement);
             }
+            stopLayout(lstart);
         }
 
         static void setPosition(Element pplace, int px, int py) {
@@ -251,8 +312,10 @@ public class LayoutFactory {
         }
 
         public static void setLayoutAndPosition(Element pelement, int px, int py) {
+            long lstart = startLayout();
             setDefaultLayout(pelement);
             setPosition(pelement, px, py);
+            stopLayout(lstart);
         }
 
         /**
@@ -270,9 +333,11 @@ public class LayoutFactory {
 
             Spacer lspacer = new Spacer(pspace, lfirst);
 
+            long lstart = startLayout();
             for (Iterator<Element> i = plist.iterator(); i.hasNext(); ) {
                 setPosition(i.next(), lspacer.getNext(), py);
             }
+            stopLayout(lstart);
         }
     }
 
@@ -313,8 +378,10 @@ public class LayoutFactory {
         }
 
         public static void setLayoutAndPosition(Element pelement, int px, int py) {
+            long lstart = startLayout();
             setDefaultLayout(pelement);
             setPosition(pelement, px, py);
+            stopLayout(lstart);
         }
 
         /**
@@ -332,9 +399,11 @@ public class LayoutFactory {
 
             Spacer lspacer = new Spacer(pspace, lfirst);
 
+            long lstart = startLayout();
             for (Iterator<Element> i = plist.iterator(); i.hasNext(); ) {
                 setPosition(i.next(), lspacer.getNext(), py);
             }
+            stopLayout(lstart);
         }
     }
 
@@ -412,8 +481,10 @@ public class LayoutFactory {
         }
 
         public static void setLayoutAndPosition(Element pelement, int px, int py) {
+            long lstart = startLayout();
             setDefaultLayout(pelement);
             setPosition(pelement, px, py);
+            stopLayout(lstart);
         }
 
         /**
@@ -431,9 +502,11 @@ public class LayoutFactory {
 
             Spacer lspacer = new Spacer(pspace, lfirst);
 
+            long lstart = startLayout();
             for (Iterator<Element> i = plist.iterator(); i.hasNext(); ) {
                 setPosition(i.next(), lspacer.getNext(), py);
             }
+            stopLayout(lstart);
         }
     }
 
@@ -479,8 +552,10 @@ public class LayoutFactory {
         }
 
         public static void setLayoutAndPosition(Element pelement, int px, int py) {
+            long lstart = startLayout();
             setDefaultLayout(pelement);
             setPosition(pelement, px, py);
+            stopLayout(lstart);
         }
 
         /**
@@ -498,9 +573,11 @@ public class LayoutFactory {
 
             Spacer lspacer = new Spacer(pspace, lfirst);
 
+            long lstart = startLayout();
             for (Iterator<Element> i = plist.iterator(); i.hasNext(); ) {
                 setPosition(i.next(), lspacer.getNext(), py);
             }
+            stopLayout(lstart);
         }
     }
 
@@ -546,8 +623,10 @@ public class LayoutFactory {
         }
 
         public static void setLayoutAndPosition(Element pelement, int px, int py) {
+            long lstart = startLayout();
             setDefaultLayout(pelement);
             setPosition(pelement, px, py);
+            stopLayout(lstart);
         }
 
         /**
@@ -565,9 +644,11 @@ public class LayoutFactory {
 
             Spacer lspacer = new Spacer(pspace, lfirst);
 
+            long lstart = startLayout();
             for (Iterator<Element> i = plist.iterator(); i.hasNext(); ) {
                 setPosition(i.next(), lspacer.getNext(), py);
             }
+            stopLayout(lstart);
         }
     }
 
@@ -606,17 +687,17 @@ public class LayoutFactory {
         public static void setPosition(Element parc) {
 
             // Find positions of its respective transition and place
-            NodeList lplacelist = parc.getElementsByTagName("placeend");
-            NodeList ltranslist = parc.getElementsByTagName("transend");
+            Element lplaceend = firstDescendant(parc, "placeend");
+            Element ltransend = firstDescendant(parc, "transend");
 
             // Both should ends should be found. Otherwise exit.
-            if (lplacelist.getLength() < 1 || ltranslist.getLength() < 1) {
+            if (lplaceend == null || ltransend == null) {
                 return;
             }
 
             // Fetch the place's position
-            String lplaceid = ((Element) lplacelist.item(0)).getAttribute("idref");
-            String ltransid = ((Element) ltranslist.item(0)).getAttribute("idref");
+            String lplaceid = lplaceend.getAttribute("idref");
+            String ltransid = ltransend.getAttribute("idref");
 
             Element lplace = parc.getOwnerDocument().getElementById(lplaceid);
             Element ltrans = parc.getOwnerDocument().getElementById(ltransid);
@@ -627,34 +708,33 @@ public class LayoutFactory {
             }
 
             // Get the posattr element
-            NodeList lplaceposattrlist = lplace.getElementsByTagName("posattr");
-            NodeList ltransposattrlist = ltrans.getElementsByTagName("posattr");
+            Element lplaceposattr = firstDescendant(lplace, "posattr");
+            Element ltransposattr = firstDescendant(ltrans, "posattr");
 
             // Both should ends should be found. Otherwise exit.
-            if (lplaceposattrlist.getLength() < 1 || ltransposattrlist.getLength() < 1) {
+            if (lplaceposattr == null || ltransposattr == null) {
                 return;
             }
 
             // calculate medium
-            int lx = (Integer.parseInt(((Element) lplaceposattrlist.item(0)).getAttribute("x")) +
-                    Integer.parseInt(((Element) ltransposattrlist.item(0)).getAttribute("x"))) / 2;
+            int lx = (Integer.parseInt(lplaceposattr.getAttribute("x")) +
+                    Integer.parseInt(ltransposattr.getAttribute("x"))) / 2;
             // calculate medium
-            int ly = (Integer.parseInt(((Element) lplaceposattrlist.item(0)).getAttribute("y")) +
-                    Integer.parseInt(((Element) ltransposattrlist.item(0)).getAttribute("y"))) / 2;
+            int ly = (Integer.parseInt(lplaceposattr.getAttribute("y")) +
+                    Integer.parseInt(ltransposattr.getAttribute("y"))) / 2;
 
             // Add layout for the subpageinfo.
-            NodeList lannotlist = parc.getElementsByTagName("annot");
-            if (lannotlist.getLength() > 0) {
-
-                Element lannot = (Element) lannotlist.item(0);
-
+            Element lannot = firstDescendant(parc, "annot");
+            if (lannot != null) {
                 setPosattr(lannot, Integer.toString(lx), Integer.toString(ly));
             }
         }
 
         public static void setLayoutAndPosition(Element pelement) {
+            long lstart = startLayout();
             setDefaultLayout(pelement);
             setPosition(pelement);
+            stopLayout(lstart);
         }
 
         /**
@@ -663,11 +743,13 @@ public class LayoutFactory {
          * @param ppage Distance between two elements
          */
         public static void setLayoutAndPosition(Iterable<Element> plist) {
+            long lstart = startLayout();
             for (Iterator<Element> i = plist.iterator(); i.hasNext(); ) {
                 Element pelement = i.next();
                 setDefaultLayout(pelement);
                 setPosition(pelement);
             }
+            stopLayout(lstart);
         }
 
         /**
@@ -679,9 +761,17 @@ public class LayoutFactory {
 
             NodeList larclist = ppage.getElementsByTagName("arc");
 
-            for (int i = 0; i < larclist.getLength(); i++) {
-                setPosition((Element) larclist.item(i));
+            // Take the arcs out of the list first: positioning an arc changes the DOM,
+            // after which the list would walk the whole page again
+            Element[] larcs = new Element[larclist.getLength()];
+            for (int i = 0; i < larcs.length; i++) {
+                larcs[i] = (Element) larclist.item(i);
+            }
+            long lstart = startLayout();
+            for (int i = 0; i < larcs.length; i++) {
+                setPosition(larcs[i]);
             }
+            stopLayout(lstart);
         }
 
     }
@@ -721,17 +811,17 @@ public class LayoutFactory {
         public static void setPosition(Element parc) {
 
             // Find positions of its respective transition and place
-            NodeList lplacelist = parc.getElementsByTagName("placeend");
-            NodeList ltranslist = parc.getElementsByTagName("transend");
+            Element lplaceend = firstDescendant(parc, "placeend");
+            Element ltransend = firstDescendant(parc, "transend");
 
             // Both should ends should be found. Otherwise exit.
-            if (lplacelist.getLength() < 1 || ltranslist.getLength() < 1) {
+            if (lplaceend == null || ltransend == null) {
                 return;
             }
 
             // Fetch the place's position
-            String lplaceid = ((Element) lplacelist.item(0)).getAttribute("idref");
-            String ltransid = ((Element) ltranslist.item(0)).getAttribute("idref");
+            String lplaceid = lplaceend.getAttribute("idref");
+            String ltransid = ltransend.getAttribute("idref");
 
             Element lplace = parc.getOwnerDocument().getElementById(lplaceid);
             Element ltrans = parc.getOwnerDocument().getElementById(ltransid);
@@ -742,34 +832,33 @@ public class LayoutFactory {
             }
 
             // Get the posattr element
-            NodeList lplaceposattrlist = lplace.getElementsByTagName("posattr");
-            NodeList ltransposattrlist = ltrans.getElementsByTagName("posattr");
+            Element lplaceposattr = firstDescendant(lplace, "posattr");
+            Element ltransposattr = firstDescendant(ltrans, "posattr");
 
             // Both should ends should be found. Otherwise exit.
-            if (lplaceposattrlist.getLength() < 1 || ltransposattrlist.getLength() < 1) {
+            if (lplaceposattr == null || ltransposattr == null) {
                 return;
             }
 
             // calculate medium
-            int lx = (Integer.parseInt(((Element) lplaceposattrlist.item(0)).getAttribute("x")) +
-                    Integer.parseInt(((Element) ltransposattrlist.item(0)).getAttribute("x"))) / 2;
+            int lx = (Integer.parseInt(lplaceposattr.getAttribute("x")) +
+                    Integer.parseInt(ltransposattr.getAttribute("x"))) / 2;
             // calculate medium
-            int ly = (Integer.parseInt(((Element) lplaceposattrlist.item(0)).getAttribute("y")) +
-                    Integer.parseInt(((Element) ltransposattrlist.item(0)).getAttribute("y"))) / 2;
+            int ly = (Integer.parseInt(lplaceposattr.getAttribute("y")) +
+                    Integer.parseInt(ltransposattr.getAttribute("y"))) / 2;
 
             // Add layout for the subpageinfo.
-            NodeList lannotlist = parc.getElementsByTagName("annot");
-            if (lannotlist.getLength() > 0) {
-
-                Element lannot = (Element) lannotlist.item(0);
-
+            Element lannot = firstDescendant(parc, "annot");
+            if (lannot != null) {
                 setPosattr(lannot, Integer.toString(lx), Integer.toString(ly));
             }
         }
 
         public static void setLayoutAndPosition(Element pelement) {
+            long lstart = startLayout();
             setDefaultLayout(pelement);
             setPosition(pelement);
+            stopLayout(lstart);
         }
 
         /**
@@ -781,9 +870,17 @@ public class LayoutFactory {
 
             NodeList larclist = ppage.getElementsByTagName("arc");
 
-            for (int i = 0; i < larclist.getLength(); i++) {
-                setPosition((Element) larclist.item(i));
+            // Take the arcs out of the list first: positioning an arc changes the DOM,
+            // after which the list would walk the whole page again
+            Element[] larcs = new Element[larclist.getLength()];
+            for (int i = 0; i < larcs.length; i++) {
+                larcs[i] = (Element) larclist.item(i);
+            }
+            long lstart = startLayout();
+            for (int i = 0; i < larcs.length; i++) {
+                setPosition(larcs[i]);
             }
+            stopLayout(lstart);
         }
     }
 }
@@ -0,0 +1,264 @@
+/*
+* Immutable marking of a StateSpaceNet: one multiset of colour values per place.
+* Multisets are stored as sorted arrays, and are shared between markings
+* whenever a place is not affected by a firing.
+*/
+
+package stave.cpntools;
+
+import java.util.Arrays;
+import java.util.Map;
+import java.util.TreeMap;
+
+public final class Marking {
+
+    private static final Object[] NO_COLOURS = new Object[0];
+    private static final int[] NO_COUNTS = new int[0];
+
+    // Per place: sorted distinct colours, and their multiplicities
+    private final Object[][] mcolours;
+    private final int[][] mcounts;
+    private final int mhash;
+
+    private Marking(Object[][] pcolours, int[][] pcounts) {
+        mcolours = pcolours;
+        mcounts = pcounts;
+
+        int lhash = 1;
+        for (int i = 0; i < pcolours.length; i++) {
+            lhash = 31 * lhash + Arrays.hashCode(pcolours[i]);
+            lhash = 31 * lhash + Arrays.hashCode(pcounts[i]);
+        }
+        mhash = lhash;
+    }
+
+    /**
+     * Number of places in the net.
+     */
+    public int getPlaceCount() {
+        return mcolours.length;
+    }
+
+    /**
+     * Total amount of tokens in a place.
+     */
+    public int size(int pplace) {
+        int lsize = 0;
+        for (int lcount : mcounts[pplace]) {
+            lsize += lcount;
+        }
+        return lsize;
+    }
+
+    /**
+     * Whether the place contains no tokens.
+     */
+    public boolean isEmpty(int pplace) {
+        return mcolours[pplace].length == 0;
+    }
+
+    /**
+     * Multiplicity of a colour in a place.
+     */
+    public int count(int pplace, Object pcolour) {
+        int lindex = Arrays.binarySearch(mcolours[pplace], pcolour, NetExpression.COLOUR_ORDER);
+        return (lindex >= 0) ? mcounts[pplace][lindex] : 0;
+    }
+
+    /**
+     * Number of distinct colours in a place.
+     */
+    public int distinct(int pplace) {
+        return mcolours[pplace].length;
+    }
+
+    /**
+     * The i-th distinct colour of a place, in the order of NetExpression.COLOUR_ORDER.
+     */
+    public Object colour(int pplace, int pindex) {
+        return mcolours[pplace][pindex];
+    }
+
+    /**
+     * Multiplicity of the i-th distinct colour of a place.
+     */
+    public int multiplicity(int pplace, int pindex) {
+        return mcounts[pplace][pindex];
+    }
+
+    /**
+     * The marking of a place in CPN ML syntax, e.g. 1`a++2`b.
+     */
+    public String toString(int pplace) {
+        StringBuilder lbuilder = new StringBuilder();
+        for (int i = 0; i < mcolours[pplace].length; i++) {
+            if (i > 0) {
+                lbuilder.append("++");
+            }
+            lbuilder.append(mcounts[pplace][i]).append('`').append(NetExpression.colourToString(mcolours[pplace][i]));
+        }
+        return lbuilder.toString();
+    }
+
+    @Override
+    public boolean equals(Object pother) {
+        if (this == pother) {
+            return true;
+        }
+        if (!(pother instanceof Marking)) {
+            return false;
+        }
+        Marking lother = (Marking) pother;
+        if (mhash != lother.mhash || mcolours.length != lother.mcolours.length) {
+            return false;
+        }
+        for (int i = 0; i < mcolours.length; i++) {
+            if ((mcolours[i] != lother.mcolours[i] && !Arrays.equals(mcolours[i], lother.mcolours[i]))
+                    || (mcounts[i] != lother.mcounts[i] && !Arrays.equals(mcounts[i], lother.mcounts[i]))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public int hashCode() {
+        return mhash;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder lbuilder = new StringBuilder("{");
+        boolean lfirst = true;
+        for (int i = 0; i < mcolours.length; i++) {
+            if (mcolours[i].length > 0) {
+                if (!lfirst) {
+                    lbuilder.append(", ");
+                }
+                lfirst = false;
+                lbuilder.append(i).append(": ").append(toString(i));
+            }
+        }
+        return lbuilder.append('}').toString();
+    }
+
+    /**
+     * Creates markings by adding and removing tokens from a base marking.
+     * Places that are not modified share their multisets with the base.
+     */
+    public static final class Builder implements NetExpression.MultisetCollector {
+
+        private final Object[][] mcolours;
+        private final int[][] mcounts;
+        // Modified places, or null if unchanged
+        private final TreeMap<Object, Integer>[] mchanged;
+        // Place receiving tokens through the collector interface, and the sign of the update
+        private int mtarget = -1;
+        private int msign = 1;
+
+        public Builder(int pplaces) {
+            mcolours = new Object[pplaces][];
+            mcounts = new int[pplaces][];
+            Arrays.fill(mcolours, NO_COLOURS);
+            Arrays.fill(mcounts, NO_COUNTS);
+            mchanged = newMaps(pplaces);
+        }
+
+        public Builder(Marking pbase) {
+            mcolours = pbase.mcolours.clone();
+            mcounts = pbase.mcounts.clone();
+            mchanged = newMaps(mcolours.length);
+        }
+
+        // Arrays of a generic type can only be created raw
+        @SuppressWarnings({"unchecked", "rawtypes"})
+        private static TreeMap<Object, Integer>[] newMaps(int psize) {
+            return new TreeMap[psize];
+        }
+
+        private TreeMap<Object, Integer> open(int pplace) {
+            TreeMap<Object, Integer> lmap = mchanged[pplace];
+            if (lmap == null) {
+                lmap = new TreeMap<Object, Integer>(NetExpression.COLOUR_ORDER);
+                for (int i = 0; i < mcolours[pplace].length; i++) {
+                    lmap.put(mcolours[pplace][i], mcounts[pplace][i]);
+                }
+                mchanged[pplace] = lmap;
+            }
+            return lmap;
+        }
+
+        /**
+         * Add tokens to a place.
+         */
+        public Builder add(int pplace, Object pcolour, int pamount) {
+            if (pamount != 0) {
+                TreeMap<Object, Integer> lmap = open(pplace);
+                Integer lold = lmap.get(pcolour);
+                int lnew = ((lold == null) ? 0 : lold) + pamount;
+                if (lnew < 0) {
+                    throw new IllegalStateException("Negative amount of " + NetExpression.colourToString(pcolour) + " in place " + pplace + ".");
+                }
+                if (lnew == 0) {
+                    lmap.remove(pcolour);
+                } else {
+                    lmap.put(pcolour, lnew);
+                }
+            }
+            return this;
+        }
+
+        /**
+         * Remove tokens from a place. Fails if the place does not contain them.
+         */
+        public Builder remove(int pplace, Object pcolour, int pamount) {
+            return add(pplace, pcolour, -pamount);
+        }
+
+        /**
+         * Redirect the multisets produced by NetExpression.evaluateMultiset to a place.
+         *
+         * @param pplace Place being updated.
+         * @param padd   true to add tokens, false to remove them.
+         */
+        public Builder target(int pplace, boolean padd) {
+            mtarget = pplace;
+            msign = padd ? 1 : -1;
+            return this;
+        }
+
+        public void add(Object pvalue, int pamount) {
+            add(mtarget, pvalue, msign * pamount);
+        }
+
+        /**
+         * Replace the whole multiset of a place with sorted arrays of colours and counts.
+         */
+        Builder set(int pplace, Object[] pcolours, int[] pcounts) {
+            mchanged[pplace] = null;
+            mcolours[pplace] = pcolours;
+            mcounts[pplace] = pcounts;
+            return this;
+        }
+
+        public Marking build() {
+            for (int i = 0; i < mchanged.length; i++) {
+                if (mchanged[i] != null) {
+                    int lsize = mchanged[i].size();
+                    Object[] lcolours = (lsize == 0) ? NO_COLOURS : new Object[lsize];
+                    int[] lcounts = (lsize == 0) ? NO_COUNTS : new int[lsize];
+                    int j = 0;
+                    for (Map.Entry<Object, Integer> lentry : mchanged[i].entrySet()) {
+                        lcolours[j] = lentry.getKey();
+                        lcounts[j] = lentry.getValue();
+                        j++;
+                    }
+                    mcolours[i] = lcolours;
+                    mcounts[i] = lcounts;
+                    mchanged[i] = null;
+                }
+            }
+            return new Marking(mcolours.clone(), mcounts.clone());
+        }
+    }
+}
@@ -0,0 +1,279 @@
+/*
+* Estimate of the memory retained by the DOM of a net, broken down by page and
+* by kind of node: places, transitions, arcs (each with the nodes below them),
+* layout attribute nodes (posattr, fillattr, ...), text nodes, declarations and
+* the rest. Also counts the attribute values and texts that are equal but kept
+* in distinct String objects, which interning would share.
+*
+* The document is walked once. Sizes are estimated for a 64-bit JVM with
+* compressed references and the JDK's DOM implementation; Strings shared by
+* several nodes are counted once, in the first node found.
+*/
+
+package stave.cpntools;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.NamedNodeMap;
+import org.w3c.dom.Node;
+
+public class MemoryFootprint extends BaseCPNCommunication {
+
+    // Estimated bytes of the DOM objects, without the Strings they refer to
+    static final int ELEMENT_BYTES = 48;
+    static final int ATTRIBUTES_BYTES = 48;
+    static final int ATTRIBUTE_BYTES = 40;
+    static final int TEXT_BYTES = 40;
+    // String object and array header
+    static final int STRING_BYTES = 40;
+
+    // Elements that only hold graphical attributes
+    private static final HashSet<String> LAYOUT_TAGS = new HashSet<String>();
+    // Elements whose subtree is accounted to their own kind
+    private static final HashSet<String> OWNER_TAGS = new HashSet<String>();
+
+    static {
+        Collections.addAll(LAYOUT_TAGS, "posattr", "fillattr", "lineattr", "textattr", "arrowattr",
+                "ellipse", "box", "token", "marking", "bendpoint");
+        Collections.addAll(OWNER_TAGS, "place", "trans", "arc", "fusion");
+    }
+
+    private final Document mdocument;
+    private final TreeMap<String, Long> mkindbytes = new TreeMap<String, Long>();
+    private final TreeMap<String, Long> mkindnodes = new TreeMap<String, Long>();
+    private final LinkedHashMap<String, Long> mpagebytes = new LinkedHashMap<String, Long>();
+    // String objects already counted
+    private final IdentityHashMap<String, Boolean> minstances = new IdentityHashMap<String, Boolean>();
+    // Occurrences of each value, and its distinct String objects
+    private final HashMap<String, int[]> mvalues = new HashMap<String, int[]>();
+    private long mstrings;
+    private long mduplicatebytes;
+
+    public MemoryFootprint(Document pdocument) {
+        mdocument = pdocument;
+    }
+
+    /**
+     * Walk the document. Must be called before the getters, and again after the document changes.
+     */
+    public void analyze() {
+        mkindbytes.clear();
+        mkindnodes.clear();
+        mpagebytes.clear();
+        minstances.clear();
+        mvalues.clear();
+        mstrings = 0;
+        mduplicatebytes = 0;
+
+        Element lroot = mdocument.getDocumentElement();
+        if (lroot != null) {
+            walk(lroot, "other", null);
+        }
+        // Only the counts are kept past the walk
+        minstances.clear();
+    }
+
+    /**
+     * Estimated bytes by kind: place, trans, arc, layout, text, declaration, instance, fusion, page, other.
+     */
+    public Map<String, Long> getBytesByKind() {
+        return Collections.unmodifiableMap(mkindbytes);
+    }
+
+    public Map<String, Long> getNodesByKind() {
+        return Collections.unmodifiableMap(mkindnodes);
+    }
+
+    /**
+     * Estimated bytes of each page, by "name (id)", in document order.
+     */
+    public Map<String, Long> getBytesByPage() {
+        return Collections.unmodifiableMap(mpagebytes);
+    }
+
+    public long getTotalBytes() {
+        long ltotal = 0;
+        for (Long lbytes : mkindbytes.values()) {
+            ltotal += lbytes;
+        }
+        return ltotal;
+    }
+
+    /**
+     * Attribute values and texts found.
+     */
+    public long getStringCount() {
+        return mstrings;
+    }
+
+    /**
+     * Distinct values among the attribute values and texts.
+     */
+    public int getDistinctStringCount() {
+        return mvalues.size();
+    }
+
+    /**
+     * Estimated bytes of the String objects holding a value already held by another,
+     * which interning the values would save.
+     */
+    public long getDuplicateStringBytes() {
+        return mduplicatebytes;
+    }
+
+    /**
+     * Values held by the most distinct String objects.
+     *
+     * @param plimit Values returned, at most.
+     * @return Number of String objects of each value, most duplicated first.
+     */
+    public Map<String, Integer> getMostDuplicated(int plimit) {
+        List<Map.Entry<String, int[]>> lentries = new ArrayList<Map.Entry<String, int[]>>();
+        for (Map.Entry<String, int[]> lentry : mvalues.entrySet()) {
+            if (lentry.getValue()[1] > 1) {
+                lentries.add(lentry);
+            }
+        }
+        Collections.sort(lentries, new Comparator<Map.Entry<String, int[]>>() {
+            public int compare(Map.Entry<String, int[]> pfirst, Map.Entry<String, int[]> psecond) {
+                return Integer.compare(psecond.getValue()[1], pfirst.getValue()[1]);
+            }
+        });
+        LinkedHashMap<String, Integer> lduplicated = new LinkedHashMap<String, Integer>();
+        for (int i = 0; i < Math.min(plimit, lentries.size()); i++) {
+            lduplicated.put(lentries.get(i).getKey(), lentries.get(i).getValue()[1]);
+        }
+        return lduplicated;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder lreport = new StringBuilder();
+        lreport.append("Total: ").append(getTotalBytes()).append(" bytes\n");
+        for (Map.Entry<String, Long> lentry : mkindbytes.entrySet()) {
+            lreport.append("  ").append(lentry.getKey()).append(": ").append(lentry.getValue())
+                    .append(" bytes, ").append(mkindnodes.get(lentry.getKey())).append(" nodes\n");
+        }
+        lreport.append("Strings: ").append(mstrings).append(", distinct ").append(mvalues.size())
+                .append(", duplicate bytes ").append(mduplicatebytes).append('\n');
+        for (Map.Entry<String, Integer> lentry : getMostDuplicated(10).entrySet()) {
+            lreport.append("  \"").append(lentry.getKey()).append("\": ").append(lentry.getValue()).append(" copies\n");
+        }
+        return lreport.toString();
+    }
+
+    /**
+     * Account a node and its subtree.
+     *
+     * @param pnode  Node to account.
+     * @param pkind  Kind of the closest owner above the node.
+     * @param ppage  Page the node is on, null if none.
+     */
+    private void walk(Node pnode, String pkind, String ppage) {
+        if (pnode.getNodeType() == Node.TEXT_NODE || pnode.getNodeType() == Node.CDATA_SECTION_NODE) {
+            account("text", ppage, TEXT_BYTES + string(pnode.getNodeValue()));
+            return;
+        }
+        if (pnode.getNodeType() != Node.ELEMENT_NODE) {
+            account(pkind, ppage, TEXT_BYTES + string(pnode.getNodeValue()));
+            return;
+        }
+
+        String ltag = pnode.getNodeName();
+        String lkind = pkind;
+        String lpage = ppage;
+        if (LAYOUT_TAGS.contains(ltag)) {
+            lkind = "layout";
+        } else if ("globbox".equals(ltag)) {
+            lkind = "declaration";
+        } else if ("instances".equals(ltag)) {
+            lkind = "instance";
+        } else if (OWNER_TAGS.contains(ltag)) {
+            lkind = ltag;
+        } else if ("page".equals(ltag)) {
+            lkind = "page";
+            Element lpageelement = (Element) pnode;
+            Element lpageattr = firstChild(lpageelement, "pageattr");
+            lpage = ((lpageattr == null) ? "" : lpageattr.getAttribute("name")) + " (" + lpageelement.getAttribute("id") + ")";
+            mpagebytes.put(lpage, 0L);
+        }
+
+        long lbytes = ELEMENT_BYTES;
+        NamedNodeMap lattributes = pnode.getAttributes();
+        if (lattributes != null && lattributes.getLength() > 0) {
+            lbytes += ATTRIBUTES_BYTES;
+            for (int i = 0; i < lattributes.getLength(); i++) {
+                lbytes += ATTRIBUTE_BYTES + string(lattributes.item(i).getNodeValue());
+            }
+        }
+        account(lkind, lpage, lbytes);
+
+        for (Node lchild = pnode.getFirstChild(); lchild != null; lchild = lchild.getNextSibling()) {
+            walk(lchild, lkind, lpage);
+        }
+    }
+
+    private void account(String pkind, String ppage, long pbytes) {
+        Long lbytes = mkindbytes.get(pkind);
+        mkindbytes.put(pkind, (lbytes == null) ? pbytes : lbytes + pbytes);
+        Long lnodes = mkindnodes.get(pkind);
+        mkindnodes.put(pkind, (lnodes == null) ? 1L : lnodes + 1);
+        if (ppage != null) {
+            mpagebytes.put(ppage, mpagebytes.get(ppage) + pbytes);
+        }
+    }
+
+    /**
+     * Estimated bytes of a String held by a node, zero if another node holds the same object.
+     */
+    private long string(String pvalue) {
+        if (pvalue == null) {
+            return 0;
+        }
+        mstrings++;
+        long lbytes = stringBytes(pvalue);
+        int[] lcounts = mvalues.get(pvalue);
+        if (lcounts == null) {
+            lcounts = new int[2];
+            mvalues.put(pvalue, lcounts);
+        }
+        lcounts[0]++;
+        if (minstances.put(pvalue, Boolean.TRUE) != null) {
+            return 0;
+        }
+        lcounts[1]++;
+        if (lcounts[1] > 1) {
+            mduplicatebytes += lbytes;
+        }
+        return lbytes;
+    }
+
+    static long stringBytes(String pvalue) {
+        boolean llatin1 = true;
+        for (int i = 0; i < pvalue.length() && llatin1; i++) {
+            llatin1 = pvalue.charAt(i) < 256;
+        }
+        long lbytes = STRING_BYTES + (llatin1 ? pvalue.length() : 2L * pvalue.length());
+        // Objects are aligned to 8 bytes
+        return (lbytes + 7) & ~7L;
+    }
+
+    private static Element firstChild(Element pelement, String ptag) {
+        for (Node lchild = pelement.getFirstChild(); lchild != null; lchild = lchild.getNextSibling()) {
+            if (lchild.getNodeType() == Node.ELEMENT_NODE && ptag.equals(lchild.getNodeName())) {
+                return (Element) lchild;
+            }
+        }
+        return null;
+    }
+}
@@ -0,0 +1,381 @@
+/*
+* Fluent layer over CPNToolsNetFactory. Pages, places, transitions, arcs and
+* connections are declared through small handles (PageRef, PlaceRef,
+* TransRef), which are indices into columnar tables kept by the builder, so
+* declaring a net does not touch the DOM. The DOM is built at once by
+* build(), one fragment per page, with the arcs made from the id tables and
+* not from attribute lookups. The instances of the pages are generated from
+* the declared hierarchy.
+*
+*     NetBuilder lbuilder = lfactory.createBuilder();
+*     PageRef ltop = lbuilder.topPage("Top");
+*     PlaceRef la = ltop.place("A", "UNIT", "1`()");
+*     TransRef lt = ltop.transition("T");
+*     ltop.arc(la, lt, "()");
+*     lbuilder.build();
+*/
+
+package stave.cpntools;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import org.w3c.dom.DocumentFragment;
+import org.w3c.dom.Element;
+
+public class NetBuilder extends BaseCPNCommunication {
+
+    static final int PLACE = 0;
+    static final int IN_PORT = 1;
+    static final int OUT_PORT = 2;
+
+    private final CPNToolsNetFactory mfactory;
+
+    // Pages
+    private final List<String> mpagenames = new ArrayList<String>();
+    private final BitSet mtoppages = new BitSet();
+
+    // Places
+    private final StateSpaceExplorer.IntList mplacepages = new StateSpaceExplorer.IntList();
+    private final StateSpaceExplorer.IntList mplacekinds = new StateSpaceExplorer.IntList();
+    private final List<String> mplacenames = new ArrayList<String>();
+    private final List<String> mplacetypes = new ArrayList<String>();
+    private final List<String> mplaceinits = new ArrayList<String>();
+
+    // Transitions
+    private final StateSpaceExplorer.IntList mtranspages = new StateSpaceExplorer.IntList();
+    private final List<String> mtransnames = new ArrayList<String>();
+    private final List<String> mtransguards = new ArrayList<String>();
+    private final BitSet msubstitutions = new BitSet();
+
+    // Arcs
+    private final StateSpaceExplorer.IntList marcpages = new StateSpaceExplorer.IntList();
+    private final StateSpaceExplorer.IntList marcplaces = new StateSpaceExplorer.IntList();
+    private final StateSpaceExplorer.IntList marctransitions = new StateSpaceExplorer.IntList();
+    private final BitSet marcinputs = new BitSet();
+    private final List<String> marcexpressions = new ArrayList<String>();
+
+    // Subpage of each transition, -1 where the transition is not connected
+    private final StateSpaceExplorer.IntList msubpages = new StateSpaceExplorer.IntList();
+    // Port/socket pairs of the connections
+    private final StateSpaceExplorer.IntList mpairtransitions = new StateSpaceExplorer.IntList();
+    private final StateSpaceExplorer.IntList mpairports = new StateSpaceExplorer.IntList();
+    private final StateSpaceExplorer.IntList mpairsockets = new StateSpaceExplorer.IntList();
+
+    // Ids of the elements, set by build()
+    private String[] mpageids = null;
+    private String[] mplaceids = null;
+    private String[] mtransids = null;
+
+    public NetBuilder(CPNToolsNetFactory pfactory) {
+        mfactory = pfactory;
+    }
+
+    /* Begin: declaration */
+
+    /**
+     * Declare a page that is instantiated only as a subpage.
+     */
+    public PageRef page(String pname) {
+        checkNotBuilt();
+        mpagenames.add(pname);
+        return new PageRef(this, mpagenames.size() - 1);
+    }
+
+    /**
+     * Declare a page that is instantiated at the top of the hierarchy.
+     */
+    public PageRef topPage(String pname) {
+        PageRef lpage = page(pname);
+        mtoppages.set(lpage.mindex);
+        return lpage;
+    }
+
+    /**
+     * Connect a substitution transition to its subpage.
+     *
+     * @param psubstitution Substitution transition.
+     * @param pinsocket     In-socket place, on the page of the transition.
+     * @param poutsocket    Out-socket place, on the page of the transition.
+     * @param psubpage      Page represented by the transition.
+     * @param pinport       In-port place of the subpage.
+     * @param poutport      Out-port place of the subpage.
+     */
+    public void connect(TransRef psubstitution, PlaceRef pinsocket, PlaceRef poutsocket, PageRef psubpage,
+                        PlaceRef pinport, PlaceRef poutport) {
+        checkPlace(pinport, own(psubpage).mindex, IN_PORT);
+        checkPlace(poutport, psubpage.mindex, OUT_PORT);
+        LinkedHashMap<PlaceRef, PlaceRef> lports = new LinkedHashMap<PlaceRef, PlaceRef>();
+        lports.put(pinport, pinsocket);
+        lports.put(poutport, poutsocket);
+        connect(psubstitution, psubpage, lports);
+    }
+
+    /**
+     * Connect a substitution transition to its subpage, with any number of ports.
+     *
+     * @param psubstitution Substitution transition.
+     * @param psubpage      Page represented by the transition.
+     * @param pportsockets  Each port place of the subpage -> its socket place, on the page of the transition.
+     */
+    public void connect(TransRef psubstitution, PageRef psubpage, Map<PlaceRef, PlaceRef> pportsockets) {
+        checkNotBuilt();
+        int ltrans = own(psubstitution).mindex;
+        if (!msubstitutions.get(ltrans)) {
+            throw new BadCPNDefinitionException("NetBuilder: " + mtransnames.get(ltrans)
+                    + " is not a substitution transition.");
+        }
+        if (msubpages.get(ltrans) >= 0) {
+            throw new BadCPNDefinitionException("NetBuilder: " + mtransnames.get(ltrans) + " is already connected.");
+        }
+        int lpage = mtranspages.get(ltrans);
+        int lsubpage = own(psubpage).mindex;
+        for (Map.Entry<PlaceRef, PlaceRef> lpair : pportsockets.entrySet()) {
+            checkPlace(lpair.getKey(), lsubpage, -1);
+            if (mplacekinds.get(lpair.getKey().mindex) == PLACE) {
+                throw new BadCPNDefinitionException("NetBuilder: place " + mplacenames.get(lpair.getKey().mindex)
+                        + " is not a port.");
+            }
+            checkPlace(lpair.getValue(), lpage, -1);
+        }
+
+        msubpages.set(ltrans, lsubpage);
+        for (Map.Entry<PlaceRef, PlaceRef> lpair : pportsockets.entrySet()) {
+            mpairtransitions.add(ltrans);
+            mpairports.add(lpair.getKey().mindex);
+            mpairsockets.add(lpair.getValue().mindex);
+        }
+    }
+
+    PlaceRef addPlace(int ppage, int pkind, String pname, String ptype, String pinit) {
+        checkNotBuilt();
+        mplacepages.add(ppage);
+        mplacekinds.add(pkind);
+        mplacenames.add(pname);
+        mplacetypes.add(ptype);
+        mplaceinits.add(pinit);
+        return new PlaceRef(this, mplacenames.size() - 1);
+    }
+
+    TransRef addTransition(int ppage, String pname, String pguard, boolean psubstitution) {
+        checkNotBuilt();
+        mtranspages.add(ppage);
+        mtransnames.add(pname);
+        mtransguards.add(pguard);
+        msubstitutions.set(mtransnames.size() - 1, psubstitution);
+        msubpages.add(-1);
+        return new TransRef(this, mtransnames.size() - 1);
+    }
+
+    void addArc(int ppage, PlaceRef pplace, TransRef ptrans, boolean pinput, String pexpression) {
+        checkNotBuilt();
+        checkPlace(pplace, ppage, -1);
+        if (mtranspages.get(own(ptrans).mindex) != ppage) {
+            throw new BadCPNDefinitionException("NetBuilder: transition " + mtransnames.get(ptrans.mindex)
+                    + " is not on page " + mpagenames.get(ppage) + ".");
+        }
+        marcpages.add(ppage);
+        marcplaces.add(pplace.mindex);
+        marctransitions.add(ptrans.mindex);
+        marcinputs.set(marcexpressions.size(), pinput);
+        marcexpressions.add(pexpression);
+    }
+
+    /* End: declaration */
+
+    /**
+     * Create the declared net in the DOM of the factory, with the instances of its pages.
+     * The builder cannot be changed afterwards.
+     */
+    public void build() {
+        checkNotBuilt();
+        for (int i = 0; i < mtransnames.size(); i++) {
+            if (msubstitutions.get(i) && msubpages.get(i) < 0) {
+                throw new BadCPNDefinitionException("NetBuilder: substitution transition " + mtransnames.get(i)
+                        + " is not connected.");
+            }
+        }
+
+        String[] lpageids = new String[mpagenames.size()];
+        Element[] lpages = new Element[lpageids.length];
+        DocumentFragment[] lfragments = new DocumentFragment[lpageids.length];
+        for (int i = 0; i < lpages.length; i++) {
+            lpages[i] = mfactory.createPage(mpagenames.get(i));
+            lpageids[i] = lpages[i].getAttribute("id");
+            lfragments[i] = mfactory.createFragment();
+        }
+
+        String[] lplaceids = new String[mplacenames.size()];
+        for (int i = 0; i < lplaceids.length; i++) {
+            Element lplace = createPlace(i);
+            lplaceids[i] = lplace.getAttribute("id");
+            lfragments[mplacepages.get(i)].appendChild(lplace);
+        }
+
+        String[] ltransids = new String[mtransnames.size()];
+        Element[] ltransitions = new Element[ltransids.length];
+        for (int i = 0; i < ltransids.length; i++) {
+            ltransitions[i] = createTransition(i);
+            ltransids[i] = ltransitions[i].getAttribute("id");
+            lfragments[mtranspages.get(i)].appendChild(ltransitions[i]);
+        }
+
+        for (int i = 0; i < marcexpressions.size(); i++) {
+            String lplace = lplaceids[marcplaces.get(i)];
+            String ltrans = ltransids[marctransitions.get(i)];
+            Element larc = marcinputs.get(i) ? mfactory.createArcPtoT(lplace, ltrans, marcexpressions.get(i))
+                    : mfactory.createArcTtoP(ltrans, lplace, marcexpressions.get(i));
+            lfragments[marcpages.get(i)].appendChild(larc);
+        }
+
+        for (int i = 0; i < lpages.length; i++) {
+            mfactory.appendAllToPage(lpages[i], lfragments[i]);
+            mfactory.appendElementToCpnet(lpages[i]);
+        }
+
+        // The pairs are checked when declared, and identical subpages are shared before output
+        HashMap<Integer, Map<String, String>> lportsockets = new HashMap<Integer, Map<String, String>>();
+        for (int i = 0; i < mpairtransitions.size(); i++) {
+            Map<String, String> lpairs = lportsockets.get(mpairtransitions.get(i));
+            if (lpairs == null) {
+                lpairs = new LinkedHashMap<String, String>();
+                lportsockets.put(mpairtransitions.get(i), lpairs);
+            }
+            lpairs.put(lplaceids[mpairports.get(i)], lplaceids[mpairsockets.get(i)]);
+        }
+        // Substitution transitions of each page, in declaration order
+        StateSpaceExplorer.IntList[] lsubstitutions = new StateSpaceExplorer.IntList[lpages.length];
+        for (int i = msubstitutions.nextSetBit(0); i >= 0; i = msubstitutions.nextSetBit(i + 1)) {
+            Map<String, String> lpairs = lportsockets.get(i);
+            mfactory.setPortsock(ltransitions[i], lpageids[msubpages.get(i)],
+                    (lpairs == null) ? new LinkedHashMap<String, String>() : lpairs);
+            int lpage = mtranspages.get(i);
+            if (lsubstitutions[lpage] == null) {
+                lsubstitutions[lpage] = new StateSpaceExplorer.IntList();
+            }
+            lsubstitutions[lpage].add(i);
+        }
+
+        mpageids = lpageids;
+        mplaceids = lplaceids;
+        mtransids = ltransids;
+
+        for (int i = mtoppages.nextSetBit(0); i >= 0; i = mtoppages.nextSetBit(i + 1)) {
+            Element linstance = mfactory.createInstanceForPage(mpageids[i]);
+            HashSet<Integer> lpath = new HashSet<Integer>();
+            lpath.add(i);
+            addSubInstances(linstance, i, lsubstitutions, lpath);
+            mfactory.appendElementToInstances(linstance);
+        }
+    }
+
+    public boolean isBuilt() {
+        return mpageids != null;
+    }
+
+    /* Begin: access from the handles */
+
+    String pageId(int pindex) {
+        checkBuilt();
+        return mpageids[pindex];
+    }
+
+    String placeId(int pindex) {
+        checkBuilt();
+        return mplaceids[pindex];
+    }
+
+    String transitionId(int pindex) {
+        checkBuilt();
+        return mtransids[pindex];
+    }
+
+    Element element(String pid) {
+        return mfactory.findElementId(pid);
+    }
+
+    /* End: access from the handles */
+
+    private Element createPlace(int pindex) {
+        String lname = mplacenames.get(pindex);
+        String ltype = mplacetypes.get(pindex);
+        String linit = mplaceinits.get(pindex);
+        switch (mplacekinds.get(pindex)) {
+            case IN_PORT:
+                return mfactory.createInPortPlace(lname, ltype, linit);
+            case OUT_PORT:
+                return mfactory.createOutPortPlace(lname, ltype, linit);
+            default:
+                return mfactory.createBasicPlace(lname, ltype, linit);
+        }
+    }
+
+    private Element createTransition(int pindex) {
+        String lname = mtransnames.get(pindex);
+        String lguard = mtransguards.get(pindex);
+        if (msubstitutions.get(pindex)) {
+            return mfactory.createSubstitutionTransition(lname);
+        }
+        if (lguard != null && lguard.length() > 0) {
+            return mfactory.createConditionTransition(lname, lguard);
+        }
+        return mfactory.createBasicTransition(lname);
+    }
+
+    // Instances of the substitution transitions of a page, in declaration order
+    private void addSubInstances(Element pinstance, int ppage, StateSpaceExplorer.IntList[] psubstitutions,
+                                 Set<Integer> ppath) {
+        StateSpaceExplorer.IntList ltransitions = psubstitutions[ppage];
+        for (int j = 0; ltransitions != null && j < ltransitions.size(); j++) {
+            int i = ltransitions.get(j);
+            int lsubpage = msubpages.get(i);
+            if (!ppath.add(lsubpage)) {
+                throw new BadCPNDefinitionException("NetBuilder: page " + mpagenames.get(lsubpage)
+                        + " is its own subpage.");
+            }
+            Element linstance = mfactory.createInstanceForSTransition(mtransids[i]);
+            addSubInstances(linstance, lsubpage, psubstitutions, ppath);
+            pinstance.appendChild(linstance);
+            ppath.remove(lsubpage);
+        }
+    }
+
+    private <T> T own(T phandle) {
+        NetBuilder lbuilder = (phandle instanceof PlaceRef) ? ((PlaceRef) phandle).mbuilder
+                : (phandle instanceof TransRef) ? ((TransRef) phandle).mbuilder : ((PageRef) phandle).mbuilder;
+        if (lbuilder != this) {
+            throw new BadCPNDefinitionException("NetBuilder: " + phandle + " belongs to another builder.");
+        }
+        return phandle;
+    }
+
+    // Check that a place belongs to this builder and page, and has the given kind (-1 for any)
+    private void checkPlace(PlaceRef pplace, int ppage, int pkind) {
+        int lindex = own(pplace).mindex;
+        if (mplacepages.get(lindex) != ppage) {
+            throw new BadCPNDefinitionException("NetBuilder: place " + mplacenames.get(lindex) + " is not on page "
+                    + mpagenames.get(ppage) + ".");
+        }
+        if (pkind >= 0 && mplacekinds.get(lindex) != pkind) {
+            throw new BadCPNDefinitionException("NetBuilder: place " + mplacenames.get(lindex)
+                    + " has the wrong port type.");
+        }
+    }
+
+    private void checkNotBuilt() {
+        if (isBuilt()) {
+            throw new BadCPNDefinitionException("NetBuilder: the net was already built.");
+        }
+    }
+
+    private void checkBuilt() {
+        if (!isBuilt()) {
+            throw new BadCPNDefinitionException("NetBuilder: the net is not built yet.");
+        }
+    }
+}
@@ -0,0 +1,870 @@
+/*
+* Parser and evaluator for the subset of CPN ML used in the arc expressions,
+* guards and initial markings generated by this library:
+*   multisets   e1 ++ e2, n`e, empty
+*   terms       (), integers, true/false, "strings", identifiers, tuples (e1,...,en)
+*   operators   + - * div mod ~, = <> < > <= >=, not, andalso, orelse
+*   guards      [g1, ..., gn] as a conjunction of g1 ... gn
+*
+* Colour values are represented as Integer, Boolean, String, Symbol (unit and
+* enumeration constants) and unmodifiable List<Object> for tuples.
+*/
+
+package stave.cpntools;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+
+public abstract class NetExpression {
+
+    /**
+     * The only value of unit color sets.
+     */
+    public static final Symbol UNIT = new Symbol("()");
+
+    /**
+     * Total order among colour values, used to keep markings sorted.
+     * Values of different Java types are ordered by type first.
+     */
+    public static final Comparator<Object> COLOUR_ORDER = new Comparator<Object>() {
+        public int compare(Object po1, Object po2) {
+            return compareColours(po1, po2);
+        }
+    };
+
+    /**
+     * Thrown when the text is outside the supported subset, or cannot be evaluated.
+     */
+    public static class ExpressionException extends RuntimeException {
+        private static final long serialVersionUID = 1L;
+
+        public ExpressionException(String pmessage) {
+            super(pmessage);
+        }
+    }
+
+    /**
+     * Evaluate the expression as a single value.
+     *
+     * @param pbinding Values of the variables.
+     * @return The colour value denoted by the expression.
+     */
+    public abstract Object evaluate(Map<String, Object> pbinding);
+
+    /**
+     * Add all variables occurring in this expression to the collection.
+     *
+     * @param pnames Identifiers considered variables. Everything else is a constant.
+     * @param pout   Collection receiving the variables.
+     */
+    public abstract void collectVariables(Collection<String> pnames, Collection<String> pout);
+
+    /**
+     * Evaluate the expression as a multiset, adding its elements to a collector.
+     * Expressions that are not multisets denote the singleton 1`e.
+     *
+     * @param pbinding Values of the variables.
+     * @param pout     Collector of (value, amount) pairs.
+     */
+    public void evaluateMultiset(Map<String, Object> pbinding, MultisetCollector pout) {
+        pout.add(evaluate(pbinding), 1);
+    }
+
+    /**
+     * Evaluate the expression as a guard. Lists are conjunctions.
+     *
+     * @param pbinding Values of the variables.
+     * @return Whether the guard holds.
+     */
+    public boolean evaluateGuard(Map<String, Object> pbinding) {
+        Object lvalue = evaluate(pbinding);
+        if (!(lvalue instanceof Boolean)) {
+            throw new ExpressionException("Guard " + this + " is not boolean.");
+        }
+        return (Boolean) lvalue;
+    }
+
+    /**
+     * Whether this expression is made only of variables, constants and tuples,
+     * i.e., it can be matched against a token to bind its variables.
+     */
+    public boolean isPattern() {
+        return false;
+    }
+
+    /**
+     * Match a token against this pattern, extending the binding.
+     * Only meaningful if isPattern() holds.
+     *
+     * @param pvalue   Token value.
+     * @param pnames   Identifiers considered variables.
+     * @param pbinding Binding to extend. Left unchanged on failure only for the variables that were already bound.
+     * @return true if the token matches.
+     */
+    public boolean match(Object pvalue, Collection<String> pnames, Map<String, Object> pbinding) {
+        return pvalue.equals(evaluate(pbinding));
+    }
+
+    /**
+     * Receives the elements of a multiset during evaluation.
+     */
+    public interface MultisetCollector {
+        void add(Object pvalue, int pamount);
+    }
+
+    /* Begin: AST nodes */
+
+    /**
+     * Enumeration constants and the unit value.
+     */
+    public static final class Symbol implements Comparable<Symbol> {
+        private final String mname;
+
+        public Symbol(String pname) {
+            mname = pname;
+        }
+
+        public String getName() {
+            return mname;
+        }
+
+        public int compareTo(Symbol pother) {
+            return mname.compareTo(pother.mname);
+        }
+
+        @Override
+        public boolean equals(Object pother) {
+            return (pother instanceof Symbol) && mname.equals(((Symbol) pother).mname);
+        }
+
+        @Override
+        public int hashCode() {
+            return mname.hashCode();
+        }
+
+        @Override
+        public String toString() {
+            return mname;
+        }
+    }
+
+    static class Constant extends NetExpression {
+        private final Object mvalue;
+
+        Constant(Object pvalue) {
+            mvalue = pvalue;
+        }
+
+        public Object evaluate(Map<String, Object> pbinding) {
+            return mvalue;
+        }
+
+        public void collectVariables(Collection<String> pnames, Collection<String> pout) {
+        }
+
+        public boolean isPattern() {
+            return true;
+        }
+
+        public String toString() {
+            return (mvalue instanceof String) ? "\"" + mvalue + "\"" : colourToString(mvalue);
+        }
+    }
+
+    static class Identifier extends NetExpression {
+        private final String mname;
+
+        Identifier(String pname) {
+            mname = pname;
+        }
+
+        String getName() {
+            return mname;
+        }
+
+        // Unbound identifiers are enumeration constants
+        public Object evaluate(Map<String, Object> pbinding) {
+            Object lvalue = (pbinding == null) ? null : pbinding.get(mname);
+            return (lvalue != null) ? lvalue : new Symbol(mname);
+        }
+
+        public void collectVariables(Collection<String> pnames, Collection<String> pout) {
+            if (pnames.contains(mname) && !pout.contains(mname)) {
+                pout.add(mname);
+            }
+        }
+
+        public boolean isPattern() {
+            return true;
+        }
+
+        public boolean match(Object pvalue, Collection<String> pnames, Map<String, Object> pbinding) {
+            if (pnames.contains(mname) && !pbinding.containsKey(mname)) {
+                pbinding.put(mname, pvalue);
+                return true;
+            }
+            return pvalue.equals(evaluate(pbinding));
+        }
+
+        public String toString() {
+            return mname;
+        }
+    }
+
+    static class Tuple extends NetExpression {
+        private final List<NetExpression> mitems;
+
+        Tuple(List<NetExpression> pitems) {
+            mitems = pitems;
+        }
+
+        public Object evaluate(Map<String, Object> pbinding) {
+            List<Object> lvalues = new ArrayList<Object>(mitems.size());
+            for (NetExpression litem : mitems) {
+                lvalues.add(litem.evaluate(pbinding));
+            }
+            return Collections.unmodifiableList(lvalues);
+        }
+
+        public void collectVariables(Collection<String> pnames, Collection<String> pout) {
+            for (NetExpression litem : mitems) {
+                litem.collectVariables(pnames, pout);
+            }
+        }
+
+        public boolean isPattern() {
+            for (NetExpression litem : mitems) {
+                if (!litem.isPattern()) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        public boolean match(Object pvalue, Collection<String> pnames, Map<String, Object> pbinding) {
+            if (!(pvalue instanceof List) || ((List<?>) pvalue).size() != mitems.size()) {
+                return false;
+            }
+            List<?> lvalues = (List<?>) pvalue;
+            for (int i = 0; i < mitems.size(); i++) {
+                if (!mitems.get(i).match(lvalues.get(i), pnames, pbinding)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        List<NetExpression> getItems() {
+            return mitems;
+        }
+
+        public String toString() {
+            return "(" + joinAll(mitems, ",") + ")";
+        }
+    }
+
+    /**
+     * Guard lists [g1, ..., gn]
+     */
+    static class GuardList extends NetExpression {
+        private final List<NetExpression> mitems;
+
+        GuardList(List<NetExpression> pitems) {
+            mitems = pitems;
+        }
+
+        public Object evaluate(Map<String, Object> pbinding) {
+            return Boolean.valueOf(evaluateGuard(pbinding));
+        }
+
+        public boolean evaluateGuard(Map<String, Object> pbinding) {
+            for (NetExpression litem : mitems) {
+                if (!litem.evaluateGuard(pbinding)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        public void collectVariables(Collection<String> pnames, Collection<String> pout) {
+            for (NetExpression litem : mitems) {
+                litem.collectVariables(pnames, pout);
+            }
+        }
+
+        List<NetExpression> getItems() {
+            return mitems;
+        }
+
+        public String toString() {
+            return "[" + joinAll(mitems, ",") + "]";
+        }
+    }
+
+    /**
+     * Multiset sum e1 ++ e2 ++ ... ++ en
+     */
+    static class Sum extends NetExpression {
+        private final List<NetExpression> mterms;
+
+        Sum(List<NetExpression> pterms) {
+            mterms = pterms;
+        }
+
+        public Object evaluate(Map<String, Object> pbinding) {
+            throw new ExpressionException("Multiset " + this + " used as a single value.");
+        }
+
+        public void evaluateMultiset(Map<String, Object> pbinding, MultisetCollector pout) {
+            for (NetExpression lterm : mterms) {
+                lterm.evaluateMultiset(pbinding, pout);
+            }
+        }
+
+        public void collectVariables(Collection<String> pnames, Collection<String> pout) {
+            for (NetExpression lterm : mterms) {
+                lterm.collectVariables(pnames, pout);
+            }
+        }
+
+        List<NetExpression> getTerms() {
+            return mterms;
+        }
+
+        public String toString() {
+            return joinAll(mterms, "++");
+        }
+    }
+
+    /**
+     * Multiset with coefficient n`e
+     */
+    static class Coefficient extends NetExpression {
+        private final NetExpression mamount;
+        private final NetExpression mterm;
+
+        Coefficient(NetExpression pamount, NetExpression pterm) {
+            mamount = pamount;
+            mterm = pterm;
+        }
+
+        NetExpression getAmount() {
+            return mamount;
+        }
+
+        NetExpression getTerm() {
+            return mterm;
+        }
+
+        public Object evaluate(Map<String, Object> pbinding) {
+            throw new ExpressionException("Multiset " + this + " used as a single value.");
+        }
+
+        public void evaluateMultiset(Map<String, Object> pbinding, MultisetCollector pout) {
+            pout.add(mterm.evaluate(pbinding), toInt(mamount.evaluate(pbinding), this));
+        }
+
+        public void collectVariables(Collection<String> pnames, Collection<String> pout) {
+            mamount.collectVariables(pnames, pout);
+            mterm.collectVariables(pnames, pout);
+        }
+
+        public String toString() {
+            return mamount + "`" + mterm;
+        }
+    }
+
+    /**
+     * The empty multiset
+     */
+    static class Empty extends NetExpression {
+        public Object evaluate(Map<String, Object> pbinding) {
+            throw new ExpressionException("Multiset empty used as a single value.");
+        }
+
+        public void evaluateMultiset(Map<String, Object> pbinding, MultisetCollector pout) {
+        }
+
+        public void collectVariables(Collection<String> pnames, Collection<String> pout) {
+        }
+
+        public String toString() {
+            return "empty";
+        }
+    }
+
+    static class Unary extends NetExpression {
+        private final String mop;
+        private final NetExpression moperand;
+
+        Unary(String pop, NetExpression poperand) {
+            mop = pop;
+            moperand = poperand;
+        }
+
+        String getOperator() {
+            return mop;
+        }
+
+        NetExpression getOperand() {
+            return moperand;
+        }
+
+        public Object evaluate(Map<String, Object> pbinding) {
+            Object lvalue = moperand.evaluate(pbinding);
+            if ("not".equals(mop)) {
+                if (!(lvalue instanceof Boolean)) {
+                    throw new ExpressionException("Operand of not is not boolean in " + this + ".");
+                }
+                return Boolean.valueOf(!((Boolean) lvalue));
+            }
+            return Integer.valueOf(-toInt(lvalue, this));
+        }
+
+        public void collectVariables(Collection<String> pnames, Collection<String> pout) {
+            moperand.collectVariables(pnames, pout);
+        }
+
+        public String toString() {
+            return "not".equals(mop) ? "not(" + moperand + ")" : "~" + moperand;
+        }
+    }
+
+    static class Binary extends NetExpression {
+        private final String mop;
+        private final NetExpression mleft;
+        private final NetExpression mright;
+
+        Binary(String pop, NetExpression pleft, NetExpression pright) {
+            mop = pop;
+            mleft = pleft;
+            mright = pright;
+        }
+
+        String getOperator() {
+            return mop;
+        }
+
+        NetExpression getLeft() {
+            return mleft;
+        }
+
+        NetExpression getRight() {
+            return mright;
+        }
+
+        public Object evaluate(Map<String, Object> pbinding) {
+            // Short-circuit operators
+            if ("andalso".equals(mop)) {
+                return Boolean.valueOf(mleft.evaluateGuard(pbinding) && mright.evaluateGuard(pbinding));
+            }
+            if ("orelse".equals(mop)) {
+                return Boolean.valueOf(mleft.evaluateGuard(pbinding) || mright.evaluateGuard(pbinding));
+            }
+
+            Object lleft = mleft.evaluate(pbinding);
+            Object lright = mright.evaluate(pbinding);
+
+            if ("=".equals(mop)) {
+                return Boolean.valueOf(lleft.equals(lright));
+            }
+            if ("<>".equals(mop)) {
+                return Boolean.valueOf(!lleft.equals(lright));
+            }
+            if ("<".equals(mop)) {
+                return Boolean.valueOf(compareColours(lleft, lright) < 0);
+            }
+            if (">".equals(mop)) {
+                return Boolean.valueOf(compareColours(lleft, lright) > 0);
+            }
+            if ("<=".equals(mop)) {
+                return Boolean.valueOf(compareColours(lleft, lright) <= 0);
+            }
+            if (">=".equals(mop)) {
+                return Boolean.valueOf(compareColours(lleft, lright) >= 0);
+            }
+            if ("^".equals(mop)) {
+                return String.valueOf(lleft) + String.valueOf(lright);
+            }
+
+            int lx = toInt(lleft, this);
+            int ly = toInt(lright, this);
+            if ("+".equals(mop)) {
+                return Integer.valueOf(lx + ly);
+            }
+            if ("-".equals(mop)) {
+                return Integer.valueOf(lx - ly);
+            }
+            if ("*".equals(mop)) {
+                return Integer.valueOf(lx * ly);
+            }
+            if (ly == 0) {
+                throw new ExpressionException("Division by zero in " + this + ".");
+            }
+            if ("div".equals(mop)) {
+                return Integer.valueOf(Math.floorDiv(lx, ly));
+            }
+            return Integer.valueOf(Math.floorMod(lx, ly));
+        }
+
+        public void collectVariables(Collection<String> pnames, Collection<String> pout) {
+            mleft.collectVariables(pnames, pout);
+            mright.collectVariables(pnames, pout);
+        }
+
+        public String toString() {
+            return "(" + mleft + " " + mop + " " + mright + ")";
+        }
+    }
+
+    /* End: AST nodes */
+
+    /**
+     * Parse an expression. The empty text denotes the empty multiset.
+     *
+     * @param ptext CPN ML text, such as an arc inscription, guard or initial marking.
+     * @return Syntax tree of the expression.
+     */
+    public static NetExpression parse(String ptext) throws ExpressionException {
+        Parser lparser = new Parser(ptext);
+        NetExpression lexpression = lparser.parseTop();
+        return lexpression;
+    }
+
+    /**
+     * Text representation of a colour value, in CPN ML syntax.
+     */
+    public static String colourToString(Object pvalue) {
+        if (pvalue instanceof List) {
+            StringBuilder lbuilder = new StringBuilder("(");
+            boolean lfirst = true;
+            for (Object litem : (List<?>) pvalue) {
+                if (!lfirst) {
+                    lbuilder.append(',');
+                }
+                lfirst = false;
+                lbuilder.append(colourToString(litem));
+            }
+            return lbuilder.append(')').toString();
+        }
+        if (pvalue instanceof Integer && ((Integer) pvalue) < 0) {
+            return "~" + (-((Integer) pvalue));
+        }
+        return String.valueOf(pvalue);
+    }
+
+    static int compareColours(Object po1, Object po2) {
+        int lrank1 = typeRank(po1);
+        int lrank2 = typeRank(po2);
+        if (lrank1 != lrank2) {
+            return lrank1 - lrank2;
+        }
+
+        switch (lrank1) {
+            case 0:
+                return ((Integer) po1).compareTo((Integer) po2);
+            case 1:
+                return ((Boolean) po1).compareTo((Boolean) po2);
+            case 2:
+                return ((Symbol) po1).compareTo((Symbol) po2);
+            case 3:
+                return ((String) po1).compareTo((String) po2);
+            default:
+                List<?> ll1 = (List<?>) po1;
+                List<?> ll2 = (List<?>) po2;
+                int lsize = Math.min(ll1.size(), ll2.size());
+                for (int i = 0; i < lsize; i++) {
+                    int lcmp = compareColours(ll1.get(i), ll2.get(i));
+                    if (lcmp != 0) {
+                        return lcmp;
+                    }
+                }
+                return ll1.size() - ll2.size();
+        }
+    }
+
+    private static int typeRank(Object pvalue) {
+        if (pvalue instanceof Integer) {
+            return 0;
+        }
+        if (pvalue instanceof Boolean) {
+            return 1;
+        }
+        if (pvalue instanceof Symbol) {
+            return 2;
+        }
+        if (pvalue instanceof String) {
+            return 3;
+        }
+        if (pvalue instanceof List) {
+            return 4;
+        }
+        throw new ExpressionException("Unsupported colour value " + pvalue + ".");
+    }
+
+    static int toInt(Object pvalue, NetExpression pcontext) {
+        if (!(pvalue instanceof Integer)) {
+            throw new ExpressionException("Expected an integer in " + pcontext + ", found " + colourToString(pvalue) + ".");
+        }
+        return (Integer) pvalue;
+    }
+
+    private static String joinAll(List<NetExpression> pitems, String pseparator) {
+        StringBuilder lbuilder = new StringBuilder();
+        for (int i = 0; i < pitems.size(); i++) {
+            if (i > 0) {
+                lbuilder.append(pseparator);
+            }
+            lbuilder.append(pitems.get(i));
+        }
+        return lbuilder.toString();
+    }
+
+    /**
+     * Recursive descent parser. Precedence, from lowest to highest:
+     * ++, `, orelse, andalso, comparisons, + - ^, * div mod, unary.
+     */
+    private static class Parser {
+        private final String mtext;
+        private int mpos = 0;
+        private String mtoken;
+        private int mtokenkind;
+
+        private static final int EOF = 0;
+        private static final int INT = 1;
+        private static final int IDENT = 2;
+        private static final int SYMBOL = 3;
+        private static final int STRING = 4;
+
+        Parser(String ptext) {
+            mtext = ptext;
+            next();
+        }
+
+        NetExpression parseTop() {
+            if (mtokenkind == EOF) {
+                return new Empty();
+            }
+            NetExpression lresult = parseSum();
+            if (mtokenkind != EOF) {
+                throw error("Unexpected '" + mtoken + "'");
+            }
+            return lresult;
+        }
+
+        private NetExpression parseSum() {
+            List<NetExpression> lterms = new ArrayList<NetExpression>();
+            lterms.add(parseCoefficient());
+            while (accept("++")) {
+                lterms.add(parseCoefficient());
+            }
+            return (lterms.size() == 1) ? lterms.get(0) : new Sum(lterms);
+        }
+
+        private NetExpression parseCoefficient() {
+            if (mtokenkind == IDENT && "empty".equals(mtoken)) {
+                next();
+                return new Empty();
+            }
+            NetExpression lleft = parseOr();
+            if (accept("`")) {
+                return new Coefficient(lleft, parseOr());
+            }
+            return lleft;
+        }
+
+        private NetExpression parseOr() {
+            NetExpression lleft = parseAnd();
+            while (acceptKeyword("orelse")) {
+                lleft = new Binary("orelse", lleft, parseAnd());
+            }
+            return lleft;
+        }
+
+        private NetExpression parseAnd() {
+            NetExpression lleft = parseComparison();
+            while (acceptKeyword("andalso")) {
+                lleft = new Binary("andalso", lleft, parseComparison());
+            }
+            return lleft;
+        }
+
+        private NetExpression parseComparison() {
+            NetExpression lleft = parseAdditive();
+            if (mtokenkind == SYMBOL && ("=".equals(mtoken) || "<>".equals(mtoken) || "<".equals(mtoken)
+                    || ">".equals(mtoken) || "<=".equals(mtoken) || ">=".equals(mtoken))) {
+                String lop = mtoken;
+                next();
+                return new Binary(lop, lleft, parseAdditive());
+            }
+            return lleft;
+        }
+
+        private NetExpression parseAdditive() {
+            NetExpression lleft = parseMultiplicative();
+            while (mtokenkind == SYMBOL && ("+".equals(mtoken) || "-".equals(mtoken) || "^".equals(mtoken))) {
+                String lop = mtoken;
+                next();
+                lleft = new Binary(lop, lleft, parseMultiplicative());
+            }
+            return lleft;
+        }
+
+        private NetExpression parseMultiplicative() {
+            NetExpression lleft = parseUnary();
+            while ((mtokenkind == SYMBOL && "*".equals(mtoken))
+                    || (mtokenkind == IDENT && ("div".equals(mtoken) || "mod".equals(mtoken)))) {
+                String lop = mtoken;
+                next();
+                lleft = new Binary(lop, lleft, parseUnary());
+            }
+            return lleft;
+        }
+
+        private NetExpression parseUnary() {
+            if (acceptKeyword("not")) {
+                return new Unary("not", parseUnary());
+            }
+            if (accept("~")) {
+                NetExpression loperand = parseUnary();
+                // Negative literals are constants
+                if (loperand instanceof Constant && ((Constant) loperand).mvalue instanceof Integer) {
+                    return new Constant(Integer.valueOf(-((Integer) ((Constant) loperand).mvalue)));
+                }
+                return new Unary("~", loperand);
+            }
+            return parsePrimary();
+        }
+
+        private NetExpression parsePrimary() {
+            if (mtokenkind == INT) {
+                NetExpression lresult = new Constant(Integer.valueOf(mtoken));
+                next();
+                return lresult;
+            }
+            if (mtokenkind == STRING) {
+                NetExpression lresult = new Constant(mtoken);
+                next();
+                return lresult;
+            }
+            if (mtokenkind == IDENT) {
+                String lname = mtoken;
+                next();
+                if ("true".equals(lname)) {
+                    return new Constant(Boolean.TRUE);
+                }
+                if ("false".equals(lname)) {
+                    return new Constant(Boolean.FALSE);
+                }
+                return new Identifier(lname);
+            }
+            if (accept("(")) {
+                if (accept(")")) {
+                    return new Constant(UNIT);
+                }
+                List<NetExpression> litems = new ArrayList<NetExpression>();
+                litems.add(parseSum());
+                while (accept(",")) {
+                    litems.add(parseSum());
+                }
+                expect(")");
+                return (litems.size() == 1) ? litems.get(0) : new Tuple(litems);
+            }
+            if (accept("[")) {
+                List<NetExpression> litems = new ArrayList<NetExpression>();
+                if (!accept("]")) {
+                    litems.add(parseSum());
+                    while (accept(",")) {
+                        litems.add(parseSum());
+                    }
+                    expect("]");
+                }
+                return new GuardList(litems);
+            }
+            throw error((mtokenkind == EOF) ? "Unexpected end of expression" : "Unexpected '" + mtoken + "'");
+        }
+
+        private boolean accept(String psymbol) {
+            if (mtokenkind == SYMBOL && psymbol.equals(mtoken)) {
+                next();
+                return true;
+            }
+            return false;
+        }
+
+        private boolean acceptKeyword(String pword) {
+            if (mtokenkind == IDENT && pword.equals(mtoken)) {
+                next();
+                return true;
+            }
+            return false;
+        }
+
+        private void expect(String psymbol) {
+            if (!accept(psymbol)) {
+                throw error("Expected '" + psymbol + "'");
+            }
+        }
+
+        private ExpressionException error(String pmessage) {
+            return new ExpressionException(pmessage + " at position " + mpos + " of \"" + mtext + "\".");
+        }
+
+        private void next() {
+            int llength = mtext.length();
+            while (mpos < llength && Character.isWhitespace(mtext.charAt(mpos))) {
+                mpos++;
+            }
+
+            if (mpos >= llength) {
+                mtoken = null;
+                mtokenkind = EOF;
+                return;
+            }
+
+            int lstart = mpos;
+            char lchar = mtext.charAt(mpos);
+
+            if (Character.isDigit(lchar)) {
+                while (mpos < llength && Character.isDigit(mtext.charAt(mpos))) {
+                    mpos++;
+                }
+                mtokenkind = INT;
+            } else if (Character.isLetter(lchar) || lchar == '_') {
+                while (mpos < llength && (Character.isLetterOrDigit(mtext.charAt(mpos))
+                        || mtext.charAt(mpos) == '_' || mtext.charAt(mpos) == '\'')) {
+                    mpos++;
+                }
+                mtokenkind = IDENT;
+            } else if (lchar == '"') {
+                mpos++;
+                while (mpos < llength && mtext.charAt(mpos) != '"') {
+                    mpos++;
+                }
+                if (mpos >= llength) {
+                    throw error("Unterminated string");
+                }
+                mtoken = mtext.substring(lstart + 1, mpos);
+                mpos++;
+                mtokenkind = STRING;
+                return;
+            } else {
+                String ltwo = (mpos + 1 < llength) ? mtext.substring(mpos, mpos + 2) : "";
+                if ("++".equals(ltwo) || "<>".equals(ltwo) || "<=".equals(ltwo) || ">=".equals(ltwo)) {
+                    mpos += 2;
+                } else if ("`()[],=<>+-*~^".indexOf(lchar) >= 0) {
+                    mpos++;
+                } else {
+                    throw error("Unsupported character '" + lchar + "'");
+                }
+                mtokenkind = SYMBOL;
+            }
+
+            mtoken = mtext.substring(lstart, mpos);
+        }
+    }
+}
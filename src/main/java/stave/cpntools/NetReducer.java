@@ -0,0 +1,850 @@
+/*
+* Structural reductions of the net of a factory, applied in place by reduce()
+* or, with CPNToolsNetFactory.setReduction(), before the net is written. All
+* reductions keep the behaviour of the net with respect to the remaining places
+* and transitions: removed transitions only move tokens between removed and
+* kept places, and are considered internal.
+* Liveness, boundedness, safeness and deadlock freedom are preserved.
+*
+* - Identity subpages: a substitution transition whose subpage only moves the
+*   tokens of its in-port to its out-port with one transition (e.g. ExampleCPN.Skip)
+*   becomes an ordinary transition. A subpage without transitions is removed
+*   with its substitution transition.
+* - Fusion of series places: p1 -> t -> p2, where t only consumes one token
+*   from p1 and produces the same token on p2, and t is the only output of p1.
+*   Both arcs of t must be the same variable of the colour set of p1 (or () if
+*   the colour set is UNIT), so t is enabled by every token of p1. The tokens of
+*   p1 are moved to p2 right away, so p1 and t are removed.
+* - Fusion of series transitions: t1 -> p -> t2, where p is initially empty and
+*   only connects t1 to t2, and t2 only consumes from p a single pattern token.
+*   t2 fires right after t1 with the binding fixed by the token, so its output
+*   arcs are moved to t1, and p and t2 are removed.
+* - Redundant places: places with the same arcs and initial marking as another
+*   place, and places that are only tested (self-loops) with constant
+*   expressions covered by their initial marking.
+*
+* Places that take part in the hierarchy (ports, sockets, fusion places) are
+* never reduced. Elements previously returned by the factory may be removed.
+* Each rule is checked in time proportional to the degree of the nodes, and
+* nodes are only checked again when a neighbour changes.
+*/
+
+package stave.cpntools;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import org.w3c.dom.Element;
+import org.w3c.dom.Node;
+
+public class NetReducer extends BaseCPNCommunication {
+
+    /**
+     * Counters of the applied reductions.
+     */
+    public static class Statistics {
+        int midentitypages;
+        int memptypages;
+        int mseriesplaces;
+        int mseriestransitions;
+        int mredundantplaces;
+
+        /**
+         * Substitution transitions replaced by ordinary ones.
+         */
+        public int getIdentityPages() {
+            return midentitypages;
+        }
+
+        /**
+         * Substitution transitions removed with their empty subpage.
+         */
+        public int getEmptyPages() {
+            return memptypages;
+        }
+
+        public int getSeriesPlaces() {
+            return mseriesplaces;
+        }
+
+        public int getSeriesTransitions() {
+            return mseriestransitions;
+        }
+
+        public int getRedundantPlaces() {
+            return mredundantplaces;
+        }
+
+        public String toString() {
+            return "identity pages: " + midentitypages + ", empty pages: " + memptypages + ", series places: "
+                    + mseriesplaces + ", series transitions: " + mseriestransitions + ", redundant places: "
+                    + mredundantplaces;
+        }
+    }
+
+    private final CPNToolsNetFactory mfactory;
+    private final Set<String> mvariables;
+    // Colour set of each variable
+    private final Map<String, String> mvariabletypes;
+    private boolean mpages = true;
+    private boolean mseries = true;
+    private boolean mredundant = true;
+    private Statistics mstatistics;
+
+    public NetReducer(CPNToolsNetFactory pfactory) {
+        mfactory = pfactory;
+        mvariabletypes = ColourSet.readVariables(pfactory.mglobbox);
+        mvariables = mvariabletypes.keySet();
+    }
+
+    /**
+     * Enable the collapse of identity and empty subpages.
+     */
+    public void setPageReduction(boolean penable) {
+        mpages = penable;
+    }
+
+    /**
+     * Enable the fusion of series places and series transitions.
+     */
+    public void setSeriesFusion(boolean penable) {
+        mseries = penable;
+    }
+
+    /**
+     * Enable the removal of redundant places.
+     */
+    public void setRedundantPlaces(boolean penable) {
+        mredundant = penable;
+    }
+
+    /**
+     * Apply the enabled reductions until none applies.
+     *
+     * @return Counters of the applied reductions.
+     */
+    public Statistics reduce() throws BadCPNDefinitionException {
+        mstatistics = new Statistics();
+        List<Element> lpages = StateSpaceNet.children(mfactory.mcpnet, "page");
+
+        if (mpages) {
+            reducePages(lpages);
+            lpages = StateSpaceNet.children(mfactory.mcpnet, "page");
+        }
+        if (mseries || mredundant) {
+            for (Element lpage : lpages) {
+                new PageReducer(lpage).reduce();
+            }
+        }
+        debugf("NetReducer: {}", mstatistics);
+        return mstatistics;
+    }
+
+    /* Begin: subpages */
+
+    private void reducePages(List<Element> ppages) {
+        HashMap<String, Element> lpagebyid = new HashMap<String, Element>();
+        for (Element lpage : ppages) {
+            lpagebyid.put(lpage.getAttribute("id"), lpage);
+        }
+
+        // Instance elements of each substitution transition
+        HashMap<String, List<Element>> linstances = new HashMap<String, List<Element>>();
+        for (Node lnode = mfactory.minstances.getFirstChild(); lnode != null; lnode = lnode.getNextSibling()) {
+            if (lnode instanceof Element) {
+                indexInstances((Element) lnode, linstances);
+            }
+        }
+
+        HashMap<String, Element> lidentity = new HashMap<String, Element>();
+        HashSet<String> lreduced = new HashSet<String>();
+        HashSet<String> lstillused = new HashSet<String>();
+        for (Element lpage : ppages) {
+            for (Element ltrans : StateSpaceNet.children(lpage, "trans")) {
+                Element lsubst = StateSpaceNet.firstChild(ltrans, "subst");
+                if (lsubst == null) {
+                    continue;
+                }
+                String lsubpageid = lsubst.getAttribute("subpage");
+                Element lsubpage = lpagebyid.get(lsubpageid);
+                if (lsubpage == null) {
+                    continue;
+                }
+
+                if (!lidentity.containsKey(lsubpageid)) {
+                    lidentity.put(lsubpageid, identityTransition(lsubpage));
+                }
+                Element lskip = lidentity.get(lsubpageid);
+                boolean lempty = StateSpaceNet.children(lsubpage, "trans").isEmpty();
+
+                if (lskip != null && collapse(lpage, ltrans, lsubst, lsubpage, lskip)) {
+                    mstatistics.midentitypages++;
+                } else if (lempty) {
+                    removeTransition(lpage, ltrans);
+                    mstatistics.memptypages++;
+                } else {
+                    lstillused.add(lsubpageid);
+                    continue;
+                }
+                lreduced.add(lsubpageid);
+                List<Element> lold = linstances.get(ltrans.getAttribute("id"));
+                if (lold != null) {
+                    for (Element linstance : lold) {
+                        linstance.getParentNode().removeChild(linstance);
+                    }
+                }
+            }
+        }
+
+        for (String lpageid : lreduced) {
+            if (!lstillused.contains(lpageid)) {
+                mfactory.mcpnet.removeChild(lpagebyid.get(lpageid));
+                mfactory.forgetPorts(lpagebyid.get(lpageid));
+            }
+        }
+    }
+
+    private static void indexInstances(Element pinstance, Map<String, List<Element>> pout) {
+        if (pinstance.hasAttribute("trans")) {
+            List<Element> llist = pout.get(pinstance.getAttribute("trans"));
+            if (llist == null) {
+                llist = new ArrayList<Element>();
+                pout.put(pinstance.getAttribute("trans"), llist);
+            }
+            llist.add(pinstance);
+        }
+        for (Element lchild : StateSpaceNet.children(pinstance, "instance")) {
+            indexInstances(lchild, pout);
+        }
+    }
+
+    /**
+     * The transition of an identity page: an in-port and an out-port connected by a
+     * single transition without guard, consuming and producing the same expression.
+     *
+     * @return The transition, or null if the page is not an identity.
+     */
+    private Element identityTransition(Element ppage) {
+        List<Element> lplaces = StateSpaceNet.children(ppage, "place");
+        List<Element> ltransitions = StateSpaceNet.children(ppage, "trans");
+        List<Element> larcs = StateSpaceNet.children(ppage, "arc");
+        if (lplaces.size() != 2 || ltransitions.size() != 1 || larcs.size() != 2) {
+            return null;
+        }
+        Element ltrans = ltransitions.get(0);
+        if (StateSpaceNet.firstChild(ltrans, "subst") != null || guard(ltrans).length() > 0) {
+            return null;
+        }
+
+        String lin = null;
+        String lout = null;
+        for (Element lplace : lplaces) {
+            Element lport = StateSpaceNet.firstChild(lplace, "port");
+            if (lport == null || StateSpaceNet.firstChild(lplace, "fusioninfo") != null) {
+                return null;
+            }
+            if ("In".equals(lport.getAttribute("type"))) {
+                lin = lplace.getAttribute("id");
+            } else if ("Out".equals(lport.getAttribute("type"))) {
+                lout = lplace.getAttribute("id");
+            }
+        }
+
+        Element linarc = null;
+        Element loutarc = null;
+        for (Element larc : larcs) {
+            if ("PtoT".equals(larc.getAttribute("orientation")) && placeOf(larc).equals(lin)) {
+                linarc = larc;
+            } else if ("TtoP".equals(larc.getAttribute("orientation")) && placeOf(larc).equals(lout)) {
+                loutarc = larc;
+            }
+        }
+        if (lin == null || lout == null || linarc == null || loutarc == null) {
+            return null;
+        }
+        String lexpression = normalize(expression(linarc));
+        if (lexpression == null || !lexpression.equals(normalize(expression(loutarc)))) {
+            return null;
+        }
+        return ltrans;
+    }
+
+    // Replace a substitution transition by the transition of its identity subpage
+    private boolean collapse(Element ppage, Element pstrans, Element psubst, Element psubpage, Element pskip) {
+        String lin = null;
+        String lout = null;
+        HashMap<String, String> lsockets = new HashMap<String, String>();
+        for (String[] lpair : StateSpaceNet.parsePortsock(psubst.getAttribute("portsock"))) {
+            lsockets.put(lpair[0], lpair[1]);
+        }
+        String lexpression = null;
+        for (Element larc : StateSpaceNet.children(psubpage, "arc")) {
+            if ("PtoT".equals(larc.getAttribute("orientation"))) {
+                lin = lsockets.get(placeOf(larc));
+                lexpression = expression(larc);
+            } else {
+                lout = lsockets.get(placeOf(larc));
+            }
+        }
+        if (lin == null || lout == null) {
+            return false;
+        }
+
+        String lid = pstrans.getAttribute("id");
+        for (Element larc : StateSpaceNet.children(ppage, "arc")) {
+            if (lid.equals(transOf(larc))) {
+                ppage.removeChild(larc);
+            }
+        }
+        pstrans.removeChild(psubst);
+        ppage.appendChild(mfactory.createArcPtoT(lin, lid, lexpression));
+        ppage.appendChild(mfactory.createArcTtoP(lid, lout, lexpression));
+        return true;
+    }
+
+    private static void removeTransition(Element ppage, Element ptrans) {
+        String lid = ptrans.getAttribute("id");
+        for (Element larc : StateSpaceNet.children(ppage, "arc")) {
+            if (lid.equals(transOf(larc))) {
+                ppage.removeChild(larc);
+            }
+        }
+        ppage.removeChild(ptrans);
+    }
+
+    /* End: subpages */
+
+    /* Begin: places and transitions of one page */
+
+    private class PageReducer {
+        final Element mpage;
+        final LinkedHashMap<String, Element> mplaces = new LinkedHashMap<String, Element>();
+        final LinkedHashMap<String, Element> mtransitions = new LinkedHashMap<String, Element>();
+        final HashMap<String, List<Element>> mplacearcs = new HashMap<String, List<Element>>();
+        final HashMap<String, List<Element>> mtransarcs = new HashMap<String, List<Element>>();
+        // Places that must be kept: ports, sockets and fusion places
+        final HashSet<String> mpinned = new HashSet<String>();
+        final Deque<String> mqueue = new ArrayDeque<String>();
+        final HashSet<String> mqueued = new HashSet<String>();
+        // Places changed since their signature was computed, and the signatures of the others
+        final LinkedHashSet<String> mchanged = new LinkedHashSet<String>();
+        final HashMap<String, String> msignatures = new HashMap<String, String>();
+        final HashMap<String, String> msignatureplaces = new HashMap<String, String>();
+
+        PageReducer(Element ppage) {
+            mpage = ppage;
+            for (Element lplace : StateSpaceNet.children(ppage, "place")) {
+                String lid = lplace.getAttribute("id");
+                mplaces.put(lid, lplace);
+                mplacearcs.put(lid, new ArrayList<Element>());
+                if (StateSpaceNet.firstChild(lplace, "port") != null
+                        || StateSpaceNet.firstChild(lplace, "fusioninfo") != null) {
+                    mpinned.add(lid);
+                }
+            }
+            for (Element ltrans : StateSpaceNet.children(ppage, "trans")) {
+                String lid = ltrans.getAttribute("id");
+                mtransitions.put(lid, ltrans);
+                mtransarcs.put(lid, new ArrayList<Element>());
+                Element lsubst = StateSpaceNet.firstChild(ltrans, "subst");
+                if (lsubst != null) {
+                    for (String[] lpair : StateSpaceNet.parsePortsock(lsubst.getAttribute("portsock"))) {
+                        mpinned.add(lpair[1]);
+                    }
+                }
+            }
+            for (Element larc : StateSpaceNet.children(ppage, "arc")) {
+                List<Element> lplacearcs = mplacearcs.get(placeOf(larc));
+                List<Element> ltransarcs = mtransarcs.get(transOf(larc));
+                if (lplacearcs == null || ltransarcs == null) {
+                    throw new BadCPNDefinitionException("NetReducer: arc " + larc.getAttribute("id")
+                            + " refers to an element outside its page.");
+                }
+                lplacearcs.add(larc);
+                ltransarcs.add(larc);
+                if (isSubstitution(transOf(larc))) {
+                    mpinned.add(placeOf(larc));
+                }
+            }
+        }
+
+        // Every node is queued once, and then only the neighbours of the changes
+        void reduce() {
+            for (String lid : mtransitions.keySet()) {
+                enqueue(lid);
+            }
+            for (String lid : mplaces.keySet()) {
+                enqueue(lid);
+            }
+            boolean lchanged = true;
+            while (lchanged) {
+                while (!mqueue.isEmpty()) {
+                    String lid = mqueue.poll();
+                    mqueued.remove(lid);
+                    if (!mseries) {
+                        continue;
+                    }
+                    if (mtransitions.containsKey(lid)) {
+                        fuseSeriesPlaces(lid);
+                    } else if (mplaces.containsKey(lid)) {
+                        fuseSeriesTransitions(lid);
+                    }
+                }
+                lchanged = mredundant && removeRedundantPlaces();
+            }
+        }
+
+        private void enqueue(String pid) {
+            if (mplaces.containsKey(pid)) {
+                mchanged.add(pid);
+            }
+            if (mqueued.add(pid)) {
+                mqueue.add(pid);
+            }
+        }
+
+        private void enqueueNeighbours(String pid, List<Element> parcs) {
+            enqueue(pid);
+            for (Element larc : parcs) {
+                enqueue(placeOf(larc));
+                enqueue(transOf(larc));
+            }
+        }
+
+        private boolean isSubstitution(String ptrans) {
+            return StateSpaceNet.firstChild(mtransitions.get(ptrans), "subst") != null;
+        }
+
+        /*
+         * p1 -> t -> p2, with t the only output of p1: move the tokens of p1 to p2.
+         * Only behaviour-preserving if t can move every token of p1, so both arcs of
+         * t must be the same single token matching any colour of p1: a variable of
+         * the colour set of p1 with coefficient 1, or () if p1 is UNIT. Constants,
+         * other patterns and several tokens would leave tokens that t cannot take.
+         */
+        private void fuseSeriesPlaces(String ptrans) {
+            Element ltrans = mtransitions.get(ptrans);
+            List<Element> larcs = mtransarcs.get(ptrans);
+            if (larcs.size() != 2 || isSubstitution(ptrans) || guard(ltrans).length() > 0) {
+                return;
+            }
+            Element lin = null;
+            Element lout = null;
+            for (Element larc : larcs) {
+                String lorientation = larc.getAttribute("orientation");
+                if ("PtoT".equals(lorientation)) {
+                    lin = larc;
+                } else if ("TtoP".equals(lorientation)) {
+                    lout = larc;
+                }
+            }
+            if (lin == null || lout == null) {
+                return;
+            }
+            String lp1 = placeOf(lin);
+            String lp2 = placeOf(lout);
+            if (lp1.equals(lp2) || mpinned.contains(lp1) || mpinned.contains(lp2)) {
+                return;
+            }
+            if (!type(mplaces.get(lp1)).equals(type(mplaces.get(lp2)))) {
+                return;
+            }
+            NetExpression lexpression = parse(expression(lin));
+            if (lexpression == null || !lexpression.toString().equals(normalize(expression(lout)))
+                    || !isAnyToken(lexpression, type(mplaces.get(lp1)))) {
+                return;
+            }
+            // The other arcs of p1 must produce tokens, and go to transitions that can also produce on p2
+            for (Element larc : mplacearcs.get(lp1)) {
+                if (larc != lin && !("TtoP".equals(larc.getAttribute("orientation"))
+                        && canAddOutput(transOf(larc), lp2))) {
+                    return;
+                }
+            }
+            // Tokens moved from p1 would become visible to the inhibitor and reset arcs of p2
+            for (Element larc : mplacearcs.get(lp2)) {
+                String lorientation = larc.getAttribute("orientation");
+                if ("Inhibitor".equals(lorientation) || "Reset".equals(lorientation)) {
+                    return;
+                }
+            }
+
+            Element lp2element = mplaces.get(lp2);
+            setInitialMarking(lp2element, join(initialMarking(mplaces.get(lp1)), initialMarking(lp2element)));
+            removeArc(lin);
+            removeArc(lout);
+            for (Element larc : new ArrayList<Element>(mplacearcs.get(lp1))) {
+                moveOutput(larc, transOf(larc), lp2);
+            }
+            removePlace(lp1);
+            mpage.removeChild(ltrans);
+            mtransitions.remove(ptrans);
+            mtransarcs.remove(ptrans);
+            mstatistics.mseriesplaces++;
+            enqueueNeighbours(lp2, mplacearcs.get(lp2));
+        }
+
+        /*
+         * t1 -> p -> t2, with p only connecting them and t2 only consuming from p: fire t2 with t1.
+         * The arcs through p must be a single pattern token, so the token t1 produces fixes
+         * the binding of t2; with a sum, t2 could bind the same tokens in other ways.
+         */
+        private void fuseSeriesTransitions(String pplace) {
+            List<Element> larcs = mplacearcs.get(pplace);
+            if (larcs.size() != 2 || mpinned.contains(pplace) || initialMarking(mplaces.get(pplace)).length() > 0) {
+                return;
+            }
+            Element lin = null;
+            Element lout = null;
+            for (Element larc : larcs) {
+                String lorientation = larc.getAttribute("orientation");
+                if ("TtoP".equals(lorientation)) {
+                    lin = larc;
+                } else if ("PtoT".equals(lorientation)) {
+                    lout = larc;
+                }
+            }
+            if (lin == null || lout == null) {
+                return;
+            }
+            String lt1 = transOf(lin);
+            String lt2 = transOf(lout);
+            if (lt1.equals(lt2) || isSubstitution(lt1) || isSubstitution(lt2)
+                    || guard(mtransitions.get(lt2)).length() > 0) {
+                return;
+            }
+
+            // The token passed through p must bind all the variables of t2
+            NetExpression lpassed = parse(expression(lin));
+            if (lpassed == null || !lpassed.toString().equals(String.valueOf(parse(expression(lout))))
+                    || !isPatternToken(lpassed)) {
+                return;
+            }
+            List<String> lbound = new ArrayList<String>();
+            lpassed.collectVariables(mvariables, lbound);
+
+            for (Element larc : mtransarcs.get(lt2)) {
+                if (larc == lout) {
+                    continue;
+                }
+                if (!"TtoP".equals(larc.getAttribute("orientation")) || !canAddOutput(lt1, placeOf(larc))) {
+                    return;
+                }
+                NetExpression loutput = parse(expression(larc));
+                if (loutput == null) {
+                    return;
+                }
+                List<String> lused = new ArrayList<String>();
+                loutput.collectVariables(mvariables, lused);
+                if (!lbound.containsAll(lused)) {
+                    return;
+                }
+            }
+
+            removeArc(lin);
+            removeArc(lout);
+            for (Element larc : new ArrayList<Element>(mtransarcs.get(lt2))) {
+                moveOutput(larc, lt1, placeOf(larc));
+            }
+            removePlace(pplace);
+            mpage.removeChild(mtransitions.remove(lt2));
+            mtransarcs.remove(lt2);
+            mstatistics.mseriestransitions++;
+            enqueueNeighbours(lt1, mtransarcs.get(lt1));
+        }
+
+        // Whether an output arc to the place can be added to the transition (merged with an existing one)
+        private boolean canAddOutput(String ptrans, String pplace) {
+            for (Element larc : mtransarcs.get(ptrans)) {
+                if (placeOf(larc).equals(pplace) && "BOTHDIR".equals(larc.getAttribute("orientation"))) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        // Reconnect an output arc, merging it with an existing output arc between the same nodes
+        private void moveOutput(Element parc, String ptrans, String pplace) {
+            for (Element lother : mtransarcs.get(ptrans)) {
+                if (lother != parc && placeOf(lother).equals(pplace) && "TtoP".equals(lother.getAttribute("orientation"))) {
+                    setExpression(lother, join(expression(lother), expression(parc)));
+                    removeArc(parc);
+                    return;
+                }
+            }
+            mplacearcs.get(placeOf(parc)).remove(parc);
+            mtransarcs.get(transOf(parc)).remove(parc);
+            StateSpaceNet.firstChild(parc, "placeend").setAttribute("idref", pplace);
+            StateSpaceNet.firstChild(parc, "transend").setAttribute("idref", ptrans);
+            mplacearcs.get(pplace).add(parc);
+            mtransarcs.get(ptrans).add(parc);
+        }
+
+        private void removeArc(Element parc) {
+            mplacearcs.get(placeOf(parc)).remove(parc);
+            mtransarcs.get(transOf(parc)).remove(parc);
+            mpage.removeChild(parc);
+        }
+
+        private void removePlace(String pplace) {
+            for (Element larc : new ArrayList<Element>(mplacearcs.get(pplace))) {
+                removeArc(larc);
+            }
+            mpage.removeChild(mplaces.remove(pplace));
+            mplacearcs.remove(pplace);
+            forgetSignature(pplace);
+        }
+
+        /**
+         * Remove the places that duplicate another place, and the places only tested by
+         * constant expressions covered by their initial marking. Only the places changed
+         * since the previous call are compared with the others.
+         *
+         * @return Whether a place was removed.
+         */
+        private boolean removeRedundantPlaces() {
+            List<String> lredundant = new ArrayList<String>();
+
+            for (String lid : mchanged) {
+                forgetSignature(lid);
+                if (!mplaces.containsKey(lid) || mpinned.contains(lid)) {
+                    continue;
+                }
+                String lsignature = signature(lid);
+                if (lsignature == null) {
+                    continue;
+                }
+                if (msignatureplaces.containsKey(lsignature) || isImplicitSelfLoop(lid)) {
+                    lredundant.add(lid);
+                } else {
+                    msignatures.put(lid, lsignature);
+                    msignatureplaces.put(lsignature, lid);
+                }
+            }
+            mchanged.clear();
+
+            for (String lid : lredundant) {
+                List<Element> larcs = mplacearcs.get(lid);
+                for (Element larc : larcs) {
+                    enqueue(transOf(larc));
+                }
+                removePlace(lid);
+                mstatistics.mredundantplaces++;
+            }
+            return !lredundant.isEmpty();
+        }
+
+        // Type, initial marking and arcs of a place, or null if it cannot be compared
+        private String signature(String pplace) {
+            List<String> larcs = new ArrayList<String>();
+            for (Element larc : mplacearcs.get(pplace)) {
+                String lexpression = normalize(expression(larc));
+                if (lexpression == null || "Inhibitor".equals(larc.getAttribute("orientation"))) {
+                    return null;
+                }
+                larcs.add(transOf(larc) + " " + larc.getAttribute("orientation") + " " + lexpression);
+            }
+            if (larcs.isEmpty()) {
+                return null;
+            }
+            Collections.sort(larcs);
+            Element lplace = mplaces.get(pplace);
+            return type(lplace) + "\n" + normalize(initialMarking(lplace)) + "\n" + larcs;
+        }
+
+        private void forgetSignature(String pplace) {
+            String lsignature = msignatures.remove(pplace);
+            if (lsignature != null) {
+                msignatureplaces.remove(lsignature);
+            }
+        }
+
+        // Every transition connected to the place puts back the constant tokens it takes, which are initially there
+        private boolean isImplicitSelfLoop(String pplace) {
+            TreeMap<Object, Integer> linitial = multiset(parse(initialMarking(mplaces.get(pplace))));
+            if (linitial == null) {
+                return false;
+            }
+            HashMap<String, TreeMap<Object, Integer>> linputs = new HashMap<String, TreeMap<Object, Integer>>();
+            HashMap<String, TreeMap<Object, Integer>> loutputs = new HashMap<String, TreeMap<Object, Integer>>();
+            List<TreeMap<Object, Integer>> ltested = new ArrayList<TreeMap<Object, Integer>>();
+            for (Element larc : mplacearcs.get(pplace)) {
+                String lorientation = larc.getAttribute("orientation");
+                TreeMap<Object, Integer> ltokens = multiset(parse(expression(larc)));
+                if (ltokens == null) {
+                    return false;
+                }
+                if ("BOTHDIR".equals(lorientation)) {
+                    ltested.add(ltokens);
+                } else if ("PtoT".equals(lorientation)) {
+                    if (linputs.put(transOf(larc), ltokens) != null) {
+                        return false;
+                    }
+                } else if ("TtoP".equals(lorientation)) {
+                    if (loutputs.put(transOf(larc), ltokens) != null) {
+                        return false;
+                    }
+                } else {
+                    return false;
+                }
+            }
+            if (!linputs.equals(loutputs)) {
+                return false;
+            }
+            ltested.addAll(linputs.values());
+            for (TreeMap<Object, Integer> ltaken : ltested) {
+                for (Map.Entry<Object, Integer> lentry : ltaken.entrySet()) {
+                    Integer lavailable = linitial.get(lentry.getKey());
+                    if (lavailable == null || lavailable < lentry.getValue()) {
+                        return false;
+                    }
+                }
+            }
+            return true;
+        }
+    }
+
+    /* End: places and transitions of one page */
+
+    /* Begin: helpers */
+
+    private static String placeOf(Element parc) {
+        Element lend = StateSpaceNet.firstChild(parc, "placeend");
+        return (lend == null) ? "" : lend.getAttribute("idref");
+    }
+
+    private static String transOf(Element parc) {
+        Element lend = StateSpaceNet.firstChild(parc, "transend");
+        return (lend == null) ? "" : lend.getAttribute("idref");
+    }
+
+    private static String expression(Element parc) {
+        String ltext = StateSpaceNet.textOf(StateSpaceNet.firstChild(parc, "annot"));
+        return (ltext == null) ? "" : ltext;
+    }
+
+    private static void setExpression(Element parc, String ptext) {
+        Element lannot = StateSpaceNet.firstChild(parc, "annot");
+        StateSpaceNet.firstChild(lannot, "text").setTextContent(ptext);
+    }
+
+    private static String guard(Element ptrans) {
+        String ltext = StateSpaceNet.textOf(StateSpaceNet.firstChild(ptrans, "cond"));
+        return (ltext == null) ? "" : ltext;
+    }
+
+    private static String type(Element pplace) {
+        String ltext = StateSpaceNet.textOf(StateSpaceNet.firstChild(pplace, "type"));
+        return (ltext == null || ltext.length() == 0) ? "UNIT" : ltext;
+    }
+
+    private static String initialMarking(Element pplace) {
+        String ltext = StateSpaceNet.textOf(StateSpaceNet.firstChild(pplace, "initmark"));
+        return (ltext == null) ? "" : ltext;
+    }
+
+    private void setInitialMarking(Element pplace, String ptext) {
+        Element linitmark = StateSpaceNet.firstChild(pplace, "initmark");
+        if (linitmark == null) {
+            linitmark = mfactory.getDOM().createElement("initmark");
+            pplace.appendChild(linitmark);
+        }
+        Element ltext = StateSpaceNet.firstChild(linitmark, "text");
+        if (ltext == null) {
+            ltext = mfactory.getDOM().createElement("text");
+            ltext.setAttribute("tool", "CPN Tools");
+            ltext.setAttribute("version", "4.0.1");
+            linitmark.appendChild(ltext);
+        }
+        ltext.setTextContent(ptext);
+    }
+
+    // Multiset sum of two expressions
+    private static String join(String pfirst, String psecond) {
+        if (pfirst.length() == 0) {
+            return psecond;
+        }
+        return (psecond.length() == 0) ? pfirst : pfirst + "++" + psecond;
+    }
+
+    private static NetExpression parse(String ptext) {
+        try {
+            return NetExpression.parse(ptext);
+        } catch (NetExpression.ExpressionException e) {
+            return null;
+        }
+    }
+
+    // Canonical text of an expression, or null if it is not supported
+    private static String normalize(String ptext) {
+        NetExpression lexpression = parse(ptext);
+        return (lexpression == null) ? null : lexpression.toString();
+    }
+
+    // One pattern, so a token determines the binding of its variables
+    private static boolean isPatternToken(NetExpression pexpression) {
+        NetExpression lterm = singleTerm(pexpression);
+        return lterm != null && lterm.isPattern();
+    }
+
+    // One token matched by every colour of the colour set: a variable of the colour set, or () on UNIT
+    private boolean isAnyToken(NetExpression pexpression, String ptype) {
+        NetExpression lterm = singleTerm(pexpression);
+        if (lterm instanceof NetExpression.Identifier) {
+            return ptype.equals(mvariabletypes.get(((NetExpression.Identifier) lterm).getName()));
+        }
+        return lterm instanceof NetExpression.Constant && "UNIT".equals(ptype)
+                && NetExpression.UNIT.equals(lterm.evaluate(null));
+    }
+
+    // The term of a single token, e or 1`e, or null if the expression may denote several tokens
+    private static NetExpression singleTerm(NetExpression pexpression) {
+        if (pexpression instanceof NetExpression.Coefficient) {
+            NetExpression.Coefficient lcoefficient = (NetExpression.Coefficient) pexpression;
+            if (!(lcoefficient.getAmount() instanceof NetExpression.Constant)
+                    || !Integer.valueOf(1).equals(lcoefficient.getAmount().evaluate(null))) {
+                return null;
+            }
+            return lcoefficient.getTerm();
+        }
+        if (pexpression instanceof NetExpression.Sum || pexpression instanceof NetExpression.Empty) {
+            return null;
+        }
+        return pexpression;
+    }
+
+    // Value of a constant multiset expression, or null if it has variables
+    private TreeMap<Object, Integer> multiset(NetExpression pexpression) {
+        if (pexpression == null) {
+            return null;
+        }
+        List<String> lvariables = new ArrayList<String>();
+        pexpression.collectVariables(mvariables, lvariables);
+        if (!lvariables.isEmpty()) {
+            return null;
+        }
+        final TreeMap<Object, Integer> lresult = new TreeMap<Object, Integer>(NetExpression.COLOUR_ORDER);
+        try {
+            pexpression.evaluateMultiset(null, new NetExpression.MultisetCollector() {
+                public void add(Object pvalue, int pamount) {
+                    Integer lold = lresult.get(pvalue);
+                    lresult.put(pvalue, (lold == null) ? pamount : lold + pamount);
+                }
+            });
+        } catch (NetExpression.ExpressionException e) {
+            return null;
+        }
+        return lresult;
+    }
+
+    /* End: helpers */
+}
@@ -0,0 +1,201 @@
+/*
+* Structural checks of a CPN Tools document, to find broken references before
+* CPN Tools refuses the file: duplicate ids, arcs whose ends are missing or on
+* another page, substitution transitions with a missing subpage or wrong
+* port/socket pairs, fusion sets with missing places and instances of missing
+* pages or transitions.
+*
+* The document is walked once to index the ids and collect the referring
+* elements, which are then checked with lookups in the index, so the cost is
+* linear in the size of the net.
+*/
+
+package stave.cpntools;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.Node;
+
+public class NetValidator extends BaseCPNCommunication {
+
+    // Problems reported in the exception thrown by check()
+    private static final int REPORTED_PROBLEMS = 10;
+
+    private final Document mdocument;
+    private final HashMap<String, Element> mids = new HashMap<String, Element>();
+    private final List<Element> marcs = new ArrayList<Element>();
+    private final List<Element> msubsts = new ArrayList<Element>();
+    private final List<Element> mfusionelms = new ArrayList<Element>();
+    private final List<Element> minstances = new ArrayList<Element>();
+    private List<String> mproblems;
+
+    public NetValidator(Document pdocument) {
+        mdocument = pdocument;
+    }
+
+    /**
+     * Check the document.
+     *
+     * @return Description of each problem found, empty if the net is well formed.
+     */
+    public List<String> validate() {
+        mids.clear();
+        marcs.clear();
+        msubsts.clear();
+        mfusionelms.clear();
+        minstances.clear();
+        mproblems = new ArrayList<String>();
+
+        collect(mdocument.getDocumentElement());
+        for (Element larc : marcs) {
+            checkArc(larc);
+        }
+        for (Element lsubst : msubsts) {
+            checkSubstitution(lsubst);
+        }
+        for (Element lfusionelm : mfusionelms) {
+            Element lplace = mids.get(lfusionelm.getAttribute("idref"));
+            if (!is(lplace, "place")) {
+                problem("Fusion set " + name(lfusionelm.getParentNode()) + " refers to missing place "
+                        + lfusionelm.getAttribute("idref") + ".");
+            }
+        }
+        for (Element linstance : minstances) {
+            checkInstance(linstance);
+        }
+        return mproblems;
+    }
+
+    /**
+     * Check the document, and throw an exception describing the first problems found.
+     */
+    public void check() {
+        List<String> lproblems = validate();
+        if (lproblems.isEmpty()) {
+            return;
+        }
+        StringBuilder lmessage = new StringBuilder("NetValidator: " + lproblems.size() + " problems.");
+        for (int i = 0; i < Math.min(lproblems.size(), REPORTED_PROBLEMS); i++) {
+            lmessage.append("\n  ").append(lproblems.get(i));
+        }
+        throw new BadCPNDefinitionException(lmessage.toString());
+    }
+
+    // Index the ids and collect the elements with references, in one walk
+    private void collect(Element pelement) {
+        String ltag = pelement.getNodeName();
+        if (pelement.hasAttribute("id")) {
+            String lid = pelement.getAttribute("id");
+            Element lprevious = mids.put(lid, pelement);
+            if (lprevious != null) {
+                problem("Id " + lid + " is used by " + lprevious.getNodeName() + " " + name(lprevious) + " and "
+                        + ltag + " " + name(pelement) + ".");
+            }
+        }
+        if ("arc".equals(ltag)) {
+            marcs.add(pelement);
+        } else if ("subst".equals(ltag)) {
+            msubsts.add(pelement);
+        } else if ("fusion_elm".equals(ltag)) {
+            mfusionelms.add(pelement);
+        } else if ("instance".equals(ltag)) {
+            minstances.add(pelement);
+        }
+        for (Node lnode = pelement.getFirstChild(); lnode != null; lnode = lnode.getNextSibling()) {
+            if (lnode instanceof Element) {
+                collect((Element) lnode);
+            }
+        }
+    }
+
+    private void checkArc(Element parc) {
+        String lid = parc.getAttribute("id");
+        String lorientation = parc.getAttribute("orientation");
+        if (!"PtoT".equals(lorientation) && !"TtoP".equals(lorientation) && !"BOTHDIR".equals(lorientation)
+                && !"Inhibitor".equals(lorientation) && !"Reset".equals(lorientation)) {
+            problem("Arc " + lid + " has unknown orientation \"" + lorientation + "\".");
+        }
+        checkEnd(parc, "placeend", "place");
+        checkEnd(parc, "transend", "trans");
+    }
+
+    private void checkEnd(Element parc, String pend, String ptag) {
+        Element lend = StateSpaceNet.firstChild(parc, pend);
+        if (lend == null) {
+            problem("Arc " + parc.getAttribute("id") + " has no " + pend + ".");
+            return;
+        }
+        Element lnode = mids.get(lend.getAttribute("idref"));
+        if (!is(lnode, ptag)) {
+            problem("Arc " + parc.getAttribute("id") + " refers to missing " + ptag + " " + lend.getAttribute("idref")
+                    + ".");
+        } else if (lnode.getParentNode() != parc.getParentNode()) {
+            problem("Arc " + parc.getAttribute("id") + " and " + ptag + " " + name(lnode) + " are on different pages.");
+        }
+    }
+
+    private void checkSubstitution(Element psubst) {
+        Element ltrans = (Element) psubst.getParentNode();
+        String lname = name(ltrans);
+        Element lsubpage = mids.get(psubst.getAttribute("subpage"));
+        if (!is(lsubpage, "page")) {
+            problem("Substitution transition " + lname + " refers to missing subpage "
+                    + psubst.getAttribute("subpage") + ".");
+            return;
+        }
+        for (String[] lpair : StateSpaceNet.parsePortsock(psubst.getAttribute("portsock"))) {
+            Element lport = mids.get(lpair[0]);
+            if (!is(lport, "place") || lport.getParentNode() != lsubpage
+                    || StateSpaceNet.firstChild(lport, "port") == null) {
+                problem("Substitution transition " + lname + " refers to " + lpair[0]
+                        + ", which is not a port of its subpage.");
+            }
+            Element lsocket = mids.get(lpair[1]);
+            if (!is(lsocket, "place") || lsocket.getParentNode() != ltrans.getParentNode()) {
+                problem("Substitution transition " + lname + " refers to " + lpair[1]
+                        + ", which is not a place of its page.");
+            }
+        }
+    }
+
+    private void checkInstance(Element pinstance) {
+        if (pinstance.hasAttribute("page")) {
+            if (!is(mids.get(pinstance.getAttribute("page")), "page")) {
+                problem("Instance " + pinstance.getAttribute("id") + " refers to missing page "
+                        + pinstance.getAttribute("page") + ".");
+            }
+        } else {
+            Element ltrans = mids.get(pinstance.getAttribute("trans"));
+            if (!is(ltrans, "trans") || StateSpaceNet.firstChild(ltrans, "subst") == null) {
+                problem("Instance " + pinstance.getAttribute("id") + " refers to missing substitution transition "
+                        + pinstance.getAttribute("trans") + ".");
+            }
+        }
+    }
+
+    private static boolean is(Element pelement, String ptag) {
+        return pelement != null && ptag.equals(pelement.getNodeName());
+    }
+
+    private static String name(Node pnode) {
+        if (!(pnode instanceof Element)) {
+            return "";
+        }
+        Element lelement = (Element) pnode;
+        if ("page".equals(lelement.getNodeName())) {
+            return StateSpaceNet.pageName(lelement);
+        }
+        String ltext = StateSpaceNet.childText(lelement, "text");
+        if (ltext.length() == 0) {
+            ltext = lelement.getAttribute("name");
+        }
+        return ltext.length() == 0 ? lelement.getAttribute("id") : ltext;
+    }
+
+    private void problem(String pmessage) {
+        mproblems.add(pmessage);
+    }
+}
@@ -0,0 +1,111 @@
+/*
+* Handle of a page declared with a NetBuilder: the index of the page in the
+* tables of the builder. The element exists in the DOM only after build().
+* Places, transitions and arcs are declared on the page through this handle.
+*/
+
+package stave.cpntools;
+
+import org.w3c.dom.Element;
+
+public final class PageRef {
+
+    final NetBuilder mbuilder;
+    final int mindex;
+
+    PageRef(NetBuilder pbuilder, int pindex) {
+        mbuilder = pbuilder;
+        mindex = pindex;
+    }
+
+    /**
+     * Position of the page in the order of declaration.
+     */
+    public int index() {
+        return mindex;
+    }
+
+    /**
+     * Id of the page element, after build().
+     */
+    public String id() {
+        return mbuilder.pageId(mindex);
+    }
+
+    /**
+     * The page element, after build().
+     */
+    public Element element() {
+        return mbuilder.element(id());
+    }
+
+    public PlaceRef place(String pname, String ptype) {
+        return mbuilder.addPlace(mindex, NetBuilder.PLACE, pname, ptype, "");
+    }
+
+    public PlaceRef place(String pname, String ptype, String pinit) {
+        return mbuilder.addPlace(mindex, NetBuilder.PLACE, pname, ptype, pinit);
+    }
+
+    public PlaceRef inPort(String pname, String ptype) {
+        return mbuilder.addPlace(mindex, NetBuilder.IN_PORT, pname, ptype, "");
+    }
+
+    public PlaceRef outPort(String pname, String ptype) {
+        return mbuilder.addPlace(mindex, NetBuilder.OUT_PORT, pname, ptype, "");
+    }
+
+    public TransRef transition(String pname) {
+        return mbuilder.addTransition(mindex, pname, null, false);
+    }
+
+    public TransRef transition(String pname, String pguard) {
+        return mbuilder.addTransition(mindex, pname, pguard, false);
+    }
+
+    /**
+     * Substitution transition, to be connected to a subpage with NetBuilder.connect().
+     */
+    public TransRef substitution(String pname) {
+        return mbuilder.addTransition(mindex, pname, null, true);
+    }
+
+    /**
+     * Arc from a place to a transition of this page.
+     */
+    public PageRef arc(PlaceRef pplace, TransRef ptrans, String pexpression) {
+        mbuilder.addArc(mindex, pplace, ptrans, true, pexpression);
+        return this;
+    }
+
+    /**
+     * Arc from a transition to a place of this page.
+     */
+    public PageRef arc(TransRef ptrans, PlaceRef pplace, String pexpression) {
+        mbuilder.addArc(mindex, pplace, ptrans, false, pexpression);
+        return this;
+    }
+
+    /**
+     * Pair of arcs taking and putting back the same tokens.
+     */
+    public PageRef test(PlaceRef pplace, TransRef ptrans, String pexpression) {
+        return arc(pplace, ptrans, pexpression).arc(ptrans, pplace, pexpression);
+    }
+
+    @Override
+    public boolean equals(Object pother) {
+        return (pother instanceof PageRef) && ((PageRef) pother).mbuilder == mbuilder
+                && ((PageRef) pother).mindex == mindex;
+    }
+
+    @Override
+    public int hashCode() {
+        return mindex;
+    }
+
+    @Override
+    public String toString() {
+        return "PageRef(" + mindex + ")";
+    }
+}
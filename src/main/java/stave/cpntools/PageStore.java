@@ -0,0 +1,184 @@
+/*
+* File keeping the text of concluded pages, so nets larger than the heap can be
+* generated. A spilled page is serialized to the end of the file and replaced
+* in the DOM by a small placeholder, which keeps its place among the pages.
+* When the net is written, the resident sections are serialized and the text
+* of each spilled page is copied from the file, in order, with
+* FileChannel.transferTo(), without being read into the heap.
+*
+* Only the globbox, the instances, the fusion sets and the pages not spilled
+* stay in memory. Spilled pages can no longer be changed or queried; see
+* CPNToolsNetFactory.spillPage().
+*/
+
+package stave.cpntools;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.RandomAccessFile;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.Node;
+
+public class PageStore extends BaseCPNCommunication {
+
+    // Element standing for a spilled page in the cpnet section
+    static final String PLACEHOLDER = "spilledpage";
+    // Depth of the pages in the document: workspaceElements, cpnet, page
+    private static final int PAGE_DEPTH = 2;
+
+    private final File mfile;
+    private final boolean mtemporary;
+    private final RandomAccessFile mstore;
+    private final FileChannel mchannel;
+    // Start of each spilled page in the file
+    private long[] moffsets = new long[64];
+    private int msize = 0;
+    private long mend = 0;
+
+    /**
+     * Store in a temporary file, deleted by close() or when the JVM exits.
+     */
+    public PageStore() throws IOException {
+        this(File.createTempFile("pages", ".store"), true);
+    }
+
+    /**
+     * @param pfile File keeping the pages, overwritten.
+     */
+    public PageStore(File pfile) throws IOException {
+        this(pfile, false);
+    }
+
+    private PageStore(File pfile, boolean ptemporary) throws IOException {
+        mfile = pfile;
+        mtemporary = ptemporary;
+        if (ptemporary) {
+            pfile.deleteOnExit();
+        }
+        mstore = new RandomAccessFile(pfile, "rw");
+        mstore.setLength(0);
+        mchannel = mstore.getChannel();
+    }
+
+    /**
+     * Pages spilled.
+     */
+    public int size() {
+        return msize;
+    }
+
+    /**
+     * Bytes of text of the spilled pages.
+     */
+    public long getBytes() {
+        return mend;
+    }
+
+    /**
+     * Serialize a page to the file, and replace it by a placeholder in its parent.
+     *
+     * @return The placeholder.
+     */
+    Element spill(Element ppage) throws IOException {
+        StringBuilder ltext = new StringBuilder();
+        IncrementalWriter.serialize(ppage, PAGE_DEPTH, ltext);
+        ByteBuffer lbuffer = ByteBuffer.wrap(ltext.toString().getBytes(StandardCharsets.UTF_8));
+        while (lbuffer.hasRemaining()) {
+            mchannel.write(lbuffer, mend + lbuffer.position());
+        }
+
+        if (msize == moffsets.length) {
+            moffsets = Arrays.copyOf(moffsets, 2 * msize);
+        }
+        moffsets[msize] = mend;
+        mend += lbuffer.limit();
+
+        Element lplaceholder = ppage.getOwnerDocument().createElement(PLACEHOLDER);
+        lplaceholder.setAttribute("id", ppage.getAttribute("id"));
+        lplaceholder.setAttribute("entry", Integer.toString(msize));
+        ppage.getParentNode().replaceChild(lplaceholder, ppage);
+        msize++;
+        if (isDebugEnabled()) {
+            debugf("PageStore: spilled page {}, {} bytes.", ppage.getAttribute("id"), lbuffer.limit());
+        }
+        return lplaceholder;
+    }
+
+    /**
+     * Write a document whose pages may have been spilled, in the format of outputDOMtoFile().
+     *
+     * @param pdocument Document to write.
+     * @param pfilename Output file.
+     */
+    public void write(Document pdocument, String pfilename) throws IOException {
+        FileOutputStream lfile = new FileOutputStream(pfilename);
+        Writer lout = new BufferedWriter(new OutputStreamWriter(lfile, StandardCharsets.UTF_8));
+        try {
+            IncrementalWriter.writeProlog(pdocument, lout);
+            write(pdocument.getDocumentElement(), 0, lout, lfile.getChannel());
+        } finally {
+            lout.close();
+        }
+    }
+
+    /**
+     * Close and, if temporary, delete the file. The pages spilled can no longer be written.
+     */
+    public void close() throws IOException {
+        mstore.close();
+        if (mtemporary && !mfile.delete()) {
+            warningf("PageStore: cannot delete {}.", mfile);
+        }
+    }
+
+    // Only the containers of the pages are walked, everything else is serialized
+    private void write(Element pelement, int pdepth, Writer pout, FileChannel pfile) throws IOException {
+        StringBuilder lbuilder = new StringBuilder();
+        String ltag = pelement.getNodeName();
+        boolean lcontainer = "workspaceElements".equals(ltag) || "cpnet".equals(ltag);
+        if (!lcontainer || !IncrementalWriter.hasElementChildren(pelement)) {
+            IncrementalWriter.serialize(pelement, pdepth, lbuilder);
+            pout.write(lbuilder.toString());
+            return;
+        }
+
+        IncrementalWriter.indent(pdepth, lbuilder);
+        IncrementalWriter.startTag(pelement, lbuilder);
+        lbuilder.append(">\n");
+        pout.write(lbuilder.toString());
+        for (Node lnode = pelement.getFirstChild(); lnode != null; lnode = lnode.getNextSibling()) {
+            if (!(lnode instanceof Element)) {
+                continue;
+            }
+            Element lchild = (Element) lnode;
+            if (PLACEHOLDER.equals(lchild.getNodeName())) {
+                // The writer and the channel share the position in the file
+                pout.flush();
+                copy(Integer.parseInt(lchild.getAttribute("entry")), pfile);
+            } else {
+                write(lchild, pdepth + 1, pout, pfile);
+            }
+        }
+        lbuilder.setLength(0);
+        IncrementalWriter.indent(pdepth, lbuilder);
+        lbuilder.append("</").append(ltag).append(">\n");
+        pout.write(lbuilder.toString());
+    }
+
+    private void copy(int pentry, FileChannel pfile) throws IOException {
+        long lposition = moffsets[pentry];
+        long lend = (pentry + 1 < msize) ? moffsets[pentry + 1] : mend;
+        while (lposition < lend) {
+            lposition += mchannel.transferTo(lposition, lend - lposition, pfile);
+        }
+    }
+}
@@ -0,0 +1,56 @@
+/*
+* Handle of a place declared with a NetBuilder: the index of the place in the
+* tables of the builder. The element exists in the DOM only after build().
+*/
+
+package stave.cpntools;
+
+import org.w3c.dom.Element;
+
+public final class PlaceRef {
+
+    final NetBuilder mbuilder;
+    final int mindex;
+
+    PlaceRef(NetBuilder pbuilder, int pindex) {
+        mbuilder = pbuilder;
+        mindex = pindex;
+    }
+
+    /**
+     * Position of the place in the order of declaration.
+     */
+    public int index() {
+        return mindex;
+    }
+
+    /**
+     * Id of the place element, after build().
+     */
+    public String id() {
+        return mbuilder.placeId(mindex);
+    }
+
+    /**
+     * The place element, after build().
+     */
+    public Element element() {
+        return mbuilder.element(id());
+    }
+
+    @Override
+    public boolean equals(Object pother) {
+        return (pother instanceof PlaceRef) && ((PlaceRef) pother).mbuilder == mbuilder
+                && ((PlaceRef) pother).mindex == mindex;
+    }
+
+    @Override
+    public int hashCode() {
+        return mindex;
+    }
+
+    @Override
+    public String toString() {
+        return "PlaceRef(" + mindex + ")";
+    }
+}
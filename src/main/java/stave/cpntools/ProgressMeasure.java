@@ -0,0 +1,18 @@
+/*
+* Progress measure for the sweep-line method.
+* Ideally, the progress of a marking never decreases when a transition fires,
+* so markings with smaller progress than all unprocessed ones can be deleted.
+* Firings that decrease the progress (regress edges) are allowed, but their
+* targets must be stored until the end of the exploration.
+*/
+
+package stave.cpntools;
+
+public interface ProgressMeasure {
+
+    /**
+     * @param pmarking Marking of the net being explored.
+     * @return The progress value of the marking.
+     */
+    long progress(Marking pmarking);
+}
@@ -0,0 +1,344 @@
+/*
+* Hash-consing of pages. CPN Tools allows many substitution transitions to
+* refer to the same subpage, each one making a separate instance of it, so
+* structurally identical pages (e.g. every ExampleCPN.Skip) only need to be
+* written once.
+*
+* Two pages are identical when their contents are the same up to the ids of
+* their own elements and the page name. The content is reduced to a canonical
+* text, where ids local to the page are replaced by their position, and pages
+* are looked up by that text. The duplicate page is removed, and the
+* references to its elements (substitution transitions, instances and fusion
+* sets) are redirected to the matching elements of the kept page.
+*
+* A page is shared only once it is concluded, i.e. all its substitution
+* transitions are connected, and must not be changed afterwards.
+*
+* The canonical text of a page is only kept as a 64-bit hash, computed once
+* per page and recomputed when the page changes: when its substitution
+* transitions are redirected, after the passes that change the whole net
+* (see changedAll()). Pages with the same hash
+* are compared on their canonical texts before one is removed.
+*/
+
+package stave.cpntools;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import org.w3c.dom.Element;
+import org.w3c.dom.NamedNodeMap;
+import org.w3c.dom.Node;
+
+public class SharedPages extends BaseCPNCommunication {
+
+    private final CPNToolsNetFactory mfactory;
+    // Hash of the canonical text -> kept page
+    private final HashMap<Long, Element> mpages = new HashMap<Long, Element>();
+    // Page -> hash of its canonical text, for the pages that did not change since
+    private final IdentityHashMap<Element, Long> mhashes = new IdentityHashMap<Element, Long>();
+    // Id of an element of a removed page -> id of the matching element of the kept page
+    private final HashMap<String, String> mreplaced = new HashMap<String, String>();
+    private int mremoved = 0;
+
+    public SharedPages(CPNToolsNetFactory pfactory) {
+        mfactory = pfactory;
+    }
+
+    /**
+     * Number of pages removed so far.
+     */
+    public int getRemovedCount() {
+        return mremoved;
+    }
+
+    /**
+     * Id to use instead of the given one, which may belong to a removed page.
+     */
+    public String resolve(String pid) {
+        String lid = mreplaced.get(pid);
+        return (lid == null) ? pid : lid;
+    }
+
+    /**
+     * Forget the canonical hash of a page that was changed after it was shared.
+     */
+    void changed(Element ppage) {
+        Long lhash = mhashes.remove(ppage);
+        if (lhash != null && mpages.get(lhash) == ppage) {
+            mpages.remove(lhash);
+        }
+    }
+
+    /**
+     * Forget the canonical hashes of all pages, after a pass that may have changed any of them.
+     */
+    void changedAll() {
+        mhashes.clear();
+        mpages.clear();
+    }
+
+    /**
+     * Share a concluded page: if an identical page was already shared, remove this one.
+     * Instances and fusion sets referring to its elements are updated.
+     *
+     * @param ppage Page that is part of the document.
+     * @return The page to use in place of ppage. ppage itself if it is new or not concluded.
+     */
+    public Element share(Element ppage) {
+        Element lkept = lookup(ppage);
+        if (lkept != ppage) {
+            HashSet<String> lids = new HashSet<String>();
+            remove(ppage, lkept, lids);
+            redirectInstances(mfactory.minstances, lids);
+            redirectFusions(mfactory.mcpnet, lids);
+            redirectFusions(mfactory.mglobbox, lids);
+        }
+        return lkept;
+    }
+
+    /**
+     * Share all concluded pages of the document, subpages before the pages using them.
+     *
+     * @return Number of pages removed.
+     */
+    public int shareAll() {
+        int lbefore = mremoved;
+        LinkedHashMap<String, Element> lbyid = new LinkedHashMap<String, Element>();
+        HashSet<String> lsubpages = new HashSet<String>();
+        for (Element lpage : StateSpaceNet.children(mfactory.mcpnet, "page")) {
+            lbyid.put(lpage.getAttribute("id"), lpage);
+            for (Element ltrans : StateSpaceNet.children(lpage, "trans")) {
+                Element lsubst = StateSpaceNet.firstChild(ltrans, "subst");
+                if (lsubst != null) {
+                    lsubpages.add(lsubst.getAttribute("subpage"));
+                }
+            }
+        }
+
+        // Pages in post-order of the hierarchy
+        List<Element> lorder = new ArrayList<Element>();
+        HashSet<String> lvisited = new HashSet<String>();
+        for (Element lpage : lbyid.values()) {
+            postOrder(lpage, lbyid, lvisited, lorder);
+        }
+
+        HashSet<String> lids = new HashSet<String>();
+        for (Element lpage : lorder) {
+            // The references to subpages must already point to the kept pages
+            if (redirectSubstitutions(lpage)) {
+                changed(lpage);
+            }
+            if (!lsubpages.contains(lpage.getAttribute("id"))) {
+                continue;
+            }
+            Element lkept = lookup(lpage);
+            if (lkept != lpage) {
+                remove(lpage, lkept, lids);
+            }
+        }
+        redirectInstances(mfactory.minstances, lids);
+        redirectFusions(mfactory.mcpnet, lids);
+        redirectFusions(mfactory.mglobbox, lids);
+
+        debugf("SharedPages: removed {} pages.", mremoved - lbefore);
+        return mremoved - lbefore;
+    }
+
+    private static void postOrder(Element ppage, Map<String, Element> pbyid, Set<String> pvisited,
+                                  List<Element> pout) {
+        if (!pvisited.add(ppage.getAttribute("id"))) {
+            return;
+        }
+        for (Element ltrans : StateSpaceNet.children(ppage, "trans")) {
+            Element lsubst = StateSpaceNet.firstChild(ltrans, "subst");
+            Element lsubpage = (lsubst == null) ? null : pbyid.get(lsubst.getAttribute("subpage"));
+            if (lsubpage != null) {
+                postOrder(lsubpage, pbyid, pvisited, pout);
+            }
+        }
+        pout.add(ppage);
+    }
+
+    // Kept page identical to the given one, registering it if it is the first
+    private Element lookup(Element ppage) {
+        for (Element ltrans : StateSpaceNet.children(ppage, "trans")) {
+            Element lsubst = StateSpaceNet.firstChild(ltrans, "subst");
+            if (lsubst != null && lsubst.getAttribute("subpage").length() == 0) {
+                return ppage;
+            }
+        }
+        Long lhash = mhashes.get(ppage);
+        if (lhash == null) {
+            lhash = hash(canonical(ppage));
+            mhashes.put(ppage, lhash);
+        }
+        Element lkept = mpages.get(lhash);
+        if (lkept == null || lkept.getParentNode() == null) {
+            mpages.put(lhash, ppage);
+            return ppage;
+        }
+        // Different pages with the same hash are not shared
+        if (lkept == ppage || !canonical(ppage).equals(canonical(lkept))) {
+            return ppage;
+        }
+        return lkept;
+    }
+
+    // 64-bit FNV-1a hash
+    private static long hash(String pcanonical) {
+        long lhash = 0xcbf29ce484222325L;
+        for (int i = 0; i < pcanonical.length(); i++) {
+            lhash ^= pcanonical.charAt(i);
+            lhash *= 0x100000001b3L;
+        }
+        return lhash;
+    }
+
+    // Remove a page identical to the kept one, recording the ids of its elements
+    private void remove(Element ppage, Element pkept, Set<String> pids) {
+        List<Element> lremoved = new ArrayList<Element>();
+        List<Element> lkept = new ArrayList<Element>();
+        collectIds(ppage, lremoved);
+        collectIds(pkept, lkept);
+        mreplaced.put(ppage.getAttribute("id"), pkept.getAttribute("id"));
+        for (int i = 0; i < lremoved.size(); i++) {
+            String lid = lremoved.get(i).getAttribute("id");
+            mreplaced.put(lid, lkept.get(i).getAttribute("id"));
+            pids.add(lid);
+        }
+        ppage.getParentNode().removeChild(ppage);
+        mhashes.remove(ppage);
+        mfactory.forgetPorts(ppage);
+        mremoved++;
+    }
+
+    /**
+     * Text describing the contents of a page, where the ids of its elements are
+     * replaced by their position in the page.
+     */
+    private String canonical(Element ppage) {
+        List<Element> lelements = new ArrayList<Element>();
+        collectIds(ppage, lelements);
+        HashMap<String, String> llocal = new HashMap<String, String>();
+        for (int i = 0; i < lelements.size(); i++) {
+            llocal.put(lelements.get(i).getAttribute("id"), "#" + i);
+        }
+
+        StringBuilder lbuilder = new StringBuilder();
+        for (Node lnode = ppage.getFirstChild(); lnode != null; lnode = lnode.getNextSibling()) {
+            if (!"pageattr".equals(lnode.getNodeName())) {
+                appendCanonical(lnode, llocal, lbuilder);
+            }
+        }
+        return lbuilder.toString();
+    }
+
+    private void appendCanonical(Node pnode, Map<String, String> plocal, StringBuilder pout) {
+        if (!(pnode instanceof Element)) {
+            if (pnode.getNodeType() == Node.TEXT_NODE || pnode.getNodeType() == Node.CDATA_SECTION_NODE) {
+                pout.append('"').append(pnode.getNodeValue().replace("\\", "\\\\").replace("\"", "\\\"")).append('"');
+            }
+            return;
+        }
+        pout.append('<').append(pnode.getNodeName());
+        NamedNodeMap lattributes = pnode.getAttributes();
+        for (int i = 0; i < lattributes.getLength(); i++) {
+            Node lattribute = lattributes.item(i);
+            String lname = lattribute.getNodeName();
+            String lvalue = lattribute.getNodeValue();
+            if ("id".equals(lname)) {
+                continue;
+            }
+            if ("idref".equals(lname) || "subpage".equals(lname)) {
+                lvalue = reference(lvalue, plocal);
+            } else if ("portsock".equals(lname)) {
+                StringBuilder lpairs = new StringBuilder();
+                for (String[] lpair : StateSpaceNet.parsePortsock(lvalue)) {
+                    lpairs.append('(').append(resolve(lpair[0])).append(',')
+                            .append(reference(lpair[1], plocal)).append(')');
+                }
+                lvalue = lpairs.toString();
+            }
+            pout.append(' ').append(lname).append("=\"").append(lvalue).append('"');
+        }
+        pout.append('>');
+        for (Node lchild = pnode.getFirstChild(); lchild != null; lchild = lchild.getNextSibling()) {
+            appendCanonical(lchild, plocal, pout);
+        }
+        pout.append("</>");
+    }
+
+    private String reference(String pid, Map<String, String> plocal) {
+        String llocal = plocal.get(pid);
+        return (llocal == null) ? resolve(pid) : llocal;
+    }
+
+    // Elements with an id, in document order
+    private static void collectIds(Element pelement, List<Element> pout) {
+        for (Node lnode = pelement.getFirstChild(); lnode != null; lnode = lnode.getNextSibling()) {
+            if (lnode instanceof Element) {
+                Element lelement = (Element) lnode;
+                if (lelement.hasAttribute("id")) {
+                    pout.add(lelement);
+                }
+                collectIds(lelement, pout);
+            }
+        }
+    }
+
+    // Redirect the subpages and ports of the substitution transitions of a page. True if any changed.
+    private boolean redirectSubstitutions(Element ppage) {
+        boolean lchanged = false;
+        for (Element ltrans : StateSpaceNet.children(ppage, "trans")) {
+            Element lsubst = StateSpaceNet.firstChild(ltrans, "subst");
+            if (lsubst == null || !lsubst.hasAttribute("portsock")) {
+                continue;
+            }
+            StringBuilder lpairs = new StringBuilder();
+            for (String[] lpair : StateSpaceNet.parsePortsock(lsubst.getAttribute("portsock"))) {
+                lpairs.append('(').append(resolve(lpair[0])).append(',').append(lpair[1]).append(')');
+            }
+            String lsubpage = resolve(lsubst.getAttribute("subpage"));
+            if (!lpairs.toString().equals(lsubst.getAttribute("portsock"))
+                    || !lsubpage.equals(lsubst.getAttribute("subpage"))) {
+                lsubst.setAttribute("portsock", lpairs.toString());
+                lsubst.setAttribute("subpage", lsubpage);
+                lchanged = true;
+            }
+        }
+        return lchanged;
+    }
+
+    // Redirect the instances of substitution transitions of removed pages
+    private void redirectInstances(Element pinstance, Set<String> pids) {
+        for (Element lchild : StateSpaceNet.children(pinstance, "instance")) {
+            if (pids.contains(lchild.getAttribute("trans"))) {
+                lchild.setAttribute("trans", resolve(lchild.getAttribute("trans")));
+            }
+            redirectInstances(lchild, pids);
+        }
+    }
+
+    // Redirect the members of fusion sets, which may then appear twice
+    private void redirectFusions(Element pparent, Set<String> pids) {
+        for (Element lfusion : StateSpaceNet.children(pparent, "fusion")) {
+            HashSet<String> lmembers = new HashSet<String>();
+            for (Element lmember : StateSpaceNet.children(lfusion, "fusion_elm")) {
+                String lid = lmember.getAttribute("idref");
+                if (pids.contains(lid)) {
+                    lid = resolve(lid);
+                    lmember.setAttribute("idref", lid);
+                }
+                if (!lmembers.add(lid)) {
+                    lfusion.removeChild(lmember);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,201 @@
+/*
+* Immutable sparse vector of integers, stored as sorted indices and their
+* non-zero values. Arithmetic overflows raise an ArithmeticException.
+*/
+
+package stave.cpntools;
+
+import java.util.Arrays;
+
+public final class SparseIntVector {
+
+    private final int[] mindices;
+    private final long[] mvalues;
+
+    public static final SparseIntVector ZERO = new SparseIntVector(new int[0], new long[0]);
+
+    // The arrays must be sorted by index, without zero values, and are not copied
+    SparseIntVector(int[] pindices, long[] pvalues) {
+        mindices = pindices;
+        mvalues = pvalues;
+    }
+
+    /**
+     * Vector with a single non-zero entry.
+     */
+    public static SparseIntVector unit(int pindex, long pvalue) {
+        return (pvalue == 0) ? ZERO : new SparseIntVector(new int[]{pindex}, new long[]{pvalue});
+    }
+
+    /**
+     * Vector from a dense array.
+     */
+    public static SparseIntVector of(long[] pdense) {
+        int lcount = 0;
+        for (long lvalue : pdense) {
+            if (lvalue != 0) {
+                lcount++;
+            }
+        }
+        int[] lindices = new int[lcount];
+        long[] lvalues = new long[lcount];
+        int k = 0;
+        for (int i = 0; i < pdense.length; i++) {
+            if (pdense[i] != 0) {
+                lindices[k] = i;
+                lvalues[k++] = pdense[i];
+            }
+        }
+        return new SparseIntVector(lindices, lvalues);
+    }
+
+    /**
+     * Number of non-zero entries.
+     */
+    public int size() {
+        return mindices.length;
+    }
+
+    public int index(int pentry) {
+        return mindices[pentry];
+    }
+
+    public long value(int pentry) {
+        return mvalues[pentry];
+    }
+
+    public long get(int pindex) {
+        int lentry = Arrays.binarySearch(mindices, pindex);
+        return (lentry >= 0) ? mvalues[lentry] : 0;
+    }
+
+    public boolean isZero() {
+        return mindices.length == 0;
+    }
+
+    /**
+     * Whether all non-zero entries are positive.
+     */
+    public boolean isNonNegative() {
+        for (long lvalue : mvalues) {
+            if (lvalue < 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Whether the non-zero entries of this vector are a subset of those of the other.
+     */
+    public boolean supportIncludedIn(SparseIntVector pother) {
+        int j = 0;
+        for (int lindex : mindices) {
+            while (j < pother.mindices.length && pother.mindices[j] < lindex) {
+                j++;
+            }
+            if (j == pother.mindices.length || pother.mindices[j] != lindex) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * pa * this + pb * pother
+     */
+    public SparseIntVector combine(long pa, SparseIntVector pother, long pb) {
+        int[] lindices = new int[mindices.length + pother.mindices.length];
+        long[] lvalues = new long[lindices.length];
+        int i = 0;
+        int j = 0;
+        int k = 0;
+        while (i < mindices.length || j < pother.mindices.length) {
+            int lindex;
+            long lvalue;
+            if (j == pother.mindices.length || (i < mindices.length && mindices[i] < pother.mindices[j])) {
+                lindex = mindices[i];
+                lvalue = Math.multiplyExact(pa, mvalues[i++]);
+            } else if (i == mindices.length || pother.mindices[j] < mindices[i]) {
+                lindex = pother.mindices[j];
+                lvalue = Math.multiplyExact(pb, pother.mvalues[j++]);
+            } else {
+                lindex = mindices[i];
+                lvalue = Math.addExact(Math.multiplyExact(pa, mvalues[i++]), Math.multiplyExact(pb, pother.mvalues[j++]));
+            }
+            if (lvalue != 0) {
+                lindices[k] = lindex;
+                lvalues[k++] = lvalue;
+            }
+        }
+        return new SparseIntVector(Arrays.copyOf(lindices, k), Arrays.copyOf(lvalues, k));
+    }
+
+    /**
+     * Greatest common divisor of the entries, 0 for the zero vector.
+     */
+    public long gcd() {
+        long lgcd = 0;
+        for (long lvalue : mvalues) {
+            lgcd = gcd(lgcd, Math.abs(lvalue));
+            if (lgcd == 1) {
+                break;
+            }
+        }
+        return lgcd;
+    }
+
+    static long gcd(long pa, long pb) {
+        while (pb != 0) {
+            long lrest = pa % pb;
+            pa = pb;
+            pb = lrest;
+        }
+        return pa;
+    }
+
+    /**
+     * This vector divided by the gcd of its entries.
+     */
+    public SparseIntVector normalize() {
+        long lgcd = gcd();
+        return (lgcd <= 1) ? this : divide(lgcd);
+    }
+
+    /**
+     * This vector divided by a common divisor of its entries.
+     */
+    public SparseIntVector divide(long pdivisor) {
+        long[] lvalues = new long[mvalues.length];
+        for (int i = 0; i < mvalues.length; i++) {
+            lvalues[i] = mvalues[i] / pdivisor;
+        }
+        return new SparseIntVector(mindices, lvalues);
+    }
+
+    @Override
+    public boolean equals(Object pother) {
+        if (!(pother instanceof SparseIntVector)) {
+            return false;
+        }
+        SparseIntVector lother = (SparseIntVector) pother;
+        return Arrays.equals(mindices, lother.mindices) && Arrays.equals(mvalues, lother.mvalues);
+    }
+
+    @Override
+    public int hashCode() {
+        return Arrays.hashCode(mindices) * 31 + Arrays.hashCode(mvalues);
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder lbuilder = new StringBuilder("[");
+        for (int i = 0; i < mindices.length; i++) {
+            if (i > 0) {
+                lbuilder.append(", ");
+            }
+            lbuilder.append(mindices[i]).append(": ").append(mvalues[i]);
+        }
+        return lbuilder.append("]").toString();
+    }
+}
@@ -0,0 +1,193 @@
+/*
+* Replaces the ids of a CPN Tools document by ids derived from the content,
+* so that generating the same net again gives the same file, whatever the
+* order in which the elements were created.
+*
+* The id of an element is a hash of its path in the document: the path of
+* its parent, its tag, its name and its ordinal among the siblings with the
+* same tag and name. Arcs are named by their orientation and the names of
+* their ends, and instances by the path of the page or transition they
+* instantiate. Colliding hashes are resolved by hashing the path again with a
+* counter, in document order. All references to the ids are updated.
+*/
+
+package stave.cpntools;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.Node;
+
+public class StableIds extends BaseCPNCommunication {
+
+    private final Document mdocument;
+    // Original id -> element
+    private final HashMap<String, Element> melements = new HashMap<String, Element>();
+    private final HashMap<Element, String> mpaths = new HashMap<Element, String>();
+    private final HashMap<Element, Integer> mordinals = new HashMap<Element, Integer>();
+    // Elements being named, to stop cyclic references
+    private final HashSet<Element> mvisiting = new HashSet<Element>();
+
+    public StableIds(Document pdocument) {
+        mdocument = pdocument;
+    }
+
+    /**
+     * Rename all ids of the document.
+     *
+     * @return Map from the previous ids to the new ones.
+     */
+    public Map<String, String> apply() {
+        melements.clear();
+        mpaths.clear();
+        mordinals.clear();
+        List<Element> lelements = new ArrayList<Element>();
+        collectIds(mdocument.getDocumentElement(), lelements);
+        for (Element lelement : lelements) {
+            melements.put(lelement.getAttribute("id"), lelement);
+        }
+
+        HashMap<String, String> lrenamed = new HashMap<String, String>();
+        HashSet<String> lused = new HashSet<String>();
+        for (Element lelement : lelements) {
+            String lpath = path(lelement);
+            String lid = "ID" + hash(lpath);
+            for (int k = 1; !lused.add(lid); k++) {
+                lid = "ID" + hash(lpath + "#" + k);
+            }
+            lrenamed.put(lelement.getAttribute("id"), lid);
+        }
+
+        for (Element lelement : lelements) {
+            lelement.setAttribute("id", lrenamed.get(lelement.getAttribute("id")));
+            lelement.setIdAttribute("id", true);
+        }
+        relink(mdocument.getDocumentElement(), lrenamed);
+        return lrenamed;
+    }
+
+    // Path of an element from the root, computed once
+    private String path(Element pelement) {
+        String lpath = mpaths.get(pelement);
+        if (lpath != null) {
+            return lpath;
+        }
+        Node lparent = pelement.getParentNode();
+        String lprefix = (lparent instanceof Element) ? path((Element) lparent) : "";
+        lpath = lprefix + "/" + pelement.getNodeName() + ":" + name(pelement) + "[" + ordinal(pelement) + "]";
+        mpaths.put(pelement, lpath);
+        return lpath;
+    }
+
+    // Ordinal among the siblings with the same tag and name, computed for all siblings at once
+    private int ordinal(Element pelement) {
+        Integer lordinal = mordinals.get(pelement);
+        if (lordinal == null) {
+            HashMap<String, Integer> lcounts = new HashMap<String, Integer>();
+            for (Node lnode = pelement.getParentNode().getFirstChild(); lnode != null; lnode = lnode.getNextSibling()) {
+                if (lnode instanceof Element) {
+                    String lkey = lnode.getNodeName() + ":" + name((Element) lnode);
+                    Integer lcount = lcounts.get(lkey);
+                    lcount = (lcount == null) ? 0 : lcount + 1;
+                    lcounts.put(lkey, lcount);
+                    mordinals.put((Element) lnode, lcount);
+                }
+            }
+            lordinal = mordinals.get(pelement);
+        }
+        return lordinal;
+    }
+
+    private String name(Element pelement) {
+        String ltag = pelement.getNodeName();
+        if ("arc".equals(ltag)) {
+            return pelement.getAttribute("orientation") + " " + endName(pelement, "placeend") + " "
+                    + endName(pelement, "transend");
+        }
+        if ("instance".equals(ltag)) {
+            String ltarget = pelement.hasAttribute("trans") ? pelement.getAttribute("trans") : pelement.getAttribute("page");
+            Element lelement = melements.get(ltarget);
+            if (lelement == null || !mvisiting.add(pelement)) {
+                return ltarget;
+            }
+            String lname = path(lelement);
+            mvisiting.remove(pelement);
+            return lname;
+        }
+        if ("page".equals(ltag)) {
+            Element lpageattr = StateSpaceNet.firstChild(pelement, "pageattr");
+            return (lpageattr == null) ? "" : lpageattr.getAttribute("name");
+        }
+        String ltext = StateSpaceNet.childText(pelement, "text");
+        if (ltext.length() == 0) {
+            ltext = StateSpaceNet.childText(pelement, "id");
+        }
+        if (ltext.length() == 0) {
+            ltext = pelement.getAttribute("name");
+        }
+        return ltext;
+    }
+
+    private String endName(Element parc, String ptag) {
+        Element lend = StateSpaceNet.firstChild(parc, ptag);
+        Element lnode = (lend == null) ? null : melements.get(lend.getAttribute("idref"));
+        if (lnode == null) {
+            return "";
+        }
+        return StateSpaceNet.childText(lnode, "text");
+    }
+
+    // 63-bit FNV-1a hash, in decimal as CPN Tools ids
+    private static String hash(String ppath) {
+        long lhash = 0xcbf29ce484222325L;
+        for (int i = 0; i < ppath.length(); i++) {
+            lhash ^= ppath.charAt(i);
+            lhash *= 0x100000001b3L;
+        }
+        return Long.toString(lhash & Long.MAX_VALUE);
+    }
+
+    // Elements with an id, in document order
+    private static void collectIds(Element pelement, List<Element> pout) {
+        if (pelement.hasAttribute("id")) {
+            pout.add(pelement);
+        }
+        for (Node lnode = pelement.getFirstChild(); lnode != null; lnode = lnode.getNextSibling()) {
+            if (lnode instanceof Element) {
+                collectIds((Element) lnode, pout);
+            }
+        }
+    }
+
+    // Update the references to renamed ids
+    private static void relink(Element pelement, Map<String, String> prenamed) {
+        for (String lattribute : new String[]{"idref", "page", "trans", "subpage"}) {
+            String lnew = prenamed.get(pelement.getAttribute(lattribute));
+            if (lnew != null) {
+                pelement.setAttribute(lattribute, lnew);
+            }
+        }
+        if (pelement.hasAttribute("portsock")) {
+            StringBuilder lpairs = new StringBuilder();
+            for (String[] lpair : StateSpaceNet.parsePortsock(pelement.getAttribute("portsock"))) {
+                lpairs.append('(').append(rename(lpair[0], prenamed)).append(',')
+                        .append(rename(lpair[1], prenamed)).append(')');
+            }
+            pelement.setAttribute("portsock", lpairs.toString());
+        }
+        for (Node lnode = pelement.getFirstChild(); lnode != null; lnode = lnode.getNextSibling()) {
+            if (lnode instanceof Element) {
+                relink((Element) lnode, prenamed);
+            }
+        }
+    }
+
+    private static String rename(String pid, Map<String, String> prenamed) {
+        String lnew = prenamed.get(pid);
+        return (lnew == null) ? pid : lnew;
+    }
+}
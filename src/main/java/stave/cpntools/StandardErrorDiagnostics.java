@@ -0,0 +1,34 @@
+/*
+* Diagnostics printing to System.err, with its own switches for each level.
+* Give it to a factory with setDiagnostics() to see its messages; without a
+* sink, the messages are discarded.
+*/
+
+package stave.cpntools;
+
+public class StandardErrorDiagnostics implements Diagnostics {
+
+    private final boolean mdebug;
+    private final boolean mwarnings;
+
+    /**
+     * Print the warnings, not the debug messages.
+     */
+    public StandardErrorDiagnostics() {
+        this(false, true);
+    }
+
+    public StandardErrorDiagnostics(boolean pdebug, boolean pwarnings) {
+        mdebug = pdebug;
+        mwarnings = pwarnings;
+    }
+
+    public boolean isEnabled(Level plevel) {
+        return (plevel == Level.DEBUG) ? mdebug : mwarnings;
+    }
+
+    public void report(Level plevel, String ptemplate, Object[] pargs) {
+        String lprefix = (plevel == Level.DEBUG) ? "Debug: - " : "Warning - ";
+        System.err.println(lprefix + Diagnostics.format(ptemplate, pargs));
+    }
+}
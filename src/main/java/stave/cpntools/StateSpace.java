@@ -0,0 +1,147 @@
+/*
+* Reachability graph produced by StateSpaceExplorer.explore().
+* States are numbered in the order they were found, the initial state being 0.
+* Edges are kept in compressed rows: the successors of state s are
+* mtargets[moffsets[s] .. moffsets[s+1]-1], labelled by the fired transitions.
+*/
+
+package stave.cpntools;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+
+public class StateSpace {
+
+    private final StateSpaceNet mnet;
+    private final List<Marking> mmarkings;
+    private final HashMap<Marking, Integer> mindex;
+    private final int[] moffsets;
+    private final int[] mtargets;
+    private final int[] mtransitions;
+    private final boolean mcomplete;
+
+    // Reverse edges, computed on demand
+    private int[] mpredoffsets;
+    private int[] mpredsources;
+    private int[] mpredtransitions;
+
+    StateSpace(StateSpaceNet pnet, List<Marking> pmarkings, HashMap<Marking, Integer> pindex,
+               int[] poffsets, int[] ptargets, int[] ptransitions, boolean pcomplete) {
+        mnet = pnet;
+        mmarkings = pmarkings;
+        mindex = pindex;
+        moffsets = poffsets;
+        mtargets = ptargets;
+        mtransitions = ptransitions;
+        mcomplete = pcomplete;
+    }
+
+    public StateSpaceNet getNet() {
+        return mnet;
+    }
+
+    /**
+     * Whether all reachable states were explored, i.e., the exploration did not hit the state limit.
+     * States that were not expanded have no successors.
+     */
+    public boolean isComplete() {
+        return mcomplete;
+    }
+
+    public int getStateCount() {
+        return mmarkings.size();
+    }
+
+    public int getEdgeCount() {
+        return moffsets[mmarkings.size()];
+    }
+
+    public Marking getMarking(int pstate) {
+        return mmarkings.get(pstate);
+    }
+
+    /**
+     * Find the state of a marking.
+     *
+     * @return state number, or -1 if the marking is not in the state space.
+     */
+    public int findState(Marking pmarking) {
+        Integer lstate = mindex.get(pmarking);
+        return (lstate == null) ? -1 : lstate;
+    }
+
+    public int getSuccessorCount(int pstate) {
+        return moffsets[pstate + 1] - moffsets[pstate];
+    }
+
+    public int getSuccessor(int pstate, int pedge) {
+        return mtargets[moffsets[pstate] + pedge];
+    }
+
+    /**
+     * Transition fired by the edge, as indexed by the StateSpaceNet.
+     */
+    public int getEdgeTransition(int pstate, int pedge) {
+        return mtransitions[moffsets[pstate] + pedge];
+    }
+
+    public int getPredecessorCount(int pstate) {
+        computePredecessors();
+        return mpredoffsets[pstate + 1] - mpredoffsets[pstate];
+    }
+
+    public int getPredecessor(int pstate, int pedge) {
+        computePredecessors();
+        return mpredsources[mpredoffsets[pstate] + pedge];
+    }
+
+    public int getPredecessorTransition(int pstate, int pedge) {
+        computePredecessors();
+        return mpredtransitions[mpredoffsets[pstate] + pedge];
+    }
+
+    /**
+     * States without enabled transitions.
+     */
+    public List<Integer> getDeadStates() {
+        List<Integer> ldead = new ArrayList<Integer>();
+        for (int s = 0; s < mmarkings.size(); s++) {
+            if (getSuccessorCount(s) == 0) {
+                ldead.add(s);
+            }
+        }
+        return ldead;
+    }
+
+    private synchronized void computePredecessors() {
+        if (mpredoffsets != null) {
+            return;
+        }
+
+        int lstates = mmarkings.size();
+        int[] loffsets = new int[lstates + 1];
+        for (int e = 0; e < getEdgeCount(); e++) {
+            loffsets[mtargets[e] + 1]++;
+        }
+        for (int s = 0; s < lstates; s++) {
+            loffsets[s + 1] += loffsets[s];
+        }
+
+        int[] lfill = Arrays.copyOf(loffsets, lstates);
+        int[] lsources = new int[getEdgeCount()];
+        int[] ltransitions = new int[getEdgeCount()];
+        for (int s = 0; s < lstates; s++) {
+            for (int e = moffsets[s]; e < moffsets[s + 1]; e++) {
+                int lslot = lfill[mtargets[e]]++;
+                lsources[lslot] = s;
+                ltransitions[lslot] = mtransitions[e];
+            }
+        }
+
+        mpredsources = lsources;
+        mpredtransitions = ltransitions;
+        mpredoffsets = loffsets;
+    }
+}
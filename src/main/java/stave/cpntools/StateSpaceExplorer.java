@@ -0,0 +1,359 @@
+/*
+* Explores the reachable markings of a StateSpaceNet.
+*
+* Two modes are available:
+* - explore(): breadth-first search storing the full reachability graph.
+* - sweep(measure): the (generalized) sweep-line method. Markings are processed
+*   in increasing order of progress, and markings with progress smaller than
+*   all unprocessed ones are deleted, so the peak memory follows the width of
+*   the state space instead of its size. Targets of regress edges (firings that
+*   decrease the progress) are kept as persistent markings and used as roots of
+*   a new sweep.
+*
+* Both modes can be combined with a Symmetry, in which case only one marking
+* per orbit is stored and processed.
+*/
+
+package stave.cpntools;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.TreeMap;
+
+public class StateSpaceExplorer {
+
+    /**
+     * Called for every processed marking. Can be used to check properties on-the-fly,
+     * which is the only way to inspect the markings when sweeping.
+     */
+    public interface Visitor {
+        void visit(Marking pmarking, int psuccessors);
+    }
+
+    /**
+     * Counters of an exploration.
+     */
+    public static class Statistics {
+        long mstates;
+        long medges;
+        long mdead;
+        long mpeak;
+        long mpersistent;
+        int msweeps;
+        boolean mcomplete = true;
+
+        /**
+         * Number of processed markings. When sweeping with regress edges,
+         * a marking may be processed once per sweep.
+         */
+        public long getStates() {
+            return mstates;
+        }
+
+        public long getEdges() {
+            return medges;
+        }
+
+        /**
+         * Number of processed markings without enabled transitions.
+         */
+        public long getDeadStates() {
+            return mdead;
+        }
+
+        /**
+         * Maximum number of markings stored at the same time.
+         */
+        public long getPeakStoredStates() {
+            return mpeak;
+        }
+
+        /**
+         * Markings kept until the end of the sweep-line exploration, i.e. the
+         * initial marking and the targets of regress edges.
+         */
+        public long getPersistentStates() {
+            return mpersistent;
+        }
+
+        public int getSweeps() {
+            return msweeps;
+        }
+
+        /**
+         * Whether the exploration finished before reaching the state limit.
+         */
+        public boolean isComplete() {
+            return mcomplete;
+        }
+
+        public String toString() {
+            return "states: " + mstates + ", edges: " + medges + ", dead: " + mdead + ", peak stored: " + mpeak
+                    + ", persistent: " + mpersistent + ", sweeps: " + msweeps + (mcomplete ? "" : " (incomplete)");
+        }
+    }
+
+    private final StateSpaceNet mnet;
+    private Visitor mvisitor;
+    private Symmetry msymmetry;
+    private long mmaxstates = Long.MAX_VALUE;
+    private Statistics mstatistics;
+
+    public StateSpaceExplorer(StateSpaceNet pnet) {
+        mnet = pnet;
+    }
+
+    public void setVisitor(Visitor pvisitor) {
+        mvisitor = pvisitor;
+    }
+
+    /**
+     * Enable symmetry reduction. Successor markings are replaced by the representatives of their orbits.
+     *
+     * @param psymmetry Declared symmetries, or null to disable the reduction.
+     */
+    public void setSymmetry(Symmetry psymmetry) {
+        msymmetry = psymmetry;
+    }
+
+    /**
+     * Stop exploring after processing this amount of markings.
+     */
+    public void setMaxStates(long pmax) {
+        mmaxstates = pmax;
+    }
+
+    /**
+     * Counters of the last exploration.
+     */
+    public Statistics getStatistics() {
+        return mstatistics;
+    }
+
+    /**
+     * Successors of a marking, in firing order.
+     */
+    private static class SuccessorList implements StateSpaceNet.SuccessorCollector {
+        final List<Marking> mmarkings = new ArrayList<Marking>();
+        final List<Integer> mtransitions = new ArrayList<Integer>();
+        final Symmetry msymmetry;
+
+        SuccessorList(Symmetry psymmetry) {
+            msymmetry = psymmetry;
+        }
+
+        public void successor(int ptransition, Map<String, Object> pbinding, Marking ptarget) {
+            mmarkings.add((msymmetry == null) ? ptarget : msymmetry.canonical(ptarget));
+            mtransitions.add(ptransition);
+        }
+
+        void clear() {
+            mmarkings.clear();
+            mtransitions.clear();
+        }
+    }
+
+    /**
+     * Compute the full reachability graph by breadth-first search.
+     *
+     * @return The state space. Check isComplete() when a state limit is set.
+     */
+    public StateSpace explore() {
+        mstatistics = new Statistics();
+        mstatistics.msweeps = 1;
+
+        List<Marking> lmarkings = new ArrayList<Marking>();
+        HashMap<Marking, Integer> lindex = new HashMap<Marking, Integer>();
+        IntList loffsets = new IntList();
+        IntList ltargets = new IntList();
+        IntList ltransitions = new IntList();
+
+        Marking linitial = initialMarking();
+        lmarkings.add(linitial);
+        lindex.put(linitial, 0);
+
+        // States are processed in the order they are found, so edges are appended row by row.
+        SuccessorList lsuccessors = new SuccessorList(msymmetry);
+        int lnext = 0;
+        for (; lnext < lmarkings.size(); lnext++) {
+            if (mstatistics.mstates >= mmaxstates) {
+                mstatistics.mcomplete = false;
+                break;
+            }
+
+            Marking lmarking = lmarkings.get(lnext);
+            loffsets.add(ltargets.size());
+            lsuccessors.clear();
+            mnet.successors(lmarking, lsuccessors);
+            process(lmarking, lsuccessors.mmarkings.size());
+
+            for (int i = 0; i < lsuccessors.mmarkings.size(); i++) {
+                Marking ltarget = lsuccessors.mmarkings.get(i);
+                Integer lstate = lindex.get(ltarget);
+                if (lstate == null) {
+                    lstate = lmarkings.size();
+                    lmarkings.add(ltarget);
+                    lindex.put(ltarget, lstate);
+                }
+                ltargets.add(lstate);
+                ltransitions.add(lsuccessors.mtransitions.get(i));
+                mstatistics.medges++;
+            }
+        }
+
+        // Unprocessed states have no successors
+        for (; lnext <= lmarkings.size(); lnext++) {
+            loffsets.add(ltargets.size());
+        }
+        mstatistics.mpeak = lmarkings.size();
+
+        return new StateSpace(mnet, lmarkings, lindex, loffsets.toArray(), ltargets.toArray(),
+                ltransitions.toArray(), mstatistics.mcomplete);
+    }
+
+    // Marking waiting to be processed, ordered by progress
+    private static class Entry implements Comparable<Entry> {
+        final long mprogress;
+        final Marking mmarking;
+
+        Entry(long pprogress, Marking pmarking) {
+            mprogress = pprogress;
+            mmarking = pmarking;
+        }
+
+        public int compareTo(Entry pother) {
+            return Long.compare(mprogress, pother.mprogress);
+        }
+    }
+
+    /**
+     * Explore the state space with the sweep-line method, without storing the graph.
+     * Properties must be checked with a Visitor.
+     *
+     * @param pmeasure Progress measure, e.g. a StructuralProgressMeasure.
+     * @return Counters of the exploration.
+     */
+    public Statistics sweep(ProgressMeasure pmeasure) {
+        mstatistics = new Statistics();
+
+        HashSet<Marking> lpersistent = new HashSet<Marking>();
+        List<Marking> lroots = new ArrayList<Marking>();
+        lroots.add(initialMarking());
+        lpersistent.add(initialMarking());
+
+        SuccessorList lsuccessors = new SuccessorList(msymmetry);
+        while (!lroots.isEmpty() && mstatistics.mcomplete) {
+            mstatistics.msweeps++;
+
+            PriorityQueue<Entry> lunprocessed = new PriorityQueue<Entry>();
+            // Non-persistent markings of this sweep, grouped by progress
+            TreeMap<Long, HashSet<Marking>> llayers = new TreeMap<Long, HashSet<Marking>>();
+            long lstored = 0;
+            for (Marking lroot : lroots) {
+                lunprocessed.add(new Entry(pmeasure.progress(lroot), lroot));
+            }
+            List<Marking> lnewroots = new ArrayList<Marking>();
+
+            while (!lunprocessed.isEmpty()) {
+                if (mstatistics.mstates >= mmaxstates) {
+                    mstatistics.mcomplete = false;
+                    break;
+                }
+
+                Entry lentry = lunprocessed.poll();
+
+                // Delete the markings behind the sweep-line
+                while (!llayers.isEmpty() && llayers.firstKey() < lentry.mprogress) {
+                    lstored -= llayers.pollFirstEntry().getValue().size();
+                }
+
+                lsuccessors.clear();
+                mnet.successors(lentry.mmarking, lsuccessors);
+                process(lentry.mmarking, lsuccessors.mmarkings.size());
+
+                for (Marking ltarget : lsuccessors.mmarkings) {
+                    mstatistics.medges++;
+                    if (lpersistent.contains(ltarget)) {
+                        continue;
+                    }
+
+                    long lprogress = pmeasure.progress(ltarget);
+                    if (lprogress < lentry.mprogress) {
+                        // Regress edge: keep the target and explore from it in the next sweep
+                        lpersistent.add(ltarget);
+                        lnewroots.add(ltarget);
+                        continue;
+                    }
+
+                    HashSet<Marking> llayer = llayers.get(lprogress);
+                    if (llayer == null) {
+                        llayer = new HashSet<Marking>();
+                        llayers.put(lprogress, llayer);
+                    }
+                    if (llayer.add(ltarget)) {
+                        lstored++;
+                        lunprocessed.add(new Entry(lprogress, ltarget));
+                    }
+                }
+
+                mstatistics.mpeak = Math.max(mstatistics.mpeak, lstored + lpersistent.size());
+            }
+
+            lroots = lnewroots;
+        }
+
+        mstatistics.mpersistent = lpersistent.size();
+        return mstatistics;
+    }
+
+    private Marking initialMarking() {
+        Marking linitial = mnet.getInitialMarking();
+        return (msymmetry == null) ? linitial : msymmetry.canonical(linitial);
+    }
+
+    private void process(Marking pmarking, int psuccessors) {
+        mstatistics.mstates++;
+        if (psuccessors == 0) {
+            mstatistics.mdead++;
+        }
+        if (mvisitor != null) {
+            mvisitor.visit(pmarking, psuccessors);
+        }
+    }
+
+    /**
+     * Growable array of primitive integers.
+     */
+    static class IntList {
+        private int[] mvalues = new int[16];
+        private int msize = 0;
+
+        void add(int pvalue) {
+            if (msize == mvalues.length) {
+                mvalues = Arrays.copyOf(mvalues, msize * 2);
+            }
+            mvalues[msize++] = pvalue;
+        }
+
+        int get(int pindex) {
+            return mvalues[pindex];
+        }
+
+        void set(int pindex, int pvalue) {
+            mvalues[pindex] = pvalue;
+        }
+
+        int size() {
+            return msize;
+        }
+
+        int[] toArray() {
+            return Arrays.copyOf(mvalues, msize);
+        }
+    }
+}
@@ -0,0 +1,554 @@
+/*
+* Executable view of a CPN Tools document, used for state-space exploration.
+* The page hierarchy is resolved while reading: every page instance gets its own
+* places and transitions, port places are merged with their sockets and the
+* places of a fusion set are merged into one.
+* Places and transitions are indexed by integers in the order they are found.
+*/
+
+package stave.cpntools;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Hashtable;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.Node;
+
+public class StateSpaceNet extends BaseCPNCommunication {
+
+    /**
+     * Receives the enabled binding elements of a marking, and the markings they lead to.
+     */
+    public interface SuccessorCollector {
+        void successor(int ptransition, Map<String, Object> pbinding, Marking ptarget);
+    }
+
+    // Input arc term n`pattern, used to search bindings
+    private static class InputTerm {
+        final int mplace;
+        final NetExpression mamount;
+        final NetExpression mterm;
+
+        InputTerm(int pplace, NetExpression pamount, NetExpression pterm) {
+            mplace = pplace;
+            mamount = pamount;
+            mterm = pterm;
+        }
+    }
+
+    private static class Transition {
+        String mid;
+        String mname;
+        String minstance;
+        NetExpression mguard;
+        List<Integer> minplaces = new ArrayList<Integer>();
+        List<NetExpression> minexprs = new ArrayList<NetExpression>();
+        List<Integer> moutplaces = new ArrayList<Integer>();
+        List<NetExpression> moutexprs = new ArrayList<NetExpression>();
+        List<Integer> minhibitors = new ArrayList<Integer>();
+        // Computed when the net is complete
+        InputTerm[] mterms;
+        List<String> mvariables;
+    }
+
+    private final Hashtable<String, ColourSet> mcoloursets;
+    private final Hashtable<String, String> mvariables;
+
+    private final List<String> mplaceids = new ArrayList<String>();
+    private final List<String> mplacenames = new ArrayList<String>();
+    private final List<String> mplacetypes = new ArrayList<String>();
+    private final List<String> mplaceinstances = new ArrayList<String>();
+    private final List<NetExpression> mplaceinits = new ArrayList<NetExpression>();
+    private final List<Transition> mtransitions = new ArrayList<Transition>();
+
+    private Marking minitial;
+
+    /**
+     * Reads the net of a document generated by CPNToolsNetFactory, or any CPN Tools document
+     * restricted to the expressions supported by NetExpression.
+     *
+     * @param pdocument DOM of the CPN Tools document.
+     */
+    public StateSpaceNet(Document pdocument) throws BadCPNDefinitionException {
+        Element lcpnet = firstChild(pdocument.getDocumentElement(), "cpnet");
+        if (lcpnet == null) {
+            throw new BadCPNDefinitionException("StateSpaceNet: document has no cpnet element.");
+        }
+
+        Element lglobbox = firstChild(lcpnet, "globbox");
+        if (lglobbox != null) {
+            mcoloursets = ColourSet.readDeclarations(lglobbox);
+            mvariables = ColourSet.readVariables(lglobbox);
+        } else {
+            mcoloursets = new Hashtable<String, ColourSet>();
+            mvariables = new Hashtable<String, String>();
+        }
+
+        // Every page instance gets its own places and transitions
+        new HierarchyWalker<Integer, Transition>(lcpnet) {
+            @Override
+            protected Integer createPlace(Element pplace, String ppath) {
+                return addPlace(pplace, ppath);
+            }
+
+            @Override
+            protected Transition createTransition(Element ptrans, String ppath) {
+                return addTransition(ptrans, ppath);
+            }
+
+            @Override
+            protected void createArc(Element parc, Integer pplace, Transition ptrans, String ppath) {
+                addArc(parc, pplace, ptrans);
+            }
+        }.walk();
+
+        for (Transition ltrans : mtransitions) {
+            prepare(ltrans);
+        }
+
+        // Initial marking
+        Marking.Builder lbuilder = new Marking.Builder(mplaceids.size());
+        for (int i = 0; i < mplaceinits.size(); i++) {
+            try {
+                mplaceinits.get(i).evaluateMultiset(null, lbuilder.target(i, true));
+            } catch (NetExpression.ExpressionException e) {
+                throw new BadCPNDefinitionException("Initial marking of place " + mplaceids.get(i) + ": " + e.getMessage());
+            }
+        }
+        minitial = lbuilder.build();
+    }
+
+    private int addPlace(Element pplace, String ppath) {
+        String lid = pplace.getAttribute("id");
+        int lindex = mplaceids.size();
+        mplaceids.add(lid);
+        mplacenames.add(childText(pplace, "text"));
+        String ltype = textOf(firstChild(pplace, "type"));
+        mplacetypes.add((ltype == null || ltype.length() == 0) ? "UNIT" : ltype);
+        mplaceinstances.add(ppath);
+        mplaceinits.add(parse(textOf(firstChild(pplace, "initmark")), "initial marking of place " + lid));
+        return lindex;
+    }
+
+    private Transition addTransition(Element ptrans, String ppath) {
+        Transition lnew = new Transition();
+        lnew.mid = ptrans.getAttribute("id");
+        lnew.mname = childText(ptrans, "text");
+        lnew.minstance = ppath;
+        String lguard = textOf(firstChild(ptrans, "cond"));
+        lnew.mguard = (lguard == null || lguard.length() == 0) ? null : parse(lguard, "guard of transition " + lnew.mid);
+        mtransitions.add(lnew);
+        return lnew;
+    }
+
+    private void addArc(Element parc, int pplace, Transition ptrans) {
+        String lorientation = parc.getAttribute("orientation");
+        if ("Inhibitor".equals(lorientation)) {
+            ptrans.minhibitors.add(pplace);
+            return;
+        }
+
+        boolean linput = "PtoT".equals(lorientation) || "BOTHDIR".equals(lorientation);
+        boolean loutput = "TtoP".equals(lorientation) || "BOTHDIR".equals(lorientation);
+        if (!linput && !loutput) {
+            throw new BadCPNDefinitionException("Arc " + parc.getAttribute("id") + " has orientation "
+                    + lorientation + ", which the state space does not support.");
+        }
+
+        NetExpression lexpression = parse(textOf(firstChild(parc, "annot")), "expression of arc " + parc.getAttribute("id"));
+        if (linput) {
+            ptrans.minplaces.add(pplace);
+            ptrans.minexprs.add(lexpression);
+        }
+        if (loutput) {
+            ptrans.moutplaces.add(pplace);
+            ptrans.moutexprs.add(lexpression);
+        }
+    }
+
+    /**
+     * Split the portsock attribute "(port,socket)(port,socket)..." into pairs.
+     */
+    static String[][] parsePortsock(String pportsock) {
+        List<String[]> lpairs = new ArrayList<String[]>();
+        int lstart = pportsock.indexOf('(');
+        while (lstart >= 0) {
+            int lend = pportsock.indexOf(')', lstart);
+            if (lend < 0) {
+                break;
+            }
+            String[] lpair = pportsock.substring(lstart + 1, lend).split(",");
+            if (lpair.length == 2) {
+                lpairs.add(new String[]{lpair[0].trim(), lpair[1].trim()});
+            }
+            lstart = pportsock.indexOf('(', lend);
+        }
+        return lpairs.toArray(new String[lpairs.size()][]);
+    }
+
+    // Split input arc expressions into terms, and find the variables of the transition.
+    private void prepare(Transition ptrans) {
+        Set<String> lnames = mvariables.keySet();
+        ptrans.mvariables = new ArrayList<String>();
+
+        List<InputTerm> lterms = new ArrayList<InputTerm>();
+        for (int i = 0; i < ptrans.minplaces.size(); i++) {
+            NetExpression lexpr = ptrans.minexprs.get(i);
+            lexpr.collectVariables(lnames, ptrans.mvariables);
+            splitTerms(ptrans.minplaces.get(i), lexpr, lterms);
+        }
+        for (NetExpression lexpr : ptrans.moutexprs) {
+            lexpr.collectVariables(lnames, ptrans.mvariables);
+        }
+        if (ptrans.mguard != null) {
+            ptrans.mguard.collectVariables(lnames, ptrans.mvariables);
+        }
+
+        ptrans.mterms = lterms.toArray(new InputTerm[lterms.size()]);
+    }
+
+    private static void splitTerms(int pplace, NetExpression pexpr, List<InputTerm> pout) {
+        if (pexpr instanceof NetExpression.Sum) {
+            for (NetExpression lterm : ((NetExpression.Sum) pexpr).getTerms()) {
+                splitTerms(pplace, lterm, pout);
+            }
+        } else if (pexpr instanceof NetExpression.Coefficient) {
+            NetExpression.Coefficient lcoef = (NetExpression.Coefficient) pexpr;
+            pout.add(new InputTerm(pplace, lcoef.getAmount(), lcoef.getTerm()));
+        } else if (!(pexpr instanceof NetExpression.Empty)) {
+            pout.add(new InputTerm(pplace, new NetExpression.Constant(Integer.valueOf(1)), pexpr));
+        }
+    }
+
+    /* Begin: structure of the net */
+
+    public int getPlaceCount() {
+        return mplaceids.size();
+    }
+
+    /**
+     * Id of the place element. For places merged by ports or fusion sets, the id of the first one.
+     */
+    public String getPlaceId(int pplace) {
+        return mplaceids.get(pplace);
+    }
+
+    public String getPlaceName(int pplace) {
+        return mplacenames.get(pplace);
+    }
+
+    /**
+     * Name of the color set of a place.
+     */
+    public String getPlaceType(int pplace) {
+        return mplacetypes.get(pplace);
+    }
+
+    /**
+     * Path of page names and substitution transitions, separated by "/", where the place is first instantiated.
+     */
+    public String getPlaceInstance(int pplace) {
+        return mplaceinstances.get(pplace);
+    }
+
+    public int getTransitionCount() {
+        return mtransitions.size();
+    }
+
+    public String getTransitionId(int ptrans) {
+        return mtransitions.get(ptrans).mid;
+    }
+
+    public String getTransitionName(int ptrans) {
+        return mtransitions.get(ptrans).mname;
+    }
+
+    public String getTransitionInstance(int ptrans) {
+        return mtransitions.get(ptrans).minstance;
+    }
+
+    public NetExpression getGuard(int ptrans) {
+        return mtransitions.get(ptrans).mguard;
+    }
+
+    public int getInputArcCount(int ptrans) {
+        return mtransitions.get(ptrans).minplaces.size();
+    }
+
+    public int getInputPlace(int ptrans, int parc) {
+        return mtransitions.get(ptrans).minplaces.get(parc);
+    }
+
+    public NetExpression getInputExpression(int ptrans, int parc) {
+        return mtransitions.get(ptrans).minexprs.get(parc);
+    }
+
+    public int getOutputArcCount(int ptrans) {
+        return mtransitions.get(ptrans).moutplaces.size();
+    }
+
+    public int getOutputPlace(int ptrans, int parc) {
+        return mtransitions.get(ptrans).moutplaces.get(parc);
+    }
+
+    public NetExpression getOutputExpression(int ptrans, int parc) {
+        return mtransitions.get(ptrans).moutexprs.get(parc);
+    }
+
+    /**
+     * Places connected to the transition by inhibitor arcs.
+     */
+    public List<Integer> getInhibitorPlaces(int ptrans) {
+        return Collections.unmodifiableList(mtransitions.get(ptrans).minhibitors);
+    }
+
+    /**
+     * Find places by the text displayed on them.
+     *
+     * @return Indices of all places with that name, in all instances.
+     */
+    public List<Integer> findPlaces(String pname) {
+        List<Integer> lfound = new ArrayList<Integer>();
+        for (int i = 0; i < mplacenames.size(); i++) {
+            if (pname.equals(mplacenames.get(i))) {
+                lfound.add(i);
+            }
+        }
+        return lfound;
+    }
+
+    /**
+     * Find transitions by the text displayed on them.
+     *
+     * @return Indices of all transitions with that name, in all instances.
+     */
+    public List<Integer> findTransitions(String pname) {
+        List<Integer> lfound = new ArrayList<Integer>();
+        for (int i = 0; i < mtransitions.size(); i++) {
+            if (pname.equals(mtransitions.get(i).mname)) {
+                lfound.add(i);
+            }
+        }
+        return lfound;
+    }
+
+    public Hashtable<String, ColourSet> getColourSets() {
+        return mcoloursets;
+    }
+
+    /**
+     * Declared variables and the names of their color sets.
+     */
+    public Hashtable<String, String> getVariables() {
+        return mvariables;
+    }
+
+    /* End: structure of the net */
+
+    public Marking getInitialMarking() {
+        return minitial;
+    }
+
+    /**
+     * Compute all enabled binding elements of a marking, and the markings they lead to.
+     *
+     * @param pmarking  Current marking.
+     * @param pcollector Receives each (transition, binding, successor marking).
+     */
+    public void successors(Marking pmarking, SuccessorCollector pcollector) {
+        for (int t = 0; t < mtransitions.size(); t++) {
+            successors(pmarking, t, pcollector);
+        }
+    }
+
+    /**
+     * Compute all enabled bindings of one transition.
+     */
+    public void successors(Marking pmarking, int ptrans, SuccessorCollector pcollector) {
+        Transition ltrans = mtransitions.get(ptrans);
+
+        for (Integer lplace : ltrans.minhibitors) {
+            if (!pmarking.isEmpty(lplace)) {
+                return;
+            }
+        }
+
+        try {
+            bindTerms(ptrans, ltrans, pmarking, 0, new HashMap<String, Object>(), new HashSet<Map<String, Object>>(), pcollector);
+        } catch (NetExpression.ExpressionException e) {
+            throw new BadCPNDefinitionException("Transition " + ltrans.mid + ": " + e.getMessage());
+        }
+    }
+
+    // Bind variables by matching input arc patterns against the tokens in their places
+    private void bindTerms(int ptrans, Transition ltrans, Marking pmarking, int pterm, HashMap<String, Object> pbinding,
+                           Set<Map<String, Object>> pseen, SuccessorCollector pcollector) {
+        Set<String> lnames = mvariables.keySet();
+
+        for (int i = pterm; i < ltrans.mterms.length; i++) {
+            InputTerm lterm = ltrans.mterms[i];
+            if (!hasUnbound(lterm.mterm, lnames, pbinding)) {
+                continue;
+            }
+            if (!lterm.mterm.isPattern() || hasUnbound(lterm.mamount, lnames, pbinding)) {
+                continue;
+            }
+
+            int lamount = NetExpression.toInt(lterm.mamount.evaluate(pbinding), lterm.mamount);
+            for (int c = 0; c < pmarking.distinct(lterm.mplace); c++) {
+                if (pmarking.multiplicity(lterm.mplace, c) < lamount) {
+                    continue;
+                }
+                HashMap<String, Object> lbinding = new HashMap<String, Object>(pbinding);
+                if (lterm.mterm.match(pmarking.colour(lterm.mplace, c), lnames, lbinding)) {
+                    bindTerms(ptrans, ltrans, pmarking, i + 1, lbinding, pseen, pcollector);
+                }
+            }
+            return;
+        }
+
+        bindFree(ptrans, ltrans, pmarking, 0, pbinding, pseen, pcollector);
+    }
+
+    // Variables not bound by input arcs range over their whole color set
+    private void bindFree(int ptrans, Transition ltrans, Marking pmarking, int pvar, HashMap<String, Object> pbinding,
+                          Set<Map<String, Object>> pseen, SuccessorCollector pcollector) {
+        for (int i = pvar; i < ltrans.mvariables.size(); i++) {
+            String lvar = ltrans.mvariables.get(i);
+            if (pbinding.containsKey(lvar)) {
+                continue;
+            }
+
+            ColourSet lset = mcoloursets.get(mvariables.get(lvar));
+            if (lset == null || lset.getMembers() == null) {
+                throw new BadCPNDefinitionException("Transition " + ltrans.mid + ": variable " + lvar
+                        + " is not bound by an input arc, and its color set cannot be enumerated.");
+            }
+            for (Object lvalue : lset.getMembers()) {
+                HashMap<String, Object> lbinding = new HashMap<String, Object>(pbinding);
+                lbinding.put(lvar, lvalue);
+                bindFree(ptrans, ltrans, pmarking, i + 1, lbinding, pseen, pcollector);
+            }
+            return;
+        }
+
+        if (pseen.add(pbinding)) {
+            fire(ptrans, ltrans, pmarking, pbinding, pcollector);
+        }
+    }
+
+    private void fire(int ptrans, Transition ltrans, Marking pmarking, Map<String, Object> pbinding,
+                      SuccessorCollector pcollector) {
+        if (ltrans.mguard != null && !ltrans.mguard.evaluateGuard(pbinding)) {
+            return;
+        }
+
+        // Tokens consumed from each place
+        final TreeMap<Integer, TreeMap<Object, Integer>> lconsumed = new TreeMap<Integer, TreeMap<Object, Integer>>();
+        for (int i = 0; i < ltrans.minplaces.size(); i++) {
+            final TreeMap<Object, Integer> lmultiset = consumption(lconsumed, ltrans.minplaces.get(i));
+            ltrans.minexprs.get(i).evaluateMultiset(pbinding, new NetExpression.MultisetCollector() {
+                public void add(Object pvalue, int pamount) {
+                    Integer lold = lmultiset.get(pvalue);
+                    lmultiset.put(pvalue, ((lold == null) ? 0 : lold) + pamount);
+                }
+            });
+        }
+
+        for (Map.Entry<Integer, TreeMap<Object, Integer>> lplace : lconsumed.entrySet()) {
+            for (Map.Entry<Object, Integer> ltoken : lplace.getValue().entrySet()) {
+                if (pmarking.count(lplace.getKey(), ltoken.getKey()) < ltoken.getValue()) {
+                    return;
+                }
+            }
+        }
+
+        Marking.Builder lbuilder = new Marking.Builder(pmarking);
+        for (Map.Entry<Integer, TreeMap<Object, Integer>> lplace : lconsumed.entrySet()) {
+            for (Map.Entry<Object, Integer> ltoken : lplace.getValue().entrySet()) {
+                lbuilder.remove(lplace.getKey(), ltoken.getKey(), ltoken.getValue());
+            }
+        }
+        for (int i = 0; i < ltrans.moutplaces.size(); i++) {
+            ltrans.moutexprs.get(i).evaluateMultiset(pbinding, lbuilder.target(ltrans.moutplaces.get(i), true));
+        }
+
+        pcollector.successor(ptrans, pbinding, lbuilder.build());
+    }
+
+    private static TreeMap<Object, Integer> consumption(TreeMap<Integer, TreeMap<Object, Integer>> pconsumed, int pplace) {
+        TreeMap<Object, Integer> lmultiset = pconsumed.get(pplace);
+        if (lmultiset == null) {
+            lmultiset = new TreeMap<Object, Integer>(NetExpression.COLOUR_ORDER);
+            pconsumed.put(pplace, lmultiset);
+        }
+        return lmultiset;
+    }
+
+    private static boolean hasUnbound(NetExpression pexpr, Set<String> pnames, Map<String, Object> pbinding) {
+        List<String> lvars = new ArrayList<String>();
+        pexpr.collectVariables(pnames, lvars);
+        for (String lvar : lvars) {
+            if (!pbinding.containsKey(lvar)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private NetExpression parse(String ptext, String pcontext) {
+        try {
+            return NetExpression.parse((ptext == null) ? "" : ptext);
+        } catch (NetExpression.ExpressionException e) {
+            throw new BadCPNDefinitionException("Cannot parse " + pcontext + ": " + e.getMessage());
+        }
+    }
+
+    /* Begin: DOM helpers. Only direct children are inspected, unlike getElementsByTagName. */
+
+    static Element firstChild(Element pparent, String ptag) {
+        for (Node lnode = pparent.getFirstChild(); lnode != null; lnode = lnode.getNextSibling()) {
+            if ((lnode instanceof Element) && ptag.equals(lnode.getNodeName())) {
+                return (Element) lnode;
+            }
+        }
+        return null;
+    }
+
+    static List<Element> children(Element pparent, String ptag) {
+        List<Element> lchildren = new ArrayList<Element>();
+        for (Node lnode = pparent.getFirstChild(); lnode != null; lnode = lnode.getNextSibling()) {
+            if ((lnode instanceof Element) && ptag.equals(lnode.getNodeName())) {
+                lchildren.add((Element) lnode);
+            }
+        }
+        return lchildren;
+    }
+
+    // Text of the <text> child of an element, such as <type>, <initmark>, <annot> or <cond>
+    static String textOf(Element pelement) {
+        if (pelement == null) {
+            return null;
+        }
+        return childText(pelement, "text");
+    }
+
+    static String childText(Element pelement, String ptag) {
+        Element lchild = firstChild(pelement, ptag);
+        return (lchild == null) ? "" : lchild.getTextContent().trim();
+    }
+
+    static String pageName(Element ppage) {
+        Element lattr = firstChild(ppage, "pageattr");
+        return (lattr == null) ? ppage.getAttribute("id") : lattr.getAttribute("name");
+    }
+
+    /* End: DOM helpers */
+}
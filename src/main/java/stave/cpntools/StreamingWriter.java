@@ -0,0 +1,128 @@
+/*
+* Write-through output of a net: the prologue and the globbox are written
+* first, each page is written and dropped from the DOM as soon as it is
+* concluded, and the sections still in memory (instances, fusion sets, options
+* and the pages not flushed) are written at the end. The memory used is then
+* that of the pages being built, the instances and the indexes, whatever the
+* size of the net. See CPNToolsNetFactory.startStreaming().
+*
+* The text has the format of outputDOMtoFile(), but the pages come before the
+* other sections of the cpnet, as in the files of CPN Tools.
+*/
+
+package stave.cpntools;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.Node;
+
+public class StreamingWriter extends BaseCPNCommunication {
+
+    private final File mfile;
+    private final Document mdocument;
+    private final Element mcpnet;
+    private final Writer mout;
+    // Reused between pages
+    private final StringBuilder mbuilder = new StringBuilder();
+    private int mpages = 0;
+    private boolean mfinished = false;
+
+    /**
+     * Open the output, and write everything up to the end of the globbox.
+     */
+    StreamingWriter(Document pdocument, Element pcpnet, String pfilename) throws IOException {
+        mfile = new File(pfilename);
+        mdocument = pdocument;
+        mcpnet = pcpnet;
+        mout = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(mfile), StandardCharsets.UTF_8));
+        IncrementalWriter.writeProlog(pdocument, mout);
+
+        Element lroot = pdocument.getDocumentElement();
+        startTag(lroot, 0);
+        for (Node lnode = lroot.getFirstChild(); lnode != pcpnet; lnode = lnode.getNextSibling()) {
+            if (lnode instanceof Element) {
+                write((Element) lnode, 1);
+            }
+        }
+        startTag(pcpnet, 1);
+        Element lglobbox = StateSpaceNet.firstChild(pcpnet, "globbox");
+        if (lglobbox != null) {
+            write(lglobbox, 2);
+        }
+    }
+
+    public File getFile() {
+        return mfile;
+    }
+
+    /**
+     * Pages written so far.
+     */
+    public int getPages() {
+        return mpages;
+    }
+
+    public boolean isFinished() {
+        return mfinished;
+    }
+
+    /**
+     * Write a concluded page.
+     */
+    void writePage(Element ppage) throws IOException {
+        write(ppage, 2);
+        mpages++;
+    }
+
+    /**
+     * Write the rest of the document, and close the output.
+     */
+    void finish() throws IOException {
+        try {
+            for (Node lnode = mcpnet.getFirstChild(); lnode != null; lnode = lnode.getNextSibling()) {
+                if (lnode instanceof Element && !"globbox".equals(lnode.getNodeName())) {
+                    write((Element) lnode, 2);
+                }
+            }
+            endTag(mcpnet, 1);
+            for (Node lnode = mcpnet.getNextSibling(); lnode != null; lnode = lnode.getNextSibling()) {
+                if (lnode instanceof Element) {
+                    write((Element) lnode, 1);
+                }
+            }
+            endTag(mdocument.getDocumentElement(), 0);
+        } finally {
+            mfinished = true;
+            mout.close();
+        }
+        debugf("StreamingWriter: {} pages written.", mpages);
+    }
+
+    private void write(Element pelement, int pdepth) throws IOException {
+        mbuilder.setLength(0);
+        IncrementalWriter.serialize(pelement, pdepth, mbuilder);
+        mout.append(mbuilder);
+    }
+
+    private void startTag(Element pelement, int pdepth) throws IOException {
+        mbuilder.setLength(0);
+        IncrementalWriter.indent(pdepth, mbuilder);
+        IncrementalWriter.startTag(pelement, mbuilder);
+        mbuilder.append(">\n");
+        mout.append(mbuilder);
+    }
+
+    private void endTag(Element pelement, int pdepth) throws IOException {
+        mbuilder.setLength(0);
+        IncrementalWriter.indent(pdepth, mbuilder);
+        mbuilder.append("</").append(pelement.getNodeName()).append(">\n");
+        mout.append(mbuilder);
+    }
+}
@@ -0,0 +1,67 @@
+/*
+* Bounded interning table for the attribute values and texts of a net, so the
+* many equal names, types, expressions and coordinates of a large net share a
+* single String each. The table is direct-mapped: each value has one slot, and
+* a value arriving at a taken slot replaces the one there, so the memory used
+* is fixed and values no longer created are eventually dropped.
+*
+* Each factory has its own pool, also used by LayoutFactory for the elements
+* of the factory's document. Not thread-safe, like the factory.
+*/
+
+package stave.cpntools;
+
+import org.w3c.dom.Document;
+
+public class StringPool {
+
+    // Key of the pool in the user data of the document
+    static final String USER_DATA_KEY = "stave.cpntools.StringPool";
+
+    private final String[] mslots;
+    private final int mmask;
+    private long mhits;
+    private long mlookups;
+
+    /**
+     * @param pcapacity Slots of the table, rounded up to a power of two.
+     */
+    public StringPool(int pcapacity) {
+        int lcapacity = Integer.highestOneBit(Math.max(pcapacity, 1) - 1) << 1;
+        mslots = new String[Math.max(lcapacity, 1)];
+        mmask = mslots.length - 1;
+    }
+
+    /**
+     * The pooled String equal to a value, or the value itself, which is then pooled.
+     */
+    public String intern(String pvalue) {
+        if (pvalue == null) {
+            return null;
+        }
+        mlookups++;
+        int lhash = pvalue.hashCode();
+        int lslot = (lhash ^ (lhash >>> 16)) & mmask;
+        String lpooled = mslots[lslot];
+        if (pvalue.equals(lpooled)) {
+            mhits++;
+            return lpooled;
+        }
+        mslots[lslot] = pvalue;
+        return pvalue;
+    }
+
+    /**
+     * Fraction of the values found in the pool.
+     */
+    public double getHitRate() {
+        return (mlookups == 0) ? 0 : (double) mhits / mlookups;
+    }
+
+    /**
+     * Pool of the factory that created a document, null if none.
+     */
+    static StringPool of(Document pdocument) {
+        return (pdocument == null) ? null : (StringPool) pdocument.getUserData(USER_DATA_KEY);
+    }
+}
@@ -0,0 +1,146 @@
+/*
+* Progress measure derived from the structure of the net.
+* Places are ordered along the flow of tokens: the strongly connected components
+* of the place -> transition -> place graph are sorted topologically, and the
+* weight of a place is the rank of its component. The progress of a marking is
+* the sum of the weights of all its tokens.
+* For nets whose control flow moves forward, such as the sequential
+* compositions generated by ExampleCPN, firings only move tokens to later
+* places, or around a loop. Other firings (e.g. joins) may produce regress
+* edges, which the sweep-line explorer handles by keeping their targets.
+*/
+
+package stave.cpntools;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.List;
+
+public class StructuralProgressMeasure implements ProgressMeasure {
+
+    // Weight of a token in each place
+    private final long[] mweights;
+
+    public StructuralProgressMeasure(StateSpaceNet pnet) {
+        int lplaces = pnet.getPlaceCount();
+
+        // Place graph: p -> q if some transition consumes from p and produces to q
+        List<List<Integer>> lsuccessors = new ArrayList<List<Integer>>(lplaces);
+        for (int p = 0; p < lplaces; p++) {
+            lsuccessors.add(new ArrayList<Integer>());
+        }
+        for (int t = 0; t < pnet.getTransitionCount(); t++) {
+            for (int i = 0; i < pnet.getInputArcCount(t); i++) {
+                for (int o = 0; o < pnet.getOutputArcCount(t); o++) {
+                    int lfrom = pnet.getInputPlace(t, i);
+                    int lto = pnet.getOutputPlace(t, o);
+                    if (lfrom != lto) {
+                        lsuccessors.get(lfrom).add(lto);
+                    }
+                }
+            }
+        }
+
+        // Places in the same strongly connected component have the same weight, so that
+        // moving tokens around a loop does not regress. Tarjan's algorithm finds the
+        // components in reverse topological order.
+        int[] lcomponent = new int[lplaces];
+        stronglyConnectedComponents(lsuccessors, lcomponent);
+
+        mweights = new long[lplaces];
+        for (int p = 0; p < lplaces; p++) {
+            mweights[p] = lcomponent[p] + 1;
+        }
+    }
+
+    /**
+     * Iterative version of Tarjan's algorithm, since nets may have very long chains of places.
+     *
+     * @param psuccessors Adjacency lists of the place graph.
+     * @param pout        Receives, for each place, the topological rank of its component (sources first).
+     * @return Number of components.
+     */
+    private static int stronglyConnectedComponents(List<List<Integer>> psuccessors, int[] pout) {
+        int lsize = psuccessors.size();
+        int[] lindex = new int[lsize];
+        int[] llowlink = new int[lsize];
+        boolean[] lonstack = new boolean[lsize];
+        Arrays.fill(lindex, -1);
+
+        Deque<Integer> lcomponentstack = new ArrayDeque<Integer>();
+        Deque<int[]> lcallstack = new ArrayDeque<int[]>();
+        int lnextindex = 0;
+        int lfound = 0;
+
+        for (int lroot = 0; lroot < lsize; lroot++) {
+            if (lindex[lroot] >= 0) {
+                continue;
+            }
+
+            lindex[lroot] = llowlink[lroot] = lnextindex++;
+            lcomponentstack.push(lroot);
+            lonstack[lroot] = true;
+            lcallstack.push(new int[]{lroot, 0});
+
+            while (!lcallstack.isEmpty()) {
+                int[] ltop = lcallstack.peek();
+                int lnode = ltop[0];
+                List<Integer> lnext = psuccessors.get(lnode);
+
+                if (ltop[1] < lnext.size()) {
+                    int lchild = lnext.get(ltop[1]++);
+                    if (lindex[lchild] < 0) {
+                        lindex[lchild] = llowlink[lchild] = lnextindex++;
+                        lcomponentstack.push(lchild);
+                        lonstack[lchild] = true;
+                        lcallstack.push(new int[]{lchild, 0});
+                    } else if (lonstack[lchild]) {
+                        llowlink[lnode] = Math.min(llowlink[lnode], lindex[lchild]);
+                    }
+                    continue;
+                }
+
+                lcallstack.pop();
+                if (!lcallstack.isEmpty()) {
+                    int lparent = lcallstack.peek()[0];
+                    llowlink[lparent] = Math.min(llowlink[lparent], llowlink[lnode]);
+                }
+
+                if (llowlink[lnode] == lindex[lnode]) {
+                    int lmember;
+                    do {
+                        lmember = lcomponentstack.pop();
+                        lonstack[lmember] = false;
+                        pout[lmember] = lfound;
+                    } while (lmember != lnode);
+                    lfound++;
+                }
+            }
+        }
+
+        // Components were found sinks first
+        for (int p = 0; p < lsize; p++) {
+            pout[p] = lfound - 1 - pout[p];
+        }
+        return lfound;
+    }
+
+    /**
+     * Weight of each token in a place.
+     */
+    public long getWeight(int pplace) {
+        return mweights[pplace];
+    }
+
+    public long progress(Marking pmarking) {
+        long lprogress = 0;
+        for (int p = 0; p < mweights.length; p++) {
+            if (!pmarking.isEmpty(p)) {
+                lprogress += mweights[p] * pmarking.size(p);
+            }
+        }
+        return lprogress;
+    }
+}
@@ -0,0 +1,290 @@
+/*
+* Cache of generated subnets, keyed by a signature chosen by the caller
+* (e.g. the construct and the types it uses). A subnet is the contents of a
+* page, stored with named roles for the elements the caller needs afterwards,
+* such as the port places. On a hit the contents are copied into a new page
+* with fresh ids, so the construction and the layout of the page are skipped.
+*
+* The cache keeps the most recently used subnets in memory. If a directory is
+* given, subnets are also written there, one XML file per signature, and read
+* back when they are not in memory, so they can be reused across runs.
+*
+* References from the subnet to elements outside it (e.g. the subpage of a
+* connected substitution transition) are copied unchanged, so subnets that
+* are stored before being connected are the ones that can be reused anywhere.
+* Copied fusion places join the fusion set of the same name in the net.
+*/
+
+package stave.cpntools;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import javax.xml.parsers.DocumentBuilder;
+import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.parsers.ParserConfigurationException;
+import javax.xml.transform.TransformerException;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.Node;
+import org.xml.sax.SAXException;
+
+public class SubnetCache extends BaseCPNCommunication {
+
+    private final DocumentBuilder mbuilder;
+    // Signature -> document with the stored subnet, least recently used first
+    private final LinkedHashMap<String, Document> mentries;
+    private File mdirectory = null;
+    private long mhits = 0;
+    private long mdiskhits = 0;
+    private long mmisses = 0;
+
+    /**
+     * @param pcapacity Maximum number of subnets kept in memory.
+     */
+    public SubnetCache(final int pcapacity) throws ParserConfigurationException {
+        mbuilder = DocumentBuilderFactory.newInstance().newDocumentBuilder();
+        mentries = new LinkedHashMap<String, Document>(16, 0.75f, true) {
+            protected boolean removeEldestEntry(Map.Entry<String, Document> peldest) {
+                return size() > pcapacity;
+            }
+        };
+    }
+
+    /**
+     * Keep the subnets also in a directory, which is created if needed.
+     *
+     * @param pdirectory Directory, or null to use the memory only.
+     */
+    public void setDirectory(File pdirectory) {
+        if (pdirectory != null && !pdirectory.isDirectory() && !pdirectory.mkdirs()) {
+            warningf("SubnetCache: cannot create directory {}, using memory only.", pdirectory);
+            pdirectory = null;
+        }
+        mdirectory = pdirectory;
+    }
+
+    public long getHits() {
+        return mhits;
+    }
+
+    /**
+     * Hits that were read from the directory.
+     */
+    public long getDiskHits() {
+        return mdiskhits;
+    }
+
+    public long getMisses() {
+        return mmisses;
+    }
+
+    /**
+     * Store the contents of a page.
+     *
+     * @param psignature Signature of the construct that produced the page.
+     * @param ppage      Page element, whose name is not stored.
+     * @param proles     Elements of the page that must be found again on a hit, by name.
+     */
+    public void put(String psignature, Element ppage, Map<String, Element> proles) {
+        Document lentry = mbuilder.newDocument();
+        Element lsubnet = lentry.createElement("subnet");
+        lsubnet.setAttribute("signature", psignature);
+        lentry.appendChild(lsubnet);
+
+        Element lcontent = lentry.createElement("content");
+        for (Node lnode = ppage.getFirstChild(); lnode != null; lnode = lnode.getNextSibling()) {
+            if (!"pageattr".equals(lnode.getNodeName())) {
+                lcontent.appendChild(lentry.importNode(lnode, true));
+            }
+        }
+
+        List<Element> lelements = new ArrayList<Element>();
+        collectIds(ppage, lelements);
+        IdentityHashMap<Element, Integer> lindices = new IdentityHashMap<Element, Integer>();
+        for (int i = 0; i < lelements.size(); i++) {
+            lindices.put(lelements.get(i), i);
+        }
+        for (Map.Entry<String, Element> lrole : proles.entrySet()) {
+            Integer lindex = lindices.get(lrole.getValue());
+            if (lindex == null) {
+                throw new BadCPNDefinitionException("SubnetCache: role " + lrole.getKey() + " is not in the page.");
+            }
+            Element lelement = lentry.createElement("role");
+            lelement.setAttribute("name", lrole.getKey());
+            lelement.setAttribute("index", lindex.toString());
+            lsubnet.appendChild(lelement);
+        }
+        lsubnet.appendChild(lcontent);
+        mentries.put(psignature, lentry);
+
+        if (mdirectory != null) {
+            try {
+                outputDOMtoFile(lentry, fileOf(psignature).getPath());
+            } catch (IOException e) {
+                warningf("SubnetCache: cannot write {}. ", psignature, e);
+            } catch (TransformerException e) {
+                warningf("SubnetCache: cannot write {}. ", psignature, e);
+            }
+        }
+    }
+
+    /**
+     * Copy a stored subnet into a page, with fresh ids.
+     *
+     * @param psignature Signature of the construct.
+     * @param pfactory   Factory owning the page, which provides the ids.
+     * @param ppage      Page, which should be empty.
+     * @return The copies of the elements stored with roles, by name. Null if the signature is not stored.
+     */
+    public Map<String, Element> get(String psignature, CPNToolsNetFactory pfactory, Element ppage) {
+        Document lentry = mentries.get(psignature);
+        if (lentry == null) {
+            lentry = read(psignature);
+            if (lentry == null) {
+                mmisses++;
+                return null;
+            }
+            mentries.put(psignature, lentry);
+            mdiskhits++;
+        }
+        mhits++;
+
+        Element lsubnet = lentry.getDocumentElement();
+        Element lcontent = StateSpaceNet.firstChild(lsubnet, "content");
+        Document ldocument = pfactory.getDOM();
+        List<Element> lelements = new ArrayList<Element>();
+        HashMap<String, String> lids = new HashMap<String, String>();
+        List<Element> lcopies = new ArrayList<Element>();
+        for (Node lnode = lcontent.getFirstChild(); lnode != null; lnode = lnode.getNextSibling()) {
+            Node lcopy = ppage.appendChild(ldocument.importNode(lnode, true));
+            if (lcopy instanceof Element) {
+                renumber((Element) lcopy, pfactory, lids, lelements);
+                lcopies.add((Element) lcopy);
+            }
+        }
+        for (Element lcopy : lcopies) {
+            relink(lcopy, lids);
+            if ("place".equals(lcopy.getNodeName())) {
+                pfactory.adoptPlace(lcopy);
+            }
+        }
+
+        HashMap<String, Element> lroles = new HashMap<String, Element>();
+        for (Element lrole : StateSpaceNet.children(lsubnet, "role")) {
+            lroles.put(lrole.getAttribute("name"), lelements.get(Integer.parseInt(lrole.getAttribute("index"))));
+        }
+        return lroles;
+    }
+
+    // Stored subnet from the directory, or null
+    private Document read(String psignature) {
+        if (mdirectory == null) {
+            return null;
+        }
+        File lfile = fileOf(psignature);
+        if (!lfile.isFile()) {
+            return null;
+        }
+        try {
+            Document lentry = mbuilder.parse(lfile);
+            // Different signatures may share a file name
+            if (!psignature.equals(lentry.getDocumentElement().getAttribute("signature"))) {
+                return null;
+            }
+            removeIndentation(lentry.getDocumentElement());
+            return lentry;
+        } catch (IOException e) {
+            warningf("SubnetCache: cannot read {}. ", lfile, e);
+        } catch (SAXException e) {
+            warningf("SubnetCache: cannot read {}. ", lfile, e);
+        }
+        return null;
+    }
+
+    // The file is indented, but the page must not get the whitespace
+    private static void removeIndentation(Element pelement) {
+        Node lnode = pelement.getFirstChild();
+        while (lnode != null) {
+            Node lnext = lnode.getNextSibling();
+            if (lnode instanceof Element) {
+                removeIndentation((Element) lnode);
+            } else if (lnode.getNodeType() == Node.TEXT_NODE && lnode.getNodeValue().trim().length() == 0
+                    && pelement.getChildNodes().getLength() > 1) {
+                pelement.removeChild(lnode);
+            }
+            lnode = lnext;
+        }
+    }
+
+    private File fileOf(String psignature) {
+        try {
+            MessageDigest ldigest = MessageDigest.getInstance("SHA-1");
+            StringBuilder lname = new StringBuilder();
+            for (byte lbyte : ldigest.digest(psignature.getBytes(StandardCharsets.UTF_8))) {
+                lname.append(String.format("%02x", lbyte));
+            }
+            return new File(mdirectory, lname.append(".xml").toString());
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    // Elements with an id, in document order
+    private static void collectIds(Element pelement, List<Element> pout) {
+        for (Node lnode = pelement.getFirstChild(); lnode != null; lnode = lnode.getNextSibling()) {
+            if (lnode instanceof Element) {
+                Element lelement = (Element) lnode;
+                if (lelement.hasAttribute("id")) {
+                    pout.add(lelement);
+                }
+                collectIds(lelement, pout);
+            }
+        }
+    }
+
+    // Give fresh ids to an element and its descendants, in document order
+    private static void renumber(Element pelement, CPNToolsNetFactory pfactory, Map<String, String> pids,
+                                 List<Element> pout) {
+        if (pelement.hasAttribute("id")) {
+            String lid = pfactory.getUniqueId();
+            pids.put(pelement.getAttribute("id"), lid);
+            pelement.setAttribute("id", lid);
+            pelement.setIdAttribute("id", true);
+            pout.add(pelement);
+        }
+        for (Node lnode = pelement.getFirstChild(); lnode != null; lnode = lnode.getNextSibling()) {
+            if (lnode instanceof Element) {
+                renumber((Element) lnode, pfactory, pids, pout);
+            }
+        }
+    }
+
+    // Point the references inside the copy to the copied elements
+    private static void relink(Element pelement, Map<String, String> pids) {
+        if (pelement.hasAttribute("idref") && pids.containsKey(pelement.getAttribute("idref"))) {
+            pelement.setAttribute("idref", pids.get(pelement.getAttribute("idref")));
+        }
+        if (pelement.hasAttribute("portsock")) {
+            StringBuilder lpairs = new StringBuilder();
+            for (String[] lpair : StateSpaceNet.parsePortsock(pelement.getAttribute("portsock"))) {
+                String lsocket = pids.containsKey(lpair[1]) ? pids.get(lpair[1]) : lpair[1];
+                lpairs.append('(').append(lpair[0]).append(',').append(lsocket).append(')');
+            }
+            pelement.setAttribute("portsock", lpairs.toString());
+        }
+        for (Node lnode = pelement.getFirstChild(); lnode != null; lnode = lnode.getNextSibling()) {
+            if (lnode instanceof Element) {
+                relink((Element) lnode, pids);
+            }
+        }
+    }
+}
@@ -0,0 +1,357 @@
+/*
+* Permutation symmetries over enumeration color sets, for symmetry reduction
+* of state spaces. The declared values of a set (e.g. the identifiers of
+* identical processes) are interchangeable, and the explorer stores only one
+* representative marking per orbit.
+*
+* Canonicalization sorts the symmetric values by a signature of their
+* occurrences in the marking, and renames them to the declared values in that
+* order. The signature of a value lists the places, multiplicities and shapes of
+* the tokens where it occurs, so it is the same for all markings of an orbit.
+* Each occurrence is encoded as a long, the place in the high half and a hash
+* of the multiplicity and shape in the low half, and a signature is the sorted
+* array of them. Values whose signatures only collide on the hash are ordered
+* by declaration, which is still a marking of the orbit.
+* When every token contains at most one symmetric value, as with tokens of the
+* enumeration type itself, the result is the unique canonical representative.
+* Otherwise it is still a marking of the same orbit, so the reduction remains
+* sound, but an orbit may be represented more than once.
+*/
+
+package stave.cpntools;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+public class Symmetry extends BaseCPNCommunication {
+
+    private final StateSpaceNet mnet;
+    // Symmetric groups of values, in declaration order
+    private final List<List<NetExpression.Symbol>> mgroups = new ArrayList<List<NetExpression.Symbol>>();
+    // Symmetric value -> index of its group
+    private final HashMap<NetExpression.Symbol, Integer> mgroupof = new HashMap<NetExpression.Symbol, Integer>();
+    // Symmetric value -> index among all symmetric values, in declaration order
+    private final HashMap<NetExpression.Symbol, Integer> mindexof = new HashMap<NetExpression.Symbol, Integer>();
+
+    public Symmetry(StateSpaceNet pnet) {
+        mnet = pnet;
+    }
+
+    /**
+     * Declare all values of an enumeration color set as interchangeable.
+     *
+     * @param pcolset Name of a color set created by createEnumColset.
+     */
+    public void addEnumSymmetry(String pcolset) throws BadCPNDefinitionException {
+        ColourSet lset = enumSet(pcolset);
+        List<String> lvalues = new ArrayList<String>();
+        for (Object lmember : lset.getMembers()) {
+            lvalues.add(lmember.toString());
+        }
+        addEnumSymmetry(pcolset, lvalues);
+    }
+
+    /**
+     * Declare some values of an enumeration color set as interchangeable.
+     * The other values of the set are left unchanged by the permutations.
+     *
+     * @param pcolset Name of a color set created by createEnumColset.
+     * @param pvalues Interchangeable values of the color set.
+     */
+    public void addEnumSymmetry(String pcolset, Collection<String> pvalues) throws BadCPNDefinitionException {
+        ColourSet lset = enumSet(pcolset);
+
+        List<NetExpression.Symbol> lgroup = new ArrayList<NetExpression.Symbol>();
+        for (String lvalue : pvalues) {
+            NetExpression.Symbol lsymbol = new NetExpression.Symbol(lvalue);
+            if (!lset.getMembers().contains(lsymbol)) {
+                throw new BadCPNDefinitionException("Symmetry: " + lvalue + " is not a value of " + pcolset + ".");
+            }
+            if (mgroupof.containsKey(lsymbol) || lgroup.contains(lsymbol)) {
+                throw new BadCPNDefinitionException("Symmetry: " + lvalue + " is declared twice.");
+            }
+            lgroup.add(lsymbol);
+        }
+
+        // A single value has no non-trivial permutation
+        if (lgroup.size() < 2) {
+            return;
+        }
+
+        checkExpressions(lgroup);
+
+        for (NetExpression.Symbol lsymbol : lgroup) {
+            mgroupof.put(lsymbol, mgroups.size());
+            mindexof.put(lsymbol, mindexof.size());
+        }
+        mgroups.add(Collections.unmodifiableList(lgroup));
+    }
+
+    private ColourSet enumSet(String pcolset) {
+        ColourSet lset = mnet.getColourSets().get(pcolset);
+        if (lset == null || lset.getKind() != ColourSet.Kind.ENUM) {
+            throw new BadCPNDefinitionException("Symmetry: " + pcolset + " is not an enumeration color set.");
+        }
+        return lset;
+    }
+
+    /**
+     * Arc expressions and guards must not tell symmetric values apart,
+     * i.e., they may not mention them as constants, nor compare them by order.
+     */
+    private void checkExpressions(List<NetExpression.Symbol> pgroup) {
+        Set<String> lnames = new HashSet<String>();
+        for (NetExpression.Symbol lsymbol : pgroup) {
+            lnames.add(lsymbol.getName());
+        }
+
+        for (int t = 0; t < mnet.getTransitionCount(); t++) {
+            List<NetExpression> lexpressions = new ArrayList<NetExpression>();
+            for (int i = 0; i < mnet.getInputArcCount(t); i++) {
+                lexpressions.add(mnet.getInputExpression(t, i));
+            }
+            for (int i = 0; i < mnet.getOutputArcCount(t); i++) {
+                lexpressions.add(mnet.getOutputExpression(t, i));
+            }
+            if (mnet.getGuard(t) != null) {
+                lexpressions.add(mnet.getGuard(t));
+            }
+
+            for (NetExpression lexpression : lexpressions) {
+                String lproblem = breaksSymmetry(lexpression, lnames);
+                if (lproblem != null) {
+                    throw new BadCPNDefinitionException("Symmetry: transition " + mnet.getTransitionId(t)
+                            + " is not symmetric, " + lproblem + " in " + lexpression + ".");
+                }
+            }
+        }
+    }
+
+    private String breaksSymmetry(NetExpression pexpr, Set<String> pnames) {
+        if (pexpr instanceof NetExpression.Identifier) {
+            String lname = ((NetExpression.Identifier) pexpr).getName();
+            return (pnames.contains(lname) && !mnet.getVariables().containsKey(lname)) ? "uses constant " + lname : null;
+        }
+
+        List<NetExpression> lchildren = new ArrayList<NetExpression>();
+        if (pexpr instanceof NetExpression.Binary) {
+            NetExpression.Binary lbinary = (NetExpression.Binary) pexpr;
+            String lop = lbinary.getOperator();
+            if (("<".equals(lop) || ">".equals(lop) || "<=".equals(lop) || ">=".equals(lop))
+                    && !(isInteger(lbinary.getLeft()) && isInteger(lbinary.getRight()))) {
+                return "compares values by order";
+            }
+            lchildren.add(lbinary.getLeft());
+            lchildren.add(lbinary.getRight());
+        } else if (pexpr instanceof NetExpression.Unary) {
+            lchildren.add(((NetExpression.Unary) pexpr).getOperand());
+        } else if (pexpr instanceof NetExpression.Coefficient) {
+            lchildren.add(((NetExpression.Coefficient) pexpr).getAmount());
+            lchildren.add(((NetExpression.Coefficient) pexpr).getTerm());
+        } else if (pexpr instanceof NetExpression.Sum) {
+            lchildren.addAll(((NetExpression.Sum) pexpr).getTerms());
+        } else if (pexpr instanceof NetExpression.Tuple) {
+            lchildren.addAll(((NetExpression.Tuple) pexpr).getItems());
+        } else if (pexpr instanceof NetExpression.GuardList) {
+            lchildren.addAll(((NetExpression.GuardList) pexpr).getItems());
+        }
+
+        for (NetExpression lchild : lchildren) {
+            String lproblem = breaksSymmetry(lchild, pnames);
+            if (lproblem != null) {
+                return lproblem;
+            }
+        }
+        return null;
+    }
+
+    // Integer literals and variables of integer color sets
+    private boolean isInteger(NetExpression pexpr) {
+        if (pexpr instanceof NetExpression.Constant) {
+            return pexpr.evaluate(null) instanceof Integer;
+        }
+        if (pexpr instanceof NetExpression.Identifier) {
+            ColourSet lset = mnet.getColourSets().get(String.valueOf(mnet.getVariables().get(((NetExpression.Identifier) pexpr).getName())));
+            return lset != null && lset.getKind() == ColourSet.Kind.INT;
+        }
+        return pexpr instanceof NetExpression.Binary || pexpr instanceof NetExpression.Unary;
+    }
+
+    /**
+     * Whether any symmetry was declared.
+     */
+    public boolean isEmpty() {
+        return mgroups.isEmpty();
+    }
+
+    /**
+     * Representative of the orbit of a marking.
+     *
+     * @param pmarking Any marking of the net.
+     * @return A marking of the same orbit. Equal for all markings of the orbit when tokens
+     * contain at most one symmetric value.
+     */
+    public Marking canonical(Marking pmarking) {
+        if (mgroups.isEmpty()) {
+            return pmarking;
+        }
+
+        // Signatures of the symmetric values: one entry per occurrence in a token
+        final long[][] lsignatures = new long[mindexof.size()][];
+        final int[] llengths = new int[mindexof.size()];
+        boolean lsymmetric = false;
+        boolean[] laffected = new boolean[pmarking.getPlaceCount()];
+        List<NetExpression.Symbol> loccurrences = new ArrayList<NetExpression.Symbol>();
+        for (int p = 0; p < pmarking.getPlaceCount(); p++) {
+            for (int c = 0; c < pmarking.distinct(p); c++) {
+                Object lcolour = pmarking.colour(p, c);
+                loccurrences.clear();
+                collectSymmetric(lcolour, loccurrences);
+                if (loccurrences.isEmpty()) {
+                    continue;
+                }
+
+                laffected[p] = true;
+                lsymmetric = true;
+                for (NetExpression.Symbol lsymbol : loccurrences) {
+                    int lindex = mindexof.get(lsymbol);
+                    long[] lsignature = lsignatures[lindex];
+                    if (lsignature == null) {
+                        lsignature = new long[4];
+                    } else if (llengths[lindex] == lsignature.length) {
+                        lsignature = Arrays.copyOf(lsignature, 2 * lsignature.length);
+                    }
+                    lsignatures[lindex] = lsignature;
+                    int lshape = 31 * shape(lcolour, lsymbol) + pmarking.multiplicity(p, c);
+                    lsignature[llengths[lindex]++] = ((long) p << 32) | (lshape & 0xffffffffL);
+                }
+            }
+        }
+
+        if (!lsymmetric) {
+            return pmarking;
+        }
+        for (int i = 0; i < lsignatures.length; i++) {
+            if (lsignatures[i] != null) {
+                Arrays.sort(lsignatures[i], 0, llengths[i]);
+            }
+        }
+
+        // Sort the values of each group by signature, and map the i-th value to the i-th declared one
+        HashMap<NetExpression.Symbol, NetExpression.Symbol> lpermutation = new HashMap<NetExpression.Symbol, NetExpression.Symbol>();
+        for (List<NetExpression.Symbol> lgroup : mgroups) {
+            List<NetExpression.Symbol> lsorted = new ArrayList<NetExpression.Symbol>(lgroup);
+            // Stable sort: ties keep the declaration order
+            Collections.sort(lsorted, new Comparator<NetExpression.Symbol>() {
+                public int compare(NetExpression.Symbol ps1, NetExpression.Symbol ps2) {
+                    int li1 = mindexof.get(ps1);
+                    int li2 = mindexof.get(ps2);
+                    return compareSignatures(lsignatures[li1], llengths[li1], lsignatures[li2], llengths[li2]);
+                }
+            });
+            for (int i = 0; i < lsorted.size(); i++) {
+                if (!lsorted.get(i).equals(lgroup.get(i))) {
+                    lpermutation.put(lsorted.get(i), lgroup.get(i));
+                }
+            }
+        }
+
+        if (lpermutation.isEmpty()) {
+            return pmarking;
+        }
+
+        // Apply the permutation to the places containing symmetric values
+        Marking.Builder lbuilder = new Marking.Builder(pmarking);
+        for (int p = 0; p < pmarking.getPlaceCount(); p++) {
+            if (!laffected[p]) {
+                continue;
+            }
+
+            int ldistinct = pmarking.distinct(p);
+            final Object[] lcolours = new Object[ldistinct];
+            final int[] lcounts = new int[ldistinct];
+            Integer[] lorder = new Integer[ldistinct];
+            for (int c = 0; c < ldistinct; c++) {
+                lcolours[c] = permute(pmarking.colour(p, c), lpermutation);
+                lcounts[c] = pmarking.multiplicity(p, c);
+                lorder[c] = c;
+            }
+            Arrays.sort(lorder, new Comparator<Integer>() {
+                public int compare(Integer pi1, Integer pi2) {
+                    return NetExpression.COLOUR_ORDER.compare(lcolours[pi1], lcolours[pi2]);
+                }
+            });
+
+            Object[] lsortedcolours = new Object[ldistinct];
+            int[] lsortedcounts = new int[ldistinct];
+            for (int c = 0; c < ldistinct; c++) {
+                lsortedcolours[c] = lcolours[lorder[c]];
+                lsortedcounts[c] = lcounts[lorder[c]];
+            }
+            lbuilder.set(p, lsortedcolours, lsortedcounts);
+        }
+
+        return lbuilder.build();
+    }
+
+    private void collectSymmetric(Object pcolour, List<NetExpression.Symbol> pout) {
+        if (pcolour instanceof NetExpression.Symbol) {
+            if (mgroupof.containsKey(pcolour)) {
+                pout.add((NetExpression.Symbol) pcolour);
+            }
+        } else if (pcolour instanceof List) {
+            for (Object litem : (List<?>) pcolour) {
+                collectSymmetric(litem, pout);
+            }
+        }
+    }
+
+    // Lexicographic order of sorted signatures, a prefix first
+    private static int compareSignatures(long[] ps1, int plength1, long[] ps2, int plength2) {
+        int llength = Math.min(plength1, plength2);
+        for (int i = 0; i < llength; i++) {
+            if (ps1[i] != ps2[i]) {
+                return (ps1[i] < ps2[i]) ? -1 : 1;
+            }
+        }
+        return plength1 - plength2;
+    }
+
+    // Hash of the token with the value replaced by a marker, and other symmetric values by their group
+    private int shape(Object pcolour, NetExpression.Symbol pvalue) {
+        if (pcolour instanceof NetExpression.Symbol && mgroupof.containsKey(pcolour)) {
+            return pcolour.equals(pvalue) ? -1 : mgroupof.get(pcolour);
+        }
+        if (pcolour instanceof List) {
+            int lhash = 1;
+            for (Object litem : (List<?>) pcolour) {
+                lhash = 31 * lhash + shape(litem, pvalue);
+            }
+            return lhash;
+        }
+        return pcolour.hashCode();
+    }
+
+    private static Object permute(Object pcolour, Map<NetExpression.Symbol, NetExpression.Symbol> ppermutation) {
+        if (pcolour instanceof NetExpression.Symbol) {
+            NetExpression.Symbol lmapped = ppermutation.get(pcolour);
+            return (lmapped == null) ? pcolour : lmapped;
+        }
+        if (pcolour instanceof List) {
+            List<Object> litems = new ArrayList<Object>(((List<?>) pcolour).size());
+            for (Object litem : (List<?>) pcolour) {
+                litems.add(permute(litem, ppermutation));
+            }
+            return Collections.unmodifiableList(litems);
+        }
+        return pcolour;
+    }
+}
@@ -0,0 +1,628 @@
+/*
+* Temporal logic formulas over the markings of a StateSpaceNet, checked by
+* CTLChecker and LTLChecker.
+*
+* Syntax, from lowest to highest precedence:
+*   f -> g               implication (right associative)
+*   f || g, f && g       disjunction, conjunction
+*   f U g, f R g         LTL until and release (right associative)
+*   !f, X f, F f, G f    negation and LTL next, eventually, always
+*   EX f, AX f, EF f, AF f, EG f, AG f, E[f U g], A[f U g]   CTL operators
+*   true, false, (f)
+* Atomic propositions name places and transitions by their <text> labels,
+* quoted if they are not identifiers:
+*   marked(p)            some place labelled p contains tokens
+*   tokens(p) OP n       total amount of tokens in places labelled p, OP in = <> < > <= >=
+*   contains(p, v)       places labelled p contain the colour v, e.g. contains(busy, (p1,2))
+*   enabled(t)           some transition labelled t is enabled
+*   fired(t)             the state was entered by firing a transition labelled t (LTL only)
+*   dead                 no transition is enabled
+* Maximal finite paths are extended by repeating their dead state forever.
+*/
+
+package stave.cpntools;
+
+import java.util.ArrayList;
+import java.util.List;
+
+public abstract class TemporalFormula {
+
+    /**
+     * Thrown when the text of a formula is not well formed.
+     */
+    public static class FormulaException extends RuntimeException {
+        private static final long serialVersionUID = 1L;
+
+        public FormulaException(String pmessage) {
+            super(pmessage);
+        }
+    }
+
+    public enum Operator {
+        TRUE, FALSE, ATOM, NOT, AND, OR, IMPLIES,
+        // LTL
+        NEXT, FINALLY, GLOBALLY, UNTIL, RELEASE,
+        // CTL
+        EX, AX, EF, AF, EG, AG, EU, AU
+    }
+
+    private final Operator mop;
+    private final TemporalFormula mleft;
+    private final TemporalFormula mright;
+    // Cached, used for equality
+    private String mtext;
+
+    TemporalFormula(Operator pop, TemporalFormula pleft, TemporalFormula pright) {
+        mop = pop;
+        mleft = pleft;
+        mright = pright;
+    }
+
+    public Operator getOperator() {
+        return mop;
+    }
+
+    /**
+     * The operand of unary operators, or the left operand of binary ones.
+     */
+    public TemporalFormula getLeft() {
+        return mleft;
+    }
+
+    public TemporalFormula getRight() {
+        return mright;
+    }
+
+    /**
+     * Whether the formula only uses CTL temporal operators.
+     */
+    public boolean isCTL() {
+        if (mop.ordinal() >= Operator.NEXT.ordinal() && mop.ordinal() <= Operator.RELEASE.ordinal()) {
+            return false;
+        }
+        if (this instanceof Atom && ((Atom) this).getKind() == Atom.Kind.FIRED) {
+            return false;
+        }
+        return (mleft == null || mleft.isCTL()) && (mright == null || mright.isCTL());
+    }
+
+    /**
+     * Whether the formula only uses LTL temporal operators.
+     */
+    public boolean isLTL() {
+        if (mop.ordinal() >= Operator.EX.ordinal()) {
+            return false;
+        }
+        return (mleft == null || mleft.isLTL()) && (mright == null || mright.isLTL());
+    }
+
+    @Override
+    public boolean equals(Object pother) {
+        return (pother instanceof TemporalFormula) && toString().equals(pother.toString());
+    }
+
+    @Override
+    public int hashCode() {
+        return toString().hashCode();
+    }
+
+    @Override
+    public String toString() {
+        if (mtext == null) {
+            mtext = text();
+        }
+        return mtext;
+    }
+
+    String text() {
+        switch (mop) {
+            case TRUE:
+                return "true";
+            case FALSE:
+                return "false";
+            case NOT:
+                return "!" + mleft;
+            case AND:
+                return "(" + mleft + " && " + mright + ")";
+            case OR:
+                return "(" + mleft + " || " + mright + ")";
+            case IMPLIES:
+                return "(" + mleft + " -> " + mright + ")";
+            case NEXT:
+                return "X " + mleft;
+            case FINALLY:
+                return "F " + mleft;
+            case GLOBALLY:
+                return "G " + mleft;
+            case UNTIL:
+                return "(" + mleft + " U " + mright + ")";
+            case RELEASE:
+                return "(" + mleft + " R " + mright + ")";
+            case EU:
+                return "E[" + mleft + " U " + mright + "]";
+            case AU:
+                return "A[" + mleft + " U " + mright + "]";
+            default:
+                return mop.name() + " " + mleft;
+        }
+    }
+
+    /**
+     * Atomic propositions
+     */
+    public static class Atom extends TemporalFormula {
+
+        public enum Kind {
+            MARKED, TOKENS, CONTAINS, ENABLED, FIRED, DEAD
+        }
+
+        private final Kind mkind;
+        private final String mname;
+        private final String mcomparison;
+        private final int mbound;
+        private final Object mcolour;
+
+        Atom(Kind pkind, String pname, String pcomparison, int pbound, Object pcolour) {
+            super(Operator.ATOM, null, null);
+            mkind = pkind;
+            mname = pname;
+            mcomparison = pcomparison;
+            mbound = pbound;
+            mcolour = pcolour;
+        }
+
+        public Kind getKind() {
+            return mkind;
+        }
+
+        /**
+         * Label of the places or transitions of this proposition.
+         */
+        public String getName() {
+            return mname;
+        }
+
+        /**
+         * Evaluate the proposition.
+         *
+         * @param pplaces      Places labelled by the name.
+         * @param ptransitions Transitions labelled by the name.
+         * @param pmarking     Current marking.
+         * @param penabled     Whether each transition is enabled in the marking.
+         * @param plast        Transition fired to reach the state, or -1.
+         */
+        boolean holds(List<Integer> pplaces, List<Integer> ptransitions, Marking pmarking, boolean[] penabled, int plast) {
+            switch (mkind) {
+                case MARKED:
+                    for (int lplace : pplaces) {
+                        if (!pmarking.isEmpty(lplace)) {
+                            return true;
+                        }
+                    }
+                    return false;
+                case TOKENS:
+                    int ltokens = 0;
+                    for (int lplace : pplaces) {
+                        ltokens += pmarking.size(lplace);
+                    }
+                    return compare(ltokens);
+                case CONTAINS:
+                    for (int lplace : pplaces) {
+                        if (pmarking.count(lplace, mcolour) > 0) {
+                            return true;
+                        }
+                    }
+                    return false;
+                case ENABLED:
+                    for (int ltrans : ptransitions) {
+                        if (penabled[ltrans]) {
+                            return true;
+                        }
+                    }
+                    return false;
+                case FIRED:
+                    return ptransitions.contains(plast);
+                default:
+                    for (boolean lenabled : penabled) {
+                        if (lenabled) {
+                            return false;
+                        }
+                    }
+                    return true;
+            }
+        }
+
+        private boolean compare(int pvalue) {
+            if ("=".equals(mcomparison)) {
+                return pvalue == mbound;
+            }
+            if ("<>".equals(mcomparison)) {
+                return pvalue != mbound;
+            }
+            if ("<".equals(mcomparison)) {
+                return pvalue < mbound;
+            }
+            if (">".equals(mcomparison)) {
+                return pvalue > mbound;
+            }
+            if ("<=".equals(mcomparison)) {
+                return pvalue <= mbound;
+            }
+            return pvalue >= mbound;
+        }
+
+        String text() {
+            String lname = "\"" + mname + "\"";
+            switch (mkind) {
+                case MARKED:
+                    return "marked(" + lname + ")";
+                case TOKENS:
+                    return "tokens(" + lname + ") " + mcomparison + " " + mbound;
+                case CONTAINS:
+                    return "contains(" + lname + ", " + NetExpression.colourToString(mcolour) + ")";
+                case ENABLED:
+                    return "enabled(" + lname + ")";
+                case FIRED:
+                    return "fired(" + lname + ")";
+                default:
+                    return "dead";
+            }
+        }
+    }
+
+    /* Begin: constructors */
+
+    public static TemporalFormula constant(boolean pvalue) {
+        return new Node(pvalue ? Operator.TRUE : Operator.FALSE, null, null);
+    }
+
+    public static TemporalFormula marked(String pplace) {
+        return new Atom(Atom.Kind.MARKED, pplace, null, 0, null);
+    }
+
+    public static TemporalFormula tokens(String pplace, String pcomparison, int pbound) {
+        return new Atom(Atom.Kind.TOKENS, pplace, pcomparison, pbound, null);
+    }
+
+    public static TemporalFormula contains(String pplace, Object pcolour) {
+        return new Atom(Atom.Kind.CONTAINS, pplace, null, 0, pcolour);
+    }
+
+    public static TemporalFormula enabled(String ptransition) {
+        return new Atom(Atom.Kind.ENABLED, ptransition, null, 0, null);
+    }
+
+    public static TemporalFormula fired(String ptransition) {
+        return new Atom(Atom.Kind.FIRED, ptransition, null, 0, null);
+    }
+
+    public static TemporalFormula dead() {
+        return new Atom(Atom.Kind.DEAD, "", null, 0, null);
+    }
+
+    public static TemporalFormula unary(Operator pop, TemporalFormula poperand) {
+        return new Node(pop, poperand, null);
+    }
+
+    public static TemporalFormula binary(Operator pop, TemporalFormula pleft, TemporalFormula pright) {
+        return new Node(pop, pleft, pright);
+    }
+
+    public static TemporalFormula not(TemporalFormula poperand) {
+        return unary(Operator.NOT, poperand);
+    }
+
+    public static TemporalFormula and(TemporalFormula pleft, TemporalFormula pright) {
+        return binary(Operator.AND, pleft, pright);
+    }
+
+    public static TemporalFormula or(TemporalFormula pleft, TemporalFormula pright) {
+        return binary(Operator.OR, pleft, pright);
+    }
+
+    static class Node extends TemporalFormula {
+        Node(Operator pop, TemporalFormula pleft, TemporalFormula pright) {
+            super(pop, pleft, pright);
+        }
+    }
+
+    /* End: constructors */
+
+    /**
+     * Negation normal form of an LTL formula, using only TRUE, FALSE, ATOM, NOT (of atoms),
+     * AND, OR, NEXT, UNTIL and RELEASE.
+     *
+     * @param pnegate Whether to compute the normal form of the negation of the formula.
+     */
+    TemporalFormula toNegationNormalForm(boolean pnegate) {
+        switch (mop) {
+            case TRUE:
+            case FALSE:
+                return constant((mop == Operator.TRUE) != pnegate);
+            case ATOM:
+                return pnegate ? not(this) : this;
+            case NOT:
+                return mleft.toNegationNormalForm(!pnegate);
+            case AND:
+            case OR:
+                Operator lop = ((mop == Operator.AND) != pnegate) ? Operator.AND : Operator.OR;
+                return binary(lop, mleft.toNegationNormalForm(pnegate), mright.toNegationNormalForm(pnegate));
+            case IMPLIES:
+                return binary(Operator.OR, not(mleft), mright).toNegationNormalForm(pnegate);
+            case NEXT:
+                return unary(Operator.NEXT, mleft.toNegationNormalForm(pnegate));
+            case FINALLY:
+                return binary(Operator.UNTIL, constant(true), mleft).toNegationNormalForm(pnegate);
+            case GLOBALLY:
+                return binary(Operator.RELEASE, constant(false), mleft).toNegationNormalForm(pnegate);
+            case UNTIL:
+            case RELEASE:
+                Operator ltemporal = ((mop == Operator.UNTIL) != pnegate) ? Operator.UNTIL : Operator.RELEASE;
+                return binary(ltemporal, mleft.toNegationNormalForm(pnegate), mright.toNegationNormalForm(pnegate));
+            default:
+                throw new FormulaException("CTL operator in LTL formula " + this + ".");
+        }
+    }
+
+    /**
+     * All atomic propositions of the formula.
+     */
+    List<Atom> atoms() {
+        List<Atom> latoms = new ArrayList<Atom>();
+        collectAtoms(latoms);
+        return latoms;
+    }
+
+    private void collectAtoms(List<Atom> pout) {
+        if (this instanceof Atom) {
+            pout.add((Atom) this);
+        }
+        if (mleft != null) {
+            mleft.collectAtoms(pout);
+        }
+        if (mright != null) {
+            mright.collectAtoms(pout);
+        }
+    }
+
+    /**
+     * Parse a formula. See the syntax at the top of this file.
+     */
+    public static TemporalFormula parse(String ptext) throws FormulaException {
+        Parser lparser = new Parser(ptext);
+        TemporalFormula lformula = lparser.parseImplication();
+        if (lparser.mtoken != null) {
+            throw lparser.error("Unexpected '" + lparser.mtoken + "'");
+        }
+        return lformula;
+    }
+
+    private static class Parser {
+        private final String mtext;
+        private int mpos = 0;
+        private int mtokenstart = 0;
+        private String mtoken;
+        private boolean mquoted;
+        // Inside E[...] or A[...], U belongs to the path quantifier
+        private boolean mpathuntil = false;
+
+        Parser(String ptext) {
+            mtext = ptext;
+            next();
+        }
+
+        TemporalFormula parseImplication() {
+            TemporalFormula lleft = parseOr();
+            if (accept("->")) {
+                return binary(Operator.IMPLIES, lleft, parseImplication());
+            }
+            return lleft;
+        }
+
+        private TemporalFormula parseOr() {
+            TemporalFormula lleft = parseAnd();
+            while (accept("||")) {
+                lleft = or(lleft, parseAnd());
+            }
+            return lleft;
+        }
+
+        private TemporalFormula parseAnd() {
+            TemporalFormula lleft = parseUntil();
+            while (accept("&&")) {
+                lleft = and(lleft, parseUntil());
+            }
+            return lleft;
+        }
+
+        private TemporalFormula parseUntil() {
+            TemporalFormula lleft = parseUnary();
+            if (mpathuntil) {
+                return lleft;
+            }
+            if (accept("U")) {
+                return binary(Operator.UNTIL, lleft, parseUntil());
+            }
+            if (accept("R")) {
+                return binary(Operator.RELEASE, lleft, parseUntil());
+            }
+            return lleft;
+        }
+
+        private TemporalFormula parseUnary() {
+            if (accept("!")) {
+                return not(parseUnary());
+            }
+            String[] lprefixes = {"X", "F", "G", "EX", "AX", "EF", "AF", "EG", "AG"};
+            Operator[] loperators = {Operator.NEXT, Operator.FINALLY, Operator.GLOBALLY, Operator.EX, Operator.AX,
+                    Operator.EF, Operator.AF, Operator.EG, Operator.AG};
+            for (int i = 0; i < lprefixes.length; i++) {
+                if (accept(lprefixes[i])) {
+                    return unary(loperators[i], parseUnary());
+                }
+            }
+            if (mtoken != null && !mquoted && ("E".equals(mtoken) || "A".equals(mtoken))) {
+                Operator lop = "E".equals(mtoken) ? Operator.EU : Operator.AU;
+                next();
+                expect("[");
+                boolean lsaved = mpathuntil;
+                mpathuntil = true;
+                TemporalFormula lleft = parseImplication();
+                expect("U");
+                TemporalFormula lright = parseImplication();
+                expect("]");
+                mpathuntil = lsaved;
+                return binary(lop, lleft, lright);
+            }
+            return parsePrimary();
+        }
+
+        private TemporalFormula parsePrimary() {
+            if (accept("(")) {
+                boolean lsaved = mpathuntil;
+                mpathuntil = false;
+                TemporalFormula lformula = parseImplication();
+                expect(")");
+                mpathuntil = lsaved;
+                return lformula;
+            }
+            if (accept("true")) {
+                return constant(true);
+            }
+            if (accept("false")) {
+                return constant(false);
+            }
+            if (accept("dead")) {
+                return dead();
+            }
+            if (accept("marked")) {
+                return marked(parseArgument());
+            }
+            if (accept("enabled")) {
+                return enabled(parseArgument());
+            }
+            if (accept("fired")) {
+                return fired(parseArgument());
+            }
+            if (accept("tokens")) {
+                String lname = parseArgument();
+                String lcomparison = mtoken;
+                if (!("=".equals(lcomparison) || "<>".equals(lcomparison) || "<".equals(lcomparison)
+                        || ">".equals(lcomparison) || "<=".equals(lcomparison) || ">=".equals(lcomparison))) {
+                    throw error("Expected a comparison");
+                }
+                next();
+                try {
+                    int lbound = Integer.parseInt(mtoken);
+                    next();
+                    return tokens(lname, lcomparison, lbound);
+                } catch (NumberFormatException e) {
+                    throw error("Expected an integer");
+                }
+            }
+            if (accept("contains")) {
+                expect("(");
+                String lname = parseName();
+                expect(",");
+                // The colour is CPN ML text up to the closing parenthesis
+                int ldepth = 0;
+                int lstart = mtokenstart;
+                int lend = lstart;
+                while (lend < mtext.length() && (ldepth > 0 || mtext.charAt(lend) != ')')) {
+                    if (mtext.charAt(lend) == '(') {
+                        ldepth++;
+                    } else if (mtext.charAt(lend) == ')') {
+                        ldepth--;
+                    }
+                    lend++;
+                }
+                Object lcolour;
+                try {
+                    lcolour = NetExpression.parse(mtext.substring(lstart, lend)).evaluate(null);
+                } catch (NetExpression.ExpressionException e) {
+                    throw error("Bad colour: " + e.getMessage());
+                }
+                mpos = lend;
+                next();
+                expect(")");
+                return contains(lname, lcolour);
+            }
+            throw error((mtoken == null) ? "Unexpected end of formula" : "Unexpected '" + mtoken + "'");
+        }
+
+        private String parseArgument() {
+            expect("(");
+            String lname = parseName();
+            expect(")");
+            return lname;
+        }
+
+        private String parseName() {
+            if (mtoken == null) {
+                throw error("Expected a name");
+            }
+            String lname = mtoken;
+            next();
+            return lname;
+        }
+
+        private boolean accept(String ptoken) {
+            if (mtoken != null && !mquoted && ptoken.equals(mtoken)) {
+                next();
+                return true;
+            }
+            return false;
+        }
+
+        private void expect(String ptoken) {
+            if (!accept(ptoken)) {
+                throw error("Expected '" + ptoken + "'");
+            }
+        }
+
+        private FormulaException error(String pmessage) {
+            return new FormulaException(pmessage + " at position " + mpos + " of \"" + mtext + "\".");
+        }
+
+        private void next() {
+            int llength = mtext.length();
+            while (mpos < llength && Character.isWhitespace(mtext.charAt(mpos))) {
+                mpos++;
+            }
+            mquoted = false;
+            mtokenstart = mpos;
+            if (mpos >= llength) {
+                mtoken = null;
+                return;
+            }
+
+            int lstart = mpos;
+            char lchar = mtext.charAt(mpos);
+            if (lchar == '"') {
+                int lend = mtext.indexOf('"', mpos + 1);
+                if (lend < 0) {
+                    throw error("Unterminated name");
+                }
+                mtoken = mtext.substring(mpos + 1, lend);
+                mpos = lend + 1;
+                mquoted = true;
+                return;
+            }
+            if (Character.isLetterOrDigit(lchar) || lchar == '_') {
+                while (mpos < llength && (Character.isLetterOrDigit(mtext.charAt(mpos)) || mtext.charAt(mpos) == '_'
+                        || mtext.charAt(mpos) == '\'')) {
+                    mpos++;
+                }
+            } else {
+                String ltwo = (mpos + 1 < llength) ? mtext.substring(mpos, mpos + 2) : "";
+                if ("->".equals(ltwo) || "||".equals(ltwo) || "&&".equals(ltwo) || "<>".equals(ltwo)
+                        || "<=".equals(ltwo) || ">=".equals(ltwo)) {
+                    mpos += 2;
+                } else {
+                    mpos++;
+                }
+            }
+            mtoken = mtext.substring(lstart, mpos);
+        }
+    }
+}
@@ -0,0 +1,56 @@
+/*
+* Handle of a transition declared with a NetBuilder: the index of the transition in the
+* tables of the builder. The element exists in the DOM only after build().
+*/
+
+package stave.cpntools;
+
+import org.w3c.dom.Element;
+
+public final class TransRef {
+
+    final NetBuilder mbuilder;
+    final int mindex;
+
+    TransRef(NetBuilder pbuilder, int pindex) {
+        mbuilder = pbuilder;
+        mindex = pindex;
+    }
+
+    /**
+     * Position of the transition in the order of declaration.
+     */
+    public int index() {
+        return mindex;
+    }
+
+    /**
+     * Id of the transition element, after build().
+     */
+    public String id() {
+        return mbuilder.transitionId(mindex);
+    }
+
+    /**
+     * The transition element, after build().
+     */
+    public Element element() {
+        return mbuilder.element(id());
+    }
+
+    @Override
+    public boolean equals(Object pother) {
+        return (pother instanceof TransRef) && ((TransRef) pother).mbuilder == mbuilder
+                && ((TransRef) pother).mindex == mindex;
+    }
+
+    @Override
+    public int hashCode() {
+        return mindex;
+    }
+
+    @Override
+    public String toString() {
+        return "TransRef(" + mindex + ")";
+    }
+}
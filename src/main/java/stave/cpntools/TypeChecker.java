@@ -0,0 +1,347 @@
+/*
+* Static type checking of the inscriptions of a net against the colour sets
+* and variables declared in the globbox: initial markings and arc
+* expressions must be multisets of the colour set of their place, and guards
+* must be boolean. The expressions are parsed with NetExpression, and the
+* syntax trees and results are cached by text, so an inscription repeated
+* over the net is parsed and checked once.
+*
+* Colour sets are compared by structure, as in CPN ML: integer, boolean and
+* unit sets are compatible with the sets of the same kind, enumerations only
+* with themselves, and products component by component. Expressions that
+* involve colour sets of other kinds (e.g. strings or lists) are accepted.
+*/
+
+package stave.cpntools;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Hashtable;
+import java.util.List;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+
+public class TypeChecker extends BaseCPNCommunication {
+
+    // Problems reported in the exception thrown by check()
+    private static final int REPORTED_PROBLEMS = 10;
+
+    // Types of literals and operators, which are not declared in the globbox
+    private static final ColourSet INT = literal("int", ColourSet.Kind.INT);
+    private static final ColourSet BOOL = literal("bool", ColourSet.Kind.BOOL);
+    private static final ColourSet UNIT = literal("unit", ColourSet.Kind.UNIT);
+
+    private final Document mdocument;
+    private Hashtable<String, ColourSet> msets;
+    private Hashtable<String, String> mvariables;
+    // Text -> syntax tree, or the parse error
+    private final HashMap<String, Object> mparsed = new HashMap<String, Object>();
+    // Colour set and text -> error, or "" if the text is well typed
+    private final HashMap<String, String> mchecked = new HashMap<String, String>();
+    private List<String> mproblems;
+
+    public TypeChecker(Document pdocument) {
+        mdocument = pdocument;
+    }
+
+    /**
+     * Check all places, arcs and transitions of the document.
+     *
+     * @return Description of each type error found, empty if the net is well typed.
+     */
+    public List<String> validate() {
+        Element lglobbox = StateSpaceNet.firstChild(StateSpaceNet.firstChild(mdocument.getDocumentElement(), "cpnet"),
+                "globbox");
+        msets = ColourSet.readDeclarations(lglobbox);
+        mvariables = ColourSet.readVariables(lglobbox);
+        mchecked.clear();
+        mproblems = new ArrayList<String>();
+
+        for (Element lpage : StateSpaceNet.children(StateSpaceNet.firstChild(mdocument.getDocumentElement(), "cpnet"),
+                "page")) {
+            HashMap<String, ColourSet> lplaces = new HashMap<String, ColourSet>();
+            for (Element lplace : StateSpaceNet.children(lpage, "place")) {
+                String lname = StateSpaceNet.childText(lplace, "text");
+                String ltype = inscription(lplace, "type");
+                ColourSet lset = msets.get(ltype);
+                if (lset == null) {
+                    problem("Place " + lname + " has undeclared colour set " + ltype + ".");
+                }
+                lplaces.put(lplace.getAttribute("id"), lset);
+                checkInscription(inscription(lplace, "initmark"), lset,
+                        "Initial marking of place " + lname);
+            }
+            // Inscriptions of the arcs of substitution transitions are not used by CPN Tools
+            HashSet<String> lsubstitutions = new HashSet<String>();
+            for (Element ltrans : StateSpaceNet.children(lpage, "trans")) {
+                if (StateSpaceNet.firstChild(ltrans, "subst") != null) {
+                    lsubstitutions.add(ltrans.getAttribute("id"));
+                    continue;
+                }
+                checkInscription(inscription(ltrans, "cond"), null,
+                        "Guard of transition " + StateSpaceNet.childText(ltrans, "text"));
+            }
+            for (Element larc : StateSpaceNet.children(lpage, "arc")) {
+                Element lend = StateSpaceNet.firstChild(larc, "placeend");
+                Element ltransend = StateSpaceNet.firstChild(larc, "transend");
+                ColourSet lset = (lend == null) ? null : lplaces.get(lend.getAttribute("idref"));
+                if (lset != null && (ltransend == null || !lsubstitutions.contains(ltransend.getAttribute("idref")))) {
+                    checkInscription(inscription(larc, "annot"), lset,
+                            "Expression of arc " + larc.getAttribute("id"));
+                }
+            }
+        }
+        return mproblems;
+    }
+
+    /**
+     * Check the document, and throw an exception describing the first type errors found.
+     */
+    public void check() {
+        List<String> lproblems = validate();
+        if (lproblems.isEmpty()) {
+            return;
+        }
+        StringBuilder lmessage = new StringBuilder("TypeChecker: " + lproblems.size() + " problems.");
+        for (int i = 0; i < Math.min(lproblems.size(), REPORTED_PROBLEMS); i++) {
+            lmessage.append("\n  ").append(lproblems.get(i));
+        }
+        throw new BadCPNDefinitionException(lmessage.toString());
+    }
+
+    /**
+     * Parse an inscription, reusing the tree of a previous identical text.
+     */
+    public NetExpression parse(String ptext) throws NetExpression.ExpressionException {
+        Object lparsed = mparsed.get(ptext);
+        if (lparsed == null) {
+            try {
+                lparsed = NetExpression.parse(ptext);
+            } catch (NetExpression.ExpressionException e) {
+                lparsed = e;
+            }
+            mparsed.put(ptext, lparsed);
+        }
+        if (lparsed instanceof NetExpression.ExpressionException) {
+            throw (NetExpression.ExpressionException) lparsed;
+        }
+        return (NetExpression) lparsed;
+    }
+
+    // A multiset of pset, or a guard if pset is null
+    private void checkInscription(String ptext, ColourSet pset, String pcontext) {
+        if (ptext.length() == 0) {
+            return;
+        }
+        String lkey = ((pset == null) ? "" : pset.getName()) + "\u0000" + ptext;
+        String lerror = mchecked.get(lkey);
+        if (lerror == null) {
+            try {
+                NetExpression lexpression = parse(ptext);
+                if (pset == null) {
+                    checkGuard(lexpression);
+                } else {
+                    checkMultiset(lexpression, pset);
+                }
+                lerror = "";
+            } catch (NetExpression.ExpressionException e) {
+                lerror = e.getMessage();
+            }
+            mchecked.put(lkey, lerror);
+        }
+        if (lerror.length() > 0) {
+            problem(pcontext + ": " + lerror);
+        }
+    }
+
+    private void checkGuard(NetExpression pexpression) {
+        if (pexpression instanceof NetExpression.GuardList) {
+            for (NetExpression litem : ((NetExpression.GuardList) pexpression).getItems()) {
+                expect(litem, BOOL);
+            }
+        } else {
+            expect(pexpression, BOOL);
+        }
+    }
+
+    private void checkMultiset(NetExpression pexpression, ColourSet pset) {
+        if (pexpression instanceof NetExpression.Sum) {
+            for (NetExpression lterm : ((NetExpression.Sum) pexpression).getTerms()) {
+                checkMultiset(lterm, pset);
+            }
+        } else if (pexpression instanceof NetExpression.Coefficient) {
+            expect(((NetExpression.Coefficient) pexpression).getAmount(), INT);
+            expect(((NetExpression.Coefficient) pexpression).getTerm(), pset);
+        } else if (!(pexpression instanceof NetExpression.Empty)) {
+            expect(pexpression, pset);
+        }
+    }
+
+    // Check that an expression has a value of the given set
+    private void expect(NetExpression pexpression, ColourSet pset) {
+        if (pset.getKind() == ColourSet.Kind.OTHER) {
+            return;
+        }
+        if (pexpression instanceof NetExpression.Tuple) {
+            List<NetExpression> litems = ((NetExpression.Tuple) pexpression).getItems();
+            if (pset.getKind() != ColourSet.Kind.PRODUCT || pset.getComponents().size() != litems.size()) {
+                throw mismatch(pexpression, pset);
+            }
+            for (int i = 0; i < litems.size(); i++) {
+                ColourSet lcomponent = msets.get(pset.getComponents().get(i));
+                if (lcomponent != null) {
+                    expect(litems.get(i), lcomponent);
+                }
+            }
+            return;
+        }
+        if (pexpression instanceof NetExpression.Identifier
+                && !mvariables.containsKey(((NetExpression.Identifier) pexpression).getName())) {
+            // An enumeration constant
+            NetExpression.Symbol lsymbol = new NetExpression.Symbol(((NetExpression.Identifier) pexpression).getName());
+            if (pset.getKind() != ColourSet.Kind.ENUM || !pset.getMembers().contains(lsymbol)) {
+                throw new NetExpression.ExpressionException(
+                        lsymbol + " is neither a declared variable nor a value of " + pset.getName() + ".");
+            }
+            return;
+        }
+        ColourSet ltype = typeOf(pexpression);
+        if (!compatible(ltype, pset)) {
+            throw mismatch(pexpression, pset);
+        }
+    }
+
+    // Type of an expression, or null if unknown. Identifiers are variables here.
+    private ColourSet typeOf(NetExpression pexpression) {
+        if (pexpression instanceof NetExpression.Constant) {
+            Object lvalue = pexpression.evaluate(null);
+            if (lvalue instanceof Integer) {
+                return INT;
+            }
+            if (lvalue instanceof Boolean) {
+                return BOOL;
+            }
+            return NetExpression.UNIT.equals(lvalue) ? UNIT : null;
+        }
+        if (pexpression instanceof NetExpression.Identifier) {
+            String lname = ((NetExpression.Identifier) pexpression).getName();
+            String lset = mvariables.get(lname);
+            if (lset == null) {
+                return null;
+            }
+            ColourSet ltype = msets.get(lset);
+            if (ltype == null) {
+                throw new NetExpression.ExpressionException("Variable " + lname + " has undeclared colour set " + lset
+                        + ".");
+            }
+            return ltype;
+        }
+        if (pexpression instanceof NetExpression.Unary) {
+            NetExpression.Unary lunary = (NetExpression.Unary) pexpression;
+            ColourSet ltype = "not".equals(lunary.getOperator()) ? BOOL : INT;
+            expect(lunary.getOperand(), ltype);
+            return ltype;
+        }
+        if (pexpression instanceof NetExpression.Binary) {
+            return typeOfBinary((NetExpression.Binary) pexpression);
+        }
+        if (pexpression instanceof NetExpression.Sum || pexpression instanceof NetExpression.Coefficient
+                || pexpression instanceof NetExpression.Empty) {
+            throw new NetExpression.ExpressionException("Multiset " + pexpression + " used as a single value.");
+        }
+        return null;
+    }
+
+    private ColourSet typeOfBinary(NetExpression.Binary pbinary) {
+        String lop = pbinary.getOperator();
+        if ("andalso".equals(lop) || "orelse".equals(lop)) {
+            expect(pbinary.getLeft(), BOOL);
+            expect(pbinary.getRight(), BOOL);
+            return BOOL;
+        }
+        if ("^".equals(lop)) {
+            return null;
+        }
+        if ("+".equals(lop) || "-".equals(lop) || "*".equals(lop) || "div".equals(lop) || "mod".equals(lop)) {
+            expect(pbinary.getLeft(), INT);
+            expect(pbinary.getRight(), INT);
+            return INT;
+        }
+        // Comparisons: the side with a known type gives the type of the other
+        ColourSet lleft = operandType(pbinary.getLeft());
+        ColourSet lright = operandType(pbinary.getRight());
+        if (lleft != null) {
+            expect(pbinary.getRight(), lleft);
+        } else if (lright != null) {
+            expect(pbinary.getLeft(), lright);
+        }
+        return BOOL;
+    }
+
+    // Type of an operand of a comparison, where an enumeration constant is not known to be a variable
+    private ColourSet operandType(NetExpression pexpression) {
+        if (pexpression instanceof NetExpression.Identifier
+                && !mvariables.containsKey(((NetExpression.Identifier) pexpression).getName())) {
+            return enumOf(((NetExpression.Identifier) pexpression).getName());
+        }
+        if (pexpression instanceof NetExpression.Tuple) {
+            return null;
+        }
+        return typeOf(pexpression);
+    }
+
+    private ColourSet enumOf(String pname) {
+        NetExpression.Symbol lsymbol = new NetExpression.Symbol(pname);
+        for (ColourSet lset : msets.values()) {
+            if (lset.getKind() == ColourSet.Kind.ENUM && lset.getMembers().contains(lsymbol)) {
+                return lset;
+            }
+        }
+        throw new NetExpression.ExpressionException(pname + " is neither a declared variable nor an enumeration value.");
+    }
+
+    private boolean compatible(ColourSet pactual, ColourSet pexpected) {
+        if (pactual == null || pexpected == null || pactual.getKind() == ColourSet.Kind.OTHER
+                || pexpected.getKind() == ColourSet.Kind.OTHER) {
+            return true;
+        }
+        if (pactual.getKind() != pexpected.getKind()) {
+            return false;
+        }
+        if (pactual.getKind() == ColourSet.Kind.ENUM) {
+            return pactual.getName().equals(pexpected.getName());
+        }
+        if (pactual.getKind() == ColourSet.Kind.PRODUCT) {
+            List<String> lactual = pactual.getComponents();
+            List<String> lexpected = pexpected.getComponents();
+            if (lactual.size() != lexpected.size()) {
+                return false;
+            }
+            for (int i = 0; i < lactual.size(); i++) {
+                if (!compatible(msets.get(lactual.get(i)), msets.get(lexpected.get(i)))) {
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    // Text of an inscription, empty if absent
+    private static String inscription(Element pelement, String ptag) {
+        String ltext = StateSpaceNet.textOf(StateSpaceNet.firstChild(pelement, ptag));
+        return (ltext == null) ? "" : ltext;
+    }
+
+    private static NetExpression.ExpressionException mismatch(NetExpression pexpression, ColourSet pset) {
+        return new NetExpression.ExpressionException(pexpression + " is not of colour set " + pset.getName() + ".");
+    }
+
+    private static ColourSet literal(String pname, ColourSet.Kind pkind) {
+        return new ColourSet(pname, pkind, null, new ArrayList<String>());
+    }
+
+    private void problem(String pmessage) {
+        mproblems.add(pmessage);
+    }
+}
@@ -0,0 +1,136 @@
+/*
+* Soak test of the generator on a small net: the same seed gives the same
+* file, and spilling or streaming the pages gives the same net as building it
+* in memory.
+*/
+
+package stave;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.HashMap;
+import javax.xml.parsers.DocumentBuilder;
+import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.parsers.ParserConfigurationException;
+import javax.xml.transform.TransformerException;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.Node;
+import org.xml.sax.SAXException;
+import stave.cpntools.CPNSchema;
+
+public class SyntheticCPNTest {
+
+    @Rule
+    public TemporaryFolder mfolder = new TemporaryFolder();
+
+    private SyntheticCPN mlast;
+
+    private File generate(long pseed, boolean pspill, boolean pstream) throws ParserConfigurationException,
+            IOException, TransformerException {
+        File lfile = mfolder.newFile();
+        mlast = new SyntheticCPN(pseed);
+        mlast.setPages(60);
+        mlast.setDepth(6);
+        mlast.setFanout(3);
+        mlast.setFusionSets(4);
+        mlast.setColourSets(3);
+        mlast.setSpilling(pspill);
+        mlast.setStreaming(pstream ? lfile.getPath() : null);
+        mlast.generate();
+        if (!pstream) {
+            mlast.writeDOMtoCpnFile(lfile.getPath());
+        }
+        if (mlast.getPageStore() != null) {
+            mlast.getPageStore().close();
+        }
+        return lfile;
+    }
+
+    private static byte[] bytes(File pfile) throws IOException {
+        return Files.readAllBytes(pfile.toPath());
+    }
+
+    private static Element cpnet(File pfile) throws ParserConfigurationException, IOException, SAXException {
+        DocumentBuilder lbuilder = DocumentBuilderFactory.newInstance().newDocumentBuilder();
+        lbuilder.setEntityResolver(CPNSchema.getEntityResolver());
+        Document ldocument = lbuilder.parse(pfile);
+        removeWhitespace(ldocument.getDocumentElement());
+        return (Element) ldocument.getElementsByTagName("cpnet").item(0);
+    }
+
+    // Indentation depends on where a section was written
+    private static void removeWhitespace(Node pnode) {
+        Node lchild = pnode.getFirstChild();
+        while (lchild != null) {
+            Node lnext = lchild.getNextSibling();
+            if (lchild.getNodeType() == Node.TEXT_NODE && lchild.getNodeValue().trim().length() == 0) {
+                pnode.removeChild(lchild);
+            } else {
+                removeWhitespace(lchild);
+            }
+            lchild = lnext;
+        }
+    }
+
+    // Children of the cpnet by tag and id, whatever their order
+    private static HashMap<String, Element> sections(Element pcpnet) {
+        HashMap<String, Element> lsections = new HashMap<String, Element>();
+        for (Node lnode = pcpnet.getFirstChild(); lnode != null; lnode = lnode.getNextSibling()) {
+            if (lnode instanceof Element) {
+                Element lelement = (Element) lnode;
+                assertNull(lsections.put(lelement.getNodeName() + "#" + lelement.getAttribute("id"), lelement));
+            }
+        }
+        return lsections;
+    }
+
+    private static void assertSameNet(File pexpected, File pactual) throws ParserConfigurationException,
+            IOException, SAXException {
+        HashMap<String, Element> lexpected = sections(cpnet(pexpected));
+        HashMap<String, Element> lactual = sections(cpnet(pactual));
+        assertEquals(lexpected.keySet(), lactual.keySet());
+        for (String lkey : lexpected.keySet()) {
+            assertTrue(lkey, lexpected.get(lkey).isEqualNode(lactual.get(lkey)));
+        }
+    }
+
+    @Test
+    public void sameSeedSameFile() throws ParserConfigurationException, IOException, TransformerException {
+        byte[] lfirst = bytes(generate(7, false, false));
+        assertArrayEquals(lfirst, bytes(generate(7, false, false)));
+        assertFalse(Arrays.equals(lfirst, bytes(generate(8, false, false))));
+    }
+
+    @Test
+    public void pagesAreAnUpperBound() throws ParserConfigurationException, IOException, TransformerException {
+        generate(7, false, false);
+        // 20 pages per thread, one less to be odd
+        assertEquals(Long.valueOf(57), mlast.getBuildMetrics().snapshot().get("elements.page"));
+    }
+
+    @Test
+    public void spillSameAsInMemory() throws ParserConfigurationException, IOException, TransformerException {
+        File lmemory = generate(7, false, false);
+        assertArrayEquals(bytes(lmemory), bytes(generate(7, true, false)));
+    }
+
+    @Test
+    public void streamSameNet() throws ParserConfigurationException, IOException, TransformerException,
+            SAXException {
+        File lmemory = generate(7, false, false);
+        assertSameNet(lmemory, generate(7, false, true));
+        assertSameNet(lmemory, generate(7, true, true));
+    }
+}
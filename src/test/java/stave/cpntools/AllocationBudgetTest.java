@@ -0,0 +1,126 @@
+/*
+* Allocation budgets of the hot construction paths, run by mvn test, so
+* quadratic string building or accidental per-element allocations fail the
+* build. The bytes allocated by the current thread are read from
+* ThreadMXBean.getThreadAllocatedBytes(), over synthetic nets. Each path is
+* warmed up first, and the smallest of a few runs is kept, which filters out
+* the allocations of the JIT and class loading.
+*
+* On JVMs without allocation accounting the tests are skipped.
+*/
+
+package stave.cpntools;
+
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeTrue;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.Hashtable;
+import javax.xml.parsers.ParserConfigurationException;
+import org.junit.Before;
+import org.junit.Test;
+import org.w3c.dom.Element;
+
+public class AllocationBudgetTest {
+
+    // Bytes allowed per call of createBasicPlace()
+    static final long PLACE_BYTES = 2048;
+    // Bytes allowed per arc of Arc.positionAllArcs()
+    static final long ARC_POSITION_BYTES = 512;
+    // Growth allowed of the allocations of createMarkingText() when its input grows
+    // MARKING_SCALE times; linear code stays close to MARKING_SCALE, quadratic code
+    // grows by its square
+    static final int MARKING_SCALE = 8;
+    static final double MARKING_GROWTH = 2.0 * MARKING_SCALE;
+
+    private static final int RUNS = 5;
+    private static final int PLACES = 2000;
+    private static final int ARCS = 2000;
+    private static final int MARKING_ELEMENTS = 500;
+
+    private com.sun.management.ThreadMXBean mthreads;
+
+    @Before
+    public void setUp() {
+        ThreadMXBean lthreads = ManagementFactory.getThreadMXBean();
+        assumeTrue("Allocation accounting not supported.", lthreads instanceof com.sun.management.ThreadMXBean
+                && ((com.sun.management.ThreadMXBean) lthreads).isThreadAllocatedMemorySupported());
+        mthreads = (com.sun.management.ThreadMXBean) lthreads;
+        mthreads.setThreadAllocatedMemoryEnabled(true);
+    }
+
+    @Test
+    public void createBasicPlace() throws ParserConfigurationException {
+        final CPNToolsNetFactory lfactory = new CPNToolsNetFactory();
+        long lplace = measure(new Runnable() {
+            public void run() {
+                for (int i = 0; i < PLACES; i++) {
+                    lfactory.createBasicPlace("P", "INT", "1`0");
+                }
+            }
+        }) / PLACES;
+        assertTrue("createBasicPlace allocates " + lplace + " bytes per call, budget " + PLACE_BYTES + ".",
+                lplace <= PLACE_BYTES);
+    }
+
+    @Test
+    public void createMarkingText() {
+        long lsmall = measureMarking(MARKING_ELEMENTS);
+        long llarge = measureMarking(MARKING_ELEMENTS * MARKING_SCALE);
+        double lgrowth = (double) llarge / Math.max(lsmall, 1);
+        assertTrue("createMarkingText allocations grow " + lgrowth + " times for " + MARKING_SCALE
+                + " times the elements, budget " + MARKING_GROWTH + ".", lgrowth <= MARKING_GROWTH);
+    }
+
+    @Test
+    public void positionAllArcs() throws ParserConfigurationException {
+        CPNToolsNetFactory lfactory = new CPNToolsNetFactory();
+        final Element lpage = lfactory.createPage("Arcs");
+        lfactory.appendElementToCpnet(lpage);
+        Element lplace = lfactory.createBasicPlace("P", "INT", "1`0");
+        LayoutFactory.Place.setLayoutAndPosition(lplace, 0, 0);
+        lpage.appendChild(lplace);
+        Element ltrans = lfactory.createBasicTransition("T");
+        LayoutFactory.Transition.setLayoutAndPosition(ltrans, 0, 100);
+        lpage.appendChild(ltrans);
+        for (int i = 0; i < ARCS; i++) {
+            Element larc = lfactory.createArcPtoT(lplace, ltrans, "x");
+            LayoutFactory.Arc.setDefaultLayout(larc);
+            lpage.appendChild(larc);
+        }
+        long larc = measure(new Runnable() {
+            public void run() {
+                LayoutFactory.Arc.positionAllArcs(lpage);
+            }
+        }) / ARCS;
+        assertTrue("Arc.positionAllArcs allocates " + larc + " bytes per arc, budget " + ARC_POSITION_BYTES + ".",
+                larc <= ARC_POSITION_BYTES);
+    }
+
+    // Bytes allocated by the current thread running a task, the smallest of a few runs
+    private long measure(Runnable ptask) {
+        long lthread = Thread.currentThread().getId();
+        // Warm-up
+        ptask.run();
+        long lsmallest = Long.MAX_VALUE;
+        for (int i = 0; i < RUNS; i++) {
+            long lbefore = mthreads.getThreadAllocatedBytes(lthread);
+            ptask.run();
+            lsmallest = Math.min(lsmallest, mthreads.getThreadAllocatedBytes(lthread) - lbefore);
+        }
+        return lsmallest;
+    }
+
+    private long measureMarking(int pelements) {
+        final Hashtable<String, Integer> lmarking = new Hashtable<String, Integer>();
+        for (int i = 0; i < pelements; i++) {
+            lmarking.put("e" + i, i + 1);
+        }
+        return measure(new Runnable() {
+            public void run() {
+                CPNToolsNetFactory.createMarkingText(lmarking);
+            }
+        });
+    }
+}
@@ -0,0 +1,59 @@
+/*
+* Offline schema validation of generated documents, and of the files written
+* from them.
+*/
+
+package stave.cpntools;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import javax.xml.parsers.DocumentBuilder;
+import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.parsers.ParserConfigurationException;
+import javax.xml.transform.TransformerException;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.xml.sax.SAXException;
+import stave.ExampleCPN;
+
+public class CPNSchemaTest {
+
+    @Rule
+    public TemporaryFolder mfolder = new TemporaryFolder();
+
+    @Test
+    public void compiledOnce() {
+        assertSame(CPNSchema.getSchema(), CPNSchema.getSchema());
+    }
+
+    @Test
+    public void generatedDocument() throws ParserConfigurationException {
+        ExampleCPN lnet = SharedPagesTest.example(false);
+        CPNSchema lschema = new CPNSchema();
+        assertTrue(lschema.validate(lnet.getDOM()).isEmpty());
+
+        Element larc = (Element) lnet.getDOM().getElementsByTagName("arc").item(0);
+        larc.setAttribute("orientation", "Sideways");
+        assertFalse(lschema.validate(lnet.getDOM()).isEmpty());
+    }
+
+    @Test
+    public void writtenFile() throws ParserConfigurationException, IOException, TransformerException,
+            SAXException {
+        File lfile = mfolder.newFile("example.cpn");
+        SharedPagesTest.example(false).writeDOMtoCpnFile(lfile.getPath());
+
+        // The DOCTYPE names the DTD on the CPN Tools site, which must not be fetched
+        DocumentBuilder lbuilder = DocumentBuilderFactory.newInstance().newDocumentBuilder();
+        lbuilder.setEntityResolver(CPNSchema.getEntityResolver());
+        Document ldocument = lbuilder.parse(lfile);
+        assertTrue(new CPNSchema().validate(ldocument).isEmpty());
+    }
+}
@@ -0,0 +1,63 @@
+/*
+* Flattening of a two-level hierarchy: a chain of two substitution
+* transitions, both instances of the same subpage.
+*/
+
+package stave.cpntools;
+
+import static org.junit.Assert.assertEquals;
+
+import javax.xml.parsers.ParserConfigurationException;
+import org.junit.Test;
+
+public class HierarchyFlattenerTest {
+
+    private CPNToolsNetFactory mfactory;
+    private PlaceRef minport;
+    private PlaceRef mp1;
+    private TransRef mmove;
+
+    private void build() throws ParserConfigurationException {
+        mfactory = new CPNToolsNetFactory();
+        mfactory.appendElementToGlobbox(mfactory.createUnitColset("UNIT"));
+        NetBuilder lbuilder = mfactory.createBuilder();
+        PageRef ltop = lbuilder.topPage("top");
+        PageRef lsub = lbuilder.page("sub");
+        minport = lsub.inPort("in", "UNIT");
+        PlaceRef loutport = lsub.outPort("out", "UNIT");
+        mmove = lsub.transition("move");
+        lsub.arc(minport, mmove, "()").arc(mmove, loutport, "()");
+
+        PlaceRef lp0 = ltop.place("p0", "UNIT", "1`()");
+        mp1 = ltop.place("p1", "UNIT");
+        PlaceRef lp2 = ltop.place("p2", "UNIT");
+        TransRef ls1 = ltop.substitution("s1");
+        TransRef ls2 = ltop.substitution("s2");
+        lbuilder.connect(ls1, lp0, mp1, lsub, minport, loutport);
+        lbuilder.connect(ls2, mp1, lp2, lsub, minport, loutport);
+        lbuilder.build();
+    }
+
+    @Test
+    public void flatten() throws ParserConfigurationException {
+        build();
+        HierarchyFlattener lflattener = mfactory.createFlattener();
+        lflattener.setQualifiedNames(true);
+        CPNToolsNetFactory lflat = lflattener.flatten();
+
+        assertEquals(1, StateSpaceNet.children(StateSpaceNet.firstChild(lflat.getDOM().getDocumentElement(),
+                "cpnet"), "page").size());
+        StateSpaceNet lnet = lflat.createStateSpaceNet();
+        assertEquals(3, lnet.getPlaceCount());
+        assertEquals(2, lnet.getTransitionCount());
+        assertEquals(new StateSpaceExplorer(mfactory.createStateSpaceNet()).explore().getStateCount(),
+                new StateSpaceExplorer(lnet).explore().getStateCount());
+
+        // Each instance has its own copy of the transition, and the port is its socket
+        int lmove = lnet.findTransitions("top/s2/move").get(0);
+        String lflatid = lnet.getTransitionId(lmove);
+        assertEquals(mmove.id(), lflattener.getOriginalId(lflatid));
+        assertEquals("top/s2", lflattener.getOriginalInstance(lflatid));
+        assertEquals(lflattener.getFlatId("top", mp1.id()), lflattener.getFlatId("top/s2", minport.id()));
+    }
+}
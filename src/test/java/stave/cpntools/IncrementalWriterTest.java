@@ -0,0 +1,66 @@
+/*
+* Incremental output: the file is the same as the one of writeDOMtoCpnFile(),
+* and only the sections that changed are serialized again.
+*/
+
+package stave.cpntools;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import javax.xml.parsers.ParserConfigurationException;
+import javax.xml.transform.TransformerException;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.w3c.dom.Element;
+import stave.ExampleCPN;
+
+public class IncrementalWriterTest {
+
+    @Rule
+    public TemporaryFolder mfolder = new TemporaryFolder();
+
+    private byte[] writePlain(CPNToolsNetFactory pfactory) throws IOException, TransformerException {
+        File lfile = mfolder.newFile();
+        pfactory.writeDOMtoCpnFile(lfile.getPath());
+        return Files.readAllBytes(lfile.toPath());
+    }
+
+    private byte[] writeIncremental(IncrementalWriter pwriter, CPNToolsNetFactory pfactory) throws IOException {
+        File lfile = mfolder.newFile();
+        pwriter.write(pfactory.getDOM(), lfile.getPath());
+        return Files.readAllBytes(lfile.toPath());
+    }
+
+    @Test
+    public void sameAsPlainOutput() throws ParserConfigurationException, IOException, TransformerException {
+        ExampleCPN lnet = SharedPagesTest.example(false);
+        IncrementalWriter lwriter = new IncrementalWriter(new File(mfolder.getRoot(), "net.sections"));
+
+        assertArrayEquals(writePlain(lnet), writeIncremental(lwriter, lnet));
+        int lsections = lwriter.getWrittenSections();
+        assertTrue(lsections > 0);
+        assertEquals(0, lwriter.getReusedSections());
+
+        assertArrayEquals(writePlain(lnet), writeIncremental(lwriter, lnet));
+        assertEquals(0, lwriter.getWrittenSections());
+        assertEquals(lsections, lwriter.getReusedSections());
+
+        // Rename a place of one page
+        Element lplace = StateSpaceNet.children(StateSpaceNet.children(lnet.mcpnet, "page").get(0), "place").get(0);
+        StateSpaceNet.firstChild(lplace, "text").setTextContent("renamed");
+        assertArrayEquals(writePlain(lnet), writeIncremental(lwriter, lnet));
+        assertEquals(1, lwriter.getWrittenSections());
+        assertEquals(lsections - 1, lwriter.getReusedSections());
+
+        // A new writer reads the sections of the previous run
+        IncrementalWriter lreader = new IncrementalWriter(new File(mfolder.getRoot(), "net.sections"));
+        assertArrayEquals(writePlain(lnet), writeIncremental(lreader, lnet));
+        assertEquals(0, lreader.getWrittenSections());
+    }
+}
@@ -0,0 +1,77 @@
+/*
+* Place and transition invariants of the mutex net of StateSpaceNetTest.
+*/
+
+package stave.cpntools;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import javax.xml.parsers.ParserConfigurationException;
+import org.junit.Before;
+import org.junit.Test;
+
+public class InvariantsTest {
+
+    private StateSpaceNet mnet;
+    private IncidenceMatrix mmatrix;
+
+    @Before
+    public void setUp() throws ParserConfigurationException {
+        mnet = StateSpaceNetTest.mutex().createStateSpaceNet();
+        mmatrix = new IncidenceMatrix(mnet);
+    }
+
+    // Vector with weight 1 on the places or transitions of the given indices
+    private static SparseIntVector ones(int... pindices) {
+        long[] ldense = new long[8];
+        for (int lindex : pindices) {
+            ldense[lindex] = 1;
+        }
+        return SparseIntVector.of(ldense);
+    }
+
+    private int place(String pname) {
+        return mnet.findPlaces(pname).get(0);
+    }
+
+    private int transition(String pname) {
+        return mnet.findTransitions(pname).get(0);
+    }
+
+    @Test
+    public void incidence() {
+        assertEquals(-1, mmatrix.get(place("idle"), transition("enter")));
+        assertEquals(1, mmatrix.get(place("busy"), transition("enter")));
+        assertEquals(1, mmatrix.get(place("mutex"), transition("leave")));
+        assertEquals(0, mmatrix.get(place("done"), transition("enter")));
+    }
+
+    @Test
+    public void placeInvariants() {
+        Invariants linvariants = new Invariants(mmatrix);
+        List<SparseIntVector> lplaces = linvariants.getPlaceInvariants();
+        assertEquals(new HashSet<SparseIntVector>(Arrays.asList(
+                ones(place("idle"), place("busy"), place("done")),
+                ones(place("busy"), place("mutex")),
+                ones(place("busy"), place("mutex2")))), new HashSet<SparseIntVector>(lplaces));
+        assertTrue(linvariants.isCoveredByPlaceInvariants());
+        for (SparseIntVector linvariant : lplaces) {
+            assertTrue(mmatrix.isPlaceInvariant(linvariant));
+        }
+        // The three processes
+        assertEquals(3, IncidenceMatrix.weightedSum(lplaces.get(lplaces.indexOf(
+                ones(place("idle"), place("busy"), place("done")))), mnet.getInitialMarking()));
+    }
+
+    @Test
+    public void transitionInvariants() {
+        List<SparseIntVector> ltransitions = new Invariants(mmatrix).getTransitionInvariants();
+        assertEquals(Arrays.asList(ones(transition("enter"), transition("leave"), transition("reset"))),
+                ltransitions);
+        assertTrue(mmatrix.isTransitionInvariant(ltransitions.get(0)));
+    }
+}
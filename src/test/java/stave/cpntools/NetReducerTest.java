@@ -0,0 +1,79 @@
+/*
+* Reductions of small nets: what is removed, and that the reduced document
+* is still a valid net.
+*/
+
+package stave.cpntools;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import javax.xml.parsers.ParserConfigurationException;
+import org.junit.Test;
+import org.w3c.dom.Element;
+
+public class NetReducerTest {
+
+    /**
+     * A transition moving a token from "from" to "to", reading "lock" through an arc of the given orientation.
+     */
+    static CPNToolsNetFactory lock(String porientation) throws ParserConfigurationException {
+        CPNToolsNetFactory lfactory = new CPNToolsNetFactory();
+        lfactory.appendElementToGlobbox(lfactory.createUnitColset("UNIT"));
+        Element lpage = lfactory.createPage("main");
+        lfactory.appendElementToCpnet(lpage);
+        lfactory.appendElementToInstances(lfactory.createInstanceForPage(lpage));
+
+        Element lfrom = lfactory.createBasicPlace("from", "UNIT", "1`()");
+        Element lto = lfactory.createBasicPlace("to", "UNIT", "");
+        Element llock = lfactory.createBasicPlace("lock", "UNIT", "1`()");
+        Element lmove = lfactory.createBasicTransition("move");
+        Element lback = lfactory.createBasicTransition("back");
+        for (Element lnode : Arrays.asList(lfrom, lto, llock, lmove, lback)) {
+            lpage.appendChild(lnode);
+        }
+        lpage.appendChild(lfactory.createArcPtoT(lfrom, lmove, "()"));
+        lpage.appendChild(lfactory.createArcTtoP(lmove, lto, "()"));
+        lpage.appendChild(lfactory.createArcPtoT(lto, lback, "()"));
+        lpage.appendChild(lfactory.createArcTtoP(lback, lfrom, "()"));
+        Element larc = lfactory.createArcPtoT(llock, lmove, "()");
+        larc.setAttribute("orientation", porientation);
+        lpage.appendChild(larc);
+        return lfactory;
+    }
+
+    static NetReducer redundantOnly(CPNToolsNetFactory pfactory) {
+        NetReducer lreducer = pfactory.createReducer();
+        lreducer.setPageReduction(false);
+        lreducer.setSeriesFusion(false);
+        return lreducer;
+    }
+
+    @Test
+    public void doubleArcIsImplicitSelfLoop() throws ParserConfigurationException {
+        CPNToolsNetFactory lfactory = lock("BOTHDIR");
+        assertEquals(1, redundantOnly(lfactory).reduce().getRedundantPlaces());
+        assertTrue(lfactory.createStateSpaceNet().findPlaces("lock").isEmpty());
+    }
+
+    @Test
+    public void resetArcIsKept() throws ParserConfigurationException {
+        CPNToolsNetFactory lfactory = lock("Reset");
+        assertEquals(0, redundantOnly(lfactory).reduce().getRedundantPlaces());
+    }
+
+    @Test
+    public void mutexRoundTrip() throws ParserConfigurationException {
+        CPNToolsNetFactory lfactory = StateSpaceNetTest.mutex();
+        NetReducer.Statistics lstatistics = lfactory.createReducer().reduce();
+        assertTrue(lstatistics.getRedundantPlaces() >= 1);
+        assertEquals(Arrays.<String>asList(), lfactory.createValidator().validate());
+        StateSpaceNet lnet = lfactory.createStateSpaceNet();
+        assertTrue(lnet.findPlaces("mutex2").isEmpty());
+        // The processes still cycle without deadlocks
+        StateSpaceExplorer lexplorer = new StateSpaceExplorer(lnet);
+        lexplorer.explore();
+        assertEquals(0, lexplorer.getStatistics().getDeadStates());
+    }
+}
@@ -0,0 +1,78 @@
+/*
+* Structural validation: the ExampleCPN net is well formed, and each broken
+* reference is reported.
+*/
+
+package stave.cpntools;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.List;
+import javax.xml.parsers.ParserConfigurationException;
+import org.junit.Before;
+import org.junit.Test;
+import org.w3c.dom.Element;
+import stave.ExampleCPN;
+import stave.cpntools.BaseCPNCommunication.BadCPNDefinitionException;
+
+public class NetValidatorTest {
+
+    private ExampleCPN mnet;
+
+    @Before
+    public void setUp() throws ParserConfigurationException {
+        mnet = SharedPagesTest.example(false);
+    }
+
+    private Element first(String ptag) {
+        return (Element) mnet.getDOM().getElementsByTagName(ptag).item(0);
+    }
+
+    private String problem() {
+        List<String> lproblems = mnet.createValidator().validate();
+        assertEquals(lproblems.toString(), 1, lproblems.size());
+        return lproblems.get(0);
+    }
+
+    @Test
+    public void wellFormed() {
+        assertTrue(mnet.createValidator().validate().isEmpty());
+    }
+
+    @Test
+    public void duplicateId() {
+        first("trans").setAttribute("id", first("place").getAttribute("id"));
+        assertTrue(mnet.createValidator().validate().get(0).contains("is used by place"));
+    }
+
+    @Test
+    public void missingArcEnd() {
+        StateSpaceNet.firstChild(first("arc"), "placeend").setAttribute("idref", "missing");
+        assertTrue(problem().contains("refers to missing place missing"));
+    }
+
+    @Test
+    public void unknownOrientation() {
+        first("arc").setAttribute("orientation", "BothDir");
+        assertTrue(problem().contains("unknown orientation"));
+    }
+
+    @Test
+    public void missingSubpage() {
+        first("subst").setAttribute("subpage", "missing");
+        assertTrue(problem().contains("refers to missing subpage missing"));
+    }
+
+    @Test
+    public void missingInstancePage() {
+        first("instance").setAttribute("page", "missing");
+        assertTrue(problem().contains("refers to missing page missing"));
+    }
+
+    @Test(expected = BadCPNDefinitionException.class)
+    public void check() {
+        first("subst").setAttribute("subpage", "missing");
+        mnet.createValidator().check();
+    }
+}
@@ -0,0 +1,74 @@
+/*
+* Port queries of the factory: ports are found wherever they are attached,
+* and before or after the first query of their page.
+*/
+
+package stave.cpntools;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import javax.xml.parsers.ParserConfigurationException;
+import org.junit.Test;
+import org.w3c.dom.Element;
+
+public class PortIndexTest {
+
+    @Test
+    public void portsAttachedAfterQuery() throws ParserConfigurationException {
+        CPNToolsNetFactory lfactory = new CPNToolsNetFactory();
+        Element lpage = lfactory.createPage("sub");
+        lfactory.appendElementToCpnet(lpage);
+        Element lin1 = lfactory.createInPortPlace("in1", "UNIT", "");
+        Element lin2 = lfactory.createInPortPlace("in2", "UNIT", "");
+        Element lout = lfactory.createOutPortPlace("out", "UNIT", "");
+        Element lio = lfactory.createInOutPortPlace("io", "UNIT", "");
+        lpage.appendChild(lin1);
+        assertEquals(lin1.getAttribute("id"), lfactory.getInPortPlaceId(lpage));
+        assertNull(lfactory.getOutPortPlaceId(lpage));
+
+        lpage.insertBefore(lout, lin1);
+        lpage.insertBefore(lin2, lin1);
+        lpage.appendChild(lio);
+        assertEquals(Arrays.asList(lin1.getAttribute("id"), lin2.getAttribute("id")),
+                lfactory.getInPortPlaceIds(lpage));
+        assertEquals(lout.getAttribute("id"), lfactory.getOutPortPlaceId(lpage));
+        assertEquals(Arrays.asList(lio.getAttribute("id")), lfactory.getInOutPortPlaceIds(lpage));
+        assertNull(lfactory.getInPortPlaceId(lfactory.createPage("empty")));
+    }
+
+    @Test
+    public void connectInsertedPorts() throws ParserConfigurationException {
+        CPNToolsNetFactory lfactory = new CPNToolsNetFactory();
+        Element lsub = lfactory.createPage("sub");
+        lfactory.appendElementToCpnet(lsub);
+        Element lanchor = lfactory.createBasicPlace("anchor", "UNIT", "");
+        lsub.appendChild(lanchor);
+        assertNull(lfactory.getInPortPlaceId(lsub));
+        Element lin = lfactory.createInPortPlace("in", "UNIT", "");
+        Element lout = lfactory.createOutPortPlace("out", "UNIT", "");
+        lsub.insertBefore(lin, lanchor);
+        lsub.insertBefore(lout, lanchor);
+
+        Element ltop = lfactory.createPage("top");
+        lfactory.appendElementToCpnet(ltop);
+        Element la = lfactory.createBasicPlace("a", "UNIT", "");
+        Element lb = lfactory.createBasicPlace("b", "UNIT", "");
+        Element lsubst = lfactory.createSubstitutionTransition("s");
+        ltop.appendChild(la);
+        ltop.appendChild(lb);
+        ltop.appendChild(lsubst);
+        Map<String, String> lportsockets = new LinkedHashMap<String, String>();
+        lportsockets.put(lin.getAttribute("id"), la.getAttribute("id"));
+        lportsockets.put(lout.getAttribute("id"), lb.getAttribute("id"));
+        lfactory.connectSubstitutionPage(lsubst, lsub, lportsockets);
+
+        Element lsubs = StateSpaceNet.firstChild(lsubst, "subst");
+        assertEquals(lsub.getAttribute("id"), lsubs.getAttribute("subpage"));
+        assertEquals("(" + lin.getAttribute("id") + "," + la.getAttribute("id") + ")("
+                + lout.getAttribute("id") + "," + lb.getAttribute("id") + ")", lsubs.getAttribute("portsock"));
+    }
+}
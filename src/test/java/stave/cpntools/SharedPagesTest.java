@@ -0,0 +1,104 @@
+/*
+* Page sharing on the net of ExampleCPN.main, where the three Skip pages are
+* identical and only one of them must be written.
+*/
+
+package stave.cpntools;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import javax.xml.parsers.ParserConfigurationException;
+import javax.xml.transform.TransformerException;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.w3c.dom.Element;
+import stave.ExampleCPN;
+
+public class SharedPagesTest {
+
+    @Rule
+    public TemporaryFolder mfolder = new TemporaryFolder();
+
+    static ExampleCPN example(boolean pshare) throws ParserConfigurationException {
+        ExampleCPN lnet = new ExampleCPN();
+        lnet.setPageSharing(pshare);
+        return build(lnet);
+    }
+
+    /**
+     * Add the net of ExampleCPN.main: a Skip and a Composition of two Skips.
+     */
+    static ExampleCPN build(ExampleCPN pnet) {
+        pnet.addUnitColset("UNIT");
+
+        Element lstransition1 = pnet.topPage().addSubpage("subprocess1");
+        pnet.addAndSetNextInstance(pnet.createInstanceForSTransition(lstransition1));
+        pnet.topPage().connect(lstransition1, pnet.new Skip("Skip"));
+        pnet.restorePrevInstance();
+
+        Element lstransition2 = pnet.topPage().addSubpage("subprocess2");
+        pnet.addAndSetNextInstance(pnet.createInstanceForSTransition(lstransition2));
+        ExampleCPN.Composition lcomposition = pnet.new Composition("Comp");
+        pnet.topPage().connect(lstransition2, lcomposition);
+
+        pnet.addAndSetNextInstance(pnet.createInstanceForSTransition(lcomposition.transS1()));
+        lcomposition.connectS1(pnet.new Skip("Skip"));
+        pnet.restorePrevInstance();
+
+        pnet.addAndSetNextInstance(pnet.createInstanceForSTransition(lcomposition.transS2()));
+        lcomposition.connectS2(pnet.new Skip("Skip"));
+        pnet.restorePrevInstance();
+
+        pnet.topPage().concludeTopPage();
+        return pnet;
+    }
+
+    static int pageCount(CPNToolsNetFactory pfactory) {
+        return StateSpaceNet.children(pfactory.mcpnet, "page").size();
+    }
+
+    static int stateCount(CPNToolsNetFactory pfactory) {
+        return new StateSpaceExplorer(pfactory.createStateSpaceNet()).explore().getStateCount();
+    }
+
+    @Test
+    public void shareOnWrite() throws ParserConfigurationException, IOException, TransformerException {
+        ExampleCPN lplain = example(false);
+        ExampleCPN lshared = example(true);
+        assertEquals(5, pageCount(lplain));
+
+        File lfile = mfolder.newFile("shared.cpn");
+        lshared.writeDOMtoCpnFile(lfile.getPath());
+        assertEquals(3, pageCount(lshared));
+        assertEquals(stateCount(lplain), stateCount(lshared));
+        assertTrue(lshared.createValidator().validate().isEmpty());
+
+        // Writing again keeps the same pages
+        lshared.writeDOMtoCpnFile(lfile.getPath());
+        assertEquals(3, pageCount(lshared));
+    }
+
+    @Test
+    public void shareAgainAfterReduction() throws ParserConfigurationException, IOException, TransformerException {
+        ExampleCPN lplain = example(false);
+        ExampleCPN lshared = new ExampleCPN();
+        lshared.setPageSharing(true);
+        lshared.setReduction(true);
+        lshared.setStableIds(true);
+        build(lshared);
+
+        File lfile = mfolder.newFile("reduced.cpn");
+        lshared.writeDOMtoCpnFile(lfile.getPath());
+        // The pages changed by the reductions are hashed again
+        lshared.writeDOMtoCpnFile(lfile.getPath());
+        int lpages = pageCount(lshared);
+        lshared.writeDOMtoCpnFile(lfile.getPath());
+        assertEquals(lpages, pageCount(lshared));
+        assertEquals(stateCount(lplain), stateCount(lshared));
+        assertTrue(lshared.createValidator().validate().isEmpty());
+    }
+}
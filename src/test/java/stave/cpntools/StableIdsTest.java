@@ -0,0 +1,47 @@
+/*
+* Stable ids: the same net written twice gives the same file, whatever the
+* ids given to its elements while it was built.
+*/
+
+package stave.cpntools;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertFalse;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Arrays;
+import javax.xml.parsers.ParserConfigurationException;
+import javax.xml.transform.TransformerException;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import stave.ExampleCPN;
+
+public class StableIdsTest {
+
+    @Rule
+    public TemporaryFolder mfolder = new TemporaryFolder();
+
+    // ExampleCPN net, written after drawing the given amount of ids
+    private byte[] write(boolean pstable, int pskipped) throws ParserConfigurationException, IOException,
+            TransformerException {
+        ExampleCPN lnet = new ExampleCPN();
+        for (int i = 0; i < pskipped; i++) {
+            ((CPNToolsNetFactory) lnet).getUniqueId();
+        }
+        SharedPagesTest.build(lnet);
+        lnet.setStableIds(pstable);
+        File lfile = mfolder.newFile();
+        lnet.writeDOMtoCpnFile(lfile.getPath());
+        return Files.readAllBytes(lfile.toPath());
+    }
+
+    @Test
+    public void sameFile() throws ParserConfigurationException, IOException, TransformerException {
+        assertArrayEquals(write(true, 0), write(true, 0));
+        assertArrayEquals(write(true, 0), write(true, 7));
+        assertFalse(Arrays.equals(write(false, 0), write(false, 7)));
+    }
+}
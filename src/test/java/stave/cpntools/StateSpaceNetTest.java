@@ -0,0 +1,105 @@
+/*
+* Behaviour of the state space of small nets built through the factory:
+* the arcs read from the document and the markings reached from them.
+*/
+
+package stave.cpntools;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.Arrays;
+import javax.xml.parsers.ParserConfigurationException;
+import org.junit.Test;
+import org.w3c.dom.Element;
+import stave.cpntools.BaseCPNCommunication.BadCPNDefinitionException;
+
+public class StateSpaceNetTest {
+
+    /**
+     * Three processes entering a critical section guarded by two mutex places.
+     */
+    static CPNToolsNetFactory mutex() throws ParserConfigurationException {
+        CPNToolsNetFactory lfactory = new CPNToolsNetFactory();
+        lfactory.appendElementToGlobbox(lfactory.createUnitColset("UNIT"));
+        lfactory.appendElementToGlobbox(lfactory.createEnumColset("PID", Arrays.asList("p1", "p2", "p3")));
+        lfactory.appendElementToGlobbox(lfactory.createVarDecl("x", "PID"));
+        Element lpage = lfactory.createPage("main");
+        lfactory.appendElementToCpnet(lpage);
+        lfactory.appendElementToInstances(lfactory.createInstanceForPage(lpage));
+
+        Element lidle = lfactory.createBasicPlace("idle", "PID", "1`p1++1`p2++1`p3");
+        Element lbusy = lfactory.createBasicPlace("busy", "PID", "");
+        Element ldone = lfactory.createBasicPlace("done", "PID", "");
+        Element lmutex = lfactory.createBasicPlace("mutex", "UNIT", "1`()");
+        Element lcopy = lfactory.createBasicPlace("mutex2", "UNIT", "1`()");
+        Element lenter = lfactory.createBasicTransition("enter");
+        Element lleave = lfactory.createBasicTransition("leave");
+        Element lreset = lfactory.createBasicTransition("reset");
+        for (Element lnode : Arrays.asList(lidle, lbusy, ldone, lmutex, lcopy, lenter, lleave, lreset)) {
+            lpage.appendChild(lnode);
+        }
+        lpage.appendChild(lfactory.createArcPtoT(lidle, lenter, "x"));
+        lpage.appendChild(lfactory.createArcPtoT(lmutex, lenter, "1`()"));
+        lpage.appendChild(lfactory.createArcPtoT(lcopy, lenter, "1`()"));
+        lpage.appendChild(lfactory.createArcTtoP(lenter, lbusy, "x"));
+        lpage.appendChild(lfactory.createArcPtoT(lbusy, lleave, "x"));
+        lpage.appendChild(lfactory.createArcTtoP(lleave, ldone, "1`x"));
+        lpage.appendChild(lfactory.createArcTtoP(lleave, lmutex, "()"));
+        lpage.appendChild(lfactory.createArcTtoP(lleave, lcopy, "()"));
+        lpage.appendChild(lfactory.createArcPtoT(ldone, lreset, "x"));
+        lpage.appendChild(lfactory.createArcTtoP(lreset, lidle, "x"));
+        return lfactory;
+    }
+
+    /**
+     * A transition moving a token from "from" to "to", with a double arc on "guard".
+     */
+    static CPNToolsNetFactory doubleArc(String pguard, String porientation) throws ParserConfigurationException {
+        CPNToolsNetFactory lfactory = new CPNToolsNetFactory();
+        lfactory.appendElementToGlobbox(lfactory.createUnitColset("UNIT"));
+        Element lpage = lfactory.createPage("main");
+        lfactory.appendElementToCpnet(lpage);
+        lfactory.appendElementToInstances(lfactory.createInstanceForPage(lpage));
+
+        Element lfrom = lfactory.createBasicPlace("from", "UNIT", "1`()");
+        Element lto = lfactory.createBasicPlace("to", "UNIT", "");
+        Element lguard = lfactory.createBasicPlace("guard", "UNIT", pguard);
+        Element lmove = lfactory.createBasicTransition("move");
+        for (Element lnode : Arrays.asList(lfrom, lto, lguard, lmove)) {
+            lpage.appendChild(lnode);
+        }
+        lpage.appendChild(lfactory.createArcPtoT(lfrom, lmove, "()"));
+        lpage.appendChild(lfactory.createArcTtoP(lmove, lto, "()"));
+        Element larc = lfactory.createArcPtoT(lguard, lmove, "()");
+        larc.setAttribute("orientation", porientation);
+        lpage.appendChild(larc);
+        return lfactory;
+    }
+
+    @Test
+    public void mutexStates() throws ParserConfigurationException {
+        assertEquals(20, new StateSpaceExplorer(mutex().createStateSpaceNet()).explore().getStateCount());
+    }
+
+    @Test
+    public void doubleArcIsInputAndOutput() throws ParserConfigurationException {
+        StateSpaceNet lnet = doubleArc("1`()", "BOTHDIR").createStateSpaceNet();
+        int lguard = lnet.findPlaces("guard").get(0);
+        int lmove = lnet.findTransitions("move").get(0);
+        assertEquals(2, lnet.getInputArcCount(lmove));
+        assertEquals(2, lnet.getOutputArcCount(lmove));
+        assertEquals(lguard, lnet.getInputPlace(lmove, 1));
+        assertEquals(lguard, lnet.getOutputPlace(lmove, 1));
+        assertEquals(2, new StateSpaceExplorer(lnet).explore().getStateCount());
+    }
+
+    @Test
+    public void doubleArcDisablesWithoutTokens() throws ParserConfigurationException {
+        assertEquals(1, new StateSpaceExplorer(doubleArc("", "BOTHDIR").createStateSpaceNet()).explore().getStateCount());
+    }
+
+    @Test(expected = BadCPNDefinitionException.class)
+    public void unsupportedOrientation() throws ParserConfigurationException {
+        doubleArc("1`()", "Reset").createStateSpaceNet();
+    }
+}
@@ -0,0 +1,66 @@
+/*
+* Subnets copied from the cache: fresh ids, roles found again, and copied
+* fusion places and ports registered in the net.
+*/
+
+package stave.cpntools;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.HashMap;
+import java.util.Map;
+import javax.xml.parsers.ParserConfigurationException;
+import org.junit.Test;
+import org.w3c.dom.Element;
+import stave.cpntools.BaseCPNCommunication.BadCPNDefinitionException;
+
+public class SubnetCacheTest {
+
+    @Test
+    public void copyWithFusion() throws ParserConfigurationException {
+        CPNToolsNetFactory lfactory = new CPNToolsNetFactory();
+        lfactory.appendElementToGlobbox(lfactory.createUnitColset("UNIT"));
+        Element lfusion = lfactory.createFusion("shared");
+        lfactory.appendElementToCpnet(lfusion);
+
+        Element lpage = lfactory.createPage("first");
+        lfactory.appendElementToCpnet(lpage);
+        Element lin = lfactory.createInPortPlace("in", "UNIT", "");
+        Element lshared = lfactory.createFusionPlace("shared", "shared", "UNIT", "1`()");
+        lpage.appendChild(lin);
+        lpage.appendChild(lshared);
+        Map<String, Element> lroles = new HashMap<String, Element>();
+        lroles.put("in", lin);
+        lroles.put("shared", lshared);
+
+        SubnetCache lcache = new SubnetCache(4);
+        lcache.put("subnet", lpage, lroles);
+        assertNull(lcache.get("other", lfactory, lfactory.createPage("missing")));
+
+        Element lcopy = lfactory.createPage("second");
+        lfactory.appendElementToCpnet(lcopy);
+        assertNull(lfactory.getInPortPlaceId(lcopy));
+        Map<String, Element> lcopies = lcache.get("subnet", lfactory, lcopy);
+        assertEquals(1, lcache.getHits());
+        assertEquals(lcopy, lcopies.get("in").getParentNode());
+        assertFalse(lin.getAttribute("id").equals(lcopies.get("in").getAttribute("id")));
+        assertEquals(lcopies.get("in").getAttribute("id"), lfactory.getInPortPlaceId(lcopy));
+
+        assertEquals(2, StateSpaceNet.children(lfusion, "fusion_elm").size());
+        assertEquals(lcopies.get("shared").getAttribute("id"),
+                StateSpaceNet.children(lfusion, "fusion_elm").get(1).getAttribute("idref"));
+        assertTrue(lfactory.createValidator().validate().isEmpty());
+    }
+
+    @Test(expected = BadCPNDefinitionException.class)
+    public void roleOutsidePage() throws ParserConfigurationException {
+        CPNToolsNetFactory lfactory = new CPNToolsNetFactory();
+        Element lpage = lfactory.createPage("page");
+        Map<String, Element> lroles = new HashMap<String, Element>();
+        lroles.put("place", lfactory.createBasicPlace("outside", "UNIT", ""));
+        new SubnetCache(4).put("subnet", lpage, lroles);
+    }
+}
@@ -0,0 +1,48 @@
+/*
+* Verdicts of CTLChecker and LTLChecker on the mutex net of StateSpaceNetTest.
+*/
+
+package stave.cpntools;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import javax.xml.parsers.ParserConfigurationException;
+import org.junit.Before;
+import org.junit.Test;
+
+public class TemporalCheckerTest {
+
+    private StateSpaceNet mnet;
+
+    @Before
+    public void setUp() throws ParserConfigurationException {
+        mnet = StateSpaceNetTest.mutex().createStateSpaceNet();
+    }
+
+    @Test
+    public void ctl() {
+        CTLChecker lchecker = new CTLChecker(new StateSpaceExplorer(mnet).explore());
+        assertTrue(lchecker.check("AG tokens(busy) <= 1"));
+        assertTrue(lchecker.check("AG !dead"));
+        assertTrue(lchecker.check("AG EF marked(done)"));
+        assertTrue(lchecker.check("AG (marked(busy) -> !marked(mutex))"));
+        assertFalse(lchecker.check("EF tokens(busy) = 2"));
+        assertFalse(lchecker.check("EG !marked(busy)"));
+        assertTrue(lchecker.check("E[!marked(busy) U contains(busy, p2)]"));
+    }
+
+    @Test
+    public void ltl() {
+        LTLChecker lchecker = new LTLChecker(mnet);
+        assertTrue(lchecker.check("G tokens(busy) <= 1").holds());
+        assertTrue(lchecker.check("G F fired(enter)").holds());
+        assertTrue(lchecker.check("G (fired(enter) -> X (fired(leave) || fired(reset)))").holds());
+        assertFalse(lchecker.check("G (fired(enter) -> X fired(leave))").holds());
+
+        LTLChecker.Result lresult = lchecker.check("G !marked(done)");
+        assertFalse(lresult.holds());
+        assertFalse(lresult.getTrace().isEmpty());
+        assertFalse(lchecker.check("G F enabled(reset) -> F G marked(idle)").holds());
+    }
+}
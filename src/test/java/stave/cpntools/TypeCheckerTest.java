@@ -0,0 +1,77 @@
+/*
+* Type checking of initial markings, arc expressions and guards against the
+* declared colour sets and variables.
+*/
+
+package stave.cpntools;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.List;
+import javax.xml.parsers.ParserConfigurationException;
+import org.junit.Test;
+import org.w3c.dom.Element;
+import stave.cpntools.BaseCPNCommunication.BadCPNDefinitionException;
+
+public class TypeCheckerTest {
+
+    /**
+     * A transition moving an ID from "from" to a pair in "to", guarded by pguard, taking the token of "lock".
+     */
+    static CPNToolsNetFactory net(String pinit, String pinput, String poutput, String pguard)
+            throws ParserConfigurationException {
+        CPNToolsNetFactory lfactory = new CPNToolsNetFactory();
+        lfactory.appendElementToGlobbox(lfactory.createUnitColset("UNIT"));
+        lfactory.appendElementToGlobbox(lfactory.createIntColset("ID", "1", "3"));
+        lfactory.appendElementToGlobbox(lfactory.createProductColset("PAIR", Arrays.asList("ID", "UNIT")));
+        lfactory.appendElementToGlobbox(lfactory.createVarDecl("i", "ID"));
+        Element lpage = lfactory.createPage("main");
+        lfactory.appendElementToCpnet(lpage);
+        lfactory.appendElementToInstances(lfactory.createInstanceForPage(lpage));
+
+        Element lfrom = lfactory.createBasicPlace("from", "ID", pinit);
+        Element lto = lfactory.createBasicPlace("to", "PAIR", "");
+        Element llock = lfactory.createBasicPlace("lock", "UNIT", "1`()");
+        Element lmove = lfactory.createConditionTransition("move", pguard);
+        for (Element lnode : Arrays.asList(lfrom, lto, llock, lmove)) {
+            lpage.appendChild(lnode);
+        }
+        lpage.appendChild(lfactory.createArcPtoT(lfrom, lmove, pinput));
+        lpage.appendChild(lfactory.createArcPtoT(llock, lmove, "()"));
+        lpage.appendChild(lfactory.createArcTtoP(lmove, lto, poutput));
+        return lfactory;
+    }
+
+    private static String problem(CPNToolsNetFactory pfactory) {
+        List<String> lproblems = pfactory.createTypeChecker().validate();
+        assertEquals(lproblems.toString(), 1, lproblems.size());
+        return lproblems.get(0);
+    }
+
+    @Test
+    public void wellTyped() throws ParserConfigurationException {
+        assertTrue(net("1`1++2`3", "i", "1`(i,())", "i <> 2").createTypeChecker().validate().isEmpty());
+    }
+
+    @Test
+    public void initialMarking() throws ParserConfigurationException {
+        assertTrue(problem(net("1`()", "i", "(i,())", "true")).startsWith("Initial marking of place from"));
+    }
+
+    @Test
+    public void arcExpression() throws ParserConfigurationException {
+        assertTrue(problem(net("1`1", "i", "(i,i)", "true")).startsWith("Expression of arc"));
+    }
+
+    @Test
+    public void guard() throws ParserConfigurationException {
+        assertTrue(problem(net("1`1", "i", "(i,())", "i + 1")).startsWith("Guard of transition move"));
+    }
+
+    @Test(expected = BadCPNDefinitionException.class)
+    public void check() throws ParserConfigurationException {
+        net("1`1", "()", "(i,())", "true").createTypeChecker().check();
+    }
+}